@@ -7,21 +7,35 @@ import com.qcloud.iot.domain.Attribute;
 import com.qcloud.iot.domain.Device;
 import com.qcloud.iot.domain.GateWayMsg;
 import com.qcloud.iot.log.TXMqttLogCallBack;
-import com.qcloud.iot.mqtt.TXAlarmPingSender;
+import com.qcloud.iot.mqtt.TXCredentialSigner;
+import com.qcloud.iot.mqtt.TXMessageHandler;
 import com.qcloud.iot.mqtt.TXMqttActionCallBack;
 import com.qcloud.iot.mqtt.TXMqttConnection;
 import com.qcloud.iot.mqtt.TXMqttConstants;
-import com.qcloud.iot.util.Base64;
-import com.qcloud.iot.util.HmacSha256;
+import com.qcloud.iot.mqtt.TXOTACallBack;
+import com.qcloud.iot.mqtt.TXOTAImpl;
+import com.qcloud.iot.mqtt.TXPublishBatchResult;
+import com.qcloud.iot.mqtt.TXPublishRequest;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.paho.client.mqttv3.*;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 import static com.qcloud.iot.mqtt.TXMqttConstants.DEFAULT_SERVER_URI;
 import static com.qcloud.iot.mqtt.TXMqttConstants.MQTT_SDK_VER;
@@ -33,14 +47,34 @@ import static com.qcloud.iot.mqtt.TXMqttConstants.MQTT_SDK_VER;
 public class TXGatewayConnection extends TXMqttConnection {
     public static final String TAG = "TXMQTT" + MQTT_SDK_VER;
 
-    private HashMap<String, TXGatewaySubdev> mSubdevs = new HashMap<String, TXGatewaySubdev>();
+    private final TXSubdevRegistry mSubdevs = new TXSubdevRegistry();
     private static final String GW_OPERATION_RES_PREFIX = "$gateway/operation/result/";
     private static final String GW_OPERATION_PREFIX = "$gateway/operation/";
+    private static final String GW_OPERATION_ONLINE = "online";
+    private static final String GW_OPERATION_OFFLINE = "offline";
+    private static final String GW_EVENT_TOPIC_SUFFIX = "/event";
+    private static final Gson GSON = new Gson();
+    private final List<TXOTAImpl> mSubdevOTAs = new CopyOnWriteArrayList<>();
+    private final TXSubdevTelemetry mTelemetry;
+
+    /**
+     * 等待云端结果的批量上线/下线操作，按子设备关联
+     */
+    private final ConcurrentMap<TXSubdevKey, TXSubdevOperation> mPendingOnline = new ConcurrentHashMap<>();
+    private final ConcurrentMap<TXSubdevKey, TXSubdevOperation> mPendingOffline = new ConcurrentHashMap<>();
 
 
     public TXGatewayConnection(String serverURI, String productID, String deviceName, String secretKey, DisconnectedBufferOptions bufferOpts,
                                MqttClientPersistence clientPersistence, Boolean mqttLogFlag, TXMqttLogCallBack logCallBack, TXMqttActionCallBack callBack) {
         super(serverURI, productID, deviceName, secretKey, bufferOpts, clientPersistence, mqttLogFlag, logCallBack, callBack);
+        mTelemetry = new TXSubdevTelemetry(this, productID + "/" + deviceName + GW_EVENT_TOPIC_SUFFIX, deviceName);
+
+        mDispatcher.addHandler(GW_OPERATION_RES_PREFIX + "#", new TXMessageHandler() {
+            @Override
+            public boolean onMessage(String topic, MqttMessage message) {
+                return consumeGwOperationMsg(topic, message);
+            }
+        });
     }
 
     /**
@@ -110,8 +144,14 @@ public class TXGatewayConnection extends TXMqttConnection {
      * @return null if not existed otherwise the subdev
      */
     private TXGatewaySubdev findSubdev(String productId, String devName) {
-        log.debug("The hashed information is " + mSubdevs);
-        return mSubdevs.get(productId + devName);
+        return mSubdevs.get(productId, devName);
+    }
+
+    /**
+     * @return 子设备注册表，可按状态获取子设备
+     */
+    public TXSubdevRegistry getSubdevRegistry() {
+        return mSubdevs;
     }
 
     /**
@@ -120,8 +160,8 @@ public class TXGatewayConnection extends TXMqttConnection {
      * @param subdev
      * @return the operation results
      */
-    private synchronized TXGatewaySubdev removeSubdev(TXGatewaySubdev subdev) {
-        return mSubdevs.remove(subdev.mProductId + subdev.mDevName);
+    private TXGatewaySubdev removeSubdev(TXGatewaySubdev subdev) {
+        return mSubdevs.remove(subdev) ? subdev : null;
     }
 
     /**
@@ -131,8 +171,38 @@ public class TXGatewayConnection extends TXMqttConnection {
      * @param devName
      * @return
      */
-    private synchronized TXGatewaySubdev removeSubdev(String productId, String devName) {
-        return mSubdevs.remove(productId + devName);
+    private TXGatewaySubdev removeSubdev(String productId, String devName) {
+        return mSubdevs.remove(productId, devName);
+    }
+
+    /**
+     * 初始化子设备的OTA功能，子设备的固件升级消息经网关连接收发，固件下载由下载管理器统一调度，
+     * 多个子设备升级同一固件时只下载一次
+     *
+     * @param subProductID  子设备产品ID
+     * @param subDeviceName 子设备名
+     * @param storagePath   OTA升级包存储路径(调用者必须确保路径已存在，并且具有写权限)
+     * @param callback      OTA事件回调
+     * @return 子设备的OTA对象，用于上报版本及升级状态
+     */
+    public TXOTAImpl initSubdevOTA(String subProductID, String subDeviceName, String storagePath, TXOTACallBack callback) {
+        final TXOTAImpl ota = new TXOTAImpl(this, subProductID, subDeviceName, storagePath, callback);
+        mDispatcher.addHandler(ota.getUpdateTopic(), new TXMessageHandler() {
+            @Override
+            public boolean onMessage(String topic, MqttMessage message) {
+                return ota.processMessage(topic, message);
+            }
+        });
+        mSubdevOTAs.add(ota);
+        return ota;
+    }
+
+    @Override
+    protected void onSubscribeSuccess(IMqttToken token) {
+        super.onSubscribeSuccess(token);
+        for (TXOTAImpl ota : mSubdevOTAs) {
+            ota.onSubscribeCompleted(Status.OK, token, token.getUserContext(), TXMqttConstants.SUBSCRIBE_SUCCESS);
+        }
     }
 
     /**
@@ -140,8 +210,8 @@ public class TXGatewayConnection extends TXMqttConnection {
      *
      * @param dev
      */
-    private synchronized void addSubdev(TXGatewaySubdev dev) {
-        mSubdevs.put(dev.mProductId + dev.mDevName, dev);
+    private TXGatewaySubdev addSubdev(TXGatewaySubdev dev) {
+        return mSubdevs.add(dev);
     }
 
     /**
@@ -255,7 +325,7 @@ public class TXGatewayConnection extends TXMqttConnection {
 
         MqttMessage message = new MqttMessage();
         message.setQos(0);
-        message.setPayload(new Gson().toJson(msg).getBytes());
+        message.setPayload(GSON.toJson(msg).getBytes());
         log.debug("topic=>" + topic + " , publish message =>" + message);
         return super.publish(topic, message, null);
     }
@@ -334,42 +404,214 @@ public class TXGatewayConnection extends TXMqttConnection {
 
         MqttMessage message = new MqttMessage();
         message.setQos(0);
-        message.setPayload(new Gson().toJson(msg).getBytes());
+        message.setPayload(GSON.toJson(msg).getBytes());
         log.debug("topic=>" + topic + " , publish message =>" + message);
 
         return super.publish(topic, message, null);
     }
 
-    private boolean consumeGwOperationMsg(String topic, MqttMessage message) {
-        if (!topic.startsWith(GW_OPERATION_RES_PREFIX)) {
-            return false;
+    /**
+     * 上报子设备属性
+     * <p>
+     * 消息直接序列化到复用的缓冲区，格式与GateWayMsg一致。设置了合并窗口时，窗口内同一子设备的多次上报合并为一次，
+     * 窗口结束时多个子设备打包发布。
+     *
+     * @param subProductID  子设备产品ID
+     * @param subDeviceName 子设备名
+     * @param attributes    属性索引及属性值
+     * @return 不合并时返回发布结果，合并时返回Status.OK
+     * @see #setSubdevTelemetryWindow(long)
+     */
+    public Status publishSubdevAttributes(String subProductID, String subDeviceName, Map<String, String> attributes) {
+        return mTelemetry.report(new TXSubdevKey(subProductID, subDeviceName), attributes);
+    }
+
+    /**
+     * 设置子设备属性上报的合并窗口，默认为0（不合并）。设置为0时立即发布尚未发布的属性
+     *
+     * @param windowMs 合并窗口，单位：毫秒
+     */
+    public void setSubdevTelemetryWindow(long windowMs) {
+        mTelemetry.setWindow(windowMs);
+    }
+
+    /**
+     * 立即发布合并窗口内尚未发布的子设备属性
+     *
+     * @return 发布结果
+     */
+    public Status flushSubdevTelemetry() {
+        return mTelemetry.flush();
+    }
+
+    /**
+     * 合并窗口到期后的发布没有调用方接收结果，失败时只记录日志并计数
+     *
+     * @return 合并窗口到期后发布失败的次数
+     */
+    public long getSubdevTelemetryFailedCount() {
+        return mTelemetry.getFailedFlushCount();
+    }
+
+    /**
+     * 批量上线子设备，默认超时时间为TXMqttConstants.DEFAULT_GATEWAY_OPERATION_TIMEOUT_MS
+     *
+     * @param subdevs 要上线的子设备
+     * @return 所有子设备都收到云端结果或超时后完成的Future
+     * @see #gatewaySubdevsOnline(Collection, long)
+     */
+    public CompletableFuture<TXSubdevBatchResult> gatewaySubdevsOnline(Collection<TXSubdevKey> subdevs) {
+        return gatewaySubdevsOnline(subdevs, TXMqttConstants.DEFAULT_GATEWAY_OPERATION_TIMEOUT_MS);
+    }
+
+    /**
+     * 批量上线子设备
+     * <p>
+     * 子设备按消息长度上限（TXMqttConstants.MAX_GATEWAY_PAYLOAD）打包为尽量少的上线消息，
+     * 通过发布流水线发布；云端返回的逐设备结果汇总为一个TXSubdevBatchResult。
+     *
+     * @param subdevs   要上线的子设备
+     * @param timeoutMs 等待云端结果的超时时间，单位：毫秒
+     * @return 所有子设备都收到云端结果或超时后完成的Future
+     */
+    public CompletableFuture<TXSubdevBatchResult> gatewaySubdevsOnline(Collection<TXSubdevKey> subdevs, long timeoutMs) {
+        for (TXSubdevKey key : subdevs) {
+            addSubdev(new TXGatewaySubdev(key.getProductId(), key.getDeviceName()));
         }
-        log.debug("got gate operation messga " + topic + message);
-        String productInfo = topic.substring(GW_OPERATION_RES_PREFIX.length());
-        int splitIdx = productInfo.indexOf('/');
-        String productId = productInfo.substring(0, splitIdx);
-        String devName = productInfo.substring(splitIdx + 1);
+        return operateSubdevs(GW_OPERATION_ONLINE, subdevs, mPendingOnline, timeoutMs);
+    }
 
-        TXGatewaySubdev subdev = findSubdev(productId, devName);
+    /**
+     * 批量下线子设备，默认超时时间为TXMqttConstants.DEFAULT_GATEWAY_OPERATION_TIMEOUT_MS
+     *
+     * @param subdevs 要下线的子设备
+     * @return 所有子设备都收到云端结果或超时后完成的Future
+     * @see #gatewaySubdevsOffline(Collection, long)
+     */
+    public CompletableFuture<TXSubdevBatchResult> gatewaySubdevsOffline(Collection<TXSubdevKey> subdevs) {
+        return gatewaySubdevsOffline(subdevs, TXMqttConstants.DEFAULT_GATEWAY_OPERATION_TIMEOUT_MS);
+    }
 
-        // this subdev is not managed by me
-        if (subdev == null) {
-            return false;
+    /**
+     * 批量下线子设备，下线成功的子设备从注册表中移除
+     *
+     * @param subdevs   要下线的子设备
+     * @param timeoutMs 等待云端结果的超时时间，单位：毫秒
+     * @return 所有子设备都收到云端结果或超时后完成的Future
+     */
+    public CompletableFuture<TXSubdevBatchResult> gatewaySubdevsOffline(Collection<TXSubdevKey> subdevs, long timeoutMs) {
+        return operateSubdevs(GW_OPERATION_OFFLINE, subdevs, mPendingOffline, timeoutMs);
+    }
+
+    private CompletableFuture<TXSubdevBatchResult> operateSubdevs(String type, Collection<TXSubdevKey> subdevs,
+                                                                  ConcurrentMap<TXSubdevKey, TXSubdevOperation> pending, long timeoutMs) {
+        Set<TXSubdevKey> keys = new LinkedHashSet<>(subdevs);
+        final TXSubdevOperation operation = new TXSubdevOperation(type, keys, pending);
+        operation.start(timeoutMs);
+        if (keys.isEmpty()) {
+            return operation.getFuture();
         }
 
+        final Map<TXPublishRequest, List<TXSubdevKey>> requests = buildOperationRequests(type, keys);
+        log.debug("{} {} subdevs in {} messages", type, keys.size(), requests.size());
+
+        publishBatch(new ArrayList<>(requests.keySet())).thenAccept(new Consumer<TXPublishBatchResult>() {
+            @Override
+            public void accept(TXPublishBatchResult result) {
+                for (TXPublishRequest request : result.getFailedRequests()) {
+                    log.error("publish {} message of {} subdevs failed", request.getTopic(), requests.get(request).size(), result.getFirstCause());
+                    operation.onPublishFailed(requests.get(request));
+                }
+            }
+        });
+        return operation.getFuture();
+    }
+
+    /**
+     * 将子设备打包为上线/下线消息，每条消息不超过TXMqttConstants.MAX_GATEWAY_PAYLOAD字节
+     *
+     * @return 消息及其携带的子设备，按子设备顺序排列
+     */
+    private Map<TXPublishRequest, List<TXSubdevKey>> buildOperationRequests(String type, Collection<TXSubdevKey> subdevs) {
+        String topic = GW_OPERATION_PREFIX + mProductId + "/" + mDeviceName;
+        String head = "{\"type\":" + JSONObject.quote(type) + ",\"payload\":{\"devices\":[";
+        String tail = "]}}";
+        int overhead = utf8Length(head) + utf8Length(tail);
+
+        Map<TXPublishRequest, List<TXSubdevKey>> requests = new LinkedHashMap<>();
+        StringBuilder payload = new StringBuilder(head);
+        List<TXSubdevKey> chunk = new ArrayList<>();
+        int bytes = overhead;
+        for (TXSubdevKey key : subdevs) {
+            String device = "{\"product_id\":" + JSONObject.quote(key.getProductId())
+                    + ",\"device_name\":" + JSONObject.quote(key.getDeviceName()) + "}";
+            int length = utf8Length(device);
+            // 单个子设备超出上限时也单独发送，由云端拒绝
+            if (!chunk.isEmpty() && bytes + 1 + length > TXMqttConstants.MAX_GATEWAY_PAYLOAD) {
+                requests.put(newOperationRequest(topic, payload.append(tail)), chunk);
+                payload = new StringBuilder(head);
+                chunk = new ArrayList<>();
+                bytes = overhead;
+            }
+            if (!chunk.isEmpty()) {
+                payload.append(',');
+                bytes++;
+            }
+            payload.append(device);
+            bytes += length;
+            chunk.add(key);
+        }
+        if (!chunk.isEmpty()) {
+            requests.put(newOperationRequest(topic, payload.append(tail)), chunk);
+        }
+        return requests;
+    }
+
+    private static TXPublishRequest newOperationRequest(String topic, CharSequence payload) {
+        MqttMessage message = new MqttMessage(payload.toString().getBytes(StandardCharsets.UTF_8));
+        message.setQos(TXMqttConstants.QOS1);
+        return new TXPublishRequest(topic, message);
+    }
+
+    private static int utf8Length(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private boolean consumeGwOperationMsg(String topic, MqttMessage message) {
+        log.debug("got gate operation messga " + topic + message);
+
         try {
             byte[] payload = message.getPayload();
             JSONObject jsonObject = new JSONObject(new String(payload));
 
             String type = jsonObject.getString("type");
-            if (type.equalsIgnoreCase("online")) {
+            JSONObject resultPayload = jsonObject.optJSONObject("payload");
+            if (resultPayload != null && resultPayload.optJSONArray("devices") != null) {
+                consumeGwOperationResults(type, resultPayload.getJSONArray("devices"));
+                return true;
+            }
+
+            // 单个子设备的结果，子设备由topic确定
+            String productInfo = topic.substring(GW_OPERATION_RES_PREFIX.length());
+            int splitIdx = productInfo.indexOf('/');
+            String productId = productInfo.substring(0, splitIdx);
+            String devName = productInfo.substring(splitIdx + 1);
+
+            TXGatewaySubdev subdev = findSubdev(productId, devName);
+
+            // this subdev is not managed by me
+            if (subdev == null) {
+                return false;
+            }
+
+            if (type.equalsIgnoreCase(GW_OPERATION_ONLINE)) {
                 String res = jsonObject.getString("result");
 
                 if (res.equals("0")) {
                     subdev.setSubdevStatus(Status.SUBDEV_STAT_ONLINE);
                 }
 
-            } else if (type.equalsIgnoreCase("offline")) {
+            } else if (type.equalsIgnoreCase(GW_OPERATION_OFFLINE)) {
                 String res = jsonObject.getString("result");
 
                 if (res.equals("0")) {
@@ -378,22 +620,58 @@ public class TXGatewayConnection extends TXMqttConnection {
             }
 
         } catch (JSONException e) {
-
+            log.error("parse gateway operation result failed", e);
         }
 
         return true;
     }
 
+    /**
+     * 处理批量上线/下线的逐设备结果，更新子设备状态并通知对应的批量操作
+     */
+    private void consumeGwOperationResults(String type, JSONArray devices) throws JSONException {
+        boolean online = type.equalsIgnoreCase(GW_OPERATION_ONLINE);
+        if (!online && !type.equalsIgnoreCase(GW_OPERATION_OFFLINE)) {
+            return;
+        }
+        ConcurrentMap<TXSubdevKey, TXSubdevOperation> pending = online ? mPendingOnline : mPendingOffline;
+
+        for (int i = 0; i < devices.length(); i++) {
+            JSONObject device = devices.getJSONObject(i);
+            TXSubdevKey key = new TXSubdevKey(device.getString("product_id"), device.getString("device_name"));
+            int result = device.getInt("result");
+
+            TXGatewaySubdev subdev = mSubdevs.get(key);
+            if (result == 0 && subdev != null) {
+                if (online) {
+                    subdev.setSubdevStatus(Status.SUBDEV_STAT_ONLINE);
+                } else {
+                    removeSubdev(subdev);
+                }
+            }
+
+            TXSubdevOperation operation = pending.get(key);
+            if (operation != null) {
+                operation.onResult(key, result);
+            }
+        }
+    }
+
+    /**
+     * 网关设备始终使用有效期为TXCredentialSigner.CREDENTIAL_VALIDITY_SECONDS的凭证，开启Paho自动重连时也不签发长期有效的签名
+     */
     @Override
-    public void messageArrived(String topic, MqttMessage message) throws Exception {
-        log.debug("message received " + topic);
-        if (!consumeGwOperationMsg(topic, message)) {
-            super.messageArrived(topic, message);
+    protected void signCredentials() {
+        TXCredentialSigner.Credentials credentials = mCredentialSigner.take();
+        mConnOptions.setUserName(credentials.getUserName());
+        char[] password = credentials.getPassword();
+        if (password != null) {
+            mConnOptions.setPassword(password);
         }
     }
 
     @Override
-    public synchronized Status connect(MqttConnectOptions options, Object userContext) {
+    protected synchronized Status connect(MqttConnectOptions options, Object userContext, final CompletableFuture<IMqttToken> future) {
         if (mConnectStatus.equals(TXMqttConstants.ConnectStatus.kConnecting)) {
             log.info("The client is connecting. Connect return directly.");
             return Status.MQTT_CONNECT_IN_PROGRESS;
@@ -401,6 +679,9 @@ public class TXGatewayConnection extends TXMqttConnection {
 
         if (mConnectStatus.equals(TXMqttConstants.ConnectStatus.kConnected)) {
             log.info("The client is already connected. Connect return directly.");
+            if (future != null) {
+                future.complete(null);
+            }
             return Status.OK;
         }
 
@@ -410,29 +691,30 @@ public class TXGatewayConnection extends TXMqttConnection {
             return Status.PARAMETER_INVALID;
         }
 
-        Long timestamp = System.currentTimeMillis() / 1000 + 600;
-        String userNameStr = mUserName + ";" + getConnectId() + ";" + timestamp;
-
-        mConnOptions.setUserName(userNameStr);
-
-        if (mSecretKey != null && mSecretKey.length() != 0) {
-            try {
-                log.debug("secret is " + mSecretKey);
-                String passWordStr = HmacSha256.getSignature(userNameStr.getBytes(), Base64.decode(mSecretKey, Base64.DEFAULT)) + ";hmacsha256";
-                mConnOptions.setPassword(passWordStr.toCharArray());
-            } catch (IllegalArgumentException e) {
-                log.debug("Failed to set password");
-            }
+        if (getReconnectScheduler() != null) {
+            // 由重连调度器负责重连，每次重连重新签名，凭证提前在后台签好
+            mConnOptions.setAutomaticReconnect(false);
+            mCredentialSigner.startPresigning();
         }
 
+        signCredentials();
+
         mConnOptions.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
 
         IMqttActionListener mActionListener = new IMqttActionListener() {
             @Override
-            public void onSuccess(IMqttToken token) {
+            public void onSuccess(final IMqttToken token) {
                 log.info("onSuccess!");
                 setConnectingState(TXMqttConstants.ConnectStatus.kConnected);
-                mActionCallBack.onConnectCompleted(Status.OK, false, token.getUserContext(), "connected to " + mServerURI);
+                if (future != null) {
+                    future.complete(token);
+                }
+                runCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        mActionCallBack.onConnectCompleted(Status.OK, false, token.getUserContext(), "connected to " + mServerURI);
+                    }
+                });
                 // If the connection is established, subscribe the gateway operation topic
                 String gwTopic = GW_OPERATION_RES_PREFIX + mProductId + "/" + mDeviceName;
                 int qos = TXMqttConstants.QOS1;
@@ -446,20 +728,24 @@ public class TXGatewayConnection extends TXMqttConnection {
             }
 
             @Override
-            public void onFailure(IMqttToken token, Throwable exception) {
+            public void onFailure(final IMqttToken token, final Throwable exception) {
                 log.error(exception.getMessage(), exception);
                 setConnectingState(TXMqttConstants.ConnectStatus.kConnectFailed);
-                mActionCallBack.onConnectCompleted(Status.ERROR, false, token.getUserContext(), exception.toString());
+                if (future != null) {
+                    future.completeExceptionally(exception);
+                }
+                runCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        mActionCallBack.onConnectCompleted(Status.ERROR, false, token.getUserContext(), exception.toString());
+                    }
+                });
             }
         };
 
         if (mMqttClient == null) {
             try {
-                mPingSender = new TXAlarmPingSender();
-                mMqttClient = new MqttAsyncClient(mServerURI, mClientId, mMqttPersist, mPingSender);
-                mMqttClient.setCallback(this);
-                mMqttClient.setBufferOpts(super.bufferOpts);
-                mMqttClient.setManualAcks(false);
+                mMqttClient = createMqttClient();
             } catch (Exception e) {
                 log.error("new MqttClient failed", e);
                 setConnectingState(TXMqttConstants.ConnectStatus.kConnectFailed);
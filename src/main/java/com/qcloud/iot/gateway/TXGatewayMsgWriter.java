@@ -0,0 +1,184 @@
+package com.qcloud.iot.gateway;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 子设备上报消息的序列化器
+ * <p>
+ * 直接将消息按UTF-8编码写入复用的字节缓冲区，字段名及顺序与Gson序列化GateWayMsg的结果一致，
+ * 不构造GateWayMsg、Device、Attribute对象。非线程安全，由调用者加锁。
+ */
+final class TXGatewayMsgWriter {
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] mBuf = new byte[INITIAL_CAPACITY];
+    private int mCount;
+    private int mDevices;
+
+    /**
+     * 开始一条新消息，写入消息头
+     *
+     * @param msgType   消息类型
+     * @param msgId     消息ID
+     * @param timestamp 时间戳
+     */
+    void begin(int msgType, String msgId, String timestamp) {
+        mCount = 0;
+        mDevices = 0;
+        writeAscii("{\"msgType\":");
+        writeAscii(Integer.toString(msgType));
+        writeAscii(",\"ack\":0,\"msgId\":");
+        writeString(msgId);
+        writeAscii(",\"msg\":\"report device\",\"code\":0,\"timeStamp\":");
+        writeString(timestamp);
+        writeAscii(",\"data\":[");
+    }
+
+    /**
+     * 写入一个子设备及其属性
+     *
+     * @param deviceId   子设备ID
+     * @param hostId     网关设备ID
+     * @param attributes 属性索引及属性值
+     */
+    void writeDevice(String deviceId, String hostId, Map<String, String> attributes) {
+        if (mDevices++ > 0) {
+            writeByte(',');
+        }
+        writeAscii("{\"deviceId\":");
+        writeString(deviceId);
+        writeAscii(",\"hostId\":");
+        writeString(hostId);
+        writeAscii(",\"classify\":\"sub\",\"attributes\":[");
+        boolean first = true;
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            writeAscii(first ? "{\"index\":" : ",{\"index\":");
+            writeString(attribute.getKey());
+            if (attribute.getValue() != null) {
+                writeAscii(",\"value\":");
+                writeString(attribute.getValue());
+            }
+            writeByte('}');
+            first = false;
+        }
+        writeAscii("]}");
+    }
+
+    /**
+     * 结束消息
+     */
+    void end() {
+        writeAscii("]}");
+    }
+
+    /**
+     * @return 已写入的字节数
+     */
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * @return 已写入的子设备数
+     */
+    int devices() {
+        return mDevices;
+    }
+
+    /**
+     * 撤销最后写入的子设备，回到其写入前的位置
+     *
+     * @param size 写入该子设备之前的字节数
+     */
+    void rollback(int size) {
+        mCount = size;
+        mDevices--;
+    }
+
+    /**
+     * @return 消息内容的副本
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(mBuf, mCount);
+    }
+
+    private void writeString(String s) {
+        writeByte('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    writeByte('\\');
+                    writeByte(c);
+                } else if (c >= 0x20) {
+                    writeByte(c);
+                } else {
+                    writeControl(c);
+                }
+            } else if (c < 0x800) {
+                writeByte(0xC0 | (c >> 6));
+                writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                writeByte(0xF0 | (cp >> 18));
+                writeByte(0x80 | ((cp >> 12) & 0x3F));
+                writeByte(0x80 | ((cp >> 6) & 0x3F));
+                writeByte(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符，与String.getBytes一致替换为'?'
+                writeByte('?');
+            } else {
+                writeByte(0xE0 | (c >> 12));
+                writeByte(0x80 | ((c >> 6) & 0x3F));
+                writeByte(0x80 | (c & 0x3F));
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeControl(char c) {
+        switch (c) {
+            case '\n':
+                writeAscii("\\n");
+                break;
+            case '\r':
+                writeAscii("\\r");
+                break;
+            case '\t':
+                writeAscii("\\t");
+                break;
+            case '\b':
+                writeAscii("\\b");
+                break;
+            case '\f':
+                writeAscii("\\f");
+                break;
+            default:
+                writeAscii("\\u00");
+                writeByte(HEX[c >> 4]);
+                writeByte(HEX[c & 0xF]);
+        }
+    }
+
+    private void writeAscii(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            mBuf[mCount++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        mBuf[mCount++] = (byte) b;
+    }
+
+    private void ensureCapacity(int more) {
+        if (mCount + more > mBuf.length) {
+            mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length * 2, mCount + more));
+        }
+    }
+}
@@ -11,8 +11,14 @@ public class TXGatewaySubdev {
     public static final String TAG = "TXGatewaySubdev";
     public String mDevName;
     public String mProductId;
+    private final TXSubdevKey mKey;
     private Status mStat;
 
+    /**
+     * 子设备所在的注册表，状态变化时更新其索引
+     */
+    private TXSubdevRegistry mRegistry;
+
     /**
      * @param devName   子设备设备名
      * @param productId 子设备设备ID
@@ -20,9 +26,17 @@ public class TXGatewaySubdev {
     public TXGatewaySubdev(String productId, String devName) {
         mDevName = devName;
         mProductId = productId;
+        mKey = new TXSubdevKey(productId, devName);
         mStat = Status.SUBDEV_STAT_INIT;
     }
 
+    /**
+     * @return 子设备标识
+     */
+    public TXSubdevKey getKey() {
+        return mKey;
+    }
+
     /**
      * @return 子设备当前状态
      */
@@ -34,7 +48,31 @@ public class TXGatewaySubdev {
      * @param stat 更新子设备状态
      */
     public synchronized void setSubdevStatus(Status stat) {
+        Status old = mStat;
         mStat = stat;
+        if (mRegistry != null) {
+            mRegistry.onStatusChanged(this, old, stat);
+        }
+    }
+
+    /**
+     * 加入注册表后调用，将当前状态计入注册表索引。加入后已被并发删除时忽略
+     */
+    synchronized void attach(TXSubdevRegistry registry) {
+        if (registry.get(mKey) == this) {
+            mRegistry = registry;
+            registry.onStatusChanged(this, null, mStat);
+        }
+    }
+
+    /**
+     * 从注册表删除后调用，将当前状态移出注册表索引
+     */
+    synchronized void detach(TXSubdevRegistry registry) {
+        if (mRegistry == registry) {
+            registry.onStatusChanged(this, mStat, null);
+            mRegistry = null;
+        }
     }
 
 }
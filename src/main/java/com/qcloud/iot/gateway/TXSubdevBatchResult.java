@@ -0,0 +1,110 @@
+package com.qcloud.iot.gateway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 子设备批量上线/下线结果
+ * <p>
+ * 每个子设备的结果为云端返回的结果码，0表示成功；消息发布失败的子设备结果码为{@link #RESULT_PUBLISH_FAILED}，
+ * 超时未收到云端结果的子设备计入{@link #getTimedOut()}。
+ */
+public class TXSubdevBatchResult {
+
+    /**
+     * 携带该子设备的消息发布失败
+     */
+    public static final int RESULT_PUBLISH_FAILED = -1;
+
+    private final String type;
+
+    private final int total;
+
+    private final Map<TXSubdevKey, Integer> results = new LinkedHashMap<>();
+
+    private final List<TXSubdevKey> timedOut = new ArrayList<>();
+
+    TXSubdevBatchResult(String type, int total) {
+        this.type = type;
+        this.total = total;
+    }
+
+    /**
+     * @return 是否为首次结果，重复的结果被忽略
+     */
+    synchronized boolean onResult(TXSubdevKey key, int result) {
+        if (results.containsKey(key)) {
+            return false;
+        }
+        results.put(key, result);
+        return true;
+    }
+
+    synchronized void onTimeout(TXSubdevKey key) {
+        timedOut.add(key);
+    }
+
+    /**
+     * @return 操作类型：online或offline
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return 本批子设备总数
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return 操作成功的子设备
+     */
+    public synchronized List<TXSubdevKey> getSucceeded() {
+        List<TXSubdevKey> succeeded = new ArrayList<>();
+        for (Map.Entry<TXSubdevKey, Integer> entry : results.entrySet()) {
+            if (entry.getValue() == 0) {
+                succeeded.add(entry.getKey());
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * @return 操作失败的子设备及其结果码
+     */
+    public synchronized Map<TXSubdevKey, Integer> getFailed() {
+        Map<TXSubdevKey, Integer> failed = new LinkedHashMap<>();
+        for (Map.Entry<TXSubdevKey, Integer> entry : results.entrySet()) {
+            if (entry.getValue() != 0) {
+                failed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @return 超时未收到云端结果的子设备
+     */
+    public synchronized List<TXSubdevKey> getTimedOut() {
+        return Collections.unmodifiableList(new ArrayList<>(timedOut));
+    }
+
+    /**
+     * @return 全部子设备操作成功
+     */
+    public synchronized boolean isAllSucceeded() {
+        return timedOut.isEmpty() && getSucceeded().size() == total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int succeeded = getSucceeded().size();
+        return "TXSubdevBatchResult{type=" + type + ", total=" + total + ", succeeded=" + succeeded
+                + ", failed=" + (results.size() - succeeded) + ", timedOut=" + timedOut.size() + "}";
+    }
+}
@@ -0,0 +1,57 @@
+package com.qcloud.iot.gateway;
+
+/**
+ * 子设备标识，由产品ID和设备名组成
+ * <p>
+ * 不可变，hashCode在构造时计算，可直接作为并发容器的key。
+ * 与拼接字符串不同，("ab", "c")与("a", "bc")是两个不同的子设备。
+ */
+public final class TXSubdevKey {
+
+    private final String mProductId;
+    private final String mDeviceName;
+    private final int mHash;
+
+    /**
+     * @param productId  子设备产品ID
+     * @param deviceName 子设备名
+     */
+    public TXSubdevKey(String productId, String deviceName) {
+        if (productId == null || deviceName == null) {
+            throw new IllegalArgumentException("productId and deviceName must not be null");
+        }
+        this.mProductId = productId;
+        this.mDeviceName = deviceName;
+        this.mHash = 31 * productId.hashCode() + deviceName.hashCode();
+    }
+
+    public String getProductId() {
+        return mProductId;
+    }
+
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TXSubdevKey)) {
+            return false;
+        }
+        TXSubdevKey other = (TXSubdevKey) o;
+        return mHash == other.mHash && mProductId.equals(other.mProductId) && mDeviceName.equals(other.mDeviceName);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return mProductId + "/" + mDeviceName;
+    }
+}
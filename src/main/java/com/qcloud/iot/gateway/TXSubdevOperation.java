@@ -0,0 +1,129 @@
+package com.qcloud.iot.gateway;
+
+import com.qcloud.iot.mqtt.TXSharedPingSender;
+import com.qcloud.iot.util.HashedWheelTimer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次批量上线/下线操作
+ * <p>
+ * 操作开始时将每个子设备登记到网关连接的待处理表中，收到云端的逐设备结果后从表中移除；
+ * 所有子设备都有结果（或超时）后以TXSubdevBatchResult完成Future。
+ * 同一子设备被后发起的操作重新登记时，本操作中该子设备只能等待超时。
+ */
+@Slf4j
+class TXSubdevOperation {
+
+    private final ConcurrentMap<TXSubdevKey, TXSubdevOperation> mPending;
+    private final TXSubdevBatchResult mResult;
+    private final CompletableFuture<TXSubdevBatchResult> mFuture = new CompletableFuture<>();
+
+    /**
+     * 尚未收到结果的子设备，由this保护
+     */
+    private final Set<TXSubdevKey> mRemaining;
+
+    private volatile HashedWheelTimer.Timeout mTimeout;
+
+    /**
+     * @param type    操作类型：online或offline
+     * @param subdevs 本批子设备（不重复）
+     * @param pending 网关连接中该类型操作的待处理表
+     */
+    TXSubdevOperation(String type, Collection<TXSubdevKey> subdevs, ConcurrentMap<TXSubdevKey, TXSubdevOperation> pending) {
+        this.mPending = pending;
+        this.mResult = new TXSubdevBatchResult(type, subdevs.size());
+        this.mRemaining = new HashSet<>(subdevs);
+    }
+
+    /**
+     * 登记子设备并开始计时，须在发布消息之前调用，避免错过云端的结果
+     *
+     * @param timeoutMs 等待云端结果的超时时间，单位：毫秒
+     */
+    void start(long timeoutMs) {
+        synchronized (this) {
+            for (TXSubdevKey key : mRemaining) {
+                mPending.put(key, this);
+            }
+        }
+        if (completeIfDone()) {
+            return;
+        }
+        mTimeout = TXSharedPingSender.getSharedTimer().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout();
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 收到一个子设备的云端结果
+     *
+     * @param key    子设备
+     * @param result 结果码，0表示成功
+     */
+    void onResult(TXSubdevKey key, int result) {
+        synchronized (this) {
+            if (!mRemaining.remove(key)) {
+                return;
+            }
+        }
+        mPending.remove(key, this);
+        mResult.onResult(key, result);
+        completeIfDone();
+    }
+
+    /**
+     * 携带这些子设备的消息发布失败，不会再有云端结果
+     */
+    void onPublishFailed(Collection<TXSubdevKey> subdevs) {
+        for (TXSubdevKey key : subdevs) {
+            onResult(key, TXSubdevBatchResult.RESULT_PUBLISH_FAILED);
+        }
+    }
+
+    CompletableFuture<TXSubdevBatchResult> getFuture() {
+        return mFuture;
+    }
+
+    private void onTimeout() {
+        Set<TXSubdevKey> remaining;
+        synchronized (this) {
+            remaining = new HashSet<>(mRemaining);
+            mRemaining.clear();
+        }
+        if (remaining.isEmpty()) {
+            return;
+        }
+
+        log.warn("{} subdevs got no {} result before timeout", remaining.size(), mResult.getType());
+        for (TXSubdevKey key : remaining) {
+            mPending.remove(key, this);
+            mResult.onTimeout(key);
+        }
+        mFuture.complete(mResult);
+    }
+
+    private boolean completeIfDone() {
+        synchronized (this) {
+            if (!mRemaining.isEmpty()) {
+                return false;
+            }
+        }
+        HashedWheelTimer.Timeout timeout = mTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        mFuture.complete(mResult);
+        return true;
+    }
+}
@@ -0,0 +1,142 @@
+package com.qcloud.iot.gateway;
+
+import com.qcloud.iot.common.Status;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 网关子设备注册表
+ * <p>
+ * 以(产品ID, 设备名)为key保存在ConcurrentHashMap中，查找、添加、删除均不加锁。
+ * 另按子设备状态（未上线、在线、离线）维护索引，子设备状态变化时同步更新，可直接获取某一状态的所有子设备。
+ * 索引中保存子设备对象而不是key，已删除的子设备迟到的状态变化不会影响之后添加的同key子设备。
+ * 遍历返回的集合时不阻塞写入，遍历结果为弱一致：遍历期间的修改可能反映也可能不反映在结果中。
+ */
+public class TXSubdevRegistry {
+
+    private final ConcurrentHashMap<TXSubdevKey, TXGatewaySubdev> mSubdevs = new ConcurrentHashMap<>();
+
+    /**
+     * 按状态的索引，构造后不再修改，各状态的集合支持并发读写
+     */
+    private final Map<Status, Set<TXGatewaySubdev>> mIndices = new EnumMap<>(Status.class);
+
+    public TXSubdevRegistry() {
+        mIndices.put(Status.SUBDEV_STAT_INIT, ConcurrentHashMap.<TXGatewaySubdev>newKeySet());
+        mIndices.put(Status.SUBDEV_STAT_ONLINE, ConcurrentHashMap.<TXGatewaySubdev>newKeySet());
+        mIndices.put(Status.SUBDEV_STAT_OFFLINE, ConcurrentHashMap.<TXGatewaySubdev>newKeySet());
+    }
+
+    /**
+     * 添加子设备，已存在相同子设备时保留原有的
+     *
+     * @param subdev 子设备
+     * @return 注册表中的子设备
+     */
+    public TXGatewaySubdev add(TXGatewaySubdev subdev) {
+        TXGatewaySubdev existing = mSubdevs.putIfAbsent(subdev.getKey(), subdev);
+        if (existing != null) {
+            return existing;
+        }
+        subdev.attach(this);
+        return subdev;
+    }
+
+    /**
+     * @param productId  子设备产品ID
+     * @param deviceName 子设备名
+     * @return 子设备，不存在时返回null
+     */
+    public TXGatewaySubdev get(String productId, String deviceName) {
+        return mSubdevs.get(new TXSubdevKey(productId, deviceName));
+    }
+
+    /**
+     * @param key 子设备标识
+     * @return 子设备，不存在时返回null
+     */
+    public TXGatewaySubdev get(TXSubdevKey key) {
+        return mSubdevs.get(key);
+    }
+
+    /**
+     * 删除子设备
+     *
+     * @param productId  子设备产品ID
+     * @param deviceName 子设备名
+     * @return 被删除的子设备，不存在时返回null
+     */
+    public TXGatewaySubdev remove(String productId, String deviceName) {
+        TXSubdevKey key = new TXSubdevKey(productId, deviceName);
+        TXGatewaySubdev subdev = mSubdevs.remove(key);
+        if (subdev != null) {
+            subdev.detach(this);
+        }
+        return subdev;
+    }
+
+    /**
+     * 删除子设备
+     *
+     * @param subdev 子设备
+     * @return 子设备在注册表中且已删除时返回true
+     */
+    public boolean remove(TXGatewaySubdev subdev) {
+        if (!mSubdevs.remove(subdev.getKey(), subdev)) {
+            return false;
+        }
+        subdev.detach(this);
+        return true;
+    }
+
+    /**
+     * @return 所有子设备，遍历时不阻塞写入
+     */
+    public Collection<TXGatewaySubdev> getSubdevs() {
+        return Collections.unmodifiableCollection(mSubdevs.values());
+    }
+
+    /**
+     * @param status 子设备状态：SUBDEV_STAT_INIT、SUBDEV_STAT_ONLINE或SUBDEV_STAT_OFFLINE
+     * @return 处于该状态的子设备，遍历时不阻塞写入
+     */
+    public Set<TXGatewaySubdev> getSubdevs(Status status) {
+        Set<TXGatewaySubdev> index = mIndices.get(status);
+        return index == null ? Collections.<TXGatewaySubdev>emptySet() : Collections.unmodifiableSet(index);
+    }
+
+    /**
+     * @return 子设备总数
+     */
+    public int size() {
+        return mSubdevs.size();
+    }
+
+    /**
+     * @param status 子设备状态
+     * @return 处于该状态的子设备数
+     */
+    public int size(Status status) {
+        Set<TXGatewaySubdev> index = mIndices.get(status);
+        return index == null ? 0 : index.size();
+    }
+
+    /**
+     * 子设备状态变化时更新索引，由TXGatewaySubdev在持有自身锁时调用
+     */
+    void onStatusChanged(TXGatewaySubdev subdev, Status oldStatus, Status newStatus) {
+        Set<TXGatewaySubdev> oldIndex = oldStatus == null ? null : mIndices.get(oldStatus);
+        if (oldIndex != null) {
+            oldIndex.remove(subdev);
+        }
+        Set<TXGatewaySubdev> newIndex = newStatus == null ? null : mIndices.get(newStatus);
+        if (newIndex != null) {
+            newIndex.add(subdev);
+        }
+    }
+}
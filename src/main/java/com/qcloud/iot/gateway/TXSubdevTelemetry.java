@@ -0,0 +1,188 @@
+package com.qcloud.iot.gateway;
+
+import com.qcloud.iot.common.Status;
+import com.qcloud.iot.mqtt.TXMqttConnection;
+import com.qcloud.iot.mqtt.TXMqttConstants;
+import com.qcloud.iot.mqtt.TXSharedPingSender;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 子设备属性上报
+ * <p>
+ * 合并窗口为0时每次上报立即发布一条消息；大于0时，窗口内同一子设备的多次上报合并为一次（同一属性取最后的值），
+ * 窗口结束时所有子设备的属性打包为尽量少的消息发布，每条消息不超过TXMqttConstants.MAX_GATEWAY_PAYLOAD。
+ * 窗口由共享时间轮计时，到期后的发布在共享定时任务线程池执行；此时没有调用方接收发布结果，失败时记录日志并计数。
+ */
+@Slf4j
+class TXSubdevTelemetry {
+
+    /**
+     * GateWayMsg中设备上报的消息类型
+     */
+    private static final int MSG_TYPE_REPORT = 3;
+
+    private final TXMqttConnection mConnection;
+    private final String mTopic;
+    private final String mHostId;
+
+    /**
+     * 序列化器及其缓冲区在所有消息间复用，由自身加锁保护
+     */
+    private final TXGatewayMsgWriter mWriter = new TXGatewayMsgWriter();
+
+    private final AtomicLong mFailedFlushes = new AtomicLong(0);
+
+    private final Runnable mScheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            Status status = flush();
+            if (status != Status.OK) {
+                mFailedFlushes.incrementAndGet();
+                log.warn("publish coalesced subdev attributes failed, topic=>{}, status=>{}", mTopic, status);
+            }
+        }
+    };
+
+    private volatile long mWindowMs;
+
+    /**
+     * 以下字段由this保护
+     */
+    private Map<TXSubdevKey, Map<String, String>> mPending = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+
+    /**
+     * @param connection 网关连接
+     * @param topic      上报topic
+     * @param hostId     网关设备ID
+     */
+    TXSubdevTelemetry(TXMqttConnection connection, String topic, String hostId) {
+        this.mConnection = connection;
+        this.mTopic = topic;
+        this.mHostId = hostId;
+    }
+
+    /**
+     * @param windowMs 合并窗口，单位：毫秒，0表示不合并
+     */
+    void setWindow(long windowMs) {
+        mWindowMs = Math.max(0, windowMs);
+        if (mWindowMs == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * 上报子设备属性
+     *
+     * @param key        子设备
+     * @param attributes 属性索引及属性值
+     * @return 不合并时返回发布结果，合并时返回Status.OK
+     */
+    Status report(TXSubdevKey key, Map<String, String> attributes) {
+        long windowMs = mWindowMs;
+        if (windowMs <= 0) {
+            return publish(Collections.singletonMap(key, attributes));
+        }
+
+        synchronized (this) {
+            Map<String, String> pending = mPending.get(key);
+            if (pending == null) {
+                mPending.put(key, new LinkedHashMap<>(attributes));
+            } else {
+                pending.putAll(attributes);
+            }
+            if (mFlushScheduled) {
+                return Status.OK;
+            }
+            mFlushScheduled = true;
+        }
+
+        TXSharedPingSender.getSharedTimer().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                // flush会调用publish，不能在时间轮线程上执行
+                TXSharedPingSender.getSharedExecutor().execute(mScheduledFlush);
+            }
+        }, windowMs, TimeUnit.MILLISECONDS);
+        return Status.OK;
+    }
+
+    /**
+     * 立即发布合并窗口内尚未发布的属性
+     *
+     * @return 发布结果，没有待发布的属性时返回Status.OK
+     */
+    Status flush() {
+        Map<TXSubdevKey, Map<String, String>> pending;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty()) {
+                return Status.OK;
+            }
+            pending = mPending;
+            mPending = new LinkedHashMap<>();
+        }
+        return publish(pending);
+    }
+
+    /**
+     * @return 合并窗口到期后发布失败的次数
+     */
+    long getFailedFlushCount() {
+        return mFailedFlushes.get();
+    }
+
+    private Status publish(Map<TXSubdevKey, Map<String, String>> devices) {
+        List<byte[]> payloads = new ArrayList<>();
+        synchronized (mWriter) {
+            String timestamp = Long.toString(System.currentTimeMillis());
+            mWriter.begin(MSG_TYPE_REPORT, newMsgId(), timestamp);
+            for (Map.Entry<TXSubdevKey, Map<String, String>> device : devices.entrySet()) {
+                int mark = mWriter.size();
+                mWriter.writeDevice(device.getKey().getDeviceName(), mHostId, device.getValue());
+                // 超出上限时将该子设备移到下一条消息，单个子设备超出上限时仍单独发送
+                if (mWriter.size() + 2 > TXMqttConstants.MAX_GATEWAY_PAYLOAD && mWriter.devices() > 1) {
+                    mWriter.rollback(mark);
+                    mWriter.end();
+                    payloads.add(mWriter.toByteArray());
+                    mWriter.begin(MSG_TYPE_REPORT, newMsgId(), timestamp);
+                    mWriter.writeDevice(device.getKey().getDeviceName(), mHostId, device.getValue());
+                }
+            }
+            mWriter.end();
+            payloads.add(mWriter.toByteArray());
+        }
+
+        Status status = Status.OK;
+        for (byte[] payload : payloads) {
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(TXMqttConstants.QOS0);
+            Status result = mConnection.publish(mTopic, message, null);
+            if (result != Status.OK) {
+                status = result;
+            }
+        }
+        log.debug("report {} subdevs in {} messages", devices.size(), payloads.size());
+        return status;
+    }
+
+    /**
+     * 消息ID只需唯一，不使用UUID.randomUUID()的SecureRandom
+     */
+    private static String newMsgId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+}
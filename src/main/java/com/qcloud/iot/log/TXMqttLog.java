@@ -8,7 +8,9 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
@@ -21,7 +23,7 @@ public class TXMqttLog {
     private TXMqttConnection mMqttConnection;
 
     public static final String level_str[] = new String[]{"ERR", "ERR", "WRN", "INF", "DBG"};
-    private int mLogLevel = TXMqttLogConstants.LEVEL_FATAL;
+    private volatile int mLogLevel = TXMqttLogConstants.LEVEL_FATAL;
 
     private static final String LOG_OPERATION_PREFIX = "$log/operation/";
     private static final String LOG_OPERATION_RES_PREFIX = "$log/operation/result/";
@@ -29,6 +31,25 @@ public class TXMqttLog {
     private static final String CLIENT_TOKEN = "%s-%d";
     private AtomicInteger mClientTokenNum = new AtomicInteger(0);
 
+    static final String RECORD_SEPARATOR = "\n\f";
+    private static final String PLACEHOLDER = "{}";
+
+    private static final DateTimeFormatter TIME_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static volatile CachedTime sCachedTime = new CachedTime(-1, "");
+
+    /**
+     * 每个线程复用的日志构造缓冲区，超过上限后不再缓存，避免长日志长期占用内存
+     */
+    private static final int INITIAL_BUILDER_SIZE = 256;
+    private static final int MAX_CACHED_BUILDER_SIZE = 8192;
+    private static final ThreadLocal<StringBuilder> RECORD_BUILDER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(INITIAL_BUILDER_SIZE);
+        }
+    };
+
     public TXMqttLog(TXMqttConnection mqttConnection) {
         this.mMqttConnection = mqttConnection;
         this.mqttLogImp = new TXMqttLogImpl(mqttConnection);
@@ -41,6 +62,7 @@ public class TXMqttLog {
      */
     public Status initMqttLog() {
         //初始化之前处理上次的离线日志
+        mqttLogImp.start();
         mqttLogImp.uploadOfflineLog();
 
         Status status;
@@ -60,18 +82,36 @@ public class TXMqttLog {
         this.mLogLevel = logLevel;
     }
 
+    /**
+     * 判断该等级的日志是否需要保存，调用方可据此跳过日志参数的构造
+     *
+     * @param logLevel 日志等级
+     * @return 需要保存返回true
+     */
+    public boolean isLoggable(int logLevel) {
+        return logLevel <= mLogLevel;
+    }
+
     /**
      * 将一条日志保存到日志队列中
      */
     public boolean saveMqttLog(final int logLevel, final String tag, final String format, final Object... obj) {
         //低于设置日志信息等级的信息不存储
-        if (mMqttConnection != null && logLevel <= mLogLevel) {
+        if (mMqttConnection != null && isLoggable(logLevel)) {
             String log = buildMqttLog(logLevel, tag, format, obj);
-            return mqttLogImp.appendToLogDeque(log);
+            return mqttLogImp.appendToLogDeque(logLevel, log);
         }
         return false;
     }
 
+    /**
+     * @param logLevel 日志等级
+     * @return 该等级因日志队列空间不足被淘汰或丢弃的日志条数
+     */
+    public long getDroppedCount(int logLevel) {
+        return mqttLogImp.getDroppedCount(logLevel);
+    }
+
     /**
      * 触发一次日志上传
      */
@@ -79,20 +119,79 @@ public class TXMqttLog {
         mqttLogImp.uploadMqttLog();
     }
 
+    /**
+     * 停止定时上传日志，队列中剩余的日志会再上传一次，再次调用initMqttLog后恢复
+     */
+    public void stopMqttLog() {
+        mqttLogImp.stop();
+    }
+
     /**
      * 构造一条日志消息
      * 格式：[日志内容（每行日志格式为"LEVEL|DATETIME|TAG|CONTENT"，行与行之间采用"\n\f,"分隔）]”
+     * 内容支持"{}"占位符；不含"{}"但带参数时按String.format格式化，兼容旧的调用方式
      */
-    private String buildMqttLog(final int logLevel, final String tag, final String format, final Object... obj) {
-        long nowCurrentMillis = System.currentTimeMillis();
-        SimpleDateFormat timeFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String logTime = timeFormatter.format(nowCurrentMillis);
-        String log = obj == null ? format : String.format(format, obj);
-        if (log == null) {
-            log = "";
+    static String buildMqttLog(final int logLevel, final String tag, final String format, final Object... obj) {
+        StringBuilder sb = RECORD_BUILDER.get();
+        if (sb.capacity() > MAX_CACHED_BUILDER_SIZE) {
+            sb = new StringBuilder(INITIAL_BUILDER_SIZE);
+            RECORD_BUILDER.set(sb);
+        }
+        sb.setLength(0);
+
+        sb.append(level_str[logLevel]).append('|')
+                .append(formatTime(System.currentTimeMillis())).append('|')
+                .append(tag).append('|');
+        appendContent(sb, format, obj);
+        sb.append(RECORD_SEPARATOR);
+
+        return sb.toString();
+    }
+
+    private static void appendContent(StringBuilder sb, String format, Object[] obj) {
+        if (format == null) {
+            return;
+        }
+        if (obj == null || obj.length == 0) {
+            sb.append(format);
+            return;
+        }
+        if (format.indexOf(PLACEHOLDER) < 0) {
+            sb.append(String.format(format, obj));
+            return;
         }
 
-        return String.format("%s|%s|%s|%s\n\f", level_str[logLevel], logTime, tag, log);
+        int argIndex = 0;
+        int start = 0;
+        int pos;
+        while ((pos = format.indexOf(PLACEHOLDER, start)) >= 0 && argIndex < obj.length) {
+            sb.append(format, start, pos).append(obj[argIndex++]);
+            start = pos + PLACEHOLDER.length();
+        }
+        sb.append(format, start, format.length());
+    }
+
+    /**
+     * 格式化日志时间，同一秒内的日志复用上次的格式化结果
+     */
+    private static String formatTime(long currentMillis) {
+        long second = currentMillis / 1000;
+        CachedTime cached = sCachedTime;
+        if (cached.mSecond != second) {
+            cached = new CachedTime(second, TIME_FORMATTER.format(Instant.ofEpochSecond(second)));
+            sCachedTime = cached;
+        }
+        return cached.mText;
+    }
+
+    private static final class CachedTime {
+        private final long mSecond;
+        private final String mText;
+
+        CachedTime(long second, String text) {
+            this.mSecond = second;
+            this.mText = text;
+        }
     }
 
     /**
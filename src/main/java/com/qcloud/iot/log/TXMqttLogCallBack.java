@@ -39,4 +39,32 @@ public abstract class TXMqttLogCallBack {
      */
     public abstract boolean delOfflineLog();
 
+    /**
+     * 日志上传请求体的压缩方式，需日志服务器支持对应的Content-Encoding
+     *
+     * @return TXMqttLogConstants.COMPRESSION_GZIP、TXMqttLogConstants.COMPRESSION_DEFLATE，默认返回null表示不压缩
+     */
+    public String getUploadCompression() {
+        return null;
+    }
+
+    /**
+     * 日志服务器URL
+     *
+     * @return 默认返回null表示使用腾讯云日志服务器
+     */
+    public String getUploadServerUrl() {
+        return null;
+    }
+
+    /**
+     * 离线日志目录。返回非null时，上传失败的日志写入该目录下的内存映射环形日志，
+     * 重新上线后分批补传，不再调用saveLogOffline、readOfflineLog及delOfflineLog
+     *
+     * @return 离线日志目录，默认返回null表示使用saveLogOffline等回调保存离线日志
+     */
+    public String getOfflineLogDir() {
+        return null;
+    }
+
 }
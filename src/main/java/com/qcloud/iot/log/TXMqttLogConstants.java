@@ -18,4 +18,10 @@ public interface TXMqttLogConstants {
     int LEVEL_WARN = 2;
     int LEVEL_INFO = 3;
     int LEVEL_DEBUG = 4;
+
+    /**
+     * 日志上传请求体压缩方式
+     */
+    String COMPRESSION_GZIP = "gzip";
+    String COMPRESSION_DEFLATE = "deflate";
 }
@@ -0,0 +1,272 @@
+package com.qcloud.iot.log;
+
+import com.qcloud.iot.util.HmacSigner;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 日志HTTP上传：按大小分块、可选压缩，失败时按指数退避重试
+ * <p>
+ * 进程内所有连接共用一个OkHttpClient，复用其连接池。请求通过OkHttp异步发送，各块依次上传；
+ * 重试的退避通过调度器延迟提交，不占用调度线程等待，单个日志服务器不可用不会拖住其他连接的上传。
+ */
+@Slf4j
+class TXMqttLogHttpSender {
+
+    /**
+     * 默认日志服务器URL
+     */
+    static final String DEFAULT_SERVER_URL = "http://devicelog.iot.cloud.tencent.com:80/cgi-bin/report-log";
+
+    /**
+     * 单次请求日志内容的默认字节数上限
+     */
+    static final int DEFAULT_MAX_CHUNK_BYTES = 64 * 1024;
+
+    /**
+     * 默认重试次数（不含首次请求）
+     */
+    static final int DEFAULT_MAX_RETRIES = 3;
+
+    /**
+     * 默认首次重试的退避时间：单位ms，之后每次翻倍
+     */
+    static final long DEFAULT_BACKOFF_MS = 200;
+
+    private static final long MAX_BACKOFF_MS = 5000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final MediaType MEDIA_TYPE_LOG = MediaType.parse("text/plain;charset=utf-8");
+
+    private static final OkHttpClient HTTP_CLIENT = new OkHttpClient.Builder()
+            .connectTimeout(1, TimeUnit.SECONDS)
+            .build();
+
+    private final String mServerUrl;
+
+    private final String mFixedHead;
+
+    /**
+     * 签名器，密钥为空时为null（签名为"null"，与之前一致）
+     */
+    private final HmacSigner mSigner;
+
+    private final String mCompression;
+
+    private final int mMaxChunkBytes;
+
+    private final int mMaxRetries;
+
+    private final long mBackoffMs;
+
+    private final TXMqttLogCallBack mMqttLogCallBack;
+
+    private final ScheduledExecutorService mScheduler;
+
+    /**
+     * @param serverUrl     日志服务器URL，为null时使用默认URL
+     * @param fixedHead     固定头部
+     * @param secretKey     签名密钥
+     * @param compression   请求体压缩方式：TXMqttLogConstants.COMPRESSION_GZIP、COMPRESSION_DEFLATE，为null时不压缩
+     * @param maxChunkBytes 单次请求日志内容的字节数上限
+     * @param maxRetries    重试次数
+     * @param backoffMs     首次重试的退避时间
+     * @param callBack      日志回调，用于打印调试信息
+     * @param scheduler     延迟提交重试请求的调度器
+     */
+    TXMqttLogHttpSender(String serverUrl, String fixedHead, String secretKey, String compression,
+                        int maxChunkBytes, int maxRetries, long backoffMs, TXMqttLogCallBack callBack,
+                        ScheduledExecutorService scheduler) {
+        if (compression != null && !TXMqttLogConstants.COMPRESSION_GZIP.equals(compression)
+                && !TXMqttLogConstants.COMPRESSION_DEFLATE.equals(compression)) {
+            throw new IllegalArgumentException("unsupported compression: " + compression);
+        }
+        this.mServerUrl = serverUrl == null ? DEFAULT_SERVER_URL : serverUrl;
+        this.mFixedHead = fixedHead;
+        this.mSigner = secretKey.length() == 0 ? null : new HmacSigner(HmacSigner.HMAC_SHA1, secretKey.getBytes());
+        this.mCompression = compression;
+        this.mMaxChunkBytes = maxChunkBytes;
+        this.mMaxRetries = maxRetries;
+        this.mBackoffMs = backoffMs;
+        this.mMqttLogCallBack = callBack;
+        this.mScheduler = scheduler;
+    }
+
+    /**
+     * 按大小分块异步上传日志，各块按顺序依次上传
+     *
+     * @param logs 日志，每个元素为一条或多条完整的日志
+     * @return 全部日志块处理完成后完成的Future，结果为因网络错误或服务器错误重试后仍未上传成功的日志块，全部成功时为null
+     */
+    CompletableFuture<List<String>> send(List<String> logs) {
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        sendFrom(split(logs, mMaxChunkBytes), 0, null, future);
+        return future;
+    }
+
+    private void sendFrom(final List<String> chunks, final int index, final List<String> failed,
+                          final CompletableFuture<List<String>> future) {
+        if (index >= chunks.size()) {
+            future.complete(failed);
+            return;
+        }
+
+        final String chunk = chunks.get(index);
+        sendWithRetry(chunk, 0, mBackoffMs, new ChunkCallback() {
+            @Override
+            public void onComplete(boolean success) {
+                List<String> rest = failed;
+                if (!success) {
+                    if (rest == null) {
+                        rest = new ArrayList<>();
+                    }
+                    rest.add(chunk);
+                }
+                sendFrom(chunks, index + 1, rest, future);
+            }
+        });
+    }
+
+    /**
+     * 将日志按字节数分块，单条超过上限的日志单独成块
+     */
+    static List<String> split(List<String> logs, int maxChunkBytes) {
+        List<String> chunks = new ArrayList<>();
+        StringBuilder chunk = new StringBuilder();
+        int chunkBytes = 0;
+
+        for (String line : logs) {
+            int lineBytes = line.getBytes(UTF_8).length;
+            if (chunkBytes > 0 && chunkBytes + lineBytes > maxChunkBytes) {
+                chunks.add(chunk.toString());
+                chunk.setLength(0);
+                chunkBytes = 0;
+            }
+            chunk.append(line);
+            chunkBytes += lineBytes;
+        }
+
+        if (chunkBytes > 0) {
+            chunks.add(chunk.toString());
+        }
+        return chunks;
+    }
+
+    /**
+     * 上传一块日志，网络错误及5xx错误时延迟重试。上传成功或服务器明确拒绝（无需重试）时回调true，重试耗尽回调false
+     */
+    private void sendWithRetry(final String chunk, final int attempt, final long backoff, final ChunkCallback callback) {
+        Request request;
+        try {
+            request = buildRequest(chunk);
+        } catch (IOException e) {
+            mMqttLogCallBack.printDebug(String.format("Upload log to %s failed! %s", mServerUrl, e));
+            callback.onComplete(false);
+            return;
+        }
+
+        HTTP_CLIENT.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                mMqttLogCallBack.printDebug(String.format("Upload log to %s failed! %s", mServerUrl, e));
+                retry(chunk, attempt, backoff, callback);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try {
+                    if (response.isSuccessful()) {
+                        mMqttLogCallBack.printDebug(String.format("Upload log to %s success!", mServerUrl));
+                        callback.onComplete(true);
+                        return;
+                    }
+                    if (response.code() < 500) {
+                        mMqttLogCallBack.printDebug(String.format("Upload log to %s failed! Response:[%s]", mServerUrl, response.body().string()));
+                        callback.onComplete(true);
+                        return;
+                    }
+                    mMqttLogCallBack.printDebug(String.format("Upload log to %s failed! Response code:[%d]", mServerUrl, response.code()));
+                } catch (IOException e) {
+                    mMqttLogCallBack.printDebug(String.format("Upload log to %s failed! %s", mServerUrl, e));
+                } finally {
+                    response.close();
+                }
+                retry(chunk, attempt, backoff, callback);
+            }
+        });
+    }
+
+    private void retry(final String chunk, final int attempt, final long backoff, final ChunkCallback callback) {
+        if (attempt >= mMaxRetries) {
+            callback.onComplete(false);
+            return;
+        }
+
+        try {
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendWithRetry(chunk, attempt + 1, Math.min(backoff * 2, MAX_BACKOFF_MS), callback);
+                }
+            }, backoff, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            callback.onComplete(false);
+        }
+    }
+
+    /**
+     * 一块日志上传完成（含重试）的回调
+     */
+    private interface ChunkCallback {
+        void onComplete(boolean success);
+    }
+
+    /**
+     * 构造上传请求，格式为[签名][固定头部][时间戳（10位）][日志]
+     */
+    private Request buildRequest(String chunk) throws IOException {
+        String payLoad = String.format("%s%s%s", mFixedHead, String.valueOf(System.currentTimeMillis()).substring(0, 10), chunk);
+        String signature = mSigner == null ? null : mSigner.signHex(payLoad.getBytes());
+        payLoad = signature + payLoad;
+
+        Request.Builder builder = new Request.Builder().url(mServerUrl);
+        byte[] body = payLoad.getBytes(UTF_8);
+        if (mCompression != null) {
+            body = compress(body, mCompression);
+            builder.header("Content-Encoding", mCompression);
+        }
+        return builder.post(RequestBody.create(MEDIA_TYPE_LOG, body)).build();
+    }
+
+    private static byte[] compress(byte[] data, String compression) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+        OutputStream os = TXMqttLogConstants.COMPRESSION_GZIP.equals(compression)
+                ? new GZIPOutputStream(bos) : new DeflaterOutputStream(bos);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+        return bos.toByteArray();
+    }
+}
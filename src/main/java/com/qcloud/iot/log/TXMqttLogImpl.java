@@ -1,13 +1,23 @@
 package com.qcloud.iot.log;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.qcloud.iot.mqtt.TXMqttConnection;
-import com.qcloud.iot.util.HmacSha1;
+import com.qcloud.iot.util.MappedRingLog;
 import lombok.extern.slf4j.Slf4j;
-import okhttp3.*;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 @Slf4j
 public class TXMqttLogImpl {
@@ -20,171 +30,324 @@ public class TXMqttLogImpl {
     private long timeInterval = 30000;
 
     /**
-     * 日志队列，容量10000条日志，剩余容量低于四分之一时触发一次日志上传
+     * 日志队列，容量1MB，剩余容量低于四分之一时触发一次日志上传，空间不足时优先淘汰低等级日志
      */
-    private LinkedBlockingDeque<String> logDeque;
-    private static int dequeSize = 10000; //最大容量10000条日志
-    private static int dequeThreshold = dequeSize / 4; //剩余容量预警阈值
+    private TXMqttLogQueue logQueue;
 
     /**
-     * http客户端，用于上传日志到服务器
+     * 日志上传线程数，由进程内所有连接共用
      */
-    private OkHttpClient mOkHttpClient;
+    private static final int UPLOAD_THREADS = 2;
 
     /**
-     * http 服务器 URL
+     * http上传，用于上传日志到服务器
      */
-    private static final String MQTT_LOG_UPLOAD_SERVER_URL = "http://devicelog.iot.cloud.tencent.com:80/cgi-bin/report-log";
+    private TXMqttLogHttpSender mHttpSender;
 
     /**
-     * Content Type
+     * 日志上传回调函数，用于离线下的日志存储和上线后的日志上传
      */
-    private static final MediaType MEDIA_TYPE_LOG = MediaType.parse("text/plain;charset=utf-8");
+    private TXMqttLogCallBack mMqttLogCallBack;
 
     /**
-     * 固定头部
-     * 格式：[鉴权类型（1字符，C代表证书方式，P代表PSK方式）][预留（3字符，填充#）][产品ID（10字符，不足后面补#）][设备ID（48字符，不足后面补#）]
+     * 进程内所有连接共用的日志上传调度器
      */
-    private String mFixedHead;
+    private static final ScheduledExecutorService UPLOAD_SCHEDULER = createUploadScheduler();
 
     /**
-     * 签名密钥,最多保留24位
+     * 定时上传任务，未启动或已停止时为null
      */
-    private String mSecretKey;
+    private final AtomicReference<ScheduledFuture<?>> mPeriodicUpload = new AtomicReference<>();
 
     /**
-     * 上传标志，true表示立刻上传
+     * 是否已有待执行的上传任务，避免重复提交
      */
-    private boolean mUploadFlag;
+    private final AtomicBoolean mUploadScheduled = new AtomicBoolean(false);
 
     /**
-     * 日志上传回调函数，用于离线下的日志存储和上线后的日志上传
+     * 是否正在补传环形日志中的离线日志，同一时间只补传一批
      */
-    private TXMqttLogCallBack mMqttLogCallBack;
+    private final AtomicBoolean mReplaying = new AtomicBoolean(false);
+
+    /**
+     * 离线日志，未配置离线日志目录时为null
+     */
+    private MappedRingLog mOfflineLog;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     TXMqttLogImpl(TXMqttConnection mqttConnection) {
-        this.mOkHttpClient = new OkHttpClient().newBuilder().connectTimeout(1, TimeUnit.SECONDS).build();
-        this.logDeque = new LinkedBlockingDeque<String>(dequeSize);
+        this.logQueue = new TXMqttLogQueue(TXMqttLogQueue.DEFAULT_MAX_BYTES, TXMqttLogQueue.DEFAULT_MAX_ENTRIES_PER_LEVEL);
         //固定头部格式：[鉴权类型（1字符，C代表证书方式，P代表PSK方式）][预留（3字符，填充#）][产品ID（10字符，不足后面补#）][设备ID（48字符，不足后面补#）]
-        this.mFixedHead = String.format("%c###%s%s",
+        String fixedHead = String.format("%c###%s%s",
                 mqttConnection.mSecretKey == null ? 'C' : 'P',
                 String.format("%-10s", mqttConnection.mProductId).replace(" ", "#"),
                 String.format("%-48s", mqttConnection.mDeviceName).replace(" ", "#")
         );
-        this.mUploadFlag = false;
         this.mMqttLogCallBack = mqttConnection.mMqttLogCallBack;
-        this.mSecretKey = mMqttLogCallBack.setSecretKey();
-        new UploaderToServer().start();
+        //签名密钥,最多保留24位
+        String secretKey = mMqttLogCallBack.setSecretKey();
+        this.mHttpSender = new TXMqttLogHttpSender(mMqttLogCallBack.getUploadServerUrl(), fixedHead, secretKey,
+                mMqttLogCallBack.getUploadCompression(), TXMqttLogHttpSender.DEFAULT_MAX_CHUNK_BYTES,
+                TXMqttLogHttpSender.DEFAULT_MAX_RETRIES, TXMqttLogHttpSender.DEFAULT_BACKOFF_MS, mMqttLogCallBack,
+                UPLOAD_SCHEDULER);
+
+        String offlineLogDir = mMqttLogCallBack.getOfflineLogDir();
+        if (offlineLogDir != null) {
+            File dir = new File(offlineLogDir, mqttConnection.mProductId + "_" + mqttConnection.mDeviceName);
+            try {
+                this.mOfflineLog = new MappedRingLog(dir, MappedRingLog.DEFAULT_SEGMENT_COUNT, MappedRingLog.DEFAULT_SEGMENT_SIZE);
+            } catch (IOException e) {
+                log.error("open offline log in {} failed, fall back to saveLogOffline", dir, e);
+            }
+        }
+        start();
+    }
+
+    private static ScheduledExecutorService createUploadScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(UPLOAD_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("TXMqttLog-uploader-%d").setDaemon(true).build());
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
     }
 
     /**
-     * 完成日志上传的操作
+     * 启动定时上传，重复调用无副作用
      */
-    class UploaderToServer extends Thread {
-        @Override
-        public void run() {
-            log.debug("上报日志线程启动");
+    void start() {
+        if (mPeriodicUpload.get() != null) {
+            return;
+        }
+        ScheduledFuture<?> periodicUpload = UPLOAD_SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                upload();
+            }
+        }, timeInterval, timeInterval, TimeUnit.MILLISECONDS);
+        if (!mPeriodicUpload.compareAndSet(null, periodicUpload)) {
+            periodicUpload.cancel(false);
+            return;
+        }
+        log.debug("上报日志任务启动");
+    }
 
-            long nowCurrentMillis = System.currentTimeMillis();
+    /**
+     * 停止定时上传，队列中剩余的日志会再上传一次。不等待正在进行的上传，可以在连接的回调线程上直接调用
+     */
+    void stop() {
+        ScheduledFuture<?> periodicUpload = mPeriodicUpload.getAndSet(null);
+        if (periodicUpload == null) {
+            return;
+        }
+        periodicUpload.cancel(false);
+        scheduleUpload();
+        log.debug("上报日志任务停止");
+    }
 
-            while (true) {
-                if (mUploadFlag || (logDeque.size() > dequeSize - dequeThreshold)
-                        || (nowCurrentMillis < System.currentTimeMillis() - timeInterval)) {
+    /**
+     * 提交一次上传任务，已有待执行的上传任务时直接返回
+     */
+    private void scheduleUpload() {
+        if (!mUploadScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            UPLOAD_SCHEDULER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mUploadScheduled.set(false);
+                    upload();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mUploadScheduled.set(false);
+            log.warn("schedule log upload failed", e);
+        }
+    }
 
-                    if (logDeque.size() == 0) {
-                        nowCurrentMillis = System.currentTimeMillis();
-                        mUploadFlag = false;
-                        continue;
-                    }
+    /**
+     * 取出队列中的所有日志并上传，重试后仍失败的日志交给回调离线保存。
+     * 只在队列自身的锁内取出日志，上传期间不持有任何锁
+     */
+    private void upload() {
+        List<String> logs = new ArrayList<>();
+        logQueue.drainTo(logs);
+        if (logs.isEmpty()) {
+            return;
+        }
+        sendOrSaveOffline(logs);
+    }
 
-                    StringBuffer log = new StringBuffer();
+    /**
+     * 异步上传日志，重试后仍失败的日志块离线保存
+     */
+    private void sendOrSaveOffline(List<String> logs) {
+        mHttpSender.send(logs).thenAccept(new Consumer<List<String>>() {
+            @Override
+            public void accept(List<String> failed) {
+                if (failed != null) {
+                    saveOffline(failed);
+                }
+            }
+        });
+    }
 
-                    //获取所有的log
-                    try {
-                        while (logDeque.size() > 0)
-                            log.append(logDeque.take());
-                    } catch (Exception e) {
-                        mMqttLogCallBack.printDebug("Take log from deque failed");
-                    }
+    /**
+     * 保存上传失败的日志，配置了离线日志目录时写入环形日志，否则交给回调
+     */
+    private void saveOffline(List<String> chunks) {
+        StringBuilder rest = null;
+        for (String chunk : chunks) {
+            if (mOfflineLog != null && mOfflineLog.append(chunk.getBytes(UTF_8))) {
+                continue;
+            }
+            if (rest == null) {
+                rest = new StringBuilder();
+            }
+            rest.append(chunk);
+        }
 
-                    //格式为[签名][固定头部][时间戳（10位）][日志]
-                    String payLoad = String.format("%s%s%s", mFixedHead, String.valueOf(System.currentTimeMillis()).substring(0, 10), log.toString());
-                    payLoad = HmacSha1.getSignature(payLoad.getBytes(), mSecretKey.getBytes()) + payLoad;
-
-                    Request request = new Request.Builder()
-                            .url(MQTT_LOG_UPLOAD_SERVER_URL)
-                            .post(RequestBody.create(MEDIA_TYPE_LOG, payLoad))
-                            .build();
-
-                    //发送请求
-                    try {
-                        Response response = mOkHttpClient.newCall(request).execute();
-                        if (!response.isSuccessful()) {
-                            mMqttLogCallBack.printDebug(String.format("Upload log to %s failed! Response:[%s]", MQTT_LOG_UPLOAD_SERVER_URL, response.body().string()));
-                        } else {
-                            mMqttLogCallBack.printDebug(String.format("Upload log to %s success!", MQTT_LOG_UPLOAD_SERVER_URL));
-                        }
-                    } catch (IOException e) {
-                        mMqttLogCallBack.saveLogOffline(log.toString()); //存在文本中
-                        mMqttLogCallBack.printDebug(String.format("Lost Connection! Call mMqttCallBack.saveLogOffline()"));
-                    }
+        if (rest != null) {
+            mMqttLogCallBack.saveLogOffline(rest.toString()); //存在文本中
+            mMqttLogCallBack.printDebug(String.format("Lost Connection! Call mMqttCallBack.saveLogOffline()"));
+        }
+    }
+
+    /**
+     * 分批补传环形日志中的离线日志，上传失败时停止，下次上线后从失败的批次继续
+     */
+    private void replayOfflineLog() {
+        if (mReplaying.compareAndSet(false, true)) {
+            replayNext();
+        }
+    }
 
-                    nowCurrentMillis = System.currentTimeMillis();
-                    mUploadFlag = false;
+    private void replayNext() {
+        List<byte[]> records = mOfflineLog.peek(TXMqttLogHttpSender.DEFAULT_MAX_CHUNK_BYTES);
+        if (records.isEmpty()) {
+            mReplaying.set(false);
+            return;
+        }
 
-                    //TXLog.i( "log upload :%s", log);
-                }
+        List<String> logs = new ArrayList<>(records.size());
+        for (byte[] record : records) {
+            logs.add(new String(record, UTF_8));
+        }
 
-                try {
-                    Thread.sleep(10); //休眠10ms
-                } catch (InterruptedException e) {
-                    log.warn("The thread has been interrupted");
+        mHttpSender.send(logs).thenAccept(new Consumer<List<String>>() {
+            @Override
+            public void accept(List<String> failed) {
+                if (failed != null) {
+                    mOfflineLog.rollback();
+                    mReplaying.set(false);
+                    mMqttLogCallBack.printDebug("Upload offline log failed, retry after next connect");
+                    return;
                 }
+                mOfflineLog.commit();
+                replayNext();
             }
-        }
+        });
     }
 
     /**
      * 添加日志到队列中，如果队列空间不足则上传
      *
-     * @param log 日志
+     * @param level 日志等级
+     * @param log   日志
      * @return 添加成功，返回true，添加失败，返回false
      */
-    boolean appendToLogDeque(String log) {
-        try {
-            logDeque.add(log);
-            mMqttLogCallBack.printDebug(String.format("Add log to log Deque! %s", log).replace("\n\f", ""));
-            return true;
-        } catch (Exception e) {
-            mMqttLogCallBack.printDebug(String.format("Add log to log Deque failed! %s", log).replace("\n\f", ""));
+    boolean appendToLogDeque(int level, String log) {
+        if (!logQueue.offer(level, log)) {
+            mMqttLogCallBack.printDebug("Add log to log Deque failed! " + trimSeparator(log));
+            scheduleUpload();
             return false;
         }
+
+        mMqttLogCallBack.printDebug("Add log to log Deque! " + trimSeparator(log));
+        if (logQueue.getBytes() > logQueue.getMaxBytes() - logQueue.getMaxBytes() / 4) {
+            scheduleUpload();
+        }
+        return true;
+    }
+
+    /**
+     * @param level 日志等级
+     * @return 该等级因队列空间不足被淘汰或丢弃的日志条数
+     */
+    long getDroppedCount(int level) {
+        return logQueue.getDropped(level);
+    }
+
+    private static String trimSeparator(String log) {
+        return log.endsWith(TXMqttLog.RECORD_SEPARATOR) ? log.substring(0, log.length() - TXMqttLog.RECORD_SEPARATOR.length()) : log;
     }
 
     /**
      * 触发一次日志上传
      */
     void uploadMqttLog() {
-        mUploadFlag = true;
+        scheduleUpload();
     }
 
     /**
      * 上传离线日志
      */
     void uploadOfflineLog() {
+        if (mOfflineLog != null) {
+            try {
+                UPLOAD_SCHEDULER.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        replayOfflineLog();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.warn("schedule offline log upload failed", e);
+            }
+            return;
+        }
+
+        try {
+            UPLOAD_SCHEDULER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    uploadCallbackOfflineLog();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("schedule offline log upload failed", e);
+        }
+    }
+
+    /**
+     * 上传回调保存的离线日志。离线日志可能很大，按行拆分后直接上传，不经过日志队列
+     */
+    private synchronized void uploadCallbackOfflineLog() {
         String offlineLog = mMqttLogCallBack.readOfflineLog();
-        if (offlineLog != null) {
-            appendToLogDeque(offlineLog);
-            mMqttLogCallBack.delOfflineLog();
+        if (offlineLog == null || offlineLog.isEmpty()) {
+            return;
+        }
+        mMqttLogCallBack.delOfflineLog();
+
+        List<String> logs = new ArrayList<>();
+        int start = 0;
+        int end;
+        while ((end = offlineLog.indexOf(TXMqttLog.RECORD_SEPARATOR, start)) >= 0) {
+            end += TXMqttLog.RECORD_SEPARATOR.length();
+            logs.add(offlineLog.substring(start, end));
+            start = end;
+        }
+        if (start < offlineLog.length()) {
+            logs.add(offlineLog.substring(start));
         }
-        mUploadFlag = true;
+        sendOrSaveOffline(logs);
     }
 
     /**
      * 清空队列
      */
     void resetLogDeque() {
-        logDeque.clear();
+        logQueue.clear();
     }
 
 }
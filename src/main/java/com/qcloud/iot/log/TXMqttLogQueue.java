@@ -0,0 +1,299 @@
+package com.qcloud.iot.log;
+
+import java.util.List;
+
+/**
+ * 按日志等级分区、按字节数限容的日志队列
+ * <p>
+ * 每个日志等级对应一个数组实现的环形缓冲区，所有等级共用一个字节数上限。环形缓冲区按需扩容到每个等级的条数上限，
+ * 取空后缩回初始大小，没有日志的连接不占用大数组，实际的内存上限由字节数上限决定。空间不足时先淘汰
+ * 严重程度最低的等级中最旧的日志（DBG、INF、WRN、ERR依次），只剩更严重的日志时丢弃新日志，
+ * 保证日志风暴中ERR日志不被低等级日志挤掉。每条日志带有全局序号，取出时按写入顺序合并各等级。
+ * 多个生产者线程写入、上传线程取出，所有操作在一把锁内完成，临界区只有数组读写。
+ */
+class TXMqttLogQueue {
+
+    /**
+     * 默认字节数上限：1MB
+     */
+    static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    /**
+     * 默认每个等级最多缓存的日志条数
+     */
+    static final int DEFAULT_MAX_ENTRIES_PER_LEVEL = 10000;
+
+    private static final int LEVELS = TXMqttLogConstants.LEVEL_DEBUG + 1;
+
+    /**
+     * 环形缓冲区的初始大小
+     */
+    private static final int INITIAL_RING_CAPACITY = 16;
+
+    private final Ring[] mRings = new Ring[LEVELS];
+
+    private final long[] mDropped = new long[LEVELS];
+
+    private final long mMaxBytes;
+
+    private long mBytes = 0;
+
+    private long mNextSeq = 0;
+
+    /**
+     * @param maxBytes           字节数上限
+     * @param maxEntriesPerLevel 每个等级最多缓存的日志条数
+     */
+    TXMqttLogQueue(long maxBytes, int maxEntriesPerLevel) {
+        this.mMaxBytes = maxBytes;
+        for (int i = 0; i < LEVELS; i++) {
+            mRings[i] = new Ring(maxEntriesPerLevel);
+        }
+    }
+
+    /**
+     * 写入一条日志，空间不足时按等级淘汰
+     *
+     * @param level 日志等级
+     * @param log   日志内容
+     * @return 写入成功返回true，因空间被更严重的日志占满或日志超过字节上限而丢弃返回false
+     */
+    synchronized boolean offer(int level, String log) {
+        level = clampLevel(level);
+        int bytes = utf8Length(log);
+        if (bytes > mMaxBytes) {
+            mDropped[level]++;
+            return false;
+        }
+
+        while (mBytes + bytes > mMaxBytes) {
+            int victim = findVictim(level);
+            if (victim < 0) {
+                mDropped[level]++;
+                return false;
+            }
+            evictOldest(victim);
+        }
+
+        Ring ring = mRings[level];
+        if (ring.isFull()) {
+            evictOldest(level);
+        }
+        ring.add(log, bytes, mNextSeq++);
+        mBytes += bytes;
+        return true;
+    }
+
+    /**
+     * 找到严重程度不高于level的最低等级中仍有日志的等级
+     */
+    private int findVictim(int level) {
+        for (int i = LEVELS - 1; i >= level; i--) {
+            if (!mRings[i].isEmpty()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void evictOldest(int level) {
+        mBytes -= mRings[level].removeFirst();
+        mDropped[level]++;
+    }
+
+    /**
+     * 按写入顺序取出所有日志
+     *
+     * @param out 输出列表
+     * @return 取出的日志条数
+     */
+    synchronized int drainTo(List<String> out) {
+        int count = 0;
+        while (true) {
+            int next = -1;
+            long minSeq = Long.MAX_VALUE;
+            for (int i = 0; i < LEVELS; i++) {
+                Ring ring = mRings[i];
+                if (!ring.isEmpty() && ring.firstSeq() < minSeq) {
+                    minSeq = ring.firstSeq();
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+
+            Ring ring = mRings[next];
+            out.add(ring.first());
+            mBytes -= ring.removeFirst();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 清空队列，不计入丢弃数
+     */
+    synchronized void clear() {
+        for (Ring ring : mRings) {
+            ring.clear();
+        }
+        mBytes = 0;
+    }
+
+    /**
+     * @return 队列中日志的字节数
+     */
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return 字节数上限
+     */
+    long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return 队列中的日志条数
+     */
+    synchronized int size() {
+        int size = 0;
+        for (Ring ring : mRings) {
+            size += ring.mSize;
+        }
+        return size;
+    }
+
+    /**
+     * @return 各等级环形缓冲区当前分配的条数之和
+     */
+    synchronized int getAllocated() {
+        int allocated = 0;
+        for (Ring ring : mRings) {
+            allocated += ring.mLogs.length;
+        }
+        return allocated;
+    }
+
+    /**
+     * @param level 日志等级
+     * @return 该等级被淘汰或丢弃的日志条数
+     */
+    synchronized long getDropped(int level) {
+        return mDropped[clampLevel(level)];
+    }
+
+    private static int clampLevel(int level) {
+        return Math.max(TXMqttLogConstants.LEVEL_FATAL, Math.min(TXMqttLogConstants.LEVEL_DEBUG, level));
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 单个等级的环形缓冲区，写满时成倍扩容，不超过capacity
+     */
+    private static class Ring {
+        private final int mCapacity;
+        private String[] mLogs;
+        private int[] mBytes;
+        private long[] mSeqs;
+        private int mHead = 0;
+        private int mSize = 0;
+
+        Ring(int capacity) {
+            this.mCapacity = Math.max(1, capacity);
+            allocate(Math.min(mCapacity, INITIAL_RING_CAPACITY));
+        }
+
+        private void allocate(int length) {
+            mLogs = new String[length];
+            mBytes = new int[length];
+            mSeqs = new long[length];
+            mHead = 0;
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        boolean isFull() {
+            return mSize == mCapacity;
+        }
+
+        void add(String log, int bytes, long seq) {
+            if (mSize == mLogs.length) {
+                grow();
+            }
+            int tail = (mHead + mSize) % mLogs.length;
+            mLogs[tail] = log;
+            mBytes[tail] = bytes;
+            mSeqs[tail] = seq;
+            mSize++;
+        }
+
+        /**
+         * 按顺序搬到更大的数组，队首移到下标0
+         */
+        private void grow() {
+            String[] logs = mLogs;
+            int[] bytes = mBytes;
+            long[] seqs = mSeqs;
+            int head = mHead;
+            allocate((int) Math.min(mCapacity, (long) logs.length * 2));
+            for (int i = 0; i < mSize; i++) {
+                int from = (head + i) % logs.length;
+                mLogs[i] = logs[from];
+                mBytes[i] = bytes[from];
+                mSeqs[i] = seqs[from];
+            }
+        }
+
+        String first() {
+            return mLogs[mHead];
+        }
+
+        long firstSeq() {
+            return mSeqs[mHead];
+        }
+
+        /**
+         * @return 移除的日志字节数
+         */
+        int removeFirst() {
+            int bytes = mBytes[mHead];
+            mLogs[mHead] = null;
+            mHead = (mHead + 1) % mLogs.length;
+            mSize--;
+            if (mSize == 0 && mLogs.length > INITIAL_RING_CAPACITY) {
+                // 日志风暴过后释放扩容的数组
+                allocate(Math.min(mCapacity, INITIAL_RING_CAPACITY));
+            }
+            return bytes;
+        }
+
+        void clear() {
+            while (mSize > 0) {
+                removeFirst();
+            }
+            mHead = 0;
+        }
+    }
+}
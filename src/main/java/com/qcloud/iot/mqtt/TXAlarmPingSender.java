@@ -5,6 +5,12 @@ import org.eclipse.paho.client.mqttv3.TimerPingSender;
 import org.eclipse.paho.client.mqttv3.internal.ClientComms;
 
 
+/**
+ * 每个连接独占一个Timer线程的心跳发送器
+ *
+ * @deprecated 大量连接时线程数过多，请使用共享时间轮的 {@link TXSharedPingSender}
+ */
+@Deprecated
 @Slf4j
 public class TXAlarmPingSender extends TimerPingSender {
     private String clientId;
@@ -0,0 +1,174 @@
+package com.qcloud.iot.mqtt;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内共享的连接限流器
+ * <p>
+ * 大量连接同时断开后一起重连，签名及TLS握手会集中占满CPU，服务端也会同时收到大量CONNECT。
+ * 限流器按提交顺序放行连接请求：同时进行中的连接（已发出CONNECT、尚未收到结果）不超过maxInFlight，
+ * 放行速率不超过每秒permitsPerSecond个（令牌桶）。放行在限流器自己的线程上进行，不阻塞时间轮及Paho线程。
+ * 放行后的连接（可能要等待连接对象的锁，并进行签名）交给共享的定时任务线程池执行，
+ * 某个连接的锁被长时间持有时不会阻塞进程内其他连接的放行。
+ */
+@Slf4j
+public class TXConnectThrottle {
+
+    /**
+     * 默认同时进行中的连接数上限
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+    /**
+     * 默认每秒放行的连接数
+     */
+    public static final double DEFAULT_PERMITS_PER_SECOND = 100;
+
+    private static volatile TXConnectThrottle sDefault;
+
+    private final int mMaxInFlight;
+    private final Semaphore mInFlight;
+    private final RateLimiter mRateLimiter;
+    private final LinkedBlockingQueue<Runnable> mQueue = new LinkedBlockingQueue<>();
+
+    private final AtomicLong mStarted = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private volatile int mMaxObservedInFlight;
+
+    /**
+     * @param maxInFlight       同时进行中的连接数上限
+     * @param permitsPerSecond 每秒放行的连接数
+     */
+    public TXConnectThrottle(int maxInFlight, double permitsPerSecond) {
+        if (maxInFlight <= 0 || permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("maxInFlight and permitsPerSecond must be greater than 0");
+        }
+        this.mMaxInFlight = maxInFlight;
+        this.mInFlight = new Semaphore(maxInFlight, true);
+        this.mRateLimiter = RateLimiter.create(permitsPerSecond);
+
+        Thread dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "TXMqtt-connect-throttle");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * @return 默认的限流器，同时进行中的连接数上限为DEFAULT_MAX_IN_FLIGHT，每秒放行DEFAULT_PERMITS_PER_SECOND个
+     */
+    public static TXConnectThrottle getDefault() {
+        if (sDefault == null) {
+            synchronized (TXConnectThrottle.class) {
+                if (sDefault == null) {
+                    sDefault = new TXConnectThrottle(DEFAULT_MAX_IN_FLIGHT, DEFAULT_PERMITS_PER_SECOND);
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * 提交一次连接请求，获得许可后在共享的定时任务线程池执行。连接有结果（或放弃连接）后必须调用一次{@link #release()}
+     *
+     * @param attempt 发起连接
+     */
+    void submit(Runnable attempt) {
+        mQueue.add(attempt);
+    }
+
+    /**
+     * 归还连接许可
+     */
+    void release() {
+        mCompleted.incrementAndGet();
+        mInFlight.release();
+    }
+
+    private void dispatch() {
+        while (true) {
+            Runnable attempt;
+            try {
+                attempt = mQueue.take();
+                mInFlight.acquire();
+            } catch (InterruptedException e) {
+                log.warn("connect throttle interrupted");
+                return;
+            }
+            mRateLimiter.acquire();
+
+            mStarted.incrementAndGet();
+            int inFlight = mMaxInFlight - mInFlight.availablePermits();
+            if (inFlight > mMaxObservedInFlight) {
+                mMaxObservedInFlight = inFlight;
+            }
+            final Runnable task = attempt;
+            try {
+                TXSharedPingSender.getSharedExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } catch (Exception e) {
+                            log.error("connect attempt failed", e);
+                            release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.error("connect attempt rejected", e);
+                release();
+            }
+        }
+    }
+
+    /**
+     * @return 进行中的连接数
+     */
+    public int getInFlight() {
+        return mMaxInFlight - mInFlight.availablePermits();
+    }
+
+    /**
+     * @return 等待放行的连接请求数
+     */
+    public int getQueued() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return 已放行的连接请求总数
+     */
+    public long getStarted() {
+        return mStarted.get();
+    }
+
+    /**
+     * @return 已有结果的连接请求总数
+     */
+    public long getCompleted() {
+        return mCompleted.get();
+    }
+
+    /**
+     * @return 观察到的同时进行中连接数的最大值
+     */
+    public int getMaxObservedInFlight() {
+        return mMaxObservedInFlight;
+    }
+
+    @Override
+    public String toString() {
+        return "TXConnectThrottle{inFlight=" + getInFlight() + ", queued=" + getQueued() + ", started=" + getStarted()
+                + ", completed=" + getCompleted() + ", maxObservedInFlight=" + mMaxObservedInFlight + "}";
+    }
+}
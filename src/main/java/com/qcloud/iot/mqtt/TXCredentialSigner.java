@@ -0,0 +1,238 @@
+package com.qcloud.iot.mqtt;
+
+import com.qcloud.iot.util.Base64;
+import com.qcloud.iot.util.HashedWheelTimer;
+import com.qcloud.iot.util.HmacSigner;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 单个设备的连接凭证签名器
+ * <p>
+ * 用户名格式为[productId][deviceName];[appId];[connId];[过期时间]，密码为用户名的HMAC-SHA256签名加";hmacsha256"。
+ * 密钥只Base64解码一次，签名复用线程内的Mac。开启预签名后在共享时间轮上提前签好下一份凭证，
+ * 并在其过期前重新签名，大量连接同时重连时直接取用，不在连接路径上签名。
+ */
+@Slf4j
+public class TXCredentialSigner {
+
+    /**
+     * 凭证有效期，单位：秒
+     */
+    public static final long CREDENTIAL_VALIDITY_SECONDS = 600;
+
+    /**
+     * 预签名凭证的刷新周期，单位：秒
+     */
+    public static final long PRESIGN_REFRESH_SECONDS = 300;
+
+    /**
+     * 预签名凭证剩余有效期不足该值时不再使用，单位：秒
+     */
+    public static final long MIN_REMAINING_SECONDS = 240;
+
+    private static final String PASSWORD_SUFFIX = ";hmacsha256";
+
+    private static final char[] CONN_ID_CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+
+    private final String mUserName;
+    private final HmacSigner mSigner;
+
+    private final AtomicReference<Credentials> mPrepared = new AtomicReference<>();
+
+    /**
+     * 以下字段由this保护
+     */
+    private boolean mPresigning;
+    private HashedWheelTimer.Timeout mRefresh;
+
+    private final AtomicLong mSigned = new AtomicLong();
+    private final AtomicLong mPresignedHits = new AtomicLong();
+
+    /**
+     * @param userName  用户名前缀：[productId][deviceName];[appId]
+     * @param secretKey Base64编码的设备密钥，为空或无效时凭证不带密码
+     */
+    public TXCredentialSigner(String userName, String secretKey) {
+        this.mUserName = userName;
+        HmacSigner signer = null;
+        if (secretKey != null && secretKey.length() != 0) {
+            try {
+                signer = new HmacSigner(HmacSigner.HMAC_SHA256, Base64.decode(secretKey, Base64.DEFAULT));
+            } catch (IllegalArgumentException e) {
+                log.debug("Failed to set password");
+            }
+        }
+        this.mSigner = signer;
+    }
+
+    /**
+     * 立即签名一份凭证
+     *
+     * @param expiry 过期时间，单位：秒
+     * @return 凭证
+     */
+    public Credentials sign(long expiry) {
+        String userName = mUserName + ";" + newConnectId() + ";" + expiry;
+        String password = null;
+        if (mSigner != null) {
+            password = mSigner.signHex(userName.getBytes(StandardCharsets.UTF_8)) + PASSWORD_SUFFIX;
+        }
+        mSigned.incrementAndGet();
+        return new Credentials(userName, password, expiry);
+    }
+
+    /**
+     * 取一份有效期为CREDENTIAL_VALIDITY_SECONDS的凭证用于连接。有可用的预签名凭证时直接取用（每份只使用一次），
+     * 否则立即签名；开启预签名时随后在后台签好下一份
+     *
+     * @return 凭证
+     */
+    public Credentials take() {
+        long now = System.currentTimeMillis() / 1000;
+        Credentials credentials = mPrepared.getAndSet(null);
+        if (credentials != null && credentials.getExpiry() - now >= MIN_REMAINING_SECONDS) {
+            mPresignedHits.incrementAndGet();
+        } else {
+            credentials = sign(now + CREDENTIAL_VALIDITY_SECONDS);
+        }
+        schedulePresign(0);
+        return credentials;
+    }
+
+    /**
+     * 开启预签名：立即在后台签好一份凭证，之后每PRESIGN_REFRESH_SECONDS秒重新签名
+     */
+    public synchronized void startPresigning() {
+        if (mPresigning) {
+            return;
+        }
+        mPresigning = true;
+        schedulePresign(0);
+    }
+
+    /**
+     * 停止预签名并丢弃已签好的凭证
+     */
+    public synchronized void stopPresigning() {
+        mPresigning = false;
+        if (mRefresh != null) {
+            mRefresh.cancel();
+            mRefresh = null;
+        }
+        mPrepared.set(null);
+    }
+
+    private synchronized void schedulePresign(long delaySeconds) {
+        if (!mPresigning) {
+            return;
+        }
+        if (mRefresh != null) {
+            mRefresh.cancel();
+        }
+        mRefresh = TXSharedPingSender.getSharedTimer().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                presign();
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 签好下一份凭证，并安排过期前重新签名
+     */
+    void presign() {
+        synchronized (this) {
+            if (!mPresigning) {
+                return;
+            }
+            mRefresh = null;
+        }
+        Credentials credentials = sign(System.currentTimeMillis() / 1000 + CREDENTIAL_VALIDITY_SECONDS);
+        synchronized (this) {
+            if (!mPresigning) {
+                return;
+            }
+            mPrepared.set(credentials);
+            if (mRefresh == null) {
+                mRefresh = TXSharedPingSender.getSharedTimer().newTimeout(new Runnable() {
+                    @Override
+                    public void run() {
+                        presign();
+                    }
+                }, PRESIGN_REFRESH_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return 连接ID（长度为TXMqttConstants.MAX_CONN_ID_LEN的数字字母随机字符串）
+     */
+    public static String newConnectId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        char[] connectId = new char[TXMqttConstants.MAX_CONN_ID_LEN];
+        for (int i = 0; i < connectId.length; i++) {
+            connectId[i] = CONN_ID_CHARS[random.nextInt(CONN_ID_CHARS.length)];
+        }
+        return new String(connectId);
+    }
+
+    /**
+     * @return 签名次数
+     */
+    public long getSigned() {
+        return mSigned.get();
+    }
+
+    /**
+     * @return 直接取用预签名凭证的次数
+     */
+    public long getPresignedHits() {
+        return mPresignedHits.get();
+    }
+
+    /**
+     * @return 是否有已签好、尚未取用的凭证
+     */
+    public boolean hasPrepared() {
+        return mPrepared.get() != null;
+    }
+
+    /**
+     * 连接凭证
+     */
+    public static class Credentials {
+        private final String mUserName;
+        private final String mPassword;
+        private final long mExpiry;
+
+        Credentials(String userName, String password, long expiry) {
+            this.mUserName = userName;
+            this.mPassword = password;
+            this.mExpiry = expiry;
+        }
+
+        public String getUserName() {
+            return mUserName;
+        }
+
+        /**
+         * @return 密码，设备没有有效密钥时为null
+         */
+        public char[] getPassword() {
+            return mPassword == null ? null : mPassword.toCharArray();
+        }
+
+        /**
+         * @return 过期时间，单位：秒
+         */
+        public long getExpiry() {
+            return mExpiry;
+        }
+    }
+}
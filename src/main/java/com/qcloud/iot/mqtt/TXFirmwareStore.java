@@ -0,0 +1,307 @@
+package com.qcloud.iot.mqtt;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * 按内容寻址的固件存储
+ * <p>
+ * 固件以MD5命名保存在存储目录中，相同固件只保存一份。复用前校验MD5，本进程内校验过且文件未被修改时不再重复计算。
+ * 所有固件的总大小超过上限时按最近使用时间淘汰，最近使用时间记录在文件的修改时间中，重启后仍然有效。
+ * 交给调用者的固件通过硬链接放到调用者的存储路径，不复制数据，之后被淘汰也不影响调用者；
+ * 不支持硬链接（如跨文件系统）时复制文件。交接期间调用者通过pin/unpin固定固件，被固定的固件不会被淘汰。
+ */
+@Slf4j
+public class TXFirmwareStore {
+
+    private static final Pattern MD5_NAME = Pattern.compile("[0-9a-f]{32}");
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    /**
+     * 按最近使用顺序排列的固件，key为MD5
+     */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 被固定的固件及其固定次数，单独保存以免固定操作改变mEntries的访问顺序
+     */
+    private final Map<String, Integer> mPins = new HashMap<>();
+    private long mBytes;
+
+    /**
+     * @param dir      存储目录（调用者须保证目录已存在，并具有写权限）
+     * @param maxBytes 固件总大小上限，单位：字节
+     */
+    public TXFirmwareStore(String dir, long maxBytes) {
+        this.mDir = new File(dir);
+        this.mMaxBytes = maxBytes;
+        load();
+    }
+
+    /**
+     * @param md5Sum 固件MD5
+     * @return 固件在存储目录中的全路径文件名，下载任务直接下载到该文件
+     */
+    public String pathOf(String md5Sum) {
+        return new File(mDir, md5Sum.toLowerCase()).getPath();
+    }
+
+    /**
+     * 查找已保存且校验通过的固件，找到时更新其最近使用时间
+     *
+     * @param md5Sum 固件MD5
+     * @return 固件的全路径文件名，不存在或校验失败时返回null
+     */
+    public String lookup(String md5Sum) {
+        String key = md5Sum.toLowerCase();
+        File file = new File(mDir, key);
+
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+        }
+        if (entry == null || !file.isFile()) {
+            remove(key);
+            return null;
+        }
+
+        if (!entry.isVerified(file)) {
+            if (!key.equals(TXOTAImpl.fileToMD5(file.getPath()))) {
+                log.warn("firmware {} in store is corrupted, discard it", key);
+                remove(key);
+                file.delete();
+                return null;
+            }
+        }
+        touch(key, file);
+        return file.getPath();
+    }
+
+    /**
+     * 登记下载并校验完成的固件，之后按需淘汰最久未使用的固件
+     *
+     * @param md5Sum 固件MD5，对应的文件须已在pathOf返回的位置
+     */
+    public void commit(String md5Sum) {
+        String key = md5Sum.toLowerCase();
+        File file = new File(mDir, key);
+        if (!file.isFile()) {
+            return;
+        }
+
+        synchronized (this) {
+            Entry old = mEntries.remove(key);
+            if (old != null) {
+                mBytes -= old.mSize;
+            }
+            mEntries.put(key, new Entry(file.length()));
+            mBytes += file.length();
+        }
+        touch(key, file);
+        evict(key);
+    }
+
+    /**
+     * 固定已登记的固件，固定期间不会被淘汰，须与unpin成对调用
+     *
+     * @param md5Sum 固件MD5
+     * @return 固件已登记并固定时返回true
+     */
+    public synchronized boolean pin(String md5Sum) {
+        String key = md5Sum.toLowerCase();
+        if (!mEntries.containsKey(key)) {
+            return false;
+        }
+        Integer pins = mPins.get(key);
+        mPins.put(key, pins == null ? 1 : pins + 1);
+        return true;
+    }
+
+    /**
+     * 解除固定，固定期间因超出上限而跳过淘汰的固件此时淘汰
+     *
+     * @param md5Sum 固件MD5
+     */
+    public void unpin(String md5Sum) {
+        String key = md5Sum.toLowerCase();
+        synchronized (this) {
+            Integer pins = mPins.get(key);
+            if (pins == null) {
+                return;
+            }
+            if (pins > 1) {
+                mPins.put(key, pins - 1);
+            } else {
+                mPins.remove(key);
+            }
+        }
+        evict(null);
+    }
+
+    /**
+     * 将固件交给调用者：在目标位置创建指向存储文件的硬链接，不支持时复制
+     *
+     * @param storedFile 存储中的固件文件
+     * @param target     目标全路径文件名
+     * @return 目标全路径文件名
+     * @throws IOException 存储文件不存在，或创建链接及复制均失败
+     */
+    public String handOff(String storedFile, String target) throws IOException {
+        File source = new File(storedFile);
+        File dest = new File(target);
+        if (!source.isFile()) {
+            throw new FileNotFoundException(storedFile);
+        }
+        if (source.getCanonicalFile().equals(dest.getCanonicalFile())) {
+            return target;
+        }
+
+        Files.deleteIfExists(dest.toPath());
+        try {
+            Files.createLink(dest.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("link {} -> {} failed, copy instead: {}", target, storedFile, e.toString());
+            Files.copy(source.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return target;
+    }
+
+    /**
+     * @return 存储中固件的总大小
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return 存储中的固件数
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * 扫描存储目录，跳过未下载完成（有进度文件）的固件，按修改时间恢复最近使用顺序
+     */
+    private void load() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> firmwares = new ArrayList<>();
+        for (File file : files) {
+            if (file.isFile() && MD5_NAME.matcher(file.getName()).matches()
+                    && !new File(file.getPath() + TXOTADownloadTask.PROGRESS_FILE_SUFFIX).exists()) {
+                firmwares.add(file);
+            }
+        }
+        Collections.sort(firmwares, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        synchronized (this) {
+            for (File file : firmwares) {
+                mEntries.put(file.getName(), new Entry(file.length()));
+                mBytes += file.length();
+            }
+        }
+        evict(null);
+    }
+
+    /**
+     * 淘汰最久未使用的固件直到总大小不超过上限，跳过被固定的固件
+     *
+     * @param keep 不淘汰的固件MD5，为null时不保留
+     */
+    private void evict(String keep) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            while (mBytes > mMaxBytes && iterator.hasNext()) {
+                Map.Entry<String, Entry> entry = iterator.next();
+                if (entry.getKey().equals(keep) || mPins.containsKey(entry.getKey())) {
+                    continue;
+                }
+                iterator.remove();
+                mBytes -= entry.getValue().mSize;
+                evicted.add(entry.getKey());
+            }
+        }
+
+        for (String key : evicted) {
+            log.info("evict firmware {} from store", key);
+            new File(mDir, key).delete();
+        }
+    }
+
+    /**
+     * 更新最近使用时间并记录校验状态
+     */
+    private void touch(String key, File file) {
+        file.setLastModified(System.currentTimeMillis());
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                entry.mVerifiedLength = file.length();
+                entry.mVerifiedModified = modifiedTime(file);
+            }
+        }
+    }
+
+    /**
+     * File.lastModified在部分JDK版本上只精确到秒，使用NIO读取更精确的修改时间
+     */
+    private static long modifiedTime(File file) {
+        try {
+            return Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mBytes -= entry.mSize;
+        }
+    }
+
+    private static class Entry {
+        private final long mSize;
+
+        /**
+         * 最近一次校验时文件的长度及修改时间，-1表示本进程内未校验过
+         */
+        private volatile long mVerifiedLength = -1;
+        private volatile long mVerifiedModified = -1;
+
+        private Entry(long size) {
+            this.mSize = size;
+        }
+
+        private boolean isVerified(File file) {
+            return mVerifiedModified != -1 && mVerifiedLength == file.length() && mVerifiedModified == modifiedTime(file);
+        }
+    }
+}
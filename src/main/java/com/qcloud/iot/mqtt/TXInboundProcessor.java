@@ -0,0 +1,259 @@
+package com.qcloud.iot.mqtt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 入站消息处理器：将消息处理从Paho回调线程转移到独立的执行器上
+ * <p>
+ * 消息按topic哈希分配到固定数量的串行分片，同一topic的消息按到达顺序处理，不同topic的消息并行处理。
+ * 所有分片共享一个有界的待处理配额，配额耗尽时按InboundOverflowPolicy处理：
+ * kDrop丢弃新消息，kBlock阻塞Paho回调线程直至有空余配额，kSpill不占用配额，溢出排到同一分片的队列末尾，
+ * 与队列中同topic的消息保持顺序（溢出部分不受配额限制，只占用内存，通过getSpillDepth观察）。
+ * <p>
+ * 注意：消息交给处理器后messageArrived立即返回，Paho随即应答QoS1的PUBACK（QoS2的PUBCOMP），
+ * 此时处理器尚未执行。进程在处理前退出时，该消息不会被服务端重发。
+ * 默认执行器在JDK 21+上使用虚拟线程，否则使用进程内共享的守护线程池。
+ */
+@Slf4j
+public class TXInboundProcessor {
+
+    private final TXSerialExecutor[] mStripes;
+
+    private final Semaphore mPermits;
+
+    private final int mCapacity;
+
+    private final TXMqttConstants.InboundOverflowPolicy mPolicy;
+
+    private final AtomicLong mProcessed = new AtomicLong(0);
+    private final AtomicLong mDropped = new AtomicLong(0);
+    private final AtomicLong mSpilled = new AtomicLong(0);
+    private final AtomicInteger mSpillDepth = new AtomicInteger(0);
+
+    /**
+     * 使用默认执行器、默认分片数及队列容量，队列满时阻塞
+     */
+    public TXInboundProcessor() {
+        this(getDefaultExecutor(), TXMqttConstants.DEFAULT_INBOUND_STRIPES, TXMqttConstants.DEFAULT_INBOUND_QUEUE_SIZE,
+                TXMqttConstants.InboundOverflowPolicy.kBlock);
+    }
+
+    /**
+     * @param executor 实际执行消息处理的执行器
+     * @param stripes  串行分片数，同一分片内的消息按顺序处理
+     * @param capacity 所有分片待处理消息数上限
+     * @param policy   待处理消息数达到上限时的处理策略
+     */
+    public TXInboundProcessor(Executor executor, int stripes, int capacity, TXMqttConstants.InboundOverflowPolicy policy) {
+        if (executor == null || policy == null) {
+            throw new IllegalArgumentException("executor and policy must not be null");
+        }
+        if (stripes <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("stripes and capacity must be greater than 0");
+        }
+
+        this.mStripes = new TXSerialExecutor[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i] = new TXSerialExecutor(executor);
+        }
+        this.mCapacity = capacity;
+        this.mPermits = new Semaphore(capacity);
+        this.mPolicy = policy;
+    }
+
+    /**
+     * 提交一条消息的处理任务
+     *
+     * @param topic 消息主题，用于选择串行分片
+     * @param task  处理任务
+     * @return 任务被执行或排队返回true，被丢弃返回false
+     */
+    public boolean submit(String topic, final Runnable task) {
+        if (!mPermits.tryAcquire()) {
+            switch (mPolicy) {
+                case kDrop:
+                    mDropped.incrementAndGet();
+                    log.warn("inbound queue is full({}), drop message of topic: {}", mCapacity, topic);
+                    return false;
+
+                case kSpill:
+                    return spill(topic, task);
+
+                default:
+                    try {
+                        mPermits.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        mDropped.incrementAndGet();
+                        log.warn("interrupted while waiting for inbound queue, drop message of topic: {}", topic);
+                        return false;
+                    }
+                    break;
+            }
+        }
+
+        try {
+            stripeOf(topic).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runTask(task);
+                    } finally {
+                        mPermits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            mPermits.release();
+            mDropped.incrementAndGet();
+            log.error("submit message of topic: {} failed.", topic, e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 配额耗尽时不占用配额，排到同一分片的队列末尾
+     */
+    private boolean spill(String topic, final Runnable task) {
+        mSpilled.incrementAndGet();
+        mSpillDepth.incrementAndGet();
+        try {
+            stripeOf(topic).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runTask(task);
+                    } finally {
+                        mSpillDepth.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            mSpillDepth.decrementAndGet();
+            mDropped.incrementAndGet();
+            log.error("submit message of topic: {} failed.", topic, e);
+            return false;
+        }
+        return true;
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            log.error("process inbound message failed.", t);
+        } finally {
+            mProcessed.incrementAndGet();
+        }
+    }
+
+    private TXSerialExecutor stripeOf(String topic) {
+        int hash = topic == null ? 0 : topic.hashCode();
+        return mStripes[(hash & 0x7fffffff) % mStripes.length];
+    }
+
+    /**
+     * @return 排队及正在处理的消息数（含超出配额溢出排队的消息）
+     */
+    public int getQueueDepth() {
+        return mCapacity - mPermits.availablePermits() + mSpillDepth.get();
+    }
+
+    /**
+     * @return 超出配额溢出排队、尚未处理完的消息数
+     */
+    public int getSpillDepth() {
+        return mSpillDepth.get();
+    }
+
+    /**
+     * @return 待处理消息最多的分片的消息数
+     */
+    public int getMaxStripeDepth() {
+        int max = 0;
+        for (TXSerialExecutor stripe : mStripes) {
+            max = Math.max(max, stripe.getPendingCount());
+        }
+        return max;
+    }
+
+    /**
+     * @return 待处理消息数上限
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return 已处理的消息数
+     */
+    public long getProcessedCount() {
+        return mProcessed.get();
+    }
+
+    /**
+     * @return 因队列满或提交失败被丢弃的消息数
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return 因队列满溢出排队的消息数
+     */
+    public long getSpilledCount() {
+        return mSpilled.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TXInboundProcessor{policy=" + mPolicy
+                + ", depth=" + getQueueDepth() + "/" + mCapacity
+                + ", maxStripeDepth=" + getMaxStripeDepth()
+                + ", processed=" + getProcessedCount()
+                + ", dropped=" + getDroppedCount()
+                + ", spilled=" + getSpilledCount()
+                + ", spillDepth=" + getSpillDepth() + "}";
+    }
+
+    /**
+     * @return 进程内共享的默认执行器，JDK 21+为虚拟线程执行器，否则为守护线程池
+     */
+    public static Executor getDefaultExecutor() {
+        return DefaultExecutorHolder.EXECUTOR;
+    }
+
+    private static class DefaultExecutorHolder {
+        private static final Executor EXECUTOR = createDefaultExecutor();
+
+        private static Executor createDefaultExecutor() {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                Executor executor = (Executor) method.invoke(null);
+                log.info("inbound messages are processed on virtual threads");
+                return executor;
+            } catch (Exception e) {
+                // 低版本JDK没有虚拟线程
+            }
+
+            int threads = Runtime.getRuntime().availableProcessors() * 2;
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setNameFormat("TXMqtt-inbound-%d").setDaemon(true).build());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+}
@@ -0,0 +1,675 @@
+package com.qcloud.iot.mqtt;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件的日志结构持久化，用于保存QoS1/2消息的飞行状态
+ * <p>
+ * Paho默认的MqttDefaultFilePersistence每条消息创建、写入、删除一个文件，消息速率高时频繁操作文件系统元数据，
+ * 磨损闪存。这里所有操作以记录形式顺序追加到固定大小的段文件：put写入[key][消息]，remove写入删除标记，
+ * 内存中维护key到记录位置的索引。每条记录格式为[长度（4字节）][CRC32（4字节）][内容]，记录之后紧跟
+ * 长度为0的结束标记，每个段文件头部为段序号（8字节）。
+ * <p>
+ * 最旧的段没有有效记录时直接删除；写满一个段时，将最旧段中仍有效的记录搬到当前段后删除（压缩），
+ * 只按从旧到新的顺序删除段，保证删除标记不会早于被删除的记录消失。重启时按段序号顺序重放所有段重建索引，
+ * 未通过CRC校验的残缺记录被丢弃。
+ * <p>
+ * 数据写入映射内存后即对进程崩溃安全；防掉电的刷盘按组提交：同一周期内的所有写入由后台线程一次刷入磁盘，
+ * syncIntervalMs为0时每次写入后立即刷盘。
+ * <p>
+ * 注意持久性的取舍：MqttDefaultFilePersistence每次put都会fsync，put返回后即可承受掉电；
+ * 这里默认每DEFAULT_SYNC_INTERVAL_MS（200毫秒）刷盘一次，掉电时最多丢失最近一个周期内的写入（进程崩溃不受影响）。
+ * 不能接受该窗口时将syncIntervalMs设置为0，此时每次写入都刷盘，吞吐量相应下降。
+ */
+@Slf4j
+public class TXMappedFilePersistence implements MqttClientPersistence {
+
+    /**
+     * 默认段文件大小：1MB
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * 默认刷盘周期，单位：毫秒
+     */
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 200;
+
+    /**
+     * 段文件数超过该值时，不论最旧段中有效记录的比例，都将其压缩
+     */
+    public static final int MAX_SEGMENTS = 4;
+
+    /**
+     * 最旧段中有效记录所占比例低于该值时将其压缩
+     */
+    public static final double COMPACT_LIVE_RATIO = 0.5;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final ScheduledExecutorService SYNC_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TXMqtt-persistence-sync");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File mBaseDir;
+    private final int mSegmentSize;
+    private final long mSyncIntervalMs;
+
+    /**
+     * 以下字段由this保护
+     */
+    private File mDir;
+    private final TreeMap<Long, Segment> mSegments = new TreeMap<>();
+    private final HashMap<String, Location> mIndex = new HashMap<>();
+    private Segment mActive;
+    private boolean mCompacting;
+    private ScheduledFuture<?> mSyncTask;
+
+    private long mSyncs;
+    private long mCompactedRecords;
+
+    /**
+     * @param dir 存放持久化文件的目录，每个客户端使用其中以clientId及服务器地址命名的子目录
+     */
+    public TXMappedFilePersistence(String dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * @param dir            存放持久化文件的目录，每个客户端使用其中以clientId及服务器地址命名的子目录
+     * @param segmentSize    段文件大小，超过该大小的消息单独使用一个段
+     * @param syncIntervalMs 刷盘周期，单位：毫秒；为0时每次写入后立即刷盘
+     */
+    public TXMappedFilePersistence(String dir, int segmentSize, long syncIntervalMs) {
+        if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + 4 || syncIntervalMs < 0) {
+            throw new IllegalArgumentException("invalid segment size or sync interval: " + segmentSize + ", " + syncIntervalMs);
+        }
+        this.mBaseDir = new File(dir);
+        this.mSegmentSize = segmentSize;
+        this.mSyncIntervalMs = syncIntervalMs;
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        File dir = new File(mBaseDir, sanitize(clientId + "-" + serverURI));
+        if (mDir != null) {
+            if (mDir.equals(dir)) {
+                return;
+            }
+            close();
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new MqttPersistenceException(new IOException("create directory failed: " + dir));
+        }
+
+        mDir = dir;
+        try {
+            recover();
+        } catch (IOException e) {
+            closeSegments();
+            mDir = null;
+            throw new MqttPersistenceException(e);
+        }
+
+        if (mSyncIntervalMs > 0) {
+            mSyncTask = SYNC_EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sync();
+                }
+            }, mSyncIntervalMs, mSyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 与MqttDefaultFilePersistence相同，目录名只保留字母、数字及'-'
+     */
+    private static String sanitize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 按段序号顺序重放所有段，重建索引及各段的有效记录统计
+     */
+    private void recover() throws IOException {
+        File[] files = mDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        TreeMap<Long, File> sorted = new TreeMap<>();
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    sorted.put(Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    log.warn("ignore unknown file {}", file);
+                }
+            }
+        }
+
+        int records = 0;
+        for (Map.Entry<Long, File> entry : sorted.entrySet()) {
+            File file = entry.getValue();
+            if (file.length() <= SEGMENT_HEADER_SIZE) {
+                log.warn("discard truncated segment {}", file);
+                delete(file);
+                continue;
+            }
+            Segment segment = new Segment(entry.getKey(), file, map(file, (int) file.length()));
+            if (segment.mBuffer.getLong(0) != segment.mSeq) {
+                log.warn("discard segment {} with invalid header", file);
+                delete(file);
+                continue;
+            }
+            mSegments.put(segment.mSeq, segment);
+            records += replay(segment);
+        }
+
+        if (mSegments.isEmpty()) {
+            mActive = newSegment(1, mSegmentSize);
+        } else {
+            mActive = mSegments.lastEntry().getValue();
+        }
+        reclaim();
+        log.info("recovered {} records, {} in-flight messages from {} segments in {}",
+                records, mIndex.size(), mSegments.size(), mDir);
+    }
+
+    /**
+     * 重放段内的有效记录，返回记录数；写入位置设为最后一条有效记录之后
+     */
+    private int replay(Segment segment) {
+        MappedByteBuffer buffer = segment.mBuffer;
+        int offset = SEGMENT_HEADER_SIZE;
+        int records = 0;
+        while (true) {
+            int bodyLength = checkRecord(buffer, offset);
+            if (bodyLength <= 0) {
+                break;
+            }
+            int body = offset + RECORD_HEADER_SIZE;
+            byte op = buffer.get(body);
+            String key = readKey(buffer, body);
+            int recordSize = RECORD_HEADER_SIZE + bodyLength;
+            if (op == OP_PUT) {
+                index(key, new Location(segment, offset, recordSize));
+            } else if (op == OP_REMOVE) {
+                Location old = mIndex.remove(key);
+                if (old != null) {
+                    old.release();
+                }
+            }
+            offset += recordSize;
+            records++;
+        }
+        segment.mWriteOffset = offset;
+        // 残缺记录之后的内容在下次写入时被覆盖
+        if (offset + 4 <= buffer.capacity()) {
+            buffer.putInt(offset, 0);
+        }
+        return records;
+    }
+
+    /**
+     * 校验一条记录，返回记录内容长度；遇到结束标记、越界或CRC错误时返回0
+     */
+    private static int checkRecord(MappedByteBuffer buffer, int offset) {
+        if (offset + RECORD_HEADER_SIZE > buffer.capacity()) {
+            return 0;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+            return 0;
+        }
+        if (buffer.getInt(offset + 4) != crc(buffer, offset + RECORD_HEADER_SIZE, length)) {
+            log.warn("discard corrupted record at offset {}", offset);
+            return 0;
+        }
+        return length;
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        CRC32 crc32 = new CRC32();
+        crc32.update(view);
+        return (int) crc32.getValue();
+    }
+
+    private static String readKey(ByteBuffer buffer, int body) {
+        int keyLength = buffer.getShort(body + 1) & 0xFFFF;
+        byte[] key = new byte[keyLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(body + 3);
+        view.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int headerLength = persistable.getHeaderLength();
+        int payloadLength = persistable.getPayloadBytes() == null ? 0 : persistable.getPayloadLength();
+        int bodyLength = 1 + 2 + keyBytes.length + 4 + headerLength + payloadLength;
+
+        Segment segment = reserve(RECORD_HEADER_SIZE + bodyLength);
+        int offset = segment.mWriteOffset;
+        ByteBuffer view = segment.mBuffer.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.put(OP_PUT).putShort((short) keyBytes.length).put(keyBytes).putInt(headerLength);
+        view.put(persistable.getHeaderBytes(), persistable.getHeaderOffset(), headerLength);
+        if (payloadLength > 0) {
+            view.put(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payloadLength);
+        }
+        Location location = commitRecord(segment, offset, bodyLength);
+        index(key, location);
+        afterWrite();
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        Location location = mIndex.get(key);
+        if (location == null) {
+            return null;
+        }
+
+        ByteBuffer view = location.mSegment.mBuffer.duplicate();
+        int body = location.mOffset + RECORD_HEADER_SIZE;
+        view.position(body + 3 + (view.getShort(body + 1) & 0xFFFF));
+        byte[] header = new byte[view.getInt()];
+        view.get(header);
+        int payloadLength = location.mSize - (view.position() - location.mOffset);
+        byte[] payload = null;
+        if (payloadLength > 0) {
+            payload = new byte[payloadLength];
+            view.get(payload);
+        }
+        return new MqttPersistentData(key, header, 0, header.length, payload, 0, payloadLength);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        Location old = mIndex.get(key);
+        if (old == null) {
+            return;
+        }
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 1 + 2 + keyBytes.length;
+        Segment segment = reserve(RECORD_HEADER_SIZE + bodyLength);
+        int offset = segment.mWriteOffset;
+        ByteBuffer view = segment.mBuffer.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.put(OP_REMOVE).putShort((short) keyBytes.length).put(keyBytes);
+        commitRecord(segment, offset, bodyLength);
+
+        mIndex.remove(key);
+        old.release();
+        reclaim();
+        afterWrite();
+    }
+
+    @Override
+    public synchronized Enumeration keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<>(mIndex.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        long nextSeq = mActive.mSeq + 1;
+        for (Segment segment : mSegments.values()) {
+            delete(segment.mFile);
+        }
+        mSegments.clear();
+        mIndex.clear();
+        try {
+            mActive = newSegment(nextSeq, mSegmentSize);
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+        afterWrite();
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return mIndex.containsKey(key);
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        if (mDir == null) {
+            return;
+        }
+        if (mSyncTask != null) {
+            mSyncTask.cancel(false);
+            mSyncTask = null;
+        }
+        for (Segment segment : mSegments.values()) {
+            segment.mBuffer.force();
+        }
+        closeSegments();
+        mDir = null;
+    }
+
+    private void closeSegments() {
+        mSegments.clear();
+        mIndex.clear();
+        mActive = null;
+    }
+
+    /**
+     * 将各段尚未刷盘的写入一次刷入磁盘（组提交）
+     */
+    public void sync() {
+        List<Segment> dirty = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : mSegments.values()) {
+                if (segment.mDirty) {
+                    segment.mDirty = false;
+                    dirty.add(segment);
+                }
+            }
+            if (dirty.isEmpty()) {
+                return;
+            }
+            mSyncs++;
+        }
+        // 刷盘期间不阻塞写入
+        for (Segment segment : dirty) {
+            segment.mBuffer.force();
+        }
+    }
+
+    private void afterWrite() {
+        if (mSyncIntervalMs == 0) {
+            sync();
+        }
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (mDir == null) {
+            throw new MqttPersistenceException();
+        }
+    }
+
+    /**
+     * 写入校验值及结束标记，最后写入长度，记录生效
+     */
+    private Location commitRecord(Segment segment, int offset, int bodyLength) {
+        MappedByteBuffer buffer = segment.mBuffer;
+        buffer.putInt(offset + 4, crc(buffer, offset + RECORD_HEADER_SIZE, bodyLength));
+        int end = offset + RECORD_HEADER_SIZE + bodyLength;
+        if (end + 4 <= buffer.capacity()) {
+            buffer.putInt(end, 0);
+        }
+        buffer.putInt(offset, bodyLength);
+        segment.mWriteOffset = end;
+        segment.mDirty = true;
+        return new Location(segment, offset, end - offset);
+    }
+
+    private void index(String key, Location location) {
+        location.mSegment.mLiveRecords++;
+        location.mSegment.mLiveBytes += location.mSize;
+        Location old = mIndex.put(key, location);
+        if (old != null) {
+            old.release();
+        }
+    }
+
+    /**
+     * 为一条记录预留空间，当前段剩余空间不足时切换到新段并压缩旧段
+     */
+    private Segment reserve(int recordSize) throws MqttPersistenceException {
+        if (mActive.mWriteOffset + recordSize <= mActive.mBuffer.capacity()) {
+            return mActive;
+        }
+        try {
+            mActive = newSegment(mActive.mSeq + 1, Math.max(mSegmentSize, SEGMENT_HEADER_SIZE + recordSize + 4));
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+        compact();
+        return mActive;
+    }
+
+    /**
+     * 从最旧的段开始，将有效记录较少的段（或段数过多时的最旧段）中的有效记录搬到当前段后删除。
+     * 每次只处理压缩开始时已存在的段
+     */
+    private void compact() {
+        if (mCompacting) {
+            return;
+        }
+        mCompacting = true;
+        try {
+            List<Segment> sealed = new ArrayList<>(mSegments.headMap(mActive.mSeq).values());
+            int remaining = mSegments.size();
+            for (Segment oldest : sealed) {
+                if (oldest.mLiveRecords > 0 && remaining <= MAX_SEGMENTS
+                        && oldest.mLiveBytes >= oldest.mBuffer.capacity() * COMPACT_LIVE_RATIO) {
+                    break;
+                }
+                if (relocate(oldest)) {
+                    // 删除旧段前搬移的记录必须已经刷盘，否则掉电时两份都会丢失，与刷盘周期无关
+                    forceDirty();
+                }
+                mSegments.remove(oldest.mSeq);
+                deleteSegment(oldest.mFile);
+                remaining--;
+            }
+        } catch (MqttPersistenceException e) {
+            log.error("compact segments failed", e);
+        } finally {
+            mCompacting = false;
+        }
+    }
+
+    /**
+     * 将段内仍有效的记录原样复制到当前段
+     *
+     * @return 是否搬移了记录
+     */
+    private boolean relocate(Segment segment) throws MqttPersistenceException {
+        if (segment.mLiveRecords == 0) {
+            return false;
+        }
+        List<Map.Entry<String, Location>> live = new ArrayList<>();
+        for (Map.Entry<String, Location> entry : mIndex.entrySet()) {
+            if (entry.getValue().mSegment == segment) {
+                live.add(entry);
+            }
+        }
+        for (Map.Entry<String, Location> entry : live) {
+            Location old = entry.getValue();
+            Segment target = reserve(old.mSize);
+            int offset = target.mWriteOffset;
+            ByteBuffer source = segment.mBuffer.duplicate();
+            source.limit(old.mOffset + old.mSize);
+            source.position(old.mOffset + RECORD_HEADER_SIZE);
+            ByteBuffer view = target.mBuffer.duplicate();
+            view.position(offset + RECORD_HEADER_SIZE);
+            view.put(source);
+            index(entry.getKey(), commitRecord(target, offset, old.mSize - RECORD_HEADER_SIZE));
+            mCompactedRecords++;
+        }
+        return true;
+    }
+
+    /**
+     * 持锁将各段尚未刷盘的写入立即刷入磁盘
+     */
+    private void forceDirty() {
+        boolean forced = false;
+        for (Segment segment : mSegments.values()) {
+            if (segment.mDirty) {
+                segment.mDirty = false;
+                segment.mBuffer.force();
+                forced = true;
+            }
+        }
+        if (forced) {
+            mSyncs++;
+        }
+    }
+
+    /**
+     * 删除压缩完成的段文件
+     */
+    void deleteSegment(File file) {
+        delete(file);
+    }
+
+    /**
+     * 删除最旧的、没有有效记录的段
+     */
+    private void reclaim() {
+        while (mSegments.size() > 1) {
+            Segment oldest = mSegments.firstEntry().getValue();
+            if (oldest == mActive || oldest.mLiveRecords > 0) {
+                return;
+            }
+            mSegments.remove(oldest.mSeq);
+            delete(oldest.mFile);
+        }
+    }
+
+    private Segment newSegment(long seq, int size) throws IOException {
+        File file = new File(mDir, String.format("%020d%s", seq, SEGMENT_SUFFIX));
+        Segment segment = new Segment(seq, file, map(file, size));
+        segment.mBuffer.putInt(SEGMENT_HEADER_SIZE, 0);
+        segment.mBuffer.putLong(0, seq);
+        segment.mWriteOffset = SEGMENT_HEADER_SIZE;
+        segment.mDirty = true;
+        mSegments.put(seq, segment);
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            log.warn("delete {} failed", file);
+        }
+    }
+
+    /**
+     * @return 保存的消息数
+     */
+    public synchronized int size() {
+        return mIndex.size();
+    }
+
+    /**
+     * @return 段文件数
+     */
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * @return 刷盘次数
+     */
+    public synchronized long getSyncCount() {
+        return mSyncs;
+    }
+
+    /**
+     * @return 压缩时搬移的记录数
+     */
+    public synchronized long getCompactedRecords() {
+        return mCompactedRecords;
+    }
+
+    private static class Segment {
+        private final long mSeq;
+        private final File mFile;
+        private final MappedByteBuffer mBuffer;
+        private int mWriteOffset;
+        private int mLiveRecords;
+        private long mLiveBytes;
+        private boolean mDirty;
+
+        private Segment(long seq, File file, MappedByteBuffer buffer) {
+            this.mSeq = seq;
+            this.mFile = file;
+            this.mBuffer = buffer;
+        }
+    }
+
+    /**
+     * 记录所在的段、段内偏移及记录总长度
+     */
+    private static class Location {
+        private final Segment mSegment;
+        private final int mOffset;
+        private final int mSize;
+
+        private Location(Segment segment, int offset, int size) {
+            this.mSegment = segment;
+            this.mOffset = offset;
+            this.mSize = size;
+        }
+
+        private void release() {
+            mSegment.mLiveRecords--;
+            mSegment.mLiveBytes -= mSize;
+        }
+    }
+}
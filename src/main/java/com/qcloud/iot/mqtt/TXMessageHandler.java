@@ -0,0 +1,19 @@
+package com.qcloud.iot.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * 按topic过滤器注册的消息处理器
+ */
+public interface TXMessageHandler {
+
+    /**
+     * 处理匹配到的消息
+     *
+     * @param topic   消息主题
+     * @param message 消息内容
+     * @return 返回true表示消息已被处理，不再回调TXMqttActionCallBack.onMessageReceived
+     * @throws Exception 处理异常，由分发器记录后继续分发给其它处理器
+     */
+    boolean onMessage(String topic, MqttMessage message) throws Exception;
+}
@@ -5,8 +5,6 @@ import com.qcloud.iot.common.Status;
 import com.qcloud.iot.log.TXMqttLog;
 import com.qcloud.iot.log.TXMqttLogCallBack;
 import com.qcloud.iot.log.TXMqttLogConstants;
-import com.qcloud.iot.util.Base64;
-import com.qcloud.iot.util.HmacSha256;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttSuback;
@@ -15,6 +13,9 @@ import org.json.JSONObject;
 
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import static com.qcloud.iot.mqtt.TXMqttConstants.DEFAULT_SERVER_URI;
 import static com.qcloud.iot.mqtt.TXMqttConstants.MQTT_SDK_VER;
@@ -41,9 +42,15 @@ public class TXMqttConnection implements MqttCallbackExtended {
 
     protected MqttAsyncClient mMqttClient = null;
 
-    protected TXAlarmPingSender mPingSender = null;
+    protected MqttPingSender mPingSender = null;
     protected TXMqttActionCallBack mActionCallBack = null;
 
+    /**
+     * 所属连接池及回调执行器，未加入连接池时回调直接在Paho线程上执行
+     */
+    protected TXMqttConnectionPool mConnectionPool = null;
+    protected Executor mCallbackExecutor = null;
+
     private HashMap<String, Integer> mSubscribedTopicMap = new HashMap<>();
 
     private static int INVALID_MESSAGE_ID = -1;
@@ -51,6 +58,38 @@ public class TXMqttConnection implements MqttCallbackExtended {
 
     private TXOTAImpl mOTAImpl = null;
 
+    private volatile TXPublishPipeline mPublishPipeline = null;
+
+    /**
+     * 离线发布缓存，为null时断连期间的消息只使用Paho的DisconnectedBufferOptions
+     */
+    private volatile TXOfflinePublishBuffer mOfflineBuffer = null;
+
+    /**
+     * 重连调度器，为null时使用Paho的自动重连（如果连接参数开启）
+     */
+    private volatile TXReconnectScheduler mReconnectScheduler = null;
+
+    /**
+     * 正在进行由重连调度器发起的连接，连接成功后按重连处理（恢复订阅并以reconnect=true回调）
+     */
+    private volatile boolean mScheduledReconnect = false;
+
+    /**
+     * 连接凭证签名器，密钥只解码一次；设置了重连调度器时在后台预签名
+     */
+    protected final TXCredentialSigner mCredentialSigner;
+
+    /**
+     * 收到消息后按topic过滤器分发，内置OTA、日志等级处理器及用户注册的处理器
+     */
+    protected final TXTopicDispatcher mDispatcher = new TXTopicDispatcher();
+
+    /**
+     * 入站消息处理器，为null时消息直接在Paho回调线程上处理
+     */
+    protected volatile TXInboundProcessor mInboundProcessor = null;
+
     protected boolean mMqttLogFlag;
     public TXMqttLogCallBack mMqttLogCallBack = null;
     private TXMqttLog mMqttLog = null;
@@ -147,11 +186,25 @@ public class TXMqttConnection implements MqttCallbackExtended {
         this.mClientId = productID + deviceName;
         this.mDeviceName = deviceName;
         this.mUserName = mClientId + ";" + TXMqttConstants.APPID;
+        this.mCredentialSigner = new TXCredentialSigner(mUserName, secretKey);
         this.bufferOpts = bufferOpts;
         this.mMqttPersist = clientPersistence;
         this.mMqttLogFlag = mqttLogFlag;
         this.mMqttLogCallBack = logCallBack;
         this.mActionCallBack = callBack;
+
+        mDispatcher.addHandler("$ota/#", new TXMessageHandler() {
+            @Override
+            public boolean onMessage(String topic, MqttMessage message) {
+                return mOTAImpl != null && mOTAImpl.processMessage(topic, message);
+            }
+        });
+        mDispatcher.addHandler("$" + TXMqttLogConstants.LOG + "/#", new TXMessageHandler() {
+            @Override
+            public boolean onMessage(String topic, MqttMessage message) {
+                return consumeLogLevelMsg(topic, message);
+            }
+        });
     }
 
     /**
@@ -171,7 +224,31 @@ public class TXMqttConnection implements MqttCallbackExtended {
      * @param userContext 用户上下文（这个参数在回调函数时透传给用户）
      * @return 发送请求成功时返回Status.OK; 其它返回值表示发送请求失败；
      */
-    public synchronized Status connect(MqttConnectOptions options, Object userContext) {
+    public Status connect(MqttConnectOptions options, Object userContext) {
+        return connect(options, userContext, null);
+    }
+
+    /**
+     * 异步连接MQTT服务器，连接结果通过返回的Future通知，同时仍会回调TXMqttActionCallBack.onConnectCompleted。
+     * 如果当前已处于连接状态，Future直接以null完成。
+     *
+     * @param options 连接参数
+     * @return 连接成功时以连接token完成的Future
+     */
+    public CompletableFuture<IMqttToken> connectAsync(MqttConnectOptions options) {
+        CompletableFuture<IMqttToken> future = new CompletableFuture<>();
+        return completeByStatus(future, connect(options, null, future));
+    }
+
+    /**
+     * 连接MQTT服务器，结果通过回调函数及future通知。
+     *
+     * @param options     连接参数
+     * @param userContext 用户上下文（这个参数在回调函数时透传给用户）
+     * @param future      连接完成时通知的Future，可以为null
+     * @return 发送请求成功时返回Status.OK; 其它返回值表示发送请求失败；
+     */
+    protected synchronized Status connect(MqttConnectOptions options, Object userContext, final CompletableFuture<IMqttToken> future) {
         if (mConnectStatus.equals(TXMqttConstants.ConnectStatus.kConnecting)) {
             log.info("The client is connecting. Connect return directly.");
             return Status.MQTT_CONNECT_IN_PROGRESS;
@@ -179,6 +256,9 @@ public class TXMqttConnection implements MqttCallbackExtended {
 
         if (mConnectStatus.equals(TXMqttConstants.ConnectStatus.kConnected)) {
             log.info("The client is already connected. Connect return directly.");
+            if (future != null) {
+                future.complete(null);
+            }
             return Status.OK;
         }
 
@@ -188,25 +268,12 @@ public class TXMqttConnection implements MqttCallbackExtended {
             return Status.PARAMETER_INVALID;
         }
 
-        Long timestamp;
-        if (options.isAutomaticReconnect()) {
-            timestamp = (long) Integer.MAX_VALUE;
-        } else {
-            timestamp = System.currentTimeMillis() / 1000 + 600;
-        }
-        String userNameStr = mUserName + ";" + getConnectId() + ";" + timestamp;
-
-        mConnOptions.setUserName(userNameStr);
-
-        if (mSecretKey != null && mSecretKey.length() != 0) {
-            try {
-                log.debug("secret is " + mSecretKey);
-                String passWordStr = HmacSha256.getSignature(userNameStr.getBytes(), Base64.decode(mSecretKey, Base64.DEFAULT)) + ";hmacsha256";
-                mConnOptions.setPassword(passWordStr.toCharArray());
-            } catch (IllegalArgumentException e) {
-                log.debug("Failed to set password");
-            }
+        if (mReconnectScheduler != null) {
+            // 由重连调度器负责重连，每次重连重新签名，凭证提前在后台签好
+            mConnOptions.setAutomaticReconnect(false);
+            mCredentialSigner.startPresigning();
         }
+        signCredentials();
 
         mConnOptions.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
 
@@ -215,7 +282,15 @@ public class TXMqttConnection implements MqttCallbackExtended {
             public void onSuccess(IMqttToken token) {
                 log.info("onSuccess!");
                 setConnectingState(TXMqttConstants.ConnectStatus.kConnected);
-                mActionCallBack.onConnectCompleted(Status.OK, false, TXMqttConnection.this, "connected to " + mServerURI);
+                if (future != null) {
+                    future.complete(token);
+                }
+                runCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        mActionCallBack.onConnectCompleted(Status.OK, false, TXMqttConnection.this, "connected to " + mServerURI);
+                    }
+                });
 
                 // 连接建立后，如果需要日志，则初始化日志功能
                 if (mMqttLogFlag) {
@@ -224,20 +299,24 @@ public class TXMqttConnection implements MqttCallbackExtended {
             }
 
             @Override
-            public void onFailure(IMqttToken token, Throwable exception) {
+            public void onFailure(final IMqttToken token, final Throwable exception) {
                 log.error(exception.getMessage(), exception);
                 setConnectingState(TXMqttConstants.ConnectStatus.kConnectFailed);
-                mActionCallBack.onConnectCompleted(Status.ERROR, false, token.getUserContext(), exception.toString());
+                if (future != null) {
+                    future.completeExceptionally(exception);
+                }
+                runCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        mActionCallBack.onConnectCompleted(Status.ERROR, false, token.getUserContext(), exception.toString());
+                    }
+                });
             }
         };
 
         if (mMqttClient == null) {
             try {
-                mPingSender = new TXAlarmPingSender();
-                mMqttClient = new MqttAsyncClient(mServerURI, mClientId, mMqttPersist, mPingSender);
-                mMqttClient.setCallback(this);
-                mMqttClient.setBufferOpts(this.bufferOpts);
-                mMqttClient.setManualAcks(false);
+                mMqttClient = createMqttClient();
             } catch (Exception e) {
                 log.error("new MqttClient failed", e);
                 setConnectingState(TXMqttConstants.ConnectStatus.kConnectFailed);
@@ -259,7 +338,100 @@ public class TXMqttConnection implements MqttCallbackExtended {
     }
 
     /**
-     * 重新连接, 结果通过回调函数通知。
+     * 生成连接的用户名及密码（HMAC签名）。开启Paho自动重连时签名长期有效，否则10分钟内有效
+     */
+    protected void signCredentials() {
+        TXCredentialSigner.Credentials credentials;
+        if (mConnOptions.isAutomaticReconnect()) {
+            credentials = mCredentialSigner.sign(Integer.MAX_VALUE);
+        } else {
+            credentials = mCredentialSigner.take();
+        }
+        mConnOptions.setUserName(credentials.getUserName());
+        char[] password = credentials.getPassword();
+        if (password != null) {
+            mConnOptions.setPassword(password);
+        }
+    }
+
+    /**
+     * @return 连接凭证签名器
+     */
+    public TXCredentialSigner getCredentialSigner() {
+        return mCredentialSigner;
+    }
+
+    /**
+     * 设置重连调度器，须在connect之前调用。设置后连接断开时按带抖动的指数退避自动重连，
+     * 重连请求经进程内共享的连接限流器放行，不再使用Paho的自动重连
+     *
+     * @param scheduler 重连调度器，每个连接使用独立的实例；null表示不使用
+     */
+    public void setReconnectScheduler(TXReconnectScheduler scheduler) {
+        if (scheduler != null) {
+            scheduler.attach(this);
+        }
+        this.mReconnectScheduler = scheduler;
+    }
+
+    /**
+     * @return 重连调度器，未设置时为null
+     */
+    public TXReconnectScheduler getReconnectScheduler() {
+        return mReconnectScheduler;
+    }
+
+    /**
+     * 由重连调度器在获得连接许可后调用，立即发起一次重连
+     *
+     * @param scheduler 发起重连的调度器，重连有结果后通知它
+     * @return 发起了重连返回true；已连接或正在连接时返回false
+     */
+    synchronized boolean reconnectNow(final TXReconnectScheduler scheduler) {
+        if (mMqttClient == null || mConnOptions == null || mMqttClient.isConnected()
+                || mConnectStatus == TXMqttConstants.ConnectStatus.kConnected
+                || mConnectStatus == TXMqttConstants.ConnectStatus.kConnecting) {
+            return false;
+        }
+
+        signCredentials();
+        IMqttActionListener listener = new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                log.info("{} reconnected", mClientId);
+                scheduler.onAttemptCompleted(true);
+            }
+
+            @Override
+            public void onFailure(final IMqttToken asyncActionToken, final Throwable exception) {
+                log.warn("{} reconnect failed: {}", mClientId, exception.toString());
+                mScheduledReconnect = false;
+                setConnectingState(TXMqttConstants.ConnectStatus.kConnectFailed);
+                runCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        mActionCallBack.onConnectCompleted(Status.ERROR, true, asyncActionToken.getUserContext(), exception.toString());
+                    }
+                });
+                scheduler.onAttemptCompleted(false);
+            }
+        };
+
+        try {
+            mScheduledReconnect = true;
+            setConnectingState(TXMqttConstants.ConnectStatus.kConnecting);
+            mMqttClient.connect(mConnOptions, null, listener);
+        } catch (Exception e) {
+            log.error("Exception occurred attempting to reconnect: ", e);
+            mScheduledReconnect = false;
+            setConnectingState(TXMqttConstants.ConnectStatus.kConnectFailed);
+            scheduler.onAttemptCompleted(false);
+        }
+        return true;
+    }
+
+    /**
+     * 重新连接, 结果通过回调函数通知。设置了重连调度器时按退避延迟安排重连
      *
      * @return 发送请求成功时返回Status.OK; 其它返回值表示发送请求失败；
      */
@@ -270,6 +442,14 @@ public class TXMqttConnection implements MqttCallbackExtended {
             return Status.MQTT_NO_CONN;
         }
 
+        TXReconnectScheduler scheduler = mReconnectScheduler;
+        if (scheduler != null) {
+            if (!getConnectStatus().equals(TXMqttConstants.ConnectStatus.kConnected)) {
+                scheduler.schedule();
+            }
+            return Status.OK;
+        }
+
         if (getConnectStatus().equals(TXMqttConstants.ConnectStatus.kConnecting)) {
             log.info("The client is connecting. Reconnect return directly.");
             return Status.MQTT_CONNECT_IN_PROGRESS;
@@ -295,11 +475,16 @@ public class TXMqttConnection implements MqttCallbackExtended {
                 }
 
                 @Override
-                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                public void onFailure(final IMqttToken asyncActionToken, final Throwable exception) {
                     log.error(exception.getMessage(), exception);
                     mLog(TXMqttLogConstants.LEVEL_FATAL, TAG, "onFailure!");
                     setConnectingState(TXMqttConstants.ConnectStatus.kConnectFailed);
-                    mActionCallBack.onConnectCompleted(Status.ERROR, true, asyncActionToken.getUserContext(), exception.toString());
+                    runCallback(new Runnable() {
+                        @Override
+                        public void run() {
+                            mActionCallBack.onConnectCompleted(Status.ERROR, true, asyncActionToken.getUserContext(), exception.toString());
+                        }
+                    });
                 }
             };
 
@@ -337,21 +522,46 @@ public class TXMqttConnection implements MqttCallbackExtended {
     public Status disConnect(long timeout, Object userContext) {
         mLastReceivedMessageId = INVALID_MESSAGE_ID;
 
+        TXReconnectScheduler scheduler = mReconnectScheduler;
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+        mCredentialSigner.stopPresigning();
+
+        TXOfflinePublishBuffer offlineBuffer = mOfflineBuffer;
+        if (offlineBuffer != null) {
+            offlineBuffer.flush();
+        }
+
         if (mOTAImpl != null) {
             mOTAImpl.setSubscribedState(false);
         }
 
+        if (mMqttLog != null) {
+            mMqttLog.stopMqttLog();
+        }
+
         if (mMqttClient != null && mMqttClient.isConnected()) {
             IMqttActionListener mActionListener = new IMqttActionListener() {
                 @Override
-                public void onSuccess(IMqttToken asyncActionToken) {
+                public void onSuccess(final IMqttToken asyncActionToken) {
                     setConnectingState(TXMqttConstants.ConnectStatus.kDisconnected);
-                    mActionCallBack.onDisconnectCompleted(Status.OK, asyncActionToken.getUserContext(), "disconnected to " + mServerURI);
+                    runCallback(new Runnable() {
+                        @Override
+                        public void run() {
+                            mActionCallBack.onDisconnectCompleted(Status.OK, asyncActionToken.getUserContext(), "disconnected to " + mServerURI);
+                        }
+                    });
                 }
 
                 @Override
-                public void onFailure(IMqttToken asyncActionToken, Throwable cause) {
-                    mActionCallBack.onDisconnectCompleted(Status.ERROR, asyncActionToken.getUserContext(), cause.toString());
+                public void onFailure(final IMqttToken asyncActionToken, final Throwable cause) {
+                    runCallback(new Runnable() {
+                        @Override
+                        public void run() {
+                            mActionCallBack.onDisconnectCompleted(Status.ERROR, asyncActionToken.getUserContext(), cause.toString());
+                        }
+                    });
                 }
             };
 
@@ -380,24 +590,54 @@ public class TXMqttConnection implements MqttCallbackExtended {
      * @return 发送请求成功时返回Status.OK; 其它返回值表示发送请求失败；
      */
     public Status publish(String topic, MqttMessage message, Object userContext) {
+        return publish(topic, message, userContext, null);
+    }
+
+    /**
+     * 异步发布MQTT消息，结果通过返回的Future通知，同时仍会回调TXMqttActionCallBack.onPublishCompleted。
+     *
+     * @param topic   topic名称
+     * @param message 消息内容
+     * @return 发布成功时以发布token完成的Future
+     */
+    public CompletableFuture<IMqttToken> publishAsync(String topic, MqttMessage message) {
+        CompletableFuture<IMqttToken> future = new CompletableFuture<>();
+        return completeByStatus(future, publish(topic, message, null, future));
+    }
+
+    /**
+     * 发布MQTT消息, 结果通过回调函数及future通知。
+     *
+     * @param topic       topic名称
+     * @param message     消息内容
+     * @param userContext 用户上下文（这个参数在回调函数时透传给用户）
+     * @param future      发布完成时通知的Future，可以为null
+     * @return 发送请求成功时返回Status.OK; 其它返回值表示发送请求失败；
+     */
+    protected Status publish(String topic, MqttMessage message, Object userContext, CompletableFuture<IMqttToken> future) {
         IMqttDeliveryToken sendToken = null;
 
-        if (topic == null || topic.trim().length() == 0) {
-            log.error("Topic is empty!!!");
-            mLog(TXMqttLogConstants.LEVEL_FATAL, TAG, "Topic is empty!!!");
-            return Status.PARAMETER_INVALID;
-        }
-        if (topic.length() > TXMqttConstants.MAX_SIZE_OF_CLOUD_TOPIC) {
-            log.error("Topic length is too long!!!");
-            mLog(TXMqttLogConstants.LEVEL_FATAL, TAG, "Topic length is too long!!!");
+        if (checkTopic(topic) != Status.OK) {
             return Status.PARAMETER_INVALID;
         }
 
-        log.info("Starting publish topic: {} Message: {}", topic, message.toString());
+        log.debug("Starting publish topic: {} Message: {}", topic, message);
+
+        TXOfflinePublishBuffer offlineBuffer = mOfflineBuffer;
+        if (offlineBuffer != null && (mMqttClient == null || !mMqttClient.isConnected() || !offlineBuffer.isEmpty())) {
+            // 断连期间或缓存尚未补发完时放入离线缓存，按顺序补发
+            if (!offlineBuffer.offer(topic, message)) {
+                return Status.ERROR;
+            }
+            if (future != null) {
+                future.complete(null);
+            }
+            return Status.OK;
+        }
 
         if ((mMqttClient != null) && (mMqttClient.isConnected())) {
             try {
-                sendToken = mMqttClient.publish(topic, message, userContext, new QcloudMqttActionListener(TXMqttConstants.PUBLISH));
+                sendToken = mMqttClient.publish(topic, message, userContext, new QcloudMqttActionListener(TXMqttConstants.PUBLISH, future));
             } catch (Exception e) {
                 log.error("publish topic: {} failed.", topic, e);
                 mLog(TXMqttLogConstants.LEVEL_FATAL, TAG, "publish topic: {} failed.", topic);
@@ -405,7 +645,7 @@ public class TXMqttConnection implements MqttCallbackExtended {
             }
         } else if ((mMqttClient != null) && (this.bufferOpts != null) && (this.bufferOpts.isBufferEnabled())) { //放入缓存
             try {
-                sendToken = mMqttClient.publish(topic, message, userContext, new QcloudMqttActionListener(TXMqttConstants.PUBLISH));
+                sendToken = mMqttClient.publish(topic, message, userContext, new QcloudMqttActionListener(TXMqttConstants.PUBLISH, future));
             } catch (Exception e) {
                 log.error("publish topic: {} failed.", topic, e);
                 mLog(TXMqttLogConstants.LEVEL_FATAL, TAG, "publish topic: {} failed.", topic);
@@ -421,14 +661,99 @@ public class TXMqttConnection implements MqttCallbackExtended {
     }
 
     /**
-     * 订阅Topic, 结果通过回调函数通知。
+     * 发布离线缓存中的消息，由TXOfflinePublishBuffer补发时调用
+     */
+    void publishBuffered(String topic, MqttMessage message) throws MqttException {
+        mMqttClient.publish(topic, message, null, new QcloudMqttActionListener(TXMqttConstants.PUBLISH));
+    }
+
+    /**
+     * 设置离线发布缓存。设置后连接断开期间发布的消息放入缓存（内存不足时溢出到磁盘），
+     * 连接建立后按顺序限速补发，补发完成前新发布的消息同样进入缓存排队。
+     * 放入缓存的消息视为发送成功：经publish/publishAsync发布时Future以null完成，经publishBatch或发布流水线发布时计为成功
      *
-     * @param topic       topic名称
-     * @param qos         QOS等级
-     * @param userContext 用户上下文（这个参数在回调函数时透传给用户）
-     * @return 发送请求成功时返回Status.OK; 其它返回值表示发送请求失败；
+     * @param buffer 离线发布缓存，每个连接使用独立的实例；null表示不使用
      */
-    public Status subscribe(final String topic, final int qos, Object userContext) {
+    public void setOfflinePublishBuffer(TXOfflinePublishBuffer buffer) {
+        if (buffer != null) {
+            buffer.attach(this);
+        }
+        this.mOfflineBuffer = buffer;
+    }
+
+    /**
+     * @return 离线发布缓存，未设置时为null
+     */
+    public TXOfflinePublishBuffer getOfflinePublishBuffer() {
+        return mOfflineBuffer;
+    }
+
+    /**
+     * 批量发布MQTT消息，使用连接默认的发布流水线，保持TXMqttConstants.DEFAULT_PUBLISH_WINDOW条QOS1消息在途。
+     * 批量发布的结果通过返回的Future统一通知，不再逐条回调TXMqttActionCallBack.onPublishCompleted。
+     *
+     * @param requests 待发布的消息
+     * @return 全部消息发布完成（成功或失败）后完成的Future
+     */
+    public CompletableFuture<TXPublishBatchResult> publishBatch(List<TXPublishRequest> requests) {
+        TXPublishPipeline pipeline = mPublishPipeline;
+        if (pipeline == null) {
+            synchronized (this) {
+                if (mPublishPipeline == null) {
+                    mPublishPipeline = new TXPublishPipeline(this, TXMqttConstants.DEFAULT_PUBLISH_WINDOW);
+                }
+                pipeline = mPublishPipeline;
+            }
+        }
+        return pipeline.publish(requests);
+    }
+
+    /**
+     * 创建一个发布流水线，流水线内最多保持window条消息在途，在途消息完成后自动补充发送下一条
+     *
+     * @param window 在途消息窗口大小，实际窗口不会超过MqttConnectOptions.getMaxInflight()
+     * @return 发布流水线
+     */
+    public TXPublishPipeline createPublishPipeline(int window) {
+        return new TXPublishPipeline(this, window);
+    }
+
+    /**
+     * 同步返回的状态不是Status.OK时，以对应的异常完成Future
+     *
+     * @param future 异步操作的Future
+     * @param status 发起操作时同步返回的状态
+     * @return future
+     */
+    protected static <T> CompletableFuture<T> completeByStatus(CompletableFuture<T> future, Status status) {
+        if (status == Status.OK || future.isDone()) {
+            return future;
+        }
+
+        switch (status) {
+            case PARAMETER_INVALID:
+                future.completeExceptionally(new IllegalArgumentException(status.toString()));
+                break;
+            case MQTT_CONNECT_IN_PROGRESS:
+                future.completeExceptionally(new MqttException(MqttException.REASON_CODE_CONNECT_IN_PROGRESS));
+                break;
+            case MQTT_NO_CONN:
+                future.completeExceptionally(new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+                break;
+            default:
+                future.completeExceptionally(new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION));
+                break;
+        }
+        return future;
+    }
+
+    /**
+     * 检查topic是否合法
+     *
+     * @param topic topic名称
+     * @return 合法返回Status.OK，否则返回Status.PARAMETER_INVALID
+     */
+    protected Status checkTopic(String topic) {
         if (topic == null || topic.trim().length() == 0) {
             log.error("Topic is empty!!!");
             mLog(TXMqttLogConstants.LEVEL_FATAL, TAG, "Topic is empty!!!");
@@ -439,12 +764,52 @@ public class TXMqttConnection implements MqttCallbackExtended {
             mLog(TXMqttLogConstants.LEVEL_FATAL, TAG, "Topic length is too long!!!");
             return Status.PARAMETER_INVALID;
         }
+        return Status.OK;
+    }
+
+    /**
+     * 订阅Topic, 结果通过回调函数通知。
+     *
+     * @param topic       topic名称
+     * @param qos         QOS等级
+     * @param userContext 用户上下文（这个参数在回调函数时透传给用户）
+     * @return 发送请求成功时返回Status.OK; 其它返回值表示发送请求失败；
+     */
+    public Status subscribe(final String topic, final int qos, Object userContext) {
+        return subscribe(topic, qos, userContext, null);
+    }
+
+    /**
+     * 异步订阅Topic，结果通过返回的Future通知，同时仍会回调TXMqttActionCallBack.onSubscribeCompleted。
+     *
+     * @param topic topic名称
+     * @param qos   QOS等级
+     * @return 订阅成功时以订阅token完成的Future；服务器拒绝订阅时以REASON_CODE_SUBSCRIBE_FAILED异常完成
+     */
+    public CompletableFuture<IMqttToken> subscribeAsync(String topic, int qos) {
+        CompletableFuture<IMqttToken> future = new CompletableFuture<>();
+        return completeByStatus(future, subscribe(topic, qos, null, future));
+    }
+
+    /**
+     * 订阅Topic, 结果通过回调函数及future通知。
+     *
+     * @param topic       topic名称
+     * @param qos         QOS等级
+     * @param userContext 用户上下文（这个参数在回调函数时透传给用户）
+     * @param future      订阅完成时通知的Future，可以为null
+     * @return 发送请求成功时返回Status.OK; 其它返回值表示发送请求失败；
+     */
+    protected Status subscribe(final String topic, final int qos, Object userContext, CompletableFuture<IMqttToken> future) {
+        if (checkTopic(topic) != Status.OK) {
+            return Status.PARAMETER_INVALID;
+        }
 
         log.info("Starting subscribe topic: {}", topic);
 
         if ((mMqttClient != null) && (mMqttClient.isConnected())) {
             try {
-                mMqttClient.subscribe(topic, qos, userContext, new QcloudMqttActionListener(TXMqttConstants.SUBSCRIBE));
+                mMqttClient.subscribe(topic, qos, userContext, new QcloudMqttActionListener(TXMqttConstants.SUBSCRIBE, future));
             } catch (Exception e) {
                 log.error("subscribe topic: {} failed.", topic, e);
                 mLog(TXMqttLogConstants.LEVEL_FATAL, TAG, "subscribe topic: {} failed.", topic);
@@ -469,14 +834,30 @@ public class TXMqttConnection implements MqttCallbackExtended {
      * @return 发送请求成功时返回Status.OK; 其它返回值表示发送请求失败；
      */
     public Status unSubscribe(final String topic, Object userContext) {
-        if (topic == null || topic.trim().length() == 0) {
-            log.error("Topic is empty!!!");
-            mLog(TXMqttLogConstants.LEVEL_FATAL, TAG, "Topic is empty!!!");
-            return Status.PARAMETER_INVALID;
-        }
-        if (topic.length() > TXMqttConstants.MAX_SIZE_OF_CLOUD_TOPIC) {
-            log.error("Topic length is too long!!!");
-            mLog(TXMqttLogConstants.LEVEL_FATAL, TAG, "Topic length is too long!!!");
+        return unSubscribe(topic, userContext, null);
+    }
+
+    /**
+     * 异步取消订阅主题，结果通过返回的Future通知，同时仍会回调TXMqttActionCallBack.onUnSubscribeCompleted。
+     *
+     * @param topic 要取消订阅的主题
+     * @return 取消订阅成功时以token完成的Future
+     */
+    public CompletableFuture<IMqttToken> unsubscribeAsync(String topic) {
+        CompletableFuture<IMqttToken> future = new CompletableFuture<>();
+        return completeByStatus(future, unSubscribe(topic, null, future));
+    }
+
+    /**
+     * 取消订阅主题, 结果通过回调函数及future通知。
+     *
+     * @param topic       要取消订阅的主题
+     * @param userContext 用户上下文（这个参数在回调函数时透传给用户）
+     * @param future      取消订阅完成时通知的Future，可以为null
+     * @return 发送请求成功时返回Status.OK; 其它返回值表示发送请求失败；
+     */
+    protected Status unSubscribe(final String topic, Object userContext, CompletableFuture<IMqttToken> future) {
+        if (checkTopic(topic) != Status.OK) {
             return Status.PARAMETER_INVALID;
         }
 
@@ -484,7 +865,7 @@ public class TXMqttConnection implements MqttCallbackExtended {
 
         if ((mMqttClient != null) && (mMqttClient.isConnected())) {
             try {
-                mMqttClient.unsubscribe(topic, userContext, new QcloudMqttActionListener(TXMqttConstants.UNSUBSCRIBE));
+                mMqttClient.unsubscribe(topic, userContext, new QcloudMqttActionListener(TXMqttConstants.UNSUBSCRIBE, future));
             } catch (Exception e) {
                 log.error("unSubscribe topic:  {} failed.", topic, e);
                 mLog(TXMqttLogConstants.LEVEL_FATAL, TAG, "unSubscribe topic: {} failed.", topic);
@@ -501,6 +882,38 @@ public class TXMqttConnection implements MqttCallbackExtended {
         return Status.OK;
     }
 
+    /**
+     * 按topic过滤器注册消息处理器，匹配的消息分发给处理器；所有匹配的处理器都返回false时，仍回调onMessageReceived。
+     *
+     * @param topicFilter topic过滤器，支持'+'、'#'通配符
+     * @param handler     消息处理器
+     * @return 注册成功返回Status.OK；topic过滤器不合法返回Status.PARAMETER_INVALID
+     */
+    public Status addMessageHandler(String topicFilter, TXMessageHandler handler) {
+        try {
+            mDispatcher.addHandler(topicFilter, handler);
+        } catch (IllegalArgumentException e) {
+            log.error("add message handler for {} failed.", topicFilter, e);
+            return Status.PARAMETER_INVALID;
+        }
+        return Status.OK;
+    }
+
+    /**
+     * 注销消息处理器
+     *
+     * @param topicFilter 注册时使用的topic过滤器
+     * @param handler     消息处理器
+     * @return 注销成功返回Status.OK；未找到返回Status.ERROR
+     */
+    public Status removeMessageHandler(String topicFilter, TXMessageHandler handler) {
+        try {
+            return mDispatcher.removeHandler(topicFilter, handler) ? Status.OK : Status.ERROR;
+        } catch (IllegalArgumentException e) {
+            return Status.PARAMETER_INVALID;
+        }
+    }
+
     /**
      * 初始化OTA功能。
      *
@@ -511,6 +924,17 @@ public class TXMqttConnection implements MqttCallbackExtended {
         mOTAImpl = new TXOTAImpl(this, storagePath, callback);
     }
 
+    /**
+     * 订阅成功后通知OTA模块，子类可覆盖以通知其它模块
+     *
+     * @param token 订阅请求
+     */
+    protected void onSubscribeSuccess(IMqttToken token) {
+        if (mOTAImpl != null) {
+            mOTAImpl.onSubscribeCompleted(Status.OK, token, token.getUserContext(), TXMqttConstants.SUBSCRIBE_SUCCESS);
+        }
+    }
+
     /**
      * 上报设备当前版本信息到后台服务器。
      *
@@ -571,7 +995,7 @@ public class TXMqttConnection implements MqttCallbackExtended {
      * @param obj
      */
     public void mLog(int logLevel, final String tag, final String format, final Object... obj) {
-        if (mMqttLog != null) {
+        if (mMqttLog != null && mMqttLog.isLoggable(logLevel)) {
             if (!(mMqttLog.saveMqttLog(logLevel, tag, format, obj))) {
                 log.warn(tag, "Save {} Level Log failed!", TXMqttLog.level_str[logLevel]);
             }
@@ -579,7 +1003,7 @@ public class TXMqttConnection implements MqttCallbackExtended {
     }
 
     public void mLog(int logLevel, final String tag, final String msg) {
-        if (mMqttLog != null) {
+        if (mMqttLog != null && mMqttLog.isLoggable(logLevel)) {
             if (!(mMqttLog.saveMqttLog(logLevel, tag, msg))) {
                 log.warn(tag, "Save {} Level Log failed!", TXMqttLog.level_str[logLevel]);
             }
@@ -611,11 +1035,81 @@ public class TXMqttConnection implements MqttCallbackExtended {
         return this.mConnectStatus;
     }
 
+    /**
+     * 设置入站消息处理器。设置后消息的分发及onMessageReceived回调在处理器的执行器上进行，
+     * 同一topic的消息保持顺序，不同topic的消息可能并行回调。多个连接可以共用一个处理器。
+     *
+     * @param processor 入站消息处理器，null表示在Paho回调线程上直接处理
+     */
+    public void setInboundProcessor(TXInboundProcessor processor) {
+        this.mInboundProcessor = processor;
+    }
+
+    /**
+     * @return 入站消息处理器，未设置时为null
+     */
+    public TXInboundProcessor getInboundProcessor() {
+        return mInboundProcessor;
+    }
+
+    /**
+     * 设置所属连接池，由TXMqttConnectionPool调用
+     *
+     * @param pool 连接池，null表示移出连接池
+     */
+    void setConnectionPool(TXMqttConnectionPool pool) {
+        this.mConnectionPool = pool;
+        this.mCallbackExecutor = pool == null ? null : pool.createCallbackExecutor();
+    }
+
+    /**
+     * 创建MQTT客户端，心跳由进程内共享的时间轮驱动
+     *
+     * @return MQTT客户端
+     * @throws MqttException
+     */
+    protected MqttAsyncClient createMqttClient() throws MqttException {
+        mPingSender = new TXSharedPingSender();
+        MqttAsyncClient client = new MqttAsyncClient(mServerURI, mClientId, mMqttPersist, mPingSender);
+        client.setCallback(this);
+        client.setBufferOpts(this.bufferOpts);
+        client.setManualAcks(false);
+        return client;
+    }
+
+    /**
+     * 执行用户回调，加入连接池时在连接池的回调线程上按顺序执行，否则直接在当前线程执行
+     *
+     * @param callback 回调任务
+     */
+    protected void runCallback(Runnable callback) {
+        Executor executor = mCallbackExecutor;
+        if (executor == null) {
+            callback.run();
+            return;
+        }
+        executor.execute(callback);
+    }
+
     @Override
-    public void connectComplete(boolean reconnect, String serverURI) {
+    public void connectComplete(boolean pahoReconnect, final String serverURI) {
+        // 重连调度器发起的重连对Paho而言是一次新的连接
+        final boolean reconnect = pahoReconnect || mScheduledReconnect;
+        mScheduledReconnect = false;
         log.info("connectComplete. reconnect flag is " + reconnect);
         setConnectingState(TXMqttConstants.ConnectStatus.kConnected);
 
+        TXReconnectScheduler scheduler = mReconnectScheduler;
+        if (scheduler != null) {
+            scheduler.onConnected();
+        }
+
+        // 首次连接时也补发上次运行遗留在磁盘中的消息
+        TXOfflinePublishBuffer offlineBuffer = mOfflineBuffer;
+        if (offlineBuffer != null) {
+            offlineBuffer.startDrain();
+        }
+
         if (!reconnect) {
             return;
         }
@@ -635,7 +1129,12 @@ public class TXMqttConnection implements MqttCallbackExtended {
         }
 
         // 调用TXMqttActionCallBack
-        mActionCallBack.onConnectCompleted(Status.OK, reconnect, TXMqttConnection.this, "connected to " + serverURI);
+        runCallback(new Runnable() {
+            @Override
+            public void run() {
+                mActionCallBack.onConnectCompleted(Status.OK, reconnect, TXMqttConnection.this, "connected to " + serverURI);
+            }
+        });
 
         //重新连接，处理离线日志，重新获取日志级别
         if (mMqttLogFlag) {
@@ -649,18 +1148,28 @@ public class TXMqttConnection implements MqttCallbackExtended {
      * @param cause 连接断开原因
      */
     @Override
-    public void connectionLost(Throwable cause) {
+    public void connectionLost(final Throwable cause) {
         log.error("connection lost because of: {}", cause.toString(), cause);
         mLog(TXMqttLogConstants.LEVEL_FATAL, TAG, "connection lost because of: {}", cause.toString());
         setConnectingState(TXMqttConstants.ConnectStatus.kDisconnected);
 
-        mActionCallBack.onConnectionLost(cause);
+        runCallback(new Runnable() {
+            @Override
+            public void run() {
+                mActionCallBack.onConnectionLost(cause);
+            }
+        });
 
         mLastReceivedMessageId = INVALID_MESSAGE_ID;
 
         if (mOTAImpl != null) {
             mOTAImpl.setSubscribedState(false);
         }
+
+        TXReconnectScheduler scheduler = mReconnectScheduler;
+        if (scheduler != null) {
+            scheduler.schedule();
+        }
     }
 
     /**
@@ -682,39 +1191,73 @@ public class TXMqttConnection implements MqttCallbackExtended {
 
         mLastReceivedMessageId = message.getId();
 
-        boolean consumed = false;
-        if (mOTAImpl != null) {
-            consumed = mOTAImpl.processMessage(topic, message);
+        TXInboundProcessor processor = mInboundProcessor;
+        if (processor == null) {
+            processMessage(topic, message);
+            return;
         }
 
+        final String fTopic = topic;
+        final MqttMessage fMessage = message;
+        processor.submit(topic, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    processMessage(fTopic, fMessage);
+                } catch (Exception e) {
+                    log.error("process message of topic: {} failed.", fTopic, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 分发消息给topic处理器，未被处理的消息回调onMessageReceived
+     *
+     * @param topic   消息主题
+     * @param message 消息内容
+     * @throws Exception
+     */
+    protected void processMessage(String topic, MqttMessage message) throws Exception {
+        boolean consumed = mDispatcher.dispatch(topic, message);
+
         if (mActionCallBack != null) {
             if (!consumed) {
                 mActionCallBack.onMessageReceived(topic, message);
             }
         }
+    }
 
-        //判断获取日志等级
-        if (mMqttLog != null) {
-            if (topic.startsWith("$" + TXMqttLogConstants.LOG)) {
-                String jsonStr = new String(message.getPayload());
-
-                try {
-                    JSONObject jsonObj = new JSONObject(jsonStr);
-
-                    if (jsonObj.has(TXMqttLogConstants.LOG_LEVEL)) {
-                        int logLevel = jsonObj.getInt(TXMqttLogConstants.LOG_LEVEL);
-                        mMqttLog.setMqttLogLevel(logLevel);
-                        uploadLog();
-                        log.debug("******Set mqttLogLevel to " + logLevel);
-                        return;
-                    }
+    /**
+     * 处理日志等级下发消息，消息仍会透传给onMessageReceived
+     *
+     * @param topic   消息主题
+     * @param message 消息内容
+     * @return 始终返回false
+     */
+    private boolean consumeLogLevelMsg(String topic, MqttMessage message) {
+        if (mMqttLog == null) {
+            return false;
+        }
 
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        //判断获取日志等级
+        String jsonStr = new String(message.getPayload());
+        try {
+            JSONObject jsonObj = new JSONObject(jsonStr);
+
+            if (jsonObj.has(TXMqttLogConstants.LOG_LEVEL)) {
+                int logLevel = jsonObj.getInt(TXMqttLogConstants.LOG_LEVEL);
+                mMqttLog.setMqttLogLevel(logLevel);
+                uploadLog();
+                log.debug("******Set mqttLogLevel to " + logLevel);
+                return false;
             }
-            log.debug("******Get mqttLogLevel failed ");
+
+        } catch (Exception e) {
+            e.printStackTrace();
         }
+        log.debug("******Get mqttLogLevel failed ");
+        return false;
     }
 
     /**
@@ -731,24 +1274,7 @@ public class TXMqttConnection implements MqttCallbackExtended {
      * 获取连接ID（长度为5的数字字母随机字符串）
      */
     protected String getConnectId() {
-        StringBuffer connectId = new StringBuffer();
-        for (int i = 0; i < TXMqttConstants.MAX_CONN_ID_LEN; i++) {
-            int flag = (int) (Math.random() * Integer.MAX_VALUE) % 3;
-            int randNum = (int) (Math.random() * Integer.MAX_VALUE);
-            switch (flag) {
-                case 0:
-                    connectId.append((char) (randNum % 26 + 'a'));
-                    break;
-                case 1:
-                    connectId.append((char) (randNum % 26 + 'A'));
-                    break;
-                case 2:
-                    connectId.append((char) (randNum % 10 + '0'));
-                    break;
-            }
-        }
-
-        return connectId.toString();
+        return TXCredentialSigner.newConnectId();
     }
 
     /**
@@ -756,13 +1282,55 @@ public class TXMqttConnection implements MqttCallbackExtended {
      */
     private class QcloudMqttActionListener implements IMqttActionListener {
         private int command;
+        private CompletableFuture<IMqttToken> future;
 
         public QcloudMqttActionListener(int command) {
+            this(command, null);
+        }
+
+        public QcloudMqttActionListener(int command, CompletableFuture<IMqttToken> future) {
             this.command = command;
+            this.future = future;
         }
 
         @Override
-        public void onSuccess(IMqttToken token) {
+        public void onSuccess(final IMqttToken token) {
+            if (future != null) {
+                completeFuture(token);
+            }
+            runCallback(new Runnable() {
+                @Override
+                public void run() {
+                    handleSuccess(token);
+                }
+            });
+        }
+
+        @Override
+        public void onFailure(final IMqttToken token, final Throwable exception) {
+            if (future != null) {
+                future.completeExceptionally(exception);
+            }
+            runCallback(new Runnable() {
+                @Override
+                public void run() {
+                    handleFailure(token, exception);
+                }
+            });
+        }
+
+        private void completeFuture(IMqttToken token) {
+            if (command == TXMqttConstants.SUBSCRIBE) {
+                int[] qos = ((MqttSuback) token.getResponse()).getGrantedQos();
+                if (null != qos && qos.length >= 1 && qos[0] == 128) {
+                    future.completeExceptionally(new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED));
+                    return;
+                }
+            }
+            future.complete(token);
+        }
+
+        private void handleSuccess(IMqttToken token) {
 
             MqttWireMessage mqttWireMessage = token.getResponse();
 
@@ -777,10 +1345,7 @@ public class TXMqttConnection implements MqttCallbackExtended {
                         mActionCallBack.onSubscribeCompleted(Status.ERROR, token, token.getUserContext(), TXMqttConstants.SUBSCRIBE_FAIL);
                     } else {
                         mActionCallBack.onSubscribeCompleted(Status.OK, token, token.getUserContext(), TXMqttConstants.SUBSCRIBE_SUCCESS);
-
-                        if (mOTAImpl != null) {
-                            mOTAImpl.onSubscribeCompleted(Status.OK, token, token.getUserContext(), TXMqttConstants.SUBSCRIBE_SUCCESS);
-                        }
+                        onSubscribeSuccess(token);
                     }
                     break;
 
@@ -795,8 +1360,7 @@ public class TXMqttConnection implements MqttCallbackExtended {
             }
         }
 
-        @Override
-        public void onFailure(IMqttToken token, Throwable exception) {
+        private void handleFailure(IMqttToken token, Throwable exception) {
             switch (command) {
                 case TXMqttConstants.PUBLISH:
                     mActionCallBack.onPublishCompleted(Status.ERROR, token, token.getUserContext(), exception.toString());
@@ -0,0 +1,197 @@
+package com.qcloud.iot.mqtt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qcloud.iot.common.Status;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MQTT连接池：在同一个JVM中承载大量设备连接。
+ * <p>
+ * 池内所有连接共用一个有界的回调线程池，每个连接的回调在共享线程池上串行执行，连接数受maxSessions限制。
+ * 心跳由进程内共享的时间轮驱动（见TXSharedPingSender）。注意Paho 1.1.0的收发线程（CommsReceiver/CommsSender/CommsCallback）
+ * 仍由每个MqttAsyncClient独占，连接池无法共享。
+ */
+@Slf4j
+public class TXMqttConnectionPool {
+
+    /**
+     * 默认回调线程数
+     */
+    public static final int DEFAULT_CALLBACK_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 默认回调队列容量
+     */
+    public static final int DEFAULT_CALLBACK_QUEUE_SIZE = 10000;
+
+    private final int mMaxSessions;
+
+    private final Set<TXMqttConnection> mSessions = ConcurrentHashMap.newKeySet();
+
+    private final ThreadPoolExecutor mCallbackExecutor;
+
+    private volatile boolean mShutdown = false;
+
+    /**
+     * @param maxSessions 连接池最大连接数
+     */
+    public TXMqttConnectionPool(int maxSessions) {
+        this(maxSessions, DEFAULT_CALLBACK_THREADS, DEFAULT_CALLBACK_QUEUE_SIZE);
+    }
+
+    /**
+     * @param maxSessions       连接池最大连接数
+     * @param callbackThreads   回调线程数
+     * @param callbackQueueSize 回调队列容量，队列满时由提交线程直接执行回调
+     */
+    public TXMqttConnectionPool(int maxSessions, int callbackThreads, int callbackQueueSize) {
+        this.mMaxSessions = maxSessions;
+
+        this.mCallbackExecutor = new ThreadPoolExecutor(callbackThreads, callbackThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(callbackQueueSize),
+                new ThreadFactoryBuilder().setNameFormat("TXMqttPool-callback-%d").setDaemon(true).build(),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // 队列满时由提交线程直接执行；关闭后明确拒绝，不能像CallerRunsPolicy那样静默丢弃
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("Connection pool is shutdown");
+                        }
+                        r.run();
+                    }
+                });
+        this.mCallbackExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 将连接加入连接池，必须在该连接首次connect之前调用
+     *
+     * @param connection MQTT连接
+     * @return Status.OK: 加入成功；Status.PARAMETER_INVALID: 连接已建立过客户端；Status.ERROR: 连接池已满或已关闭
+     */
+    public Status attach(TXMqttConnection connection) {
+        if (connection.mMqttClient != null) {
+            log.error("Connection {} already created MqttClient, attach it before connect.", connection.mClientId);
+            return Status.PARAMETER_INVALID;
+        }
+
+        synchronized (mSessions) {
+            if (mShutdown) {
+                log.error("Connection pool is shutdown, attach {} failed.", connection.mClientId);
+                return Status.ERROR;
+            }
+            if (mSessions.contains(connection)) {
+                return Status.OK;
+            }
+            if (mSessions.size() >= mMaxSessions) {
+                log.error("Connection pool is full({}), attach {} failed.", mMaxSessions, connection.mClientId);
+                return Status.ERROR;
+            }
+            mSessions.add(connection);
+            connection.setConnectionPool(this);
+        }
+        return Status.OK;
+    }
+
+    /**
+     * 将连接移出连接池，调用者需先断开连接
+     *
+     * @param connection MQTT连接
+     */
+    public void detach(TXMqttConnection connection) {
+        synchronized (mSessions) {
+            if (mSessions.remove(connection)) {
+                connection.setConnectionPool(null);
+            }
+        }
+    }
+
+    /**
+     * 关闭连接池的共享线程，不会主动断开池内连接。
+     * <p>
+     * 池内连接全部移出连接池，之后的回调直接在Paho回调线程上执行；已排队的回调仍会执行完。
+     */
+    public void shutdown() {
+        synchronized (mSessions) {
+            mShutdown = true;
+            for (TXMqttConnection connection : mSessions) {
+                connection.setConnectionPool(null);
+            }
+            mSessions.clear();
+        }
+        mCallbackExecutor.shutdown();
+    }
+
+    /**
+     * 为池内连接创建串行回调执行器，保证同一连接的回调顺序
+     */
+    Executor createCallbackExecutor() {
+        return new TXSerialExecutor(mCallbackExecutor);
+    }
+
+    /**
+     * @return 池内连接数
+     */
+    public int getActiveSessions() {
+        return mSessions.size();
+    }
+
+    /**
+     * @return 池内处于已连接状态的连接数
+     */
+    public int getConnectedSessions() {
+        int count = 0;
+        for (TXMqttConnection connection : mSessions) {
+            if (connection.getConnectStatus() == TXMqttConstants.ConnectStatus.kConnected) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return 连接池回调线程数（不含进程内共享的心跳时间轮线程）
+     */
+    public int getThreadCount() {
+        return mCallbackExecutor.getPoolSize();
+    }
+
+    /**
+     * @return 等待执行的回调任务数
+     */
+    public int getQueuedCallbacks() {
+        return mCallbackExecutor.getQueue().size();
+    }
+
+    /**
+     * @return 进程内已调度尚未执行的心跳任务数
+     */
+    public long getScheduledPings() {
+        return TXSharedPingSender.getSharedTimer().pendingTimeouts();
+    }
+
+    /**
+     * @return 连接池最大连接数
+     */
+    public int getMaxSessions() {
+        return mMaxSessions;
+    }
+
+    @Override
+    public String toString() {
+        return "TXMqttConnectionPool{sessions=" + getActiveSessions() + "/" + mMaxSessions
+                + ", connected=" + getConnectedSessions()
+                + ", threads=" + getThreadCount()
+                + ", queuedCallbacks=" + getQueuedCallbacks()
+                + ", scheduledPings=" + getScheduledPings() + "}";
+    }
+}
@@ -23,6 +23,52 @@ public interface TXMqttConstants {
      */
     int MAX_CONN_ID_LEN = 5;
 
+    /**
+     * 批量发布默认的在途消息窗口，与Paho默认的maxInflight一致
+     */
+    int DEFAULT_PUBLISH_WINDOW = 10;
+
+    /**
+     * 入站消息处理默认的串行分片数
+     */
+    int DEFAULT_INBOUND_STRIPES = 64;
+
+    /**
+     * 入站消息处理默认的待处理消息数上限
+     */
+    int DEFAULT_INBOUND_QUEUE_SIZE = 10000;
+
+    /**
+     * 网关批量上下线及子设备上报消息的最大长度（云端单条消息上限16KB），单位：字节
+     */
+    int MAX_GATEWAY_PAYLOAD = 16 * 1024;
+
+    /**
+     * 网关批量上下线等待云端结果的默认超时时间，单位：毫秒
+     */
+    int DEFAULT_GATEWAY_OPERATION_TIMEOUT_MS = 10000;
+
+    /**
+     * 入站消息待处理数达到上限时的处理策略
+     */
+    enum InboundOverflowPolicy {
+
+        /**
+         * 丢弃新到达的消息
+         */
+        kDrop,
+
+        /**
+         * 阻塞Paho回调线程，直至有空余配额
+         */
+        kBlock,
+
+        /**
+         * 超出配额的消息溢出排到同一分片的队列末尾，保持顺序，不阻塞Paho回调线程
+         */
+        kSpill
+    }
+
     /**
      * 当前MQTT连接状态
      */
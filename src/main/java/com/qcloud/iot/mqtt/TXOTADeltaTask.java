@@ -0,0 +1,165 @@
+package com.qcloud.iot.mqtt;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.security.cert.CertificateException;
+
+/**
+ * 差分升级任务
+ * <p>
+ * 下载差分包的同时与设备当前固件合成新固件，合成完成后校验新固件的MD5（及SHA-256）。
+ * 差分包下载或合成失败、新固件校验不通过时，退化为通过TXOTADownloadTask下载完整固件。
+ */
+@Slf4j
+class TXOTADeltaTask implements Runnable {
+
+    /**
+     * 合成中的新固件文件名后缀，校验通过后改名为固件文件名
+     */
+    static final String PATCHING_FILE_SUFFIX = ".patching";
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final TXOTAImpl mOTA;
+    private final TXOTACallBack mListener;
+    private final String mPatchURL;
+    private final String mBaseFile;
+    private final String mOutputFile;
+    private final TXOTAVerifier mVerifier;
+    private final String mVersion;
+    private final TXOTADownloadTask mFullDownload;
+
+    private int mLastPercent = -1;
+
+    /**
+     * @param ota          OTA对象，用于建立连接及限制下载带宽
+     * @param listener     下载进度及结果的通知对象
+     * @param patchURL     差分包URL
+     * @param baseFile     设备当前固件的全路径文件名
+     * @param outputFile   新固件要保存的全路径及文件名
+     * @param md5Sum       新固件的MD5
+     * @param sha256Sum    新固件的SHA-256，为null时不校验
+     * @param version      新固件版本
+     * @param fullDownload 差分升级失败时下载完整固件的任务
+     */
+    TXOTADeltaTask(TXOTAImpl ota, TXOTACallBack listener, String patchURL, String baseFile, String outputFile,
+                   String md5Sum, String sha256Sum, String version, TXOTADownloadTask fullDownload) {
+        this.mOTA = ota;
+        this.mListener = listener;
+        this.mPatchURL = patchURL;
+        this.mBaseFile = baseFile;
+        this.mOutputFile = outputFile;
+        this.mVerifier = new TXOTAVerifier(md5Sum, sha256Sum);
+        this.mVersion = version;
+        this.mFullDownload = fullDownload;
+    }
+
+    @Override
+    public void run() {
+        File patching = new File(mOutputFile + PATCHING_FILE_SUFFIX);
+        try {
+            if (patch(patching)) {
+                mListener.onDownloadCompleted(mOutputFile, mVersion);
+                return;
+            }
+            log.error("patched firmware checksum not match!!!" + " calculated " + mVerifier.getFailedDigest());
+        } catch (CertificateException e) {
+            log.error("check OTA server certificate failed", e);
+            mListener.onDownloadFailure(-4, mVersion); //校验失败
+            return;
+        } catch (Exception e) {
+            log.error("apply firmware patch failed", e);
+        } finally {
+            patching.delete();
+        }
+
+        log.info("fall back to full firmware download");
+        mFullDownload.run();
+    }
+
+    /**
+     * 下载差分包并合成新固件
+     *
+     * @return 新固件校验通过返回true
+     */
+    private boolean patch(File patching) throws Exception {
+        HttpURLConnection conn = mOTA.createURLConnection(mPatchURL);
+        conn.connect();
+
+        try {
+            int code = conn.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("unexpected response code: " + code);
+            }
+            final long patchLength = conn.getContentLengthLong();
+
+            mVerifier.reset();
+            try (InputStream stream = new FilterInputStream(conn.getInputStream()) {
+                private long mRead;
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        mOTA.acquireDownloadBandwidth(1);
+                        reportProgress(++mRead, patchLength);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        mOTA.acquireDownloadBandwidth(n);
+                        mRead += n;
+                        reportProgress(mRead, patchLength);
+                    }
+                    return n;
+                }
+            };
+                 RandomAccessFile base = new RandomAccessFile(mBaseFile, "r");
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(patching), OUTPUT_BUFFER_SIZE)) {
+                long length = TXOTAPatcher.apply(stream, base.getChannel(), out, mVerifier);
+                log.debug("patched firmware length {} bytes", length);
+            }
+        } finally {
+            conn.disconnect();
+        }
+
+        if (!mVerifier.verify()) {
+            return false;
+        }
+
+        File output = new File(mOutputFile);
+        output.delete();
+        if (!patching.renameTo(output)) {
+            throw new IOException("rename " + patching + " failed");
+        }
+        return true;
+    }
+
+    /**
+     * 按差分包的下载量上报进度，进度百分比变化时才通知
+     */
+    private void reportProgress(long read, long total) {
+        if (total <= 0) {
+            return;
+        }
+        int percent = (int) (read * 100 / total);
+        if (percent == mLastPercent) {
+            return;
+        }
+        mLastPercent = percent;
+        mListener.onDownloadProgress(percent, mVersion);
+    }
+}
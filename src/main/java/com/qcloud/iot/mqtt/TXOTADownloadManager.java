@@ -0,0 +1,422 @@
+package com.qcloud.iot.mqtt;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 固件下载管理器
+ * <p>
+ * 统一调度所有连接及网关子设备的OTA下载任务：
+ * <ul>
+ * <li>同时运行的下载任务数不超过全局上限，同一服务器上的连接数（各任务的并行分段数之和）不超过单服务器上限，
+ * 超出时排队，有任务结束后按提交顺序启动；</li>
+ * <li>相同固件的任务合并为一个，下载进度及结果通知所有提交者。设置固件存储时按MD5合并（URL不同的同一固件，
+ * 如签名不同的下载地址或差分与完整下载，都写入固件存储中的同一文件，不能同时下载），未设置时按URL及MD5合并；</li>
+ * <li>已下载并校验通过的固件直接复用。设置固件存储（TXFirmwareStore）后，固件统一下载到固件存储，
+ * 再以硬链接交给各提交者的存储路径，存储按总大小上限淘汰最久未使用的固件；
+ * 未设置时复用提交者存储路径中已下载完成的固件。</li>
+ * <li>下载带宽限制由管理器持有，其管理的所有下载任务共享同一个限速器，总带宽不随连接数增加。</li>
+ * </ul>
+ * 默认所有TXOTAImpl共用{@link #getDefault()}返回的管理器。
+ */
+@Slf4j
+public class TXOTADownloadManager {
+
+    public static final int DEFAULT_MAX_RUNNING_JOBS = 4;
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    private static volatile TXOTADownloadManager sDefault;
+
+    private final int mMaxRunningJobs;
+    private final int mMaxConnectionsPerHost;
+    private final TXFirmwareStore mStore;
+
+    /**
+     * 下载带宽限制，为null时不限速
+     */
+    private volatile RateLimiter mDownloadLimiter;
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("TXOTA-download-%d").setDaemon(true).build());
+
+    /**
+     * 以下字段由this保护
+     */
+    private final Map<String, Job> mJobs = new HashMap<>();
+    private final ArrayDeque<Job> mPending = new ArrayDeque<>();
+    private final Map<String, Integer> mHostConnections = new HashMap<>();
+    private int mRunningJobs;
+
+    /**
+     * @param maxRunningJobs        同时运行的下载任务数上限
+     * @param maxConnectionsPerHost 同一服务器的连接数上限
+     * @param store                 固件存储，为null时固件保存到第一个提交者的存储路径
+     */
+    public TXOTADownloadManager(int maxRunningJobs, int maxConnectionsPerHost, TXFirmwareStore store) {
+        this.mMaxRunningJobs = Math.max(1, maxRunningJobs);
+        this.mMaxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        this.mStore = store;
+    }
+
+    /**
+     * @return 默认的下载管理器，不使用固件存储
+     */
+    public static TXOTADownloadManager getDefault() {
+        if (sDefault == null) {
+            synchronized (TXOTADownloadManager.class) {
+                if (sDefault == null) {
+                    sDefault = new TXOTADownloadManager(DEFAULT_MAX_RUNNING_JOBS, DEFAULT_MAX_CONNECTIONS_PER_HOST, null);
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * 提交下载任务，相同固件的任务已在排队或运行时只加入通知列表
+     *
+     * @param ota         提交者，通过其通知下载进度及结果
+     * @param firmwareURL 固件URL
+     * @param outputFile  提交者的固件要保存的全路径及文件名
+     * @param md5Sum      固件MD5
+     * @param sha256Sum   固件SHA-256，为null时不校验
+     * @param version     固件版本
+     * @param patchURL    差分包URL，不使用差分升级时为null
+     * @param baseFile    差分包所基于的设备当前固件，不使用差分升级时为null
+     * @param parallelism 并行分段数
+     * @param maxTryTimes 校验失败后重新下载的最大次数
+     */
+    void submit(TXOTAImpl ota, String firmwareURL, String outputFile, String md5Sum, String sha256Sum, String version,
+                String patchURL, String baseFile, int parallelism, int maxTryTimes) {
+        String key = mStore != null ? md5Sum.toLowerCase() : (patchURL != null ? patchURL : firmwareURL) + "#" + md5Sum.toLowerCase();
+        Subscriber subscriber = new Subscriber(ota, version, outputFile);
+
+        // 校验可能需要读取整个文件，不在锁内进行
+        if (mStore != null ? deliverStored(subscriber, md5Sum) : deliverDownloaded(subscriber, outputFile, md5Sum)) {
+            log.info("firmware {} already downloaded", key);
+            return;
+        }
+
+        String completedFile;
+
+        synchronized (this) {
+            Job job = mJobs.get(key);
+            if (job != null) {
+                if (job.mCompletedFile != null) {
+                    completedFile = job.mCompletedFile;
+                } else {
+                    job.mSubscribers.add(subscriber);
+                    log.debug("join firmware download {}, subscribers: {}", key, job.mSubscribers.size());
+                    return;
+                }
+            } else {
+                String output = mStore != null ? mStore.pathOf(md5Sum) : outputFile;
+                job = new Job(key, hostOf(patchURL != null ? patchURL : firmwareURL), output, md5Sum);
+                job.mConnections = Math.max(1, Math.min(parallelism, mMaxConnectionsPerHost));
+                TXOTADownloadTask fullDownload = new TXOTADownloadTask(ota, job, firmwareURL, output, md5Sum,
+                        sha256Sum, version, job.mConnections, maxTryTimes);
+                job.mTask = patchURL != null
+                        ? new TXOTADeltaTask(ota, job, patchURL, baseFile, output, md5Sum, sha256Sum, version, fullDownload)
+                        : fullDownload;
+                job.mSubscribers.add(subscriber);
+                mJobs.put(key, job);
+                mPending.add(job);
+                schedule();
+                return;
+            }
+        }
+
+        boolean pinned = mStore != null && mStore.pin(md5Sum);
+        try {
+            deliver(subscriber, completedFile);
+        } finally {
+            if (pinned) {
+                mStore.unpin(md5Sum);
+            }
+        }
+    }
+
+    /**
+     * 设置本管理器所有下载任务共享的总带宽，下载过程中修改立即生效
+     *
+     * @param bytesPerSecond 每秒下载字节数，小于等于0表示不限速
+     */
+    public synchronized void setDownloadBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            mDownloadLimiter = null;
+            return;
+        }
+
+        RateLimiter limiter = mDownloadLimiter;
+        if (limiter == null) {
+            mDownloadLimiter = RateLimiter.create(bytesPerSecond);
+        } else {
+            limiter.setRate(bytesPerSecond);
+        }
+    }
+
+    /**
+     * @return 所有下载任务共享的总带宽，每秒字节数，0表示不限速
+     */
+    public long getDownloadBandwidth() {
+        RateLimiter limiter = mDownloadLimiter;
+        return limiter == null ? 0 : (long) limiter.getRate();
+    }
+
+    /**
+     * 按总带宽限制等待，下载任务每读取一次数据调用一次
+     *
+     * @param bytes 读取的字节数
+     */
+    void acquireDownloadBandwidth(int bytes) {
+        RateLimiter limiter = mDownloadLimiter;
+        if (limiter != null && bytes > 0) {
+            limiter.acquire(bytes);
+        }
+    }
+
+    /**
+     * @return 正在运行的下载任务数
+     */
+    public synchronized int getRunningJobs() {
+        return mRunningJobs;
+    }
+
+    /**
+     * @return 排队中的下载任务数
+     */
+    public synchronized int getPendingJobs() {
+        return mPending.size();
+    }
+
+    /**
+     * 按提交顺序启动未超出全局及单服务器上限的任务
+     */
+    private void schedule() {
+        Iterator<Job> iterator = mPending.iterator();
+        while (iterator.hasNext() && mRunningJobs < mMaxRunningJobs) {
+            final Job job = iterator.next();
+            Integer connections = mHostConnections.get(job.mHost);
+            int used = connections == null ? 0 : connections;
+            if (used + job.mConnections > mMaxConnectionsPerHost) {
+                continue;
+            }
+
+            iterator.remove();
+            mHostConnections.put(job.mHost, used + job.mConnections);
+            mRunningJobs++;
+            mExecutor.execute(job);
+        }
+    }
+
+    private synchronized void finish(Job job) {
+        mJobs.remove(job.mKey);
+        mRunningJobs--;
+        int used = mHostConnections.get(job.mHost) - job.mConnections;
+        if (used > 0) {
+            mHostConnections.put(job.mHost, used);
+        } else {
+            mHostConnections.remove(job.mHost);
+        }
+        schedule();
+    }
+
+    /**
+     * 固件存储中已有校验通过的固件时交给提交者，交接期间固定该固件，避免被并发的淘汰删除
+     *
+     * @return 已交给提交者（成功或失败均已通知）时返回true，存储中没有该固件时返回false
+     */
+    private boolean deliverStored(Subscriber subscriber, String md5Sum) {
+        if (!mStore.pin(md5Sum)) {
+            return false;
+        }
+        try {
+            String storedFile = mStore.lookup(md5Sum);
+            if (storedFile == null) {
+                return false;
+            }
+            deliver(subscriber, storedFile);
+            return true;
+        } finally {
+            mStore.unpin(md5Sum);
+        }
+    }
+
+    /**
+     * 提交者的存储路径中已有下载完成的固件时直接通知
+     *
+     * @return 已通知提交者时返回true
+     */
+    private boolean deliverDownloaded(Subscriber subscriber, String outputFile, String md5Sum) {
+        String completedFile = findDownloaded(outputFile, md5Sum);
+        if (completedFile == null) {
+            return false;
+        }
+        deliver(subscriber, completedFile);
+        return true;
+    }
+
+    /**
+     * 通知提交者固件已就绪，使用固件存储时先将固件交到提交者的存储路径，交接失败时通知下载失败
+     */
+    private void deliver(Subscriber subscriber, String file) {
+        String outputFile = file;
+        if (mStore != null) {
+            try {
+                outputFile = mStore.handOff(file, subscriber.mOutputFile);
+            } catch (IOException e) {
+                log.warn("hand off firmware {} to {} failed: {}", file, subscriber.mOutputFile, e.toString());
+                subscriber.mFailureNotified = true;
+                subscriber.mOTA.notifyDownloadFailure(-1, subscriber.mVersion);
+                return;
+            }
+        }
+        subscriber.mOTA.notifyDownloadCompleted(outputFile, subscriber.mVersion);
+    }
+
+    /**
+     * @return 固件已下载完成（没有进度文件）且MD5一致时返回文件名，否则返回null
+     */
+    private static String findDownloaded(String file, String md5Sum) {
+        boolean downloaded = new File(file).isFile() && !new File(file + TXOTADownloadTask.PROGRESS_FILE_SUFFIX).exists()
+                && md5Sum.equalsIgnoreCase(TXOTAImpl.fileToMD5(file));
+        return downloaded ? file : null;
+    }
+
+    private static String hostOf(String url) {
+        try {
+            URL u = new URL(url);
+            return u.getHost() + ":" + (u.getPort() < 0 ? u.getDefaultPort() : u.getPort());
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    private static class Subscriber {
+        private final TXOTAImpl mOTA;
+        private final String mVersion;
+        private final String mOutputFile;
+
+        /**
+         * 已通知过失败，任务结束时不再补发失败通知
+         */
+        private volatile boolean mFailureNotified;
+
+        private Subscriber(TXOTAImpl ota, String version, String outputFile) {
+            this.mOTA = ota;
+            this.mVersion = version;
+            this.mOutputFile = outputFile;
+        }
+    }
+
+    /**
+     * 合并后的下载任务，将下载进度及结果转发给所有提交者
+     */
+    private class Job implements Runnable, TXOTACallBack {
+        private final String mKey;
+        private final String mHost;
+        private final String mOutputFile;
+        private final String mMd5Sum;
+        private final List<Subscriber> mSubscribers = new ArrayList<>();
+        private Runnable mTask;
+        private int mConnections;
+        private String mCompletedFile;
+
+        private Job(String key, String host, String outputFile, String md5Sum) {
+            this.mKey = key;
+            this.mHost = host;
+            this.mOutputFile = outputFile;
+            this.mMd5Sum = md5Sum;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTask.run();
+            } catch (Exception e) {
+                log.error("firmware download {} failed", mKey, e);
+            } finally {
+                // 结束前加入且未收到任何结果的提交者补发失败通知
+                List<Subscriber> unnotified = new ArrayList<>();
+                synchronized (TXOTADownloadManager.this) {
+                    if (mCompletedFile == null) {
+                        for (Subscriber subscriber : mSubscribers) {
+                            if (!subscriber.mFailureNotified) {
+                                unnotified.add(subscriber);
+                            }
+                        }
+                    }
+                }
+                for (Subscriber subscriber : unnotified) {
+                    subscriber.mOTA.notifyDownloadFailure(-1, subscriber.mVersion);
+                }
+                finish(this);
+            }
+        }
+
+        private List<Subscriber> snapshot() {
+            synchronized (TXOTADownloadManager.this) {
+                return new ArrayList<>(mSubscribers);
+            }
+        }
+
+        @Override
+        public void onReportFirmwareVersion(int resultCode, String version, String resultMsg) {
+        }
+
+        @Override
+        public void onDownloadProgress(int percent, String version) {
+            for (Subscriber subscriber : snapshot()) {
+                subscriber.mOTA.notifyDownloadProgress(percent, subscriber.mVersion);
+            }
+        }
+
+        @Override
+        public void onDownloadCompleted(String outputFile, String version) {
+            // 交给所有提交者之前固定固件，避免被其他任务登记固件时淘汰
+            boolean pinned = false;
+            if (mStore != null) {
+                mStore.commit(mMd5Sum);
+                pinned = mStore.pin(mMd5Sum);
+            }
+
+            try {
+                List<Subscriber> subscribers;
+                synchronized (TXOTADownloadManager.this) {
+                    mCompletedFile = outputFile;
+                    subscribers = new ArrayList<>(mSubscribers);
+                }
+                log.info("firmware {} downloaded to {}, notify {} subscribers", mMd5Sum, mOutputFile, subscribers.size());
+                for (Subscriber subscriber : subscribers) {
+                    deliver(subscriber, outputFile);
+                }
+            } finally {
+                if (pinned) {
+                    mStore.unpin(mMd5Sum);
+                }
+            }
+        }
+
+        @Override
+        public void onDownloadFailure(int errCode, String version) {
+            for (Subscriber subscriber : snapshot()) {
+                subscriber.mFailureNotified = true;
+                subscriber.mOTA.notifyDownloadFailure(errCode, subscriber.mVersion);
+            }
+        }
+    }
+}
@@ -0,0 +1,631 @@
+package com.qcloud.iot.mqtt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 固件下载任务
+ * <p>
+ * 固件按字节区间分段下载，每段的下载进度在数据刷入磁盘后写入与固件同目录的进度文件（固件文件名 + ".progress"），
+ * 下载中断或进程重启后根据进度文件通过Range请求从已落盘的位置继续下载。并行度大于1且服务器支持Range时，
+ * 预先分配固件文件大小，各分段并行下载，通过FileChannel按位置写入。服务器不支持Range时退化为单连接从头下载。
+ * <p>
+ * 下载过程中由TXOTAVerifier增量计算整个文件的MD5/SHA-256，同时按1MB分块记录每块的CRC32。
+ * 整体校验失败时，先用分块CRC检查落盘数据，只重新下载损坏的分块；分块均完好（传输中已损坏）时才从头下载。
+ */
+@Slf4j
+class TXOTADownloadTask implements Runnable {
+
+    static final String PROGRESS_FILE_SUFFIX = ".progress";
+
+    /**
+     * 分块大小，每下载一个分块刷盘并保存一次进度，续传时从分块边界开始
+     */
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * 分段连续失败（期间没有任何新数据）的最大重试次数
+     */
+    private static final int MAX_SEGMENT_RETRIES = 5;
+
+    private static final long RETRY_DELAY_MS = 1000;
+
+    /**
+     * 整体重新下载前的首次退避时间：单位ms，之后每次翻倍
+     */
+    static final long ATTEMPT_BACKOFF_MS = 1000;
+
+    private static final long MAX_ATTEMPT_BACKOFF_MS = 30000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 并行分段下载的线程，所有任务共用命名计数
+     */
+    private static final ThreadFactory SEGMENT_THREAD_FACTORY = new ThreadFactoryBuilder()
+            .setNameFormat("TXOTA-segment-%d").setDaemon(true).build();
+
+    private static final String KEY_MD5 = "md5";
+    private static final String KEY_TOTAL = "total";
+    private static final String KEY_SEGMENTS = "segments";
+    private static final String KEY_SEGMENT_PREFIX = "segment.";
+    private static final String KEY_CHUNK_PREFIX = "chunk.";
+
+    private final TXOTAImpl mOTA;
+    private final TXOTACallBack mListener;
+    private final String mFirmwareURL;
+    private final String mOutputFile;
+    private final File mProgressFile;
+    private final String mMd5Sum;
+    private final TXOTAVerifier mVerifier;
+    private final String mVersion;
+    private final int mParallelism;
+    private final int mMaxTryTimes;
+
+    private long mTotalLength;
+    private List<Segment> mSegments;
+    private int mLastPercent = -1;
+
+    /**
+     * 已下载完整的分块的CRC32，key为分块序号
+     */
+    private final Map<Long, Long> mChunkCrcs = new ConcurrentHashMap<>();
+
+    /**
+     * @param ota         OTA对象，用于建立连接及限制下载带宽
+     * @param listener    下载进度及结果的通知对象
+     * @param firmwareURL 固件URL
+     * @param outputFile  固件要保存的全路径及文件名
+     * @param md5Sum      用于下载完成后做校验的MD5
+     * @param sha256Sum   用于下载完成后做校验的SHA-256，为null时不校验
+     * @param version     固件版本
+     * @param parallelism 并行下载的分段数
+     * @param maxTryTimes 校验失败或下载异常后重新下载的最大次数，每次重新下载前按指数退避等待
+     */
+    TXOTADownloadTask(TXOTAImpl ota, TXOTACallBack listener, String firmwareURL, String outputFile, String md5Sum,
+                      String sha256Sum, String version, int parallelism, int maxTryTimes) {
+        this.mOTA = ota;
+        this.mListener = listener;
+        this.mFirmwareURL = firmwareURL;
+        this.mOutputFile = outputFile;
+        this.mProgressFile = new File(outputFile + PROGRESS_FILE_SUFFIX);
+        this.mMd5Sum = md5Sum;
+        this.mVerifier = new TXOTAVerifier(md5Sum, sha256Sum);
+        this.mVersion = version;
+        this.mParallelism = Math.max(1, parallelism);
+        this.mMaxTryTimes = maxTryTimes;
+    }
+
+    @Override
+    public void run() {
+        int tryTimes = 0;
+        long backoff = ATTEMPT_BACKOFF_MS;
+        Exception lastError = null;
+
+        do {
+            if (tryTimes > 0) {
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mListener.onDownloadFailure(-1, mVersion); //下载失败
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_ATTEMPT_BACKOFF_MS);
+            }
+            tryTimes++;
+            lastError = null;
+            try {
+                Boolean verified = download();
+                if (verified == null) {
+                    mListener.onDownloadFailure(-1, mVersion); //下载失败
+                    return;
+                }
+
+                if (!verified) {
+                    log.error("checksum not match!!!" + " calculated " + mVerifier.getFailedDigest());
+                    mListener.onDownloadFailure(-4, mVersion);  //校验失败
+                    reset();
+                    continue;      //try again
+                }
+
+                mProgressFile.delete();
+                mListener.onDownloadCompleted(mOutputFile, mVersion);
+                return;
+            } catch (CertificateException e) {
+                log.error("check OTA server certificate failed", e);
+                mListener.onDownloadFailure(-4, mVersion); //校验失败
+                return;
+            } catch (Exception e) {
+                log.error("download firmware failed", e);
+                lastError = e;
+            }
+        } while (tryTimes <= mMaxTryTimes);
+
+        // 最后一次尝试因异常结束时通知下载失败，校验失败已在每次尝试后通知
+        if (lastError != null) {
+            mListener.onDownloadFailure(-1, mVersion); //下载失败
+        }
+    }
+
+    /**
+     * 下载并校验固件，已下载的部分不再重复下载
+     *
+     * @return 校验通过返回true，校验失败返回false，重试耗尽返回null
+     */
+    private Boolean download() throws Exception {
+        mVerifier.reset();
+        if (!loadProgress()) {
+            reset();
+            planSegments();
+            saveProgress();
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(mOutputFile, "rw")) {
+            if (mTotalLength > 0 && raf.length() != mTotalLength) {
+                raf.setLength(mTotalLength);
+            }
+            FileChannel channel = raf.getChannel();
+
+            boolean done = mSegments.size() == 1 ? downloadSegment(channel, mSegments.get(0)) : downloadParallel(channel);
+            if (!done) {
+                return null;
+            }
+
+            mVerifier.catchUp(channel, landedEnd(mVerifier.getOffset()));
+            if (mVerifier.verify()) {
+                return true;
+            }
+
+            // 整体校验失败，检查落盘的分块，只重新下载损坏的分块
+            List<Long> corrupted = findCorruptedChunks(channel);
+            if (corrupted.isEmpty()) {
+                return false;
+            }
+            log.warn("re-fetch {} corrupted chunks: {}", corrupted.size(), corrupted);
+            for (Long chunk : corrupted) {
+                long start = chunk * CHUNK_SIZE;
+                long end = mTotalLength < 0 ? start + CHUNK_SIZE : Math.min(mTotalLength, start + CHUNK_SIZE);
+                if (!downloadSegment(channel, new Segment(start, end, start))) {
+                    return null;
+                }
+            }
+
+            mVerifier.reset();
+            mVerifier.catchUp(channel, landedEnd(0));
+            return mVerifier.verify();
+        }
+    }
+
+    /**
+     * 从offset起连续落盘的数据的结束位置
+     */
+    private long landedEnd(long offset) {
+        long end = offset;
+        for (Segment segment : mSegments) {
+            if (segment.mStart <= end && (segment.mEnd < 0 || end < segment.mEnd)) {
+                end = Math.max(end, segment.mPosition);
+                if (!segment.isDone()) {
+                    break;
+                }
+            }
+        }
+        return end;
+    }
+
+    /**
+     * 按记录的分块CRC检查落盘数据
+     *
+     * @return 损坏或没有CRC记录的分块序号
+     */
+    private List<Long> findCorruptedChunks(FileChannel channel) throws IOException {
+        List<Long> corrupted = new ArrayList<>();
+        long length = channel.size();
+        long chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        CRC32 crc = new CRC32();
+
+        for (long chunk = 0; chunk < chunks; chunk++) {
+            Long expected = mChunkCrcs.get(chunk);
+            if (expected == null) {
+                corrupted.add(chunk);
+                continue;
+            }
+
+            crc.reset();
+            long position = chunk * CHUNK_SIZE;
+            long end = Math.min(length, position + CHUNK_SIZE);
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int len = channel.read(buffer, position);
+                if (len <= 0) {
+                    break;
+                }
+                crc.update(buffer.array(), 0, len);
+                position += len;
+            }
+            if (crc.getValue() != expected) {
+                corrupted.add(chunk);
+            }
+        }
+
+        // 所有分块都没有CRC记录时无法定位损坏位置
+        return corrupted.size() == chunks ? new ArrayList<Long>() : corrupted;
+    }
+
+    private boolean downloadParallel(final FileChannel channel) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(mSegments.size(), SEGMENT_THREAD_FACTORY);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (final Segment segment : mSegments) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return downloadSegment(channel, segment);
+                    }
+                }));
+            }
+
+            boolean ok = true;
+            for (Future<Boolean> future : futures) {
+                try {
+                    ok &= future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof CertificateException) {
+                        throw (CertificateException) e.getCause();
+                    }
+                    log.error("download segment failed", e.getCause());
+                    ok = false;
+                }
+            }
+            return ok;
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 下载一个分段，网络异常时从已落盘的位置重试
+     */
+    private boolean downloadSegment(FileChannel channel, Segment segment) throws Exception {
+        int failures = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        while (!segment.isDone()) {
+            long before = segment.mPosition;
+            try {
+                transfer(channel, segment, buffer);
+            } catch (CertificateException e) {
+                throw e;
+            } catch (IOException e) {
+                log.warn("download segment [{}, {}) interrupted at {}: {}", segment.mStart, segment.mEnd, segment.mPosition, e.toString());
+            }
+
+            flushProgress(channel);
+            mVerifier.catchUp(channel, landedEnd(mVerifier.getOffset()));
+            if (segment.isDone()) {
+                break;
+            }
+
+            failures = segment.mPosition > before ? 0 : failures + 1;
+            if (failures > MAX_SEGMENT_RETRIES || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            Thread.sleep(RETRY_DELAY_MS);
+        }
+        return true;
+    }
+
+    private void transfer(FileChannel channel, Segment segment, byte[] buffer) throws Exception {
+        // 从分块边界开始，使分块CRC覆盖完整分块
+        segment.mPosition = Math.max(segment.mStart, segment.mPosition / CHUNK_SIZE * CHUNK_SIZE);
+
+        HttpURLConnection conn = mOTA.createURLConnection(mFirmwareURL);
+        conn.setRequestProperty("Range", segment.rangeHeader());
+        conn.connect();
+
+        try {
+            int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK) {
+                // 服务器忽略了Range，只能从头开始
+                if (mSegments.size() > 1 || segment.mStart > 0) {
+                    throw new IOException("server ignored range request");
+                }
+                segment.mPosition = 0;
+                mVerifier.reset();
+            } else if (code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("unexpected response code: " + code);
+            }
+
+            CRC32 chunkCrc = new CRC32();
+            try (InputStream stream = conn.getInputStream()) {
+                while (!segment.isDone()) {
+                    int len = stream.read(buffer, 0, (int) Math.min(buffer.length, segment.remaining()));
+                    if (len < 0) {
+                        if (segment.mEnd < 0) {
+                            segment.mEnd = segment.mPosition; //未知长度时以连接结束为准
+                            if (segment.mPosition % CHUNK_SIZE != 0) {
+                                mChunkCrcs.put(segment.mPosition / CHUNK_SIZE, chunkCrc.getValue());
+                            }
+                        }
+                        break;
+                    }
+                    mOTA.acquireDownloadBandwidth(len);
+
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, len);
+                    long start = segment.mPosition;
+                    long position = start;
+                    while (data.hasRemaining()) {
+                        position += channel.write(data, position);
+                    }
+
+                    // 先计入摘要再推进位置，保证同一段数据不会既被直接计入又被补读
+                    mVerifier.update(start, buffer, len);
+                    boolean chunkDone = updateChunkCrc(chunkCrc, segment, start, buffer, len);
+                    segment.mPosition = position;
+
+                    if (chunkDone) {
+                        flushProgress(channel);
+                        mVerifier.catchUp(channel, landedEnd(mVerifier.getOffset()));
+                    }
+                    reportProgress();
+                }
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * 确定固件大小及服务器是否支持Range，并划分分段
+     */
+    private void planSegments() throws Exception {
+        long total = -1;
+        boolean rangeSupported = false;
+
+        HttpURLConnection conn = mOTA.createURLConnection(mFirmwareURL);
+        conn.setRequestProperty("Range", "bytes=0-0");
+        conn.connect();
+        try {
+            int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = conn.getHeaderField("Content-Range");
+                if (contentRange != null && contentRange.lastIndexOf('/') >= 0) {
+                    String size = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+                    if (!size.equals("*")) {
+                        total = Long.parseLong(size);
+                        rangeSupported = true;
+                    }
+                }
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                total = conn.getContentLengthLong();
+            } else {
+                throw new IOException("unexpected response code: " + code);
+            }
+        } finally {
+            conn.disconnect();
+        }
+
+        mTotalLength = total;
+        mSegments = new ArrayList<>();
+        int count = rangeSupported ? (int) Math.max(1, Math.min(mParallelism, total / CHUNK_SIZE)) : 1;
+        if (count == 1) {
+            mSegments.add(new Segment(0, total, 0));
+        } else {
+            // 分段边界与分块边界对齐
+            long chunks = (total + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            for (int i = 0; i < count; i++) {
+                long start = chunks * i / count * CHUNK_SIZE;
+                long end = i == count - 1 ? total : chunks * (i + 1) / count * CHUNK_SIZE;
+                mSegments.add(new Segment(start, end, start));
+            }
+        }
+        log.debug("firmware length {} bytes, range supported: {}, segments: {}", total, rangeSupported, count);
+    }
+
+    /**
+     * 计算并上报下载进度，进度百分比变化时才通知
+     */
+    private void reportProgress() {
+        if (mTotalLength <= 0) {
+            return;
+        }
+
+        long downloaded = 0;
+        for (Segment segment : mSegments) {
+            downloaded += segment.mPosition - segment.mStart;
+        }
+        int percent = (int) (downloaded * 100 / mTotalLength);
+
+        synchronized (this) {
+            if (percent == mLastPercent) {
+                return;
+            }
+            mLastPercent = percent;
+        }
+        log.debug("download " + downloaded + " bytes. percent:" + percent);
+        mListener.onDownloadProgress(percent, mVersion);
+    }
+
+    /**
+     * 数据刷盘后保存进度，保证进度文件记录的位置之前的数据都已落盘
+     */
+    private synchronized void flushProgress(FileChannel channel) {
+        try {
+            channel.force(false);
+            saveProgress();
+        } catch (IOException e) {
+            log.warn("save download progress failed: {}", e.toString());
+        }
+    }
+
+    private synchronized void saveProgress() throws IOException {
+        Properties props = new Properties();
+        props.setProperty(KEY_MD5, mMd5Sum);
+        props.setProperty(KEY_TOTAL, String.valueOf(mTotalLength));
+        props.setProperty(KEY_SEGMENTS, String.valueOf(mSegments.size()));
+        for (int i = 0; i < mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            props.setProperty(KEY_SEGMENT_PREFIX + i, segment.mStart + "," + segment.mEnd + "," + segment.mPosition);
+        }
+        for (Map.Entry<Long, Long> entry : mChunkCrcs.entrySet()) {
+            props.setProperty(KEY_CHUNK_PREFIX + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+
+        File tmp = new File(mProgressFile.getPath() + ".tmp");
+        try (OutputStream os = new FileOutputStream(tmp)) {
+            props.store(os, null);
+        }
+        if (!tmp.renameTo(mProgressFile)) {
+            mProgressFile.delete();
+            if (!tmp.renameTo(mProgressFile)) {
+                throw new IOException("rename " + tmp + " failed");
+            }
+        }
+    }
+
+    /**
+     * 加载上次的下载进度
+     *
+     * @return 进度文件有效且固件文件存在时返回true
+     */
+    private boolean loadProgress() {
+        if (!mProgressFile.isFile() || !new File(mOutputFile).isFile()) {
+            return false;
+        }
+
+        Properties props = new Properties();
+        try (InputStream is = new FileInputStream(mProgressFile)) {
+            props.load(is);
+
+            if (!mMd5Sum.equalsIgnoreCase(props.getProperty(KEY_MD5))) {
+                return false;
+            }
+            long total = Long.parseLong(props.getProperty(KEY_TOTAL));
+            int count = Integer.parseInt(props.getProperty(KEY_SEGMENTS));
+
+            List<Segment> segments = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String[] values = props.getProperty(KEY_SEGMENT_PREFIX + i).split(",");
+                long start = Long.parseLong(values[0]);
+                long end = Long.parseLong(values[1]);
+                long position = Long.parseLong(values[2]);
+                // 未完成的分块没有CRC记录，从分块边界重新下载
+                if (end < 0 || position < end) {
+                    position = Math.max(start, position / CHUNK_SIZE * CHUNK_SIZE);
+                }
+                segments.add(new Segment(start, end, position));
+            }
+
+            mChunkCrcs.clear();
+            for (String name : props.stringPropertyNames()) {
+                if (name.startsWith(KEY_CHUNK_PREFIX)) {
+                    mChunkCrcs.put(Long.parseLong(name.substring(KEY_CHUNK_PREFIX.length())), Long.parseLong(props.getProperty(name)));
+                }
+            }
+
+            mTotalLength = total;
+            mSegments = segments;
+            log.info("resume firmware download from progress file {}", mProgressFile);
+            return true;
+        } catch (Exception e) {
+            log.warn("invalid progress file {}: {}", mProgressFile, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * 删除已下载的数据及进度，下次从头下载
+     */
+    private void reset() {
+        new File(mOutputFile).delete();
+        mProgressFile.delete();
+        mSegments = null;
+        mLastPercent = -1;
+        mChunkCrcs.clear();
+        mVerifier.reset();
+    }
+
+    /**
+     * 计入分块CRC
+     *
+     * @return 有分块下载完整时返回true
+     */
+    private boolean updateChunkCrc(CRC32 crc, Segment segment, long start, byte[] buffer, int len) {
+        boolean chunkDone = false;
+        int offset = 0;
+        long position = start;
+        while (offset < len) {
+            long chunk = position / CHUNK_SIZE;
+            long chunkEnd = (chunk + 1) * CHUNK_SIZE;
+            if (segment.mEnd >= 0) {
+                chunkEnd = Math.min(chunkEnd, segment.mEnd);
+            }
+            int n = (int) Math.min(len - offset, chunkEnd - position);
+            crc.update(buffer, offset, n);
+            offset += n;
+            position += n;
+
+            if (position == chunkEnd) {
+                mChunkCrcs.put(chunk, crc.getValue());
+                crc.reset();
+                chunkDone = true;
+            }
+        }
+        return chunkDone;
+    }
+
+    /**
+     * 固件的一个字节区间[mStart, mEnd)，mEnd小于0表示长度未知
+     */
+    private static class Segment {
+        private final long mStart;
+        private volatile long mEnd;
+        private volatile long mPosition;
+
+        Segment(long start, long end, long position) {
+            this.mStart = start;
+            this.mEnd = end;
+            this.mPosition = position;
+        }
+
+        boolean isDone() {
+            return mEnd >= 0 && mPosition >= mEnd;
+        }
+
+        long remaining() {
+            return mEnd < 0 ? Long.MAX_VALUE : mEnd - mPosition;
+        }
+
+        String rangeHeader() {
+            return mEnd < 0 ? "bytes=" + mPosition + "-" : "bytes=" + mPosition + "-" + (mEnd - 1);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.qcloud.iot.mqtt;
 
 import com.qcloud.iot.common.Status;
 import com.qcloud.iot.device.CA;
+import com.qcloud.iot.util.SslContextCache;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
@@ -18,6 +19,7 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 @Slf4j
 public class TXOTAImpl {
@@ -29,16 +31,29 @@ public class TXOTAImpl {
     private final String OTA_REPORT_TOPIC;
     private final String mStoragePath;
 
-    private static boolean mDownloadThreadRunning = false;
-    private static Thread mDownloadThread = null;
+    private volatile TXOTADownloadManager mDownloadManager = TXOTADownloadManager.getDefault();
 
     private boolean mSubscribedState = false;
 
     private final int DEFAULT_CONNECT_TIMEOUT = 10000; //毫秒
     private final int DEFAULT_READ_TIMEOUT = 10000; //毫秒
     private final int MAX_TRY_TIMES = 3;
+    private int mDownloadParallelism = 1;
+    private volatile String mCurrentFirmwareVersion;
+
+    private volatile long mProgressReportInterval = 0; //毫秒
+    private volatile int mProgressReportStep = 1;
+    private final Object mProgressLock = new Object();
+    private int mLastReportedPercent = -1;
+    private long mLastReportTime;
+    private volatile String mCurrentFirmwareFile;
     private static List<X509Certificate> serverCertList = null;
 
+    /**
+     * 校验OTA服务器证书的SSLContext在SslContextCache中的key，所有下载共用一个SSLContext以复用TLS会话
+     */
+    private static final String OTA_SSL_CONTEXT_KEY = "ota-server";
+
     //加载服务器证书
     private static void prepareOTAServerCA() {
 
@@ -79,16 +94,37 @@ public class TXOTAImpl {
      * @param callback    OTA事件回调
      */
     public TXOTAImpl(TXMqttConnection connection, String storagePath, TXOTACallBack callback) {
+        this(connection, connection.mProductId, connection.mDeviceName, storagePath, callback);
+    }
+
+    /**
+     * 构造OTA对象，用于网关代理子设备升级
+     *
+     * @param connection  MQTT连接
+     * @param productId   设备产品ID
+     * @param deviceName  设备名
+     * @param storagePath 用于保存固件的路径（调用者须保证目录已存在，并具有写权限）
+     * @param callback    OTA事件回调
+     */
+    public TXOTAImpl(TXMqttConnection connection, String productId, String deviceName, String storagePath,
+                     TXOTACallBack callback) {
         this.mConnection = connection;
         this.mStoragePath = storagePath;
         this.mCallback = callback;
 
-        OTA_UPDATE_TOPIC = "$ota/update/" + mConnection.mProductId + "/" + mConnection.mDeviceName;
-        OTA_REPORT_TOPIC = "$ota/report/" + mConnection.mProductId + "/" + mConnection.mDeviceName;
+        OTA_UPDATE_TOPIC = "$ota/update/" + productId + "/" + deviceName;
+        OTA_REPORT_TOPIC = "$ota/report/" + productId + "/" + deviceName;
 
         prepareOTAServerCA();
     }
 
+    /**
+     * @return 用于接收固件升级消息的TOPIC
+     */
+    public String getUpdateTopic() {
+        return OTA_UPDATE_TOPIC;
+    }
+
     /**
      * 设置OTA TOPIC订阅是否成功的标记
      *
@@ -111,7 +147,7 @@ public class TXOTAImpl {
             String[] topics = token.getTopics();
             if (topics != null) {
                 for (int i = 0; i < topics.length; i++) {
-                    if (topics[i].startsWith("$ota/")) {
+                    if (topics[i].equals(OTA_UPDATE_TOPIC)) {
                         mSubscribedState = true;
                     }
                 }
@@ -127,7 +163,7 @@ public class TXOTAImpl {
      * @return 返回true, 表示此消息已由OTA模块处理；返回false，表示些消息不是OTA消息；
      */
     public boolean processMessage(String topic, MqttMessage message) {
-        if (!topic.startsWith("$ota/")) {
+        if (!topic.equals(OTA_UPDATE_TOPIC)) {
             return false;
         }
 
@@ -139,9 +175,16 @@ public class TXOTAImpl {
             if (type.equalsIgnoreCase("update_firmware")) {
                 String firmwareURL = jsonObject.getString("url");
                 String md5Sum = jsonObject.getString("md5sum");
+                String sha256Sum = jsonObject.optString("sha256sum", null);
                 String version = jsonObject.getString("version");
+                String patchURL = jsonObject.optString("patch_url", null);
+                String baseVersion = jsonObject.optString("base_version", null);
+
+                applyDownloadConfig(jsonObject);
 
-                downloadFirmware(firmwareURL, mStoragePath + "/" + md5Sum, md5Sum, version);
+                downloadFirmware(firmwareURL, mStoragePath + "/" + md5Sum, md5Sum, sha256Sum, version, patchURL, baseVersion);
+            } else if (type.equalsIgnoreCase("update_download_config")) {
+                applyDownloadConfig(jsonObject);
             } else if (type.equalsIgnoreCase("report_version_rsp")) {
                 String resultCode = jsonObject.getString("result_code");
                 String resultMsg = jsonObject.getString("result_msg");
@@ -179,6 +222,9 @@ public class TXOTAImpl {
 
             JSONObject obj = new JSONObject();
             obj.put("version", currentFirmwareVersion);
+            if (canApplyPatch(currentFirmwareVersion)) {
+                obj.put("diff_supported", true);
+            }
 
             jsonObject.put("report", obj);
         } catch (JSONException e) {
@@ -316,64 +362,74 @@ public class TXOTAImpl {
      * @param firmwareURL 固件URL
      * @return HttpURLConnection或HttpsURLConnection对象
      */
-    private HttpURLConnection createURLConnection(String firmwareURL) throws Exception {
+    HttpURLConnection createURLConnection(String firmwareURL) throws Exception {
 
         if (firmwareURL.toLowerCase().startsWith("https://")) {
             URL url = new URL(firmwareURL);
 
             HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-            SSLContext sslContext = SSLContext.getInstance("SSL");
-            TrustManager[] tm = {new X509TrustManager() {
+            SSLSocketFactory ssf = SslContextCache.getSocketFactory(OTA_SSL_CONTEXT_KEY, new Callable<SSLContext>() {
                 @Override
-                public void checkClientTrusted(X509Certificate[] x509Certificates, String s) throws CertificateException {
-                    // Do nothing. We only want to check server side certificate.
-                    log.warn("checkClientTrusted");
-                }
+                public SSLContext call() throws Exception {
+                    SSLContext sslContext = SSLContext.getInstance("SSL");
+                    TrustManager[] tm = {new X509TrustManager() {
+                        @Override
+                        public void checkClientTrusted(X509Certificate[] x509Certificates, String s) throws CertificateException {
+                            // Do nothing. We only want to check server side certificate.
+                            log.warn("checkClientTrusted");
+                        }
 
-                @Override
-                public void checkServerTrusted(X509Certificate[] x509Certificates, String s) throws CertificateException {
+                        @Override
+                        public void checkServerTrusted(X509Certificate[] x509Certificates, String s) throws CertificateException {
 
-                    if (x509Certificates == null) {
-                        throw new CertificateException("check OTA server x509Certificates is null");
-                    }
+                            if (x509Certificates == null) {
+                                throw new CertificateException("check OTA server x509Certificates is null");
+                            }
 
-                    if (x509Certificates.length <= 0) {
-                        throw new CertificateException("check OTA server x509Certificates is empty");
-                    }
+                            if (x509Certificates.length <= 0) {
+                                throw new CertificateException("check OTA server x509Certificates is empty");
+                            }
 
 
-                    int match = 0;
-                    for (X509Certificate cert : x509Certificates) {
+                            int match = 0;
+                            for (X509Certificate cert : x509Certificates) {
 
-                        try {
-                            cert.checkValidity();
+                                try {
+                                    cert.checkValidity();
 
-                            for (X509Certificate c : serverCertList) {
-                                if (cert.equals(c))
-                                    match++;
+                                    for (X509Certificate c : serverCertList) {
+                                        if (cert.equals(c))
+                                            match++;
+                                    }
+                                } catch (Exception e) {
+                                    e.printStackTrace();
+                                }
                             }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
 
-                    if (match > 0 && match == CA.cosServerCaCrtList.length) {
-                        log.info("checkServerTrusted OK!!!");
-                        return;
-                    }
+                            if (match > 0 && match == CA.cosServerCaCrtList.length) {
+                                log.info("checkServerTrusted OK!!!");
+                                return;
+                            }
 
-                    throw new CertificateException("check OTA server x509Certificates failed");
-                }
+                            throw new CertificateException("check OTA server x509Certificates failed");
+                        }
 
-                @Override
-                public X509Certificate[] getAcceptedIssuers() {
-                    return new X509Certificate[0];
+                        @Override
+                        public X509Certificate[] getAcceptedIssuers() {
+                            return new X509Certificate[0];
+                        }
+                    }};
+                    sslContext.init(null, tm, new java.security.SecureRandom());
+                    return sslContext;
                 }
-            }};
-            sslContext.init(null, tm, new java.security.SecureRandom());
+            });
+            if (ssf == null) {
+                throw new IOException("construct OTA SSLContext failed");
+            }
 
-            SSLSocketFactory ssf = sslContext.getSocketFactory();
             conn.setSSLSocketFactory(ssf);
+            conn.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT);
+            conn.setReadTimeout(DEFAULT_READ_TIMEOUT);
 
             return conn;
         }
@@ -381,142 +437,176 @@ public class TXOTAImpl {
         URL url = new URL(firmwareURL);
 
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT);
+        conn.setReadTimeout(DEFAULT_READ_TIMEOUT);
 
         return conn;
     }
 
     /**
-     * 开启线程下载固件
+     * 设置固件下载的并行分段数，服务器不支持Range请求时仍使用单连接下载
      *
-     * @param firmwareURL 固件URL
-     * @param outputFile  固件要保存的全路径及文件名
-     * @param md5Sum      用于下载完成后做校验的MD5
+     * @param parallelism 并行分段数，默认为1
      */
-    private void downloadFirmware(final String firmwareURL, final String outputFile, final String md5Sum, final String version) {
-
-        if (mDownloadThreadRunning) {
-            return;
-        }
-
-        mDownloadThreadRunning = true;
-        mDownloadThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-
-                int tryTimes = 0;
-
-                do {
-                    RandomAccessFile fos = null;
-                    InputStream stream = null;
-
-                    try {
-                        tryTimes++;
-
-                        fos = new RandomAccessFile(outputFile, "rw");
-                        log.debug("fileLength " + fos.length() + " bytes");
-
-                        long downloadBytes = 0;
-                        int lastPercent = 0;
-
-                        if (downloadBytes > 0) {
-                            fos.seek(downloadBytes);
-                        }
-
-                        log.debug("connect: " + firmwareURL);
-                        HttpURLConnection conn = createURLConnection(firmwareURL);
-
-                        conn.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT);
-                        conn.setReadTimeout(DEFAULT_READ_TIMEOUT);
-                        conn.setRequestProperty("Range", "bytes=" + downloadBytes + "-");
-
-                        conn.connect();
-
-                        int totalLength = conn.getContentLength();
-                        log.debug("totalLength " + totalLength + " bytes");
-
-                        stream = conn.getInputStream();
-                        byte buffer[] = new byte[1024 * 1024];
-
-                        while (downloadBytes < totalLength) {
-                            int len = stream.read(buffer);
-                            if (len < 0) {
-                                break;
-                            }
-                            downloadBytes += len;
-
-                            fos.write(buffer, 0, len);
+    public void setDownloadParallelism(int parallelism) {
+        this.mDownloadParallelism = Math.max(1, parallelism);
+    }
 
-                            int percent = (int) (((float) downloadBytes / (float) totalLength) * 100);
+    /**
+     * 设置固件下载带宽，下载过程中修改立即生效。带宽由下载管理器持有，使用同一下载管理器（默认为进程内共享的管理器）
+     * 的所有连接共享该总带宽
+     *
+     * @param bytesPerSecond 每秒下载字节数，小于等于0表示不限速
+     */
+    public void setDownloadBandwidth(long bytesPerSecond) {
+        mDownloadManager.setDownloadBandwidth(bytesPerSecond);
+    }
 
-                            if (percent != lastPercent) {
-                                lastPercent = percent;
+    /**
+     * 设置下载进度上报的频率，进度同时满足时间间隔和百分比步长时才回调onDownloadProgress并上报服务器，
+     * 下载完成（100%）总是上报
+     *
+     * @param intervalMs  两次上报的最小间隔，单位：毫秒，默认为0
+     * @param percentStep 两次上报的最小进度差，默认为1
+     */
+    public void setProgressReportThrottle(long intervalMs, int percentStep) {
+        this.mProgressReportInterval = Math.max(0, intervalMs);
+        this.mProgressReportStep = Math.max(1, percentStep);
+    }
 
-                                if (mCallback != null) {
-                                    mCallback.onDownloadProgress(percent, version);
-                                }
+    /**
+     * 应用服务器下发的下载配置，消息中未携带的配置项保持不变
+     * <p>
+     * bandwidth_limit：下载带宽，每秒字节数，0表示不限速，由共用下载管理器的所有连接共享；
+     * progress_interval：进度上报最小间隔，毫秒；progress_step：进度上报最小百分比步长
+     */
+    private void applyDownloadConfig(JSONObject jsonObject) {
+        if (jsonObject.has("bandwidth_limit")) {
+            setDownloadBandwidth(jsonObject.optLong("bandwidth_limit", 0));
+        }
+        if (jsonObject.has("progress_interval") || jsonObject.has("progress_step")) {
+            setProgressReportThrottle(jsonObject.optLong("progress_interval", mProgressReportInterval),
+                    jsonObject.optInt("progress_step", mProgressReportStep));
+        }
+    }
 
-                                log.debug("download " + downloadBytes + " bytes. percent:" + percent);
-                                reportProgressMessage(percent, version);
-                            }
-                        }
+    /**
+     * 按下载管理器的总带宽限制等待，下载任务每读取一次数据调用一次
+     *
+     * @param bytes 读取的字节数
+     */
+    void acquireDownloadBandwidth(int bytes) {
+        mDownloadManager.acquireDownloadBandwidth(bytes);
+    }
 
-                        if (fos != null) {
-                            fos.close();
-                        }
-                        if (stream != null) {
-                            stream.close();
-                        }
+    /**
+     * 设置设备当前固件，用于差分升级。设置后上报版本时告知服务器设备支持差分升级，
+     * 升级消息中携带基于该版本的差分包（patch_url、base_version）时下载差分包合成新固件
+     *
+     * @param version  当前固件版本
+     * @param filePath 当前固件的全路径文件名
+     */
+    public void setCurrentFirmware(String version, String filePath) {
+        this.mCurrentFirmwareFile = filePath;
+        this.mCurrentFirmwareVersion = version;
+    }
 
-                        String calcMD5 = fileToMD5(outputFile);
+    /**
+     * @param baseVersion 差分包所基于的固件版本
+     * @return 设备当前固件可用于合成时返回true
+     */
+    private boolean canApplyPatch(String baseVersion) {
+        String file = mCurrentFirmwareFile;
+        return baseVersion != null && baseVersion.equals(mCurrentFirmwareVersion)
+                && file != null && new File(file).isFile();
+    }
 
-                        if (!calcMD5.equalsIgnoreCase(md5Sum)) {
-                            log.error("md5 checksum not match!!!" + " calculated md5:" + calcMD5);
+    /**
+     * 设置固件下载管理器，默认使用TXOTADownloadManager.getDefault()
+     *
+     * @param manager 下载管理器
+     */
+    public void setDownloadManager(TXOTADownloadManager manager) {
+        this.mDownloadManager = manager;
+    }
 
-                            if (mCallback != null) {
-                                mCallback.onDownloadFailure(-4, version);  //校验失败
-                            }
+    /**
+     * 提交到下载管理器下载固件，固件已部分下载时从上次的位置继续
+     *
+     * @param firmwareURL 固件URL
+     * @param outputFile  固件要保存的全路径及文件名
+     * @param md5Sum      用于下载完成后做校验的MD5
+     * @param sha256Sum   用于下载完成后做校验的SHA-256，消息中未携带时为null
+     * @param version     固件版本
+     * @param patchURL    差分包URL，消息中未携带时为null
+     * @param baseVersion 差分包所基于的固件版本，消息中未携带时为null
+     */
+    private void downloadFirmware(final String firmwareURL, final String outputFile, final String md5Sum,
+                                  final String sha256Sum, final String version,
+                                  final String patchURL, final String baseVersion) {
 
-                            new File(outputFile).delete();   //delete
+        boolean delta = patchURL != null && canApplyPatch(baseVersion);
+        mDownloadManager.submit(this, firmwareURL, outputFile, md5Sum, sha256Sum, version,
+                delta ? patchURL : null, delta ? mCurrentFirmwareFile : null, mDownloadParallelism, MAX_TRY_TIMES);
+    }
 
-                            continue;      //try again
-                        } else {
-                            if (mCallback != null) {
-                                mCallback.onDownloadCompleted(outputFile, version);
-                            }
+    /**
+     * @return 将下载进度及结果转交本对象处理的通知对象，用于不经下载管理器直接运行的下载任务
+     */
+    TXOTACallBack getDownloadListener() {
+        return new TXOTACallBack() {
+            @Override
+            public void onReportFirmwareVersion(int resultCode, String version, String resultMsg) {
+            }
 
-                            break;         //quit loop
-                        }
-                    } catch (CertificateException e) {
-                        if (mCallback != null) {
-                            mCallback.onDownloadFailure(-4, version); //校验失败
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
+            @Override
+            public void onDownloadProgress(int percent, String version) {
+                notifyDownloadProgress(percent, version);
+            }
 
-                    } finally {
-                        if (fos != null) {
-                            try {
-                                fos.close();
-                            } catch (Exception e) {
+            @Override
+            public void onDownloadCompleted(String outputFile, String version) {
+                notifyDownloadCompleted(outputFile, version);
+            }
 
-                            }
-                        }
+            @Override
+            public void onDownloadFailure(int errCode, String version) {
+                notifyDownloadFailure(errCode, version);
+            }
+        };
+    }
 
-                        if (stream != null) {
-                            try {
-                                stream.close();
-                            } catch (Exception e) {
+    void notifyDownloadProgress(int percent, String version) {
+        long now = System.currentTimeMillis();
+        synchronized (mProgressLock) {
+            // 进度回退说明开始了新的下载
+            if (percent < mLastReportedPercent) {
+                mLastReportedPercent = -1;
+            }
+            if (percent < 100 && mLastReportedPercent >= 0
+                    && (percent - mLastReportedPercent < mProgressReportStep || now - mLastReportTime < mProgressReportInterval)) {
+                return;
+            }
+            mLastReportedPercent = percent;
+            mLastReportTime = now;
+        }
 
-                            }
-                        }
-                    }
-                } while (tryTimes <= MAX_TRY_TIMES);
+        if (mCallback != null) {
+            mCallback.onDownloadProgress(percent, version);
+        }
+        reportProgressMessage(percent, version);
+    }
 
-                mDownloadThreadRunning = false;
-            }
-        });
+    void notifyDownloadCompleted(String outputFile, String version) {
+        if (mCallback != null) {
+            mCallback.onDownloadCompleted(outputFile, version);
+        }
+    }
 
-        mDownloadThread.start();
+    void notifyDownloadFailure(int errCode, String version) {
+        if (mCallback != null) {
+            mCallback.onDownloadFailure(errCode, version);
+        }
     }
 
     /**
@@ -525,7 +615,7 @@ public class TXOTAImpl {
      * @param filePath 全路径文件名
      * @return 以16进制字符表示的摘要字符串
      */
-    private static String fileToMD5(String filePath) {
+    static String fileToMD5(String filePath) {
         InputStream inputStream = null;
 
         try {
@@ -562,7 +652,7 @@ public class TXOTAImpl {
      * @param digestBytes 二进制摘要值
      * @return 以16进制字符表示的摘要字符串
      */
-    private static String convertHashToString(byte[] digestBytes) {
+    static String convertHashToString(byte[] digestBytes) {
         String returnVal = "";
 
         for (int i = 0; i < digestBytes.length; i++) {
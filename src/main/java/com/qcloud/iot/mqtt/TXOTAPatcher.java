@@ -0,0 +1,130 @@
+package com.qcloud.iot.mqtt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 差分升级包的流式合成
+ * <p>
+ * 差分包格式（整数均为大端序），可整体再经gzip压缩：
+ * <pre>
+ * magic        8字节，"TXDIFF01"
+ * targetLength 8字节，新固件长度
+ * 指令序列，直到END：
+ *   COPY  1字节0x01 + 8字节基础固件偏移 + 4字节长度，从基础固件复制
+ *   ADD   1字节0x02 + 4字节长度 + 数据，直接写入新数据
+ *   END   1字节0x00
+ * </pre>
+ * 差分包边下载边合成，只需顺序读取差分包，新固件按顺序写出，合成过程中不需要将差分包保存到磁盘。
+ */
+class TXOTAPatcher {
+
+    static final byte[] MAGIC = {'T', 'X', 'D', 'I', 'F', 'F', '0', '1'};
+
+    static final int OP_END = 0;
+    static final int OP_COPY = 1;
+    static final int OP_ADD = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int GZIP_MAGIC = 0x1f8b;
+
+    /**
+     * 合成新固件
+     *
+     * @param patch    差分包数据流
+     * @param base     基础固件（设备当前固件）
+     * @param out      新固件输出流
+     * @param verifier 新固件校验，合成的数据按顺序计入摘要
+     * @return 新固件长度
+     * @throws IOException 读写失败或差分包格式错误
+     */
+    static long apply(InputStream patch, FileChannel base, OutputStream out, TXOTAVerifier verifier) throws IOException {
+        DataInputStream in = new DataInputStream(unwrap(patch));
+
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("invalid patch magic");
+            }
+        }
+        long targetLength = in.readLong();
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ByteBuffer baseBuffer = ByteBuffer.wrap(buffer);
+        long written = 0;
+
+        while (true) {
+            int op = in.read();
+            if (op < 0) {
+                throw new EOFException("patch truncated at output offset " + written);
+            }
+            if (op == OP_END) {
+                break;
+            }
+
+            if (op == OP_COPY) {
+                long offset = in.readLong();
+                long length = in.readInt() & 0xFFFFFFFFL;
+                if (offset < 0 || offset + length > base.size()) {
+                    throw new IOException("copy [" + offset + ", " + (offset + length) + ") out of base image");
+                }
+                while (length > 0) {
+                    baseBuffer.clear();
+                    baseBuffer.limit((int) Math.min(buffer.length, length));
+                    int len = base.read(baseBuffer, offset);
+                    if (len <= 0) {
+                        throw new EOFException("base image truncated at " + offset);
+                    }
+                    out.write(buffer, 0, len);
+                    verifier.update(written, buffer, len);
+                    offset += len;
+                    length -= len;
+                    written += len;
+                }
+            } else if (op == OP_ADD) {
+                long length = in.readInt() & 0xFFFFFFFFL;
+                while (length > 0) {
+                    int len = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                    if (len < 0) {
+                        throw new EOFException("patch truncated at output offset " + written);
+                    }
+                    out.write(buffer, 0, len);
+                    verifier.update(written, buffer, len);
+                    length -= len;
+                    written += len;
+                }
+            } else {
+                throw new IOException("unknown patch op: " + op);
+            }
+
+            if (written > targetLength) {
+                throw new IOException("patch output exceeds target length " + targetLength);
+            }
+        }
+
+        if (written != targetLength) {
+            throw new IOException("patch output length " + written + " != " + targetLength);
+        }
+        return written;
+    }
+
+    /**
+     * 差分包以gzip魔数开头时解压
+     */
+    private static InputStream unwrap(InputStream patch) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(patch, BUFFER_SIZE);
+        in.mark(2);
+        int magic = (in.read() << 8) | in.read();
+        in.reset();
+        return magic == GZIP_MAGIC ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+    }
+}
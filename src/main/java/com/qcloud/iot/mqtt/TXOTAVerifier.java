@@ -0,0 +1,141 @@
+package com.qcloud.iot.mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 固件流式校验
+ * <p>
+ * 按文件顺序增量计算MD5及SHA-256：按顺序到达的数据直接在下载时计算，无需再读文件；
+ * 乱序到达的数据（并行下载的后续分段、续传前已落盘的数据）在其之前的数据都落盘后从文件中补读，
+ * 补读的数据刚写入不久，通常仍在页缓存中。最后一个字节落盘时摘要即计算完成。
+ */
+class TXOTAVerifier {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String mExpectedMd5;
+
+    private final String mExpectedSha256;
+
+    private MessageDigest mMd5;
+
+    private MessageDigest mSha256;
+
+    /**
+     * 已计入摘要的数据长度
+     */
+    private long mOffset;
+
+    private ByteBuffer mReadBuffer;
+
+    private String mFailedDigest;
+
+    /**
+     * @param expectedMd5    期望的MD5
+     * @param expectedSha256 期望的SHA-256，为null时不计算SHA-256
+     */
+    TXOTAVerifier(String expectedMd5, String expectedSha256) {
+        this.mExpectedMd5 = expectedMd5;
+        this.mExpectedSha256 = expectedSha256;
+        reset();
+    }
+
+    /**
+     * 清空已计算的摘要，从文件开头重新计算
+     */
+    synchronized void reset() {
+        try {
+            mMd5 = MessageDigest.getInstance("MD5");
+            mSha256 = mExpectedSha256 == null ? null : MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        mOffset = 0;
+    }
+
+    /**
+     * 下载到一段数据。数据恰好接在已计算部分之后时直接计入摘要，否则忽略，之后通过catchUp从文件补读
+     *
+     * @param offset 数据在文件中的偏移
+     * @param buffer 数据
+     * @param len    数据长度
+     */
+    synchronized void update(long offset, byte[] buffer, int len) {
+        if (offset != mOffset) {
+            return;
+        }
+        mMd5.update(buffer, 0, len);
+        if (mSha256 != null) {
+            mSha256.update(buffer, 0, len);
+        }
+        mOffset += len;
+    }
+
+    /**
+     * 从文件补读[已计算位置, landedEnd)的数据计入摘要
+     *
+     * @param channel   固件文件
+     * @param landedEnd 从已计算位置起连续落盘的数据的结束位置
+     */
+    synchronized void catchUp(FileChannel channel, long landedEnd) throws IOException {
+        if (landedEnd <= mOffset) {
+            return;
+        }
+        if (mReadBuffer == null) {
+            mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+
+        while (mOffset < landedEnd) {
+            mReadBuffer.clear();
+            mReadBuffer.limit((int) Math.min(mReadBuffer.capacity(), landedEnd - mOffset));
+            int len = channel.read(mReadBuffer, mOffset);
+            if (len <= 0) {
+                throw new IOException("unexpected end of file at " + mOffset);
+            }
+            mMd5.update(mReadBuffer.array(), 0, len);
+            if (mSha256 != null) {
+                mSha256.update(mReadBuffer.array(), 0, len);
+            }
+            mOffset += len;
+        }
+    }
+
+    /**
+     * @return 已计入摘要的数据长度
+     */
+    synchronized long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * 完成计算并与期望值比较，调用后需reset才能再次使用
+     *
+     * @return 摘要与期望值一致返回true
+     */
+    synchronized boolean verify() {
+        String md5 = TXOTAImpl.convertHashToString(mMd5.digest());
+        if (!md5.equalsIgnoreCase(mExpectedMd5)) {
+            mFailedDigest = "md5:" + md5;
+            return false;
+        }
+        if (mSha256 != null) {
+            String sha256 = TXOTAImpl.convertHashToString(mSha256.digest());
+            if (!sha256.equalsIgnoreCase(mExpectedSha256)) {
+                mFailedDigest = "sha256:" + sha256;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 最近一次校验失败时计算出的摘要
+     */
+    synchronized String getFailedDigest() {
+        return mFailedDigest;
+    }
+}
@@ -0,0 +1,493 @@
+package com.qcloud.iot.mqtt;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.qcloud.iot.util.MappedRingLog;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分层的离线发布缓存
+ * <p>
+ * 连接断开期间发布的消息先放入内存队列，内存队列超过字节上限时将最旧的消息溢出到磁盘上的环形日志（MappedRingLog），
+ * 磁盘部分总大小为段数 * 段大小，写满后覆盖最旧的段。磁盘中的消息总是早于内存中的消息，连接建立后先发磁盘再发内存，
+ * 按发布顺序限速补发；补发完成前新发布的消息继续进入缓存排队，保证顺序。
+ * 共享时间轮只负责补发间隔的计时，补发本身（Paho发布、读取磁盘）在共享的定时任务线程池执行。
+ * <p>
+ * 每个topic可设置合并策略：KEEP_ALL保留全部消息；KEEP_LATEST只保留最新一条（如属性、影子上报），
+ * 新消息直接替换内存中尚未发送的旧消息，已溢出到磁盘的旧消息在补发时跳过（进程重启后无法识别，仍会补发）。
+ * <p>
+ * 磁盘中的消息对进程崩溃安全；flush()将内存中的消息全部写入磁盘并刷盘，断开连接时自动调用。
+ */
+@Slf4j
+public class TXOfflinePublishBuffer {
+
+    /**
+     * topic合并策略
+     */
+    public enum Policy {
+        /**
+         * 保留全部消息
+         */
+        KEEP_ALL,
+        /**
+         * 只保留最新一条消息
+         */
+        KEEP_LATEST
+    }
+
+    /**
+     * 默认内存队列字节上限：256KB
+     */
+    public static final long DEFAULT_MEMORY_BYTES = 256 * 1024;
+
+    /**
+     * 默认磁盘段文件数
+     */
+    public static final int DEFAULT_SEGMENT_COUNT = 16;
+
+    /**
+     * 默认磁盘段文件大小：1MB
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * 默认每秒补发的消息数
+     */
+    public static final double DEFAULT_DRAIN_PER_SECOND = 100;
+
+    /**
+     * 补发间隔，与共享时间轮的精度相同，单位：毫秒
+     */
+    private static final long DRAIN_INTERVAL_MS = 100;
+
+    /**
+     * 每次从磁盘读取的消息字节数
+     */
+    private static final int DISK_BATCH_BYTES = 16 * 1024;
+
+    /**
+     * 内存中每条消息在内容之外的估算开销
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final int DISK_RECORD_HEADER_SIZE = 13;
+
+    private final MappedRingLog mDisk;
+    private final long mMemoryLimit;
+    private final double mDrainPerSecond;
+    private final ConcurrentHashMap<String, Policy> mPolicies = new ConcurrentHashMap<>();
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private TXMqttConnection mConnection;
+
+    /**
+     * 以下字段由this保护
+     */
+    private final ArrayDeque<Entry> mMemory = new ArrayDeque<>();
+    private long mMemoryBytes;
+
+    /**
+     * KEEP_LATEST topic在内存中尚未发送的消息
+     */
+    private final HashMap<String, Entry> mLatestInMemory = new HashMap<>();
+
+    /**
+     * KEEP_LATEST topic最新一条消息的序号，序号更小的消息补发时跳过
+     */
+    private final HashMap<String, Long> mLatestSeq = new HashMap<>();
+
+    /**
+     * 从磁盘读出、尚未发送的消息，全部发送后提交读取位置
+     */
+    private final ArrayDeque<Entry> mDiskBatch = new ArrayDeque<>();
+
+    private long mNextSeq;
+    private boolean mDraining;
+    private RateLimiter mRateLimiter;
+
+    private long mOffered;
+    private long mCoalesced;
+    private long mSpilled;
+    private long mDrained;
+    private long mDropped;
+
+    /**
+     * @param dir 存放磁盘段文件的目录，已有的消息在连接建立后补发
+     * @throws IOException 创建或映射文件失败
+     */
+    public TXOfflinePublishBuffer(File dir) throws IOException {
+        this(dir, DEFAULT_MEMORY_BYTES, DEFAULT_SEGMENT_COUNT, DEFAULT_SEGMENT_SIZE, DEFAULT_DRAIN_PER_SECOND);
+    }
+
+    /**
+     * @param dir            存放磁盘段文件的目录，已有的消息在连接建立后补发
+     * @param memoryBytes    内存队列字节上限，超过后溢出到磁盘
+     * @param segmentCount   磁盘段文件数，至少为2
+     * @param segmentSize    磁盘段文件大小，单条消息不能超过该大小
+     * @param drainPerSecond 连接建立后每秒补发的消息数
+     * @throws IOException 创建或映射文件失败
+     */
+    public TXOfflinePublishBuffer(File dir, long memoryBytes, int segmentCount, int segmentSize, double drainPerSecond) throws IOException {
+        if (memoryBytes < 0 || drainPerSecond <= 0) {
+            throw new IllegalArgumentException("invalid memory bytes or drain rate: " + memoryBytes + ", " + drainPerSecond);
+        }
+        this.mDisk = new MappedRingLog(dir, segmentCount, segmentSize);
+        this.mMemoryLimit = memoryBytes;
+        this.mDrainPerSecond = drainPerSecond;
+        // 序号以微秒时间开始，重启后新消息的序号仍大于磁盘中已有的消息
+        this.mNextSeq = System.currentTimeMillis() * 1000;
+    }
+
+    /**
+     * 设置topic的合并策略，未设置的topic为KEEP_ALL
+     *
+     * @param topic  topic名称
+     * @param policy 合并策略
+     */
+    public void setPolicy(String topic, Policy policy) {
+        mPolicies.put(topic, policy);
+    }
+
+    /**
+     * 绑定连接，由TXMqttConnection.setOfflinePublishBuffer调用
+     */
+    synchronized void attach(TXMqttConnection connection) {
+        if (mConnection != null && mConnection != connection) {
+            throw new IllegalStateException("offline publish buffer already attached to " + mConnection.mClientId);
+        }
+        mConnection = connection;
+    }
+
+    /**
+     * 缓存一条消息，连接已建立时随后补发
+     *
+     * @param topic   topic名称
+     * @param message 消息内容
+     * @return 消息超过单个磁盘段的容量时返回false
+     */
+    public synchronized boolean offer(String topic, MqttMessage message) {
+        mOffered++;
+        Policy policy = mPolicies.get(topic);
+        boolean keepLatest = policy == Policy.KEEP_LATEST;
+
+        Entry latest = keepLatest ? mLatestInMemory.get(topic) : null;
+        if (latest != null) {
+            // 替换尚未发送的旧消息，位置不变
+            mMemoryBytes += size(topic, message) - latest.mSize;
+            latest.mMessage = message;
+            latest.mSize = size(topic, message);
+            mCoalesced++;
+        } else {
+            if (DISK_RECORD_HEADER_SIZE + topic.getBytes(StandardCharsets.UTF_8).length + message.getPayload().length
+                    > mDisk.getMaxRecordSize()) {
+                mDropped++;
+                log.error("offline message of topic: {} is too large, discard it", topic);
+                return false;
+            }
+            Entry entry = new Entry(mNextSeq++, topic, message, keepLatest);
+            mMemory.add(entry);
+            mMemoryBytes += entry.mSize;
+            if (keepLatest) {
+                mLatestInMemory.put(topic, entry);
+                if (mLatestSeq.put(topic, entry.mSeq) != null) {
+                    mCoalesced++;
+                }
+            }
+        }
+
+        while (mMemoryBytes > mMemoryLimit && !mMemory.isEmpty()) {
+            spill(mMemory.poll());
+        }
+
+        if (!mDraining && isConnected()) {
+            startDrain();
+        }
+        return true;
+    }
+
+    private void spill(Entry entry) {
+        mMemoryBytes -= entry.mSize;
+        if (entry.mKeepLatest) {
+            mLatestInMemory.remove(entry.mTopic);
+        }
+        mDisk.append(encode(entry));
+        mSpilled++;
+    }
+
+    /**
+     * @return 是否没有待补发的消息
+     */
+    public synchronized boolean isEmpty() {
+        return mMemory.isEmpty() && mDiskBatch.isEmpty() && mDisk.isEmpty();
+    }
+
+    /**
+     * 连接建立，开始按限速补发
+     */
+    synchronized void startDrain() {
+        if (mDraining || isEmpty()) {
+            return;
+        }
+        mDraining = true;
+        // 每次补发重新开始计速，不使用空闲期间积累的许可
+        mRateLimiter = RateLimiter.create(mDrainPerSecond);
+        scheduleDrain(0);
+    }
+
+    private void scheduleDrain(long delayMs) {
+        if (delayMs <= 0) {
+            TXSharedPingSender.getSharedExecutor().execute(mDrain);
+            return;
+        }
+        TXSharedPingSender.getSharedTimer().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                // 补发会调用Paho的publish并读写磁盘，不能在时间轮线程上执行
+                TXSharedPingSender.getSharedExecutor().execute(mDrain);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 在共享定时任务线程池补发许可范围内的消息，Paho在途窗口已满时等待下次补发
+     */
+    private synchronized void drain() {
+        if (!mDraining) {
+            return;
+        }
+        while (isConnected()) {
+            Entry entry = peekNext();
+            if (entry == null) {
+                mDraining = false;
+                log.info("{} offline messages drained, total {}", mConnection.mClientId, mDrained);
+                return;
+            }
+            if (entry.mKeepLatest && !isLatest(entry)) {
+                // 已有更新的消息，跳过
+                pollNext(entry);
+                continue;
+            }
+            if (!mRateLimiter.tryAcquire()) {
+                break;
+            }
+
+            try {
+                mConnection.publishBuffered(entry.mTopic, entry.mMessage);
+            } catch (MqttException e) {
+                if (e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT) {
+                    log.error("publish offline message of topic: {} failed.", entry.mTopic, e);
+                }
+                break;
+            }
+            pollNext(entry);
+            mDrained++;
+        }
+
+        if (isConnected()) {
+            scheduleDrain(DRAIN_INTERVAL_MS);
+        } else {
+            // 连接断开，未发送的消息保留，下次连接建立后继续
+            mDraining = false;
+        }
+    }
+
+    private boolean isLatest(Entry entry) {
+        Long latest = mLatestSeq.get(entry.mTopic);
+        return latest == null || latest == entry.mSeq;
+    }
+
+    /**
+     * 下一条待补发的消息：磁盘中的消息早于内存中的消息
+     */
+    private Entry peekNext() {
+        if (mDiskBatch.isEmpty() && !mDisk.isEmpty()) {
+            for (byte[] record : mDisk.peek(DISK_BATCH_BYTES)) {
+                Entry entry = decode(record);
+                if (entry != null) {
+                    mDiskBatch.add(entry);
+                }
+            }
+            if (mDiskBatch.isEmpty()) {
+                // 磁盘中没有（有效的）消息
+                mDisk.commit();
+            }
+        }
+        if (!mDiskBatch.isEmpty()) {
+            return mDiskBatch.peek();
+        }
+        return mMemory.peek();
+    }
+
+    private void pollNext(Entry entry) {
+        if (mDiskBatch.peek() == entry) {
+            mDiskBatch.poll();
+            if (mDiskBatch.isEmpty()) {
+                mDisk.commit();
+            }
+        } else {
+            mMemory.poll();
+            mMemoryBytes -= entry.mSize;
+            if (entry.mKeepLatest) {
+                mLatestInMemory.remove(entry.mTopic);
+            }
+        }
+        if (entry.mKeepLatest && isLatest(entry)) {
+            mLatestSeq.remove(entry.mTopic);
+        }
+    }
+
+    /**
+     * 将内存中的消息全部写入磁盘并刷盘，进程退出前调用可避免丢失未发送的消息
+     */
+    public synchronized void flush() {
+        while (!mMemory.isEmpty()) {
+            spill(mMemory.poll());
+        }
+        mDisk.flush();
+    }
+
+    private boolean isConnected() {
+        return mConnection != null && mConnection.getConnectStatus() == TXMqttConstants.ConnectStatus.kConnected;
+    }
+
+    private static int size(String topic, MqttMessage message) {
+        return ENTRY_OVERHEAD + topic.length() * 3 + message.getPayload().length;
+    }
+
+    /**
+     * 磁盘记录格式：[序号（8字节）][QOS（1字节）][retained（1字节）][合并策略（1字节）][topic长度（2字节）][topic][内容]
+     */
+    private static byte[] encode(Entry entry) {
+        byte[] topic = entry.mTopic.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = entry.mMessage.getPayload();
+        ByteBuffer buffer = ByteBuffer.allocate(DISK_RECORD_HEADER_SIZE + topic.length + payload.length);
+        buffer.putLong(entry.mSeq)
+                .put((byte) entry.mMessage.getQos())
+                .put((byte) (entry.mMessage.isRetained() ? 1 : 0))
+                .put((byte) (entry.mKeepLatest ? 1 : 0))
+                .putShort((short) topic.length)
+                .put(topic)
+                .put(payload);
+        return buffer.array();
+    }
+
+    private static Entry decode(byte[] record) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            long seq = buffer.getLong();
+            int qos = buffer.get();
+            boolean retained = buffer.get() != 0;
+            boolean keepLatest = buffer.get() != 0;
+            byte[] topic = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(topic);
+            byte[] payload = new byte[buffer.remaining()];
+            buffer.get(payload);
+
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(qos);
+            message.setRetained(retained);
+            return new Entry(seq, new String(topic, StandardCharsets.UTF_8), message, keepLatest);
+        } catch (RuntimeException e) {
+            log.error("discard invalid offline message record", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return 内存中缓存的消息数
+     */
+    public synchronized int getMemoryCount() {
+        return mMemory.size();
+    }
+
+    /**
+     * @return 内存中缓存的消息估算字节数
+     */
+    public synchronized long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    /**
+     * @return 缓存的消息总数
+     */
+    public synchronized long getOffered() {
+        return mOffered;
+    }
+
+    /**
+     * @return 被合并（替换或跳过）的消息数
+     */
+    public synchronized long getCoalesced() {
+        return mCoalesced;
+    }
+
+    /**
+     * @return 溢出到磁盘的消息数
+     */
+    public synchronized long getSpilled() {
+        return mSpilled;
+    }
+
+    /**
+     * @return 已补发的消息数
+     */
+    public synchronized long getDrained() {
+        return mDrained;
+    }
+
+    /**
+     * @return 因超过单段容量被丢弃的消息数
+     */
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * @return 磁盘写满后被覆盖的段数
+     */
+    public long getOverwrittenSegments() {
+        return mDisk.getOverwrittenSegments();
+    }
+
+    /**
+     * @return 是否正在补发
+     */
+    public synchronized boolean isDraining() {
+        return mDraining;
+    }
+
+    /**
+     * 缓存中的一条消息
+     */
+    private static class Entry {
+        private final long mSeq;
+        private final String mTopic;
+        private final boolean mKeepLatest;
+        private MqttMessage mMessage;
+        private int mSize;
+
+        Entry(long seq, String topic, MqttMessage message, boolean keepLatest) {
+            this.mSeq = seq;
+            this.mTopic = topic;
+            this.mMessage = message;
+            this.mKeepLatest = keepLatest;
+            this.mSize = size(topic, message);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.qcloud.iot.mqtt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 批量发布结果
+ */
+public class TXPublishBatchResult {
+
+    private final int total;
+
+    private int succeeded;
+
+    private final List<TXPublishRequest> failedRequests = new ArrayList<>();
+
+    private Throwable firstCause;
+
+    TXPublishBatchResult(int total) {
+        this.total = total;
+    }
+
+    synchronized void onSuccess() {
+        succeeded++;
+    }
+
+    synchronized void onFailure(TXPublishRequest request, Throwable cause) {
+        failedRequests.add(request);
+        if (firstCause == null) {
+            firstCause = cause;
+        }
+    }
+
+    synchronized boolean isDone() {
+        return succeeded + failedRequests.size() >= total;
+    }
+
+    /**
+     * @return 本批消息总数
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return 发布成功的消息数
+     */
+    public synchronized int getSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * @return 发布失败的消息数
+     */
+    public synchronized int getFailed() {
+        return failedRequests.size();
+    }
+
+    /**
+     * @return 发布失败的消息，可用于重试
+     */
+    public synchronized List<TXPublishRequest> getFailedRequests() {
+        return Collections.unmodifiableList(new ArrayList<>(failedRequests));
+    }
+
+    /**
+     * @return 第一条失败消息的原因，全部成功时为null
+     */
+    public synchronized Throwable getFirstCause() {
+        return firstCause;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TXPublishBatchResult{total=" + total + ", succeeded=" + succeeded + ", failed=" + failedRequests.size() + "}";
+    }
+}
@@ -0,0 +1,290 @@
+package com.qcloud.iot.mqtt;
+
+import com.qcloud.iot.common.Status;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MQTT发布流水线
+ * <p>
+ * 流水线内最多保持window条消息在途，每条消息完成后立即补发下一条，不必等待逐条往返。
+ * 同一流水线的所有消息共用一个IMqttActionListener，每批消息的结果通过一个Future统一返回。
+ * <p>
+ * 连接设置了离线发布缓存（TXOfflinePublishBuffer）时与publish一致：断连期间或缓存尚未补发完时消息放入离线缓存，
+ * 放入即视为成功，由离线缓存按顺序补发。
+ * <p>
+ * 没有离线发布缓存时，断开连接后只有DisconnectedBufferOptions开启缓存且不删除旧消息的情况下才交给Paho缓存；
+ * deleteOldestMessages为true时被挤出缓存的消息不会再回调token，占用的窗口和批次Future将永远无法完成，因此直接判定失败。
+ */
+@Slf4j
+public class TXPublishPipeline {
+
+    /**
+     * Paho在途窗口已满（被流水线外的消息占用）时的重试间隔
+     */
+    private static final long RETRY_DELAY_MS = 100;
+
+    private final TXMqttConnection mConnection;
+
+    private final int mWindow;
+
+    private final ArrayDeque<Entry> mQueue = new ArrayDeque<>();
+
+    private final IMqttActionListener mListener = new PipelineListener();
+
+    private int mInFlight = 0;
+
+    private boolean mRetryScheduled = false;
+
+    /**
+     * @param connection MQTT连接
+     * @param window     在途消息窗口大小
+     */
+    TXPublishPipeline(TXMqttConnection connection, int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be greater than 0: " + window);
+        }
+        this.mConnection = connection;
+        this.mWindow = window;
+    }
+
+    /**
+     * 提交一批消息，按提交顺序发布
+     *
+     * @param requests 待发布的消息
+     * @return 本批消息全部完成（成功或失败）后完成的Future
+     */
+    public CompletableFuture<TXPublishBatchResult> publish(List<TXPublishRequest> requests) {
+        Batch batch = new Batch(requests.size());
+        if (requests.isEmpty()) {
+            batch.mFuture.complete(batch.mResult);
+            return batch.mFuture;
+        }
+
+        List<Entry> rejected = new ArrayList<>();
+        synchronized (this) {
+            for (TXPublishRequest request : requests) {
+                Entry entry = new Entry(request, batch);
+                if (request == null || request.getMessage() == null || mConnection.checkTopic(request.getTopic()) != Status.OK) {
+                    entry.mCause = new IllegalArgumentException("Invalid publish request: " + request);
+                    rejected.add(entry);
+                    continue;
+                }
+                mQueue.add(entry);
+            }
+        }
+
+        for (Entry entry : rejected) {
+            entry.fail();
+        }
+        pump();
+
+        return batch.mFuture;
+    }
+
+    /**
+     * @return 在途消息数
+     */
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * @return 排队等待发送的消息数
+     */
+    public synchronized int getQueued() {
+        return mQueue.size();
+    }
+
+    /**
+     * 在窗口允许的范围内发送排队的消息
+     */
+    private void pump() {
+        List<Entry> buffered = null;
+        List<Entry> failed = null;
+
+        synchronized (this) {
+            int window = getEffectiveWindow();
+            while (mInFlight < window && !mQueue.isEmpty()) {
+                Entry entry = mQueue.peek();
+                MqttAsyncClient client = mConnection.mMqttClient;
+
+                TXOfflinePublishBuffer offlineBuffer = mConnection.getOfflinePublishBuffer();
+                if (offlineBuffer != null && (client == null || !client.isConnected() || !offlineBuffer.isEmpty())) {
+                    // 与publish一致，断连期间或缓存尚未补发完时放入离线缓存，不占用窗口
+                    mQueue.poll();
+                    if (offlineBuffer.offer(entry.mRequest.getTopic(), entry.mRequest.getMessage())) {
+                        buffered = addTo(buffered, entry);
+                    } else {
+                        entry.mCause = new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION);
+                        failed = addTo(failed, entry);
+                    }
+                    continue;
+                }
+
+                if (client == null || (!client.isConnected() && !isBufferSafe())) {
+                    mQueue.poll();
+                    entry.mCause = new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+                    failed = addTo(failed, entry);
+                    continue;
+                }
+
+                try {
+                    client.publish(entry.mRequest.getTopic(), entry.mRequest.getMessage(), entry, mListener);
+                    mQueue.poll();
+                    mInFlight++;
+                } catch (MqttException e) {
+                    if (e.getReasonCode() == MqttException.REASON_CODE_MAX_INFLIGHT) {
+                        scheduleRetry();
+                        break;
+                    }
+                    mQueue.poll();
+                    entry.mCause = e;
+                    failed = addTo(failed, entry);
+                } catch (Exception e) {
+                    mQueue.poll();
+                    entry.mCause = e;
+                    failed = addTo(failed, entry);
+                }
+            }
+        }
+
+        // 在锁外通知结果，避免Future的后续操作在持锁状态下执行
+        if (buffered != null) {
+            for (Entry entry : buffered) {
+                entry.succeed();
+            }
+        }
+        if (failed != null) {
+            for (Entry entry : failed) {
+                log.error("publish topic: {} failed.", entry.mRequest.getTopic(), entry.mCause);
+                entry.fail();
+            }
+        }
+    }
+
+    private int getEffectiveWindow() {
+        MqttConnectOptions options = mConnection.mConnOptions;
+        if (options == null) {
+            return mWindow;
+        }
+        return Math.min(mWindow, options.getMaxInflight());
+    }
+
+    /**
+     * @return 断开连接时能否把消息交给Paho缓存：开启缓存且缓存满时不删除旧消息
+     */
+    private boolean isBufferSafe() {
+        DisconnectedBufferOptions options = mConnection.bufferOpts;
+        return options != null && options.isBufferEnabled() && !options.isDeleteOldestMessages();
+    }
+
+    private void scheduleRetry() {
+        if (mRetryScheduled) {
+            return;
+        }
+        mRetryScheduled = true;
+        TXSharedPingSender.getSharedTimer().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                // pump会调用Paho的publish，不能在时间轮线程上执行
+                TXSharedPingSender.getSharedExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (TXPublishPipeline.this) {
+                            mRetryScheduled = false;
+                        }
+                        pump();
+                    }
+                });
+            }
+        }, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static List<Entry> addTo(List<Entry> entries, Entry entry) {
+        if (entries == null) {
+            entries = new ArrayList<>();
+        }
+        entries.add(entry);
+        return entries;
+    }
+
+    /**
+     * 流水线共用的发布结果监听器
+     */
+    private class PipelineListener implements IMqttActionListener {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            Entry entry = (Entry) token.getUserContext();
+            synchronized (TXPublishPipeline.this) {
+                mInFlight--;
+            }
+            entry.succeed();
+            pump();
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable exception) {
+            Entry entry = (Entry) token.getUserContext();
+            synchronized (TXPublishPipeline.this) {
+                mInFlight--;
+            }
+            entry.mCause = exception;
+            entry.fail();
+            pump();
+        }
+    }
+
+    /**
+     * 一批消息的聚合结果
+     */
+    private static class Batch {
+        private final TXPublishBatchResult mResult;
+        private final CompletableFuture<TXPublishBatchResult> mFuture = new CompletableFuture<>();
+
+        Batch(int total) {
+            this.mResult = new TXPublishBatchResult(total);
+        }
+
+        void completeIfDone() {
+            if (mResult.isDone()) {
+                mFuture.complete(mResult);
+            }
+        }
+    }
+
+    /**
+     * 流水线中的一条消息，作为userContext随token传回
+     */
+    private static class Entry {
+        private final TXPublishRequest mRequest;
+        private final Batch mBatch;
+        private Throwable mCause;
+
+        Entry(TXPublishRequest request, Batch batch) {
+            this.mRequest = request;
+            this.mBatch = batch;
+        }
+
+        void succeed() {
+            mBatch.mResult.onSuccess();
+            mBatch.completeIfDone();
+        }
+
+        void fail() {
+            mBatch.mResult.onFailure(mRequest, mCause);
+            mBatch.completeIfDone();
+        }
+    }
+}
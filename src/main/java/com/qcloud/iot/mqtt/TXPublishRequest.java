@@ -0,0 +1,35 @@
+package com.qcloud.iot.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * 一条待发布的MQTT消息
+ */
+public class TXPublishRequest {
+
+    private final String topic;
+
+    private final MqttMessage message;
+
+    /**
+     * @param topic   topic名称
+     * @param message 消息内容
+     */
+    public TXPublishRequest(String topic, MqttMessage message) {
+        this.topic = topic;
+        this.message = message;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public MqttMessage getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "TXPublishRequest{topic=" + topic + ", message=" + message + "}";
+    }
+}
@@ -0,0 +1,218 @@
+package com.qcloud.iot.mqtt;
+
+import com.qcloud.iot.util.HashedWheelTimer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个连接的重连调度器
+ * <p>
+ * 连接断开或重连失败后，按去相关抖动（decorrelated jitter）的指数退避计算下次重连的延迟：
+ * delay = min(maxDelay, random(baseDelay, 上次延迟 * 3))，连接成功后重置。
+ * 延迟到期后重连请求交给进程内共享的TXConnectThrottle排队放行，避免大量连接同时重连。
+ * 设置了重连调度器的连接不使用Paho的自动重连。
+ */
+@Slf4j
+public class TXReconnectScheduler {
+
+    /**
+     * 默认的首次重连延迟，单位：毫秒
+     */
+    public static final long DEFAULT_BASE_DELAY_MS = 1000;
+
+    /**
+     * 默认的最大重连延迟，单位：毫秒
+     */
+    public static final long DEFAULT_MAX_DELAY_MS = 120 * 1000;
+
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final TXConnectThrottle mThrottle;
+    private final Random mRandom;
+
+    private TXMqttConnection mConnection;
+
+    /**
+     * 以下字段由this保护
+     */
+    private long mLastDelayMs;
+    private HashedWheelTimer.Timeout mTimeout;
+    private boolean mStopped;
+
+    private final AtomicLong mAttempts = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mReconnects = new AtomicLong();
+
+    public TXReconnectScheduler() {
+        this(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    /**
+     * @param baseDelayMs 首次重连延迟，单位：毫秒
+     * @param maxDelayMs  最大重连延迟，单位：毫秒
+     */
+    public TXReconnectScheduler(long baseDelayMs, long maxDelayMs) {
+        this(baseDelayMs, maxDelayMs, TXConnectThrottle.getDefault(), new Random());
+    }
+
+    /**
+     * @param baseDelayMs 首次重连延迟，单位：毫秒
+     * @param maxDelayMs  最大重连延迟，单位：毫秒
+     * @param throttle    连接限流器
+     * @param random      抖动使用的随机数，指定种子可使退避序列可重现
+     */
+    public TXReconnectScheduler(long baseDelayMs, long maxDelayMs, TXConnectThrottle throttle, Random random) {
+        if (baseDelayMs <= 0 || maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException("invalid delay: base " + baseDelayMs + ", max " + maxDelayMs);
+        }
+        this.mBaseDelayMs = baseDelayMs;
+        this.mMaxDelayMs = maxDelayMs;
+        this.mThrottle = throttle;
+        this.mRandom = random;
+    }
+
+    /**
+     * 绑定连接，由TXMqttConnection.setReconnectScheduler调用
+     */
+    synchronized void attach(TXMqttConnection connection) {
+        if (mConnection != null && mConnection != connection) {
+            throw new IllegalStateException("reconnect scheduler already attached to " + mConnection.mClientId);
+        }
+        mConnection = connection;
+    }
+
+    /**
+     * 连接断开或重连失败，按退避延迟安排下次重连。已安排的重连尚未执行时不重复安排
+     */
+    void schedule() {
+        long delay;
+        synchronized (this) {
+            if (mStopped || mTimeout != null) {
+                return;
+            }
+            delay = nextDelay();
+            mTimeout = TXSharedPingSender.getSharedTimer().newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (TXReconnectScheduler.this) {
+                        mTimeout = null;
+                        if (mStopped) {
+                            return;
+                        }
+                    }
+                    mThrottle.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            attempt();
+                        }
+                    });
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        log.info("{} reconnect in {} ms", mConnection.mClientId, delay);
+    }
+
+    /**
+     * 连接成功，重置退避延迟
+     */
+    synchronized void onConnected() {
+        mLastDelayMs = 0;
+        mStopped = false;
+    }
+
+    /**
+     * 用户主动断开，取消已安排的重连，直到下次连接成功
+     */
+    synchronized void stop() {
+        mStopped = true;
+        if (mTimeout != null) {
+            mTimeout.cancel();
+            mTimeout = null;
+        }
+    }
+
+    /**
+     * 去相关抖动：在[baseDelay, 上次延迟 * 3)中随机选取，不超过maxDelay
+     */
+    synchronized long nextDelay() {
+        long upper = Math.max(mBaseDelayMs + 1, Math.min(mMaxDelayMs, Math.max(mLastDelayMs, mBaseDelayMs) * 3));
+        long delay = mBaseDelayMs + (long) (mRandom.nextDouble() * (upper - mBaseDelayMs));
+        mLastDelayMs = Math.min(mMaxDelayMs, delay);
+        return mLastDelayMs;
+    }
+
+    /**
+     * 限流器放行后发起重连，已持有一个连接许可
+     */
+    private void attempt() {
+        synchronized (this) {
+            if (mStopped) {
+                mThrottle.release();
+                return;
+            }
+        }
+        mAttempts.incrementAndGet();
+        if (!mConnection.reconnectNow(this)) {
+            // 未发起连接（已连接或正在连接），归还许可
+            mThrottle.release();
+        }
+    }
+
+    /**
+     * 发起的重连有了结果，由TXMqttConnection调用
+     */
+    void onAttemptCompleted(boolean success) {
+        mThrottle.release();
+        if (success) {
+            mReconnects.incrementAndGet();
+            onConnected();
+        } else {
+            mFailures.incrementAndGet();
+            schedule();
+        }
+    }
+
+    /**
+     * @return 发起的重连次数
+     */
+    public long getAttempts() {
+        return mAttempts.get();
+    }
+
+    /**
+     * @return 失败的重连次数
+     */
+    public long getFailures() {
+        return mFailures.get();
+    }
+
+    /**
+     * @return 成功的重连次数
+     */
+    public long getReconnects() {
+        return mReconnects.get();
+    }
+
+    /**
+     * @return 最近一次安排重连的延迟，连接成功后为0，单位：毫秒
+     */
+    public synchronized long getLastDelayMs() {
+        return mLastDelayMs;
+    }
+
+    /**
+     * @return 是否有已安排、尚未执行的重连
+     */
+    public synchronized boolean isScheduled() {
+        return mTimeout != null;
+    }
+
+    @Override
+    public String toString() {
+        return "TXReconnectScheduler{attempts=" + getAttempts() + ", failures=" + getFailures() + ", reconnects="
+                + getReconnects() + ", lastDelayMs=" + getLastDelayMs() + "}";
+    }
+}
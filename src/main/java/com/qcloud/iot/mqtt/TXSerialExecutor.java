@@ -0,0 +1,86 @@
+package com.qcloud.iot.mqtt;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 串行执行器：提交到同一个实例的任务按提交顺序依次执行，但不独占线程，
+ * 实际执行线程从共享的底层Executor中借用，队列为空时归还。
+ * 底层Executor拒绝任务（如已关闭）时在提交线程上按顺序执行完队列中的任务，不会丢失任务。
+ */
+@Slf4j
+public class TXSerialExecutor implements Executor {
+
+    private final Executor mDelegate;
+
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean mRunning = new AtomicBoolean(false);
+
+    private final AtomicInteger mPending = new AtomicInteger(0);
+
+    /**
+     * @param delegate 实际执行任务的共享线程池
+     */
+    public TXSerialExecutor(Executor delegate) {
+        this.mDelegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mTasks.offer(task);
+        mPending.incrementAndGet();
+        schedule();
+    }
+
+    /**
+     * @return 尚未执行完成的任务数
+     */
+    public int getPendingCount() {
+        return mPending.get();
+    }
+
+    private void schedule() {
+        if (mRunning.compareAndSet(false, true)) {
+            try {
+                mDelegate.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.warn("delegate rejected serial tasks, run them in caller thread: {}", e.getMessage());
+                drain();
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.error("serial task failed", t);
+                } finally {
+                    mPending.decrementAndGet();
+                }
+            }
+        } finally {
+            mRunning.set(false);
+        }
+
+        //释放执行权后可能有新任务进入队列，需要重新调度
+        if (!mTasks.isEmpty()) {
+            schedule();
+        }
+    }
+}
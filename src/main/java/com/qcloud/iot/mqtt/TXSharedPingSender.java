@@ -0,0 +1,150 @@
+package com.qcloud.iot.mqtt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qcloud.iot.util.HashedWheelTimer;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.internal.ClientComms;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 共享时间轮的心跳发送器
+ * <p>
+ * 进程内所有MQTT连接共用同一个哈希时间轮驱动心跳，避免TimerPingSender每个连接一个Timer线程。
+ * 每次调度在Paho给出的延迟上叠加一个随机抖动，使大量设备同时上线后心跳逐渐错开，不会集中成突发。
+ * Paho在心跳到期前被唤醒时只会重新计算剩余时间，因此抖动只能向后延迟；抖动比例上限为0.25，
+ * 在Paho（2倍keepAlive）和服务端（1.5倍keepAlive）的超时判定范围之内。
+ * <p>
+ * 时间轮线程只负责计时，心跳检查（可能发送PINGREQ，超时时关闭连接）交给共享的定时任务线程池执行。
+ */
+@Slf4j
+public class TXSharedPingSender implements MqttPingSender {
+
+    /**
+     * 默认抖动比例：在调度延迟上随机增加0~10%
+     */
+    public static final double DEFAULT_JITTER_RATIO = 0.1;
+
+    /**
+     * 抖动比例上限
+     */
+    public static final double MAX_JITTER_RATIO = 0.25;
+
+    /**
+     * 定时任务线程数
+     */
+    public static final int TIMER_TASK_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final HashedWheelTimer PING_TIMER = new HashedWheelTimer("TXMqtt-ping-wheel", 100, TimeUnit.MILLISECONDS, 512);
+
+    private static final ThreadPoolExecutor TIMER_TASK_EXECUTOR = new ThreadPoolExecutor(TIMER_TASK_THREADS, TIMER_TASK_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat("TXMqtt-timer-task-%d").setDaemon(true).build());
+
+    static {
+        TIMER_TASK_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final double mJitterRatio;
+
+    private ClientComms mComms;
+    private String mClientId;
+
+    private volatile HashedWheelTimer.Timeout mPingTimeout;
+
+    private final Runnable mCheckForActivity = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mComms.checkForActivity();
+            } catch (Throwable t) {
+                log.error("MQTT心跳检查失败, clientId=>{} ", mClientId, t);
+            }
+        }
+    };
+
+    public TXSharedPingSender() {
+        this(DEFAULT_JITTER_RATIO);
+    }
+
+    /**
+     * @param jitterRatio 抖动比例（0 ~ 0.25），0表示不抖动
+     */
+    public TXSharedPingSender(double jitterRatio) {
+        if (jitterRatio < 0 || jitterRatio > MAX_JITTER_RATIO) {
+            throw new IllegalArgumentException("jitterRatio must be in [0, " + MAX_JITTER_RATIO + "]: " + jitterRatio);
+        }
+        this.mJitterRatio = jitterRatio;
+    }
+
+    /**
+     * 进程内共享的心跳时间轮，所有连接的心跳、重连退避、凭证预签名、批量操作超时、遥测合并窗口和离线补发节拍都在这一个线程上到期。
+     * <p>
+     * 到期任务直接在时间轮线程上执行，只允许做计时相关的轻量操作：读写状态、取消或重新调度、向队列或线程池提交任务。
+     * 不允许在时间轮线程上做网络或磁盘I/O、调用Paho的publish/connect、等待其他锁（包括连接对象的监视器）或睡眠，
+     * 这些工作需要提交到{@link #getSharedExecutor()}，否则会推迟进程内所有连接的心跳。
+     *
+     * @return 进程内共享的心跳时间轮
+     */
+    public static HashedWheelTimer getSharedTimer() {
+        return PING_TIMER;
+    }
+
+    /**
+     * @return 执行时间轮到期后较重工作的共享线程池
+     */
+    public static Executor getSharedExecutor() {
+        return TIMER_TASK_EXECUTOR;
+    }
+
+    @Override
+    public void init(ClientComms comms) {
+        this.mComms = comms;
+        this.mClientId = comms.getClient().getClientId();
+    }
+
+    @Override
+    public void start() {
+        schedule(mComms.getKeepAlive());
+        log.debug("MQTT心跳启动,clientId=>{} ", mClientId);
+    }
+
+    @Override
+    public void stop() {
+        HashedWheelTimer.Timeout timeout = mPingTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        log.debug("MQTT心跳停止, clientId=>{} ", mClientId);
+    }
+
+    @Override
+    public void schedule(long delayInMilliseconds) {
+        mPingTimeout = PING_TIMER.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                TIMER_TASK_EXECUTOR.execute(mCheckForActivity);
+            }
+        }, jitter(delayInMilliseconds, mJitterRatio), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 在延迟时间上叠加随机抖动
+     *
+     * @param delay       原始延迟，单位：毫秒
+     * @param jitterRatio 抖动比例
+     * @return 抖动后的延迟，单位：毫秒
+     */
+    static long jitter(long delay, double jitterRatio) {
+        long bound = (long) (delay * jitterRatio);
+        if (bound <= 0) {
+            return delay;
+        }
+        return delay + ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+}
@@ -0,0 +1,146 @@
+package com.qcloud.iot.mqtt;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 基于topic前缀树的消息分发器
+ * <p>
+ * 注册的topic过滤器按层级（以'/'分隔）编入前缀树，支持MQTT通配符'+'（单层）和'#'（多层，只能位于末尾）。
+ * 分发一条消息的开销只与topic层数相关，与注册的过滤器数量无关。
+ * 按MQTT规范，以'$'开头的topic不会被首层为通配符的过滤器匹配。
+ */
+@Slf4j
+public class TXTopicDispatcher {
+
+    private static final String SINGLE_LEVEL_WILDCARD = "+";
+    private static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private final Node mRoot = new Node();
+
+    /**
+     * 注册消息处理器
+     *
+     * @param topicFilter topic过滤器，可包含'+'、'#'通配符
+     * @param handler     消息处理器
+     * @throws IllegalArgumentException topic过滤器不合法
+     */
+    public void addHandler(String topicFilter, TXMessageHandler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("handler is null");
+        }
+
+        Node node = mRoot;
+        for (String level : splitFilter(topicFilter)) {
+            Node child = node.mChildren.get(level);
+            if (child == null) {
+                Node newChild = new Node();
+                child = node.mChildren.putIfAbsent(level, newChild);
+                if (child == null) {
+                    child = newChild;
+                }
+            }
+            node = child;
+        }
+        node.mHandlers.add(handler);
+    }
+
+    /**
+     * 注销消息处理器
+     *
+     * @param topicFilter 注册时使用的topic过滤器
+     * @param handler     消息处理器
+     * @return 找到并注销返回true
+     */
+    public boolean removeHandler(String topicFilter, TXMessageHandler handler) {
+        Node node = mRoot;
+        for (String level : splitFilter(topicFilter)) {
+            node = node.mChildren.get(level);
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.mHandlers.remove(handler);
+    }
+
+    /**
+     * 将消息分发给所有匹配的处理器
+     *
+     * @param topic   消息主题
+     * @param message 消息内容
+     * @return 任一处理器返回true时返回true
+     */
+    public boolean dispatch(String topic, MqttMessage message) {
+        String[] levels = topic.split("/", -1);
+        boolean systemTopic = topic.startsWith("$");
+        return match(mRoot, levels, 0, systemTopic, topic, message);
+    }
+
+    private boolean match(Node node, String[] levels, int index, boolean systemTopic, String topic, MqttMessage message) {
+        boolean consumed = false;
+        boolean allowWildcard = !(index == 0 && systemTopic);
+
+        // "a/#" 同时匹配 "a" 本身
+        Node multi = allowWildcard ? node.mChildren.get(MULTI_LEVEL_WILDCARD) : null;
+        if (multi != null) {
+            consumed |= invoke(multi.mHandlers, topic, message);
+        }
+
+        if (index == levels.length) {
+            return invoke(node.mHandlers, topic, message) | consumed;
+        }
+
+        Node exact = node.mChildren.get(levels[index]);
+        if (exact != null) {
+            consumed |= match(exact, levels, index + 1, systemTopic, topic, message);
+        }
+
+        Node single = allowWildcard ? node.mChildren.get(SINGLE_LEVEL_WILDCARD) : null;
+        if (single != null) {
+            consumed |= match(single, levels, index + 1, systemTopic, topic, message);
+        }
+
+        return consumed;
+    }
+
+    private static boolean invoke(List<TXMessageHandler> handlers, String topic, MqttMessage message) {
+        boolean consumed = false;
+        for (TXMessageHandler handler : handlers) {
+            try {
+                consumed |= handler.onMessage(topic, message);
+            } catch (Exception e) {
+                log.error("handle message of topic: {} failed.", topic, e);
+            }
+        }
+        return consumed;
+    }
+
+    private static String[] splitFilter(String topicFilter) {
+        if (topicFilter == null || topicFilter.length() == 0) {
+            throw new IllegalArgumentException("topic filter is empty");
+        }
+
+        String[] levels = topicFilter.split("/", -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals(MULTI_LEVEL_WILDCARD)) {
+                if (i != levels.length - 1) {
+                    throw new IllegalArgumentException("'#' must be the last level: " + topicFilter);
+                }
+            } else if (!level.equals(SINGLE_LEVEL_WILDCARD)
+                    && (level.contains(MULTI_LEVEL_WILDCARD) || level.contains(SINGLE_LEVEL_WILDCARD))) {
+                throw new IllegalArgumentException("wildcard must occupy an entire level: " + topicFilter);
+            }
+        }
+        return levels;
+    }
+
+    private static class Node {
+        private final ConcurrentHashMap<String, Node> mChildren = new ConcurrentHashMap<>();
+        private final List<TXMessageHandler> mHandlers = new CopyOnWriteArrayList<>();
+    }
+}
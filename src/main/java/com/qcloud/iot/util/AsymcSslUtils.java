@@ -1,12 +1,14 @@
 package com.qcloud.iot.util;
 
 
+import com.google.common.io.ByteStreams;
 import com.qcloud.iot.device.CA;
 import lombok.extern.slf4j.Slf4j;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openssl.PEMParser;
 
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -28,6 +30,13 @@ import java.util.Random;
 public class AsymcSslUtils {
     private static String PASSWORD = String.valueOf(new Random(System.currentTimeMillis()).nextInt());
 
+    static {
+        // 只注册一次，不在每次构造SSLSocketFactory时重复创建Provider
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
     /**
      * 读取resouce文件
      * <p>
@@ -92,187 +101,83 @@ public class AsymcSslUtils {
     }
 
     /**
-     * 获取双向认证SSLSocketFactory
+     * 获取双向认证SSLSocketFactory，相同证书及私钥共用缓存的SSLContext
      *
      * @param clientInput 设备证书文件输入流
      * @param keyInput    设备私钥文件输入流
      * @return
      */
     public static SSLSocketFactory getSocketFactoryByStream(final InputStream clientInput, final InputStream keyInput) {
-        Security.addProvider(new BouncyCastleProvider());
-        CertificateFactory certFactory = null;
+        byte[] clientCrt;
+        byte[] clientKey;
         try {
-            certFactory = CertificateFactory.getInstance("X.509");
-        } catch (CertificateException e) {
-            log.error("getSocketFactory failed, create CertificateFactory error.", e);
-        }
-
-        PEMParser parser = null;
-        X509Certificate caCert = null;
-        X509Certificate clientCert = null;
-        PrivateKey privateKey = null;
-
-        // load CA certificate
-        {
-            ByteArrayInputStream caInput = new ByteArrayInputStream(CA.caCrt.getBytes(Charset.forName("UTF-8")));
-            parser = new PEMParser(new InputStreamReader(caInput));
-            Object object = null;
-            try {
-                object = parser.readObject();
-            } catch (IOException e) {
-                log.error("parse CA failed.", e);
-                return null;
-            }
-
-            if (!(object instanceof X509CertificateHolder)) {
-                log.error("CA file not X509CertificateHolder.");
-                return null;
-            }
-
-            X509CertificateHolder certificateHolder = (X509CertificateHolder) object;
-            try {
-                InputStream caIn = new ByteArrayInputStream(certificateHolder.getEncoded());
-                caCert = (X509Certificate) certFactory.generateCertificate(caIn);
-                caIn.close();
-                parser.close();
-            } catch (Exception e) {
-                log.error("generate CA certtificate failed.", e);
-                return null;
-            }
-
-        }
-
-        // load client certificate
-        {
-            parser = new PEMParser(new InputStreamReader(clientInput));
-            Object object = null;
-            try {
-                object = parser.readObject();
-            } catch (IOException e) {
-                log.error("parse Client CRT failed.", e);
-                return null;
-            }
-
-            if (!(object instanceof X509CertificateHolder)) {
-                log.error("Client CRT file not X509CertificateHolder.");
-                return null;
-            }
-
-            X509CertificateHolder certificateHolder = (X509CertificateHolder) object;
-            try {
-                InputStream clientIn = new ByteArrayInputStream(certificateHolder.getEncoded());
-                clientCert = (X509Certificate) certFactory.generateCertificate(clientIn);
-                clientIn.close();
-                parser.close();
-            } catch (Exception e) {
-                log.error("generate Client certtificate failed.", e);
-                return null;
-            }
-        }
-
-        // load client private key
-        {
-            try {
-                privateKey = getPrivateKey(keyInput, null);
-            } catch (Exception e) {
-                log.error("generate PrivateKey failed.", e);
-                return null;
-            }
+            clientCrt = ByteStreams.toByteArray(clientInput);
+            clientKey = ByteStreams.toByteArray(keyInput);
+        } catch (IOException e) {
+            log.error("read Client CRT or PrivateKey failed.", e);
+            return null;
         }
+        return SslContextCache.getSocketFactory(CA.caCrt, clientCrt, clientKey);
+    }
 
-        try {
-            // CA certificate is used to authenticate server
-            KeyStore caKs = KeyStore.getInstance(KeyStore.getDefaultType());
-            caKs.load(null, null);
-            caKs.setCertificateEntry("ca-certificate", caCert);
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            tmf.init(caKs);
+    /**
+     * 获取SSLSocketFactory，所有连接共用缓存的SSLContext
+     *
+     * @return
+     */
+    public static SSLSocketFactory getSocketFactory() {
+        return SslContextCache.getSocketFactory();
+    }
 
+    /**
+     * 构造SSLContext，由SslContextCache调用
+     *
+     * @param caCrt     PEM格式的CA证书
+     * @param clientCrt PEM格式的客户端证书，为null时不进行双向认证
+     * @param clientKey PEM格式的客户端私钥，为null时不进行双向认证
+     * @return SSLContext
+     */
+    static SSLContext createContext(String caCrt, byte[] clientCrt, byte[] clientKey) throws Exception {
+        // CA certificate is used to authenticate server
+        X509Certificate caCert = parseCertificate(caCrt.getBytes(Charset.forName("UTF-8")));
+        KeyStore caKs = KeyStore.getInstance(KeyStore.getDefaultType());
+        caKs.load(null, null);
+        caKs.setCertificateEntry("ca-certificate", caCert);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(caKs);
+
+        KeyManager[] keyManagers = null;
+        if (clientCrt != null && clientKey != null) {
             // client key and certificates are sent to server so it can authenticate us
+            X509Certificate clientCert = parseCertificate(clientCrt);
+            PrivateKey privateKey = getPrivateKey(new ByteArrayInputStream(clientKey), null);
             KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
             ks.load(null, null);
             ks.setCertificateEntry("certificate", clientCert);
             ks.setKeyEntry("private-key", privateKey, PASSWORD.toCharArray(), new java.security.cert.Certificate[]{clientCert});
             KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
             kmf.init(ks, PASSWORD.toCharArray());
-
-            // finally, create SSL socket factory
-            SSLContext context = SSLContext.getInstance("TLS");
-            context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-            return context.getSocketFactory();
-        } catch (Exception e) {
-            log.error("construct SSLSocketFactory failed.", e);
-            return null;
+            keyManagers = kmf.getKeyManagers();
         }
 
+        // finally, create SSL context
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers, tmf.getTrustManagers(), null);
+        return context;
     }
 
-    /**
-     * 获取SSLSocketFactory
-     *
-     * @return
-     */
-    public static SSLSocketFactory getSocketFactory() {
-        Security.addProvider(new BouncyCastleProvider());
-        CertificateFactory certFactory = null;
+    private static X509Certificate parseCertificate(byte[] pem) throws IOException, CertificateException {
+        PEMParser parser = new PEMParser(new InputStreamReader(new ByteArrayInputStream(pem), Charset.forName("UTF-8")));
         try {
-            certFactory = CertificateFactory.getInstance("X.509");
-        } catch (CertificateException e) {
-            log.error("getSocketFactory failed, create CertificateFactory error.", e);
-        }
-
-        PEMParser parser = null;
-        X509Certificate caCert = null;
-
-        // load CA certificate
-        {
-            ByteArrayInputStream caInput = new ByteArrayInputStream(CA.caCrt.getBytes(Charset.forName("UTF-8")));
-            parser = new PEMParser(new InputStreamReader(caInput));
-            Object object = null;
-            try {
-                object = parser.readObject();
-            } catch (IOException e) {
-                log.error("parse CA failed.", e);
-                return null;
-            }
-
+            Object object = parser.readObject();
             if (!(object instanceof X509CertificateHolder)) {
-                log.error("CA file not X509CertificateHolder.");
-                return null;
-            }
-
-            X509CertificateHolder certificateHolder = (X509CertificateHolder) object;
-            try {
-                InputStream caIn = new ByteArrayInputStream(certificateHolder.getEncoded());
-                caCert = (X509Certificate) certFactory.generateCertificate(caIn);
-                caIn.close();
-                parser.close();
-            } catch (Exception e) {
-                log.error("generate CA certtificate failed.", e);
-                return null;
+                throw new CertificateException("not a X509 certificate: " + object);
             }
-
-        }
-
-
-        try {
-            // CA certificate is used to authenticate server
-            KeyStore caKs = KeyStore.getInstance(KeyStore.getDefaultType());
-            caKs.load(null, null);
-            caKs.setCertificateEntry("ca-certificate", caCert);
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            tmf.init(caKs);
-
-
-            // finally, create SSL socket factory
-            SSLContext context = SSLContext.getInstance("TLS");
-            context.init(null, tmf.getTrustManagers(), null);
-            return context.getSocketFactory();
-        } catch (Exception e) {
-            log.error("construct SSLSocketFactory failed.", e);
-            return null;
+            InputStream in = new ByteArrayInputStream(((X509CertificateHolder) object).getEncoded());
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        } finally {
+            parser.close();
         }
-
     }
 
     private static PrivateKey getPrivateKey(InputStream stream, String algorithm) throws IOException,
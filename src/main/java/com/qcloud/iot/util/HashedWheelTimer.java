@@ -0,0 +1,367 @@
+package com.qcloud.iot.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 哈希时间轮定时器
+ * <p>
+ * 单个工作线程按固定tick推进时间轮，添加、取消定时任务均为O(1)，适合大量精度要求不高的定时任务（如MQTT心跳）。
+ * 定时任务在工作线程上执行，任务本身必须足够轻量，不能阻塞。
+ */
+@Slf4j
+public class HashedWheelTimer {
+
+    private static final int WORKER_STATE_INIT = 0;
+    private static final int WORKER_STATE_STARTED = 1;
+    private static final int WORKER_STATE_SHUTDOWN = 2;
+
+    /**
+     * 每个tick最多从待添加队列中转移的任务数，避免工作线程长时间停留在转移阶段
+     */
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private final AtomicInteger mWorkerState = new AtomicInteger(WORKER_STATE_INIT);
+
+    private final long mTickNanos;
+    private final Bucket[] mWheel;
+    private final int mMask;
+
+    private final Queue<WheelTimeout> mPendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<WheelTimeout> mCancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicLong mPendingCount = new AtomicLong(0);
+
+    private final Thread mWorkerThread;
+    private final CountDownLatch mStartLatch = new CountDownLatch(1);
+    private volatile long mStartTime;
+
+    /**
+     * 仅工作线程访问
+     */
+    private long mTick;
+
+    /**
+     * @param name          工作线程名
+     * @param tickDuration  每个tick的时长
+     * @param unit          tickDuration的时间单位
+     * @param ticksPerWheel 时间轮的槽数，会向上取整为2的幂
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("ticksPerWheel out of range: " + ticksPerWheel);
+        }
+
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.mWheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            mWheel[i] = new Bucket();
+        }
+        this.mMask = size - 1;
+        this.mTickNanos = unit.toNanos(tickDuration);
+
+        this.mWorkerThread = new Thread(new Worker(), name);
+        this.mWorkerThread.setDaemon(true);
+    }
+
+    /**
+     * 添加一个定时任务
+     *
+     * @param task  到期时执行的任务
+     * @param delay 延迟时间
+     * @param unit  delay的时间单位
+     * @return 可用于取消的定时任务句柄
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        start();
+
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(0, delay)) - mStartTime;
+        WheelTimeout timeout = new WheelTimeout(task, deadline);
+        mPendingCount.incrementAndGet();
+        mPendingTimeouts.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return 尚未到期且未取消的定时任务数
+     */
+    public long pendingTimeouts() {
+        return mPendingCount.get();
+    }
+
+    /**
+     * 停止工作线程，未到期的任务不再执行
+     */
+    public void stop() {
+        if (Thread.currentThread() == mWorkerThread) {
+            throw new IllegalStateException("stop() cannot be called from a timer task");
+        }
+
+        if (mWorkerState.getAndSet(WORKER_STATE_SHUTDOWN) == WORKER_STATE_STARTED) {
+            mWorkerThread.interrupt();
+            try {
+                mWorkerThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mPendingTimeouts.clear();
+        mCancelledTimeouts.clear();
+        mPendingCount.set(0);
+    }
+
+    private void start() {
+        switch (mWorkerState.get()) {
+            case WORKER_STATE_INIT:
+                if (mWorkerState.compareAndSet(WORKER_STATE_INIT, WORKER_STATE_STARTED)) {
+                    mWorkerThread.start();
+                }
+                break;
+            case WORKER_STATE_STARTED:
+                break;
+            default:
+                throw new IllegalStateException("HashedWheelTimer has been stopped");
+        }
+
+        // 等待工作线程初始化起始时间
+        while (mStartTime == 0) {
+            try {
+                mStartLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 定时任务句柄
+     */
+    public interface Timeout {
+        /**
+         * 取消定时任务
+         *
+         * @return 取消成功返回true，任务已到期或已取消返回false
+         */
+        boolean cancel();
+
+        /**
+         * @return 任务是否已取消
+         */
+        boolean isCancelled();
+
+        /**
+         * @return 任务是否已到期执行
+         */
+        boolean isExpired();
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            long startTime = System.nanoTime();
+            mStartTime = startTime == 0 ? 1 : startTime;
+            mStartLatch.countDown();
+
+            while (mWorkerState.get() == WORKER_STATE_STARTED) {
+                long deadline = waitForNextTick();
+                if (deadline > 0) {
+                    int idx = (int) (mTick & mMask);
+                    processCancelledTimeouts();
+                    transferTimeoutsToBuckets();
+                    mWheel[idx].expireTimeouts(deadline);
+                    mTick++;
+                }
+            }
+        }
+
+        private long waitForNextTick() {
+            long deadline = mTickNanos * (mTick + 1);
+
+            while (true) {
+                long currentTime = System.nanoTime() - mStartTime;
+                long sleepTimeMs = (deadline - currentTime + 999999) / 1000000;
+
+                if (sleepTimeMs <= 0) {
+                    return currentTime;
+                }
+
+                try {
+                    Thread.sleep(sleepTimeMs);
+                } catch (InterruptedException e) {
+                    if (mWorkerState.get() == WORKER_STATE_SHUTDOWN) {
+                        return Long.MIN_VALUE;
+                    }
+                }
+            }
+        }
+
+        private void transferTimeoutsToBuckets() {
+            for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+                WheelTimeout timeout = mPendingTimeouts.poll();
+                if (timeout == null) {
+                    break;
+                }
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+
+                long calculated = timeout.mDeadline / mTickNanos;
+                timeout.mRemainingRounds = (calculated - mTick) / mWheel.length;
+
+                // 已经过期的任务放到当前槽中，本tick立即执行
+                long ticks = Math.max(calculated, mTick);
+                mWheel[(int) (ticks & mMask)].add(timeout);
+            }
+        }
+
+        private void processCancelledTimeouts() {
+            WheelTimeout timeout;
+            while ((timeout = mCancelledTimeouts.poll()) != null) {
+                if (timeout.mBucket != null) {
+                    timeout.mBucket.remove(timeout);
+                }
+            }
+        }
+    }
+
+    private final class WheelTimeout implements Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private final Runnable mTask;
+        private final long mDeadline;
+        private final AtomicInteger mState = new AtomicInteger(ST_INIT);
+
+        /**
+         * 以下字段仅工作线程访问
+         */
+        private long mRemainingRounds;
+        private WheelTimeout mNext;
+        private WheelTimeout mPrev;
+        private Bucket mBucket;
+
+        WheelTimeout(Runnable task, long deadline) {
+            this.mTask = task;
+            this.mDeadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!mState.compareAndSet(ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            mPendingCount.decrementAndGet();
+            mCancelledTimeouts.offer(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mState.get() == ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return mState.get() == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!mState.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            mPendingCount.decrementAndGet();
+
+            try {
+                mTask.run();
+            } catch (Throwable t) {
+                log.warn("An exception was thrown by timer task.", t);
+            }
+        }
+    }
+
+    /**
+     * 时间轮的槽，双向链表，仅工作线程访问
+     */
+    private static final class Bucket {
+        private WheelTimeout mHead;
+        private WheelTimeout mTail;
+
+        void add(WheelTimeout timeout) {
+            timeout.mBucket = this;
+            if (mHead == null) {
+                mHead = mTail = timeout;
+            } else {
+                mTail.mNext = timeout;
+                timeout.mPrev = mTail;
+                mTail = timeout;
+            }
+        }
+
+        void expireTimeouts(long deadline) {
+            WheelTimeout timeout = mHead;
+
+            while (timeout != null) {
+                WheelTimeout next = timeout.mNext;
+                if (timeout.mRemainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.mDeadline <= deadline) {
+                        timeout.expire();
+                    } else {
+                        // 不应出现：任务被放入了错误的槽
+                        throw new IllegalStateException(String.format(
+                                "timeout.deadline (%d) > deadline (%d)", timeout.mDeadline, deadline));
+                    }
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.mRemainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(WheelTimeout timeout) {
+            if (timeout.mBucket != this) {
+                return;
+            }
+
+            WheelTimeout next = timeout.mNext;
+            if (timeout.mPrev != null) {
+                timeout.mPrev.mNext = next;
+            }
+            if (next != null) {
+                next.mPrev = timeout.mPrev;
+            }
+
+            if (timeout == mHead) {
+                if (timeout == mTail) {
+                    mHead = null;
+                    mTail = null;
+                } else {
+                    mHead = next;
+                }
+            } else if (timeout == mTail) {
+                mTail = timeout.mPrev;
+            }
+
+            timeout.mPrev = null;
+            timeout.mNext = null;
+            timeout.mBucket = null;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.qcloud.iot.util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * 使用固定密钥的HMAC签名器
+ * <p>
+ * HmacSha256/HmacSha1每次签名都会新建Mac及SecretKeySpec，查找Provider及初始化密钥的开销远大于签名本身。
+ * 签名器只构造一次密钥，每个线程复用一个已初始化的Mac（doFinal后自动重置），可被多个线程同时使用。
+ */
+public class HmacSigner {
+
+    public static final String HMAC_SHA1 = "HmacSHA1";
+
+    public static final String HMAC_SHA256 = "HmacSHA256";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String mAlgorithm;
+    private final SecretKeySpec mKey;
+    private final ThreadLocal<Mac> mMac;
+
+    /**
+     * @param algorithm 签名算法，HMAC_SHA1或HMAC_SHA256
+     * @param key       签名使用的key
+     * @throws IllegalArgumentException key为空或算法不支持
+     */
+    public HmacSigner(String algorithm, byte[] key) {
+        this.mAlgorithm = algorithm;
+        this.mKey = new SecretKeySpec(key, algorithm);
+        this.mMac = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                return newMac();
+            }
+        };
+        // 构造时即校验密钥及算法
+        mMac.get();
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(mAlgorithm);
+            mac.init(mKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("init " + mAlgorithm + " failed", e);
+        }
+    }
+
+    /**
+     * @param data 待签名的数据
+     * @return 签名
+     */
+    public byte[] sign(byte[] data) {
+        return mMac.get().doFinal(data);
+    }
+
+    /**
+     * @param data 待签名的数据
+     * @return 16进制编码（小写）的签名
+     */
+    public String signHex(byte[] data) {
+        return toHexString(sign(data));
+    }
+
+    /**
+     * byte[]数组转换为16进制（小写）的字符串
+     *
+     * @param bytes 要转换的字节数组
+     * @return 转换后的结果
+     */
+    public static String toHexString(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+}
@@ -0,0 +1,354 @@
+package com.qcloud.iot.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件的环形日志
+ * <p>
+ * 日志以记录为单位追加写入固定数量、固定大小的段文件，段文件写满后循环复用最旧的段，总大小有上限。
+ * 每条记录格式为[长度（4字节）][CRC32（4字节）][内容]，记录之后紧跟一个长度为0的结束标记；
+ * 每个段文件头部为段序号（8字节）。读取位置保存在独立的检查点文件中，读取方先peek一批记录，
+ * 处理成功后再commit推进检查点，进程崩溃后从检查点继续读取，未通过CRC校验的残缺记录会被丢弃。
+ * <p>
+ * 数据写入映射内存后即对进程崩溃安全；如需防止掉电丢失，调用flush()将数据刷入磁盘。
+ */
+@Slf4j
+public class MappedRingLog {
+
+    /**
+     * 默认段文件数
+     */
+    public static final int DEFAULT_SEGMENT_COUNT = 8;
+
+    /**
+     * 默认段文件大小：1MB
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String SEGMENT_FILE_FORMAT = "segment-%d.log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int CHECKPOINT_SIZE = 20;
+
+    private final int mSegmentSize;
+
+    private final MappedByteBuffer[] mSegments;
+
+    private final MappedByteBuffer mCheckpoint;
+
+    /**
+     * 写入位置：段序号及段内偏移
+     */
+    private long mWriteSeq;
+    private int mWriteOffset;
+
+    /**
+     * 读取位置（已提交）：段序号及段内偏移
+     */
+    private long mReadSeq;
+    private int mReadOffset;
+
+    /**
+     * peek后尚未提交的读取位置
+     */
+    private long mPendingSeq;
+    private int mPendingOffset;
+
+    /**
+     * 因空间不足被覆盖的记录数
+     */
+    private long mOverwritten;
+
+    /**
+     * @param dir          存放段文件及检查点文件的目录，不存在时自动创建
+     * @param segmentCount 段文件数，至少为2
+     * @param segmentSize  段文件大小
+     * @throws IOException 创建或映射文件失败
+     */
+    public MappedRingLog(File dir, int segmentCount, int segmentSize) throws IOException {
+        if (segmentCount < 2 || segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + 4) {
+            throw new IllegalArgumentException("invalid segment count or size: " + segmentCount + ", " + segmentSize);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("create directory failed: " + dir);
+        }
+
+        this.mSegmentSize = segmentSize;
+        this.mSegments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            mSegments[i] = map(new File(dir, String.format(SEGMENT_FILE_FORMAT, i)), segmentSize);
+        }
+        this.mCheckpoint = map(new File(dir, CHECKPOINT_FILE), CHECKPOINT_SIZE);
+
+        recover();
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * 根据段文件头部及检查点恢复读写位置
+     */
+    private void recover() {
+        long maxSeq = 0;
+        long minSeq = Long.MAX_VALUE;
+        for (MappedByteBuffer segment : mSegments) {
+            long seq = segment.getLong(0);
+            if (seq > 0 && segmentOf(seq) == segment) {
+                maxSeq = Math.max(maxSeq, seq);
+                minSeq = Math.min(minSeq, seq);
+            }
+        }
+
+        if (maxSeq == 0) {
+            // 全新的日志
+            startSegment(1);
+            setReadPosition(1, SEGMENT_HEADER_SIZE);
+            saveCheckpoint();
+            return;
+        }
+
+        // 只有序号连续的段有效，更早的段在上次运行时已被复用
+        minSeq = Math.max(minSeq, maxSeq - mSegments.length + 1);
+        mWriteSeq = maxSeq;
+        mWriteOffset = scanEnd(segmentOf(maxSeq));
+
+        long cpSeq = mCheckpoint.getLong(0);
+        int cpOffset = mCheckpoint.getInt(8);
+        long cpCrc = mCheckpoint.getLong(12);
+        boolean cpValid = cpCrc == checkpointCrc(cpSeq, cpOffset)
+                && cpSeq >= minSeq && cpSeq <= maxSeq
+                && cpOffset >= SEGMENT_HEADER_SIZE && cpOffset <= mSegmentSize
+                && (cpSeq != maxSeq || cpOffset <= mWriteOffset);
+        if (cpValid) {
+            setReadPosition(cpSeq, cpOffset);
+        } else {
+            log.warn("invalid checkpoint, replay from segment {}", minSeq);
+            setReadPosition(minSeq, SEGMENT_HEADER_SIZE);
+            saveCheckpoint();
+        }
+    }
+
+    /**
+     * 扫描段内有效记录，返回最后一条有效记录之后的偏移
+     */
+    private int scanEnd(MappedByteBuffer segment) {
+        int offset = SEGMENT_HEADER_SIZE;
+        while (true) {
+            byte[] record = readRecord(segment, offset);
+            if (record == null) {
+                return offset;
+            }
+            offset += RECORD_HEADER_SIZE + record.length;
+        }
+    }
+
+    /**
+     * 读取一条记录，遇到结束标记、越界或CRC错误时返回null
+     */
+    private byte[] readRecord(MappedByteBuffer segment, int offset) {
+        if (offset + RECORD_HEADER_SIZE > mSegmentSize) {
+            return null;
+        }
+        int length = segment.getInt(offset);
+        if (length <= 0 || offset + RECORD_HEADER_SIZE + length > mSegmentSize) {
+            return null;
+        }
+
+        int crc = segment.getInt(offset + 4);
+        byte[] data = new byte[length];
+        ByteBuffer view = segment.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.get(data);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, length);
+        if ((int) crc32.getValue() != crc) {
+            log.warn("discard corrupted record at offset {}", offset);
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * 追加一条记录，空间不足时覆盖最旧的段
+     *
+     * @param data 记录内容
+     * @return 记录超过单段容量时返回false
+     */
+    public synchronized boolean append(byte[] data) {
+        int recordSize = RECORD_HEADER_SIZE + data.length;
+        if (data.length == 0 || SEGMENT_HEADER_SIZE + recordSize > mSegmentSize) {
+            return false;
+        }
+
+        if (mWriteOffset + recordSize > mSegmentSize) {
+            startSegment(mWriteSeq + 1);
+        }
+
+        MappedByteBuffer segment = segmentOf(mWriteSeq);
+        int offset = mWriteOffset;
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, data.length);
+
+        ByteBuffer view = segment.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.put(data);
+        segment.putInt(offset + 4, (int) crc32.getValue());
+        int end = offset + recordSize;
+        if (end + 4 <= mSegmentSize) {
+            segment.putInt(end, 0);
+        }
+        // 最后写入长度，记录对读取方可见
+        segment.putInt(offset, data.length);
+
+        mWriteOffset = end;
+        return true;
+    }
+
+    /**
+     * 切换到新的写入段，新段若仍有未读数据则丢弃
+     */
+    private void startSegment(long seq) {
+        long oldestValid = seq - mSegments.length + 1;
+        if (mReadSeq > 0 && mReadSeq < oldestValid) {
+            mOverwritten++;
+            log.warn("offline log is full, overwrite segment {}", mReadSeq);
+            setReadPosition(oldestValid, SEGMENT_HEADER_SIZE);
+            saveCheckpoint();
+        }
+        if (mPendingSeq > 0 && mPendingSeq < oldestValid) {
+            mPendingSeq = oldestValid;
+            mPendingOffset = SEGMENT_HEADER_SIZE;
+        }
+
+        MappedByteBuffer segment = segmentOf(seq);
+        segment.putInt(SEGMENT_HEADER_SIZE, 0);
+        segment.putLong(0, seq);
+        mWriteSeq = seq;
+        mWriteOffset = SEGMENT_HEADER_SIZE;
+    }
+
+    /**
+     * 从上次peek的位置（未peek时从已提交位置）起读取一批记录，不推进检查点
+     *
+     * @param maxBytes 本批记录内容的总字节数上限，至少返回一条记录
+     * @return 记录列表，没有未读记录时为空
+     */
+    public synchronized List<byte[]> peek(int maxBytes) {
+        List<byte[]> records = new ArrayList<>();
+        int bytes = 0;
+
+        while (true) {
+            byte[] record = readRecord(segmentOf(mPendingSeq), mPendingOffset);
+            if (record == null) {
+                if (mPendingSeq >= mWriteSeq) {
+                    break;
+                }
+                mPendingSeq++;
+                mPendingOffset = SEGMENT_HEADER_SIZE;
+                continue;
+            }
+
+            if (!records.isEmpty() && bytes + record.length > maxBytes) {
+                break;
+            }
+            records.add(record);
+            bytes += record.length;
+            mPendingOffset += RECORD_HEADER_SIZE + record.length;
+        }
+        return records;
+    }
+
+    /**
+     * 提交peek读取的记录，推进检查点
+     */
+    public synchronized void commit() {
+        mReadSeq = mPendingSeq;
+        mReadOffset = mPendingOffset;
+        saveCheckpoint();
+    }
+
+    /**
+     * 放弃peek读取的记录，下次peek从已提交位置重新读取
+     */
+    public synchronized void rollback() {
+        mPendingSeq = mReadSeq;
+        mPendingOffset = mReadOffset;
+    }
+
+    /**
+     * @return 是否有未提交的记录
+     */
+    public synchronized boolean isEmpty() {
+        return mReadSeq == mWriteSeq && mReadOffset >= mWriteOffset;
+    }
+
+    /**
+     * @return 单条记录内容的最大字节数
+     */
+    public int getMaxRecordSize() {
+        return mSegmentSize - SEGMENT_HEADER_SIZE - RECORD_HEADER_SIZE;
+    }
+
+    /**
+     * @return 因空间不足被覆盖的段数
+     */
+    public synchronized long getOverwrittenSegments() {
+        return mOverwritten;
+    }
+
+    /**
+     * 将映射内存中的数据刷入磁盘
+     */
+    public synchronized void flush() {
+        for (MappedByteBuffer segment : mSegments) {
+            segment.force();
+        }
+        mCheckpoint.force();
+    }
+
+    private void setReadPosition(long seq, int offset) {
+        mReadSeq = seq;
+        mReadOffset = offset;
+        mPendingSeq = seq;
+        mPendingOffset = offset;
+    }
+
+    private void saveCheckpoint() {
+        mCheckpoint.putLong(0, mReadSeq);
+        mCheckpoint.putInt(8, mReadOffset);
+        mCheckpoint.putLong(12, checkpointCrc(mReadSeq, mReadOffset));
+    }
+
+    private static long checkpointCrc(long seq, int offset) {
+        CRC32 crc32 = new CRC32();
+        for (int i = 0; i < 8; i++) {
+            crc32.update((int) (seq >>> (i * 8)));
+        }
+        for (int i = 0; i < 4; i++) {
+            crc32.update(offset >>> (i * 8));
+        }
+        return crc32.getValue();
+    }
+
+    private MappedByteBuffer segmentOf(long seq) {
+        return mSegments[(int) (seq % mSegments.length)];
+    }
+}
@@ -0,0 +1,187 @@
+package com.qcloud.iot.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.qcloud.iot.device.CA;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+
+/**
+ * 进程内共享的SSLContext缓存
+ * <p>
+ * 解析证书、构造KeyStore及初始化SSLContext开销较大，相同的CA及客户端证书只构造一次SSLContext，
+ * 使用同一份材料的所有连接共用它。TLS会话缓存属于SSLContext，共用后断线重连以及多个设备连接同一服务器时
+ * 可以恢复之前的会话（简化握手），不必每次完整握手。
+ * SSLSocketFactory同样缓存，HttpsURLConnection按SSLSocketFactory复用长连接，每次新建会使连接无法复用。
+ * <p>
+ * 缓存最多保留MAX_CONTEXTS个SSLContext，超出时淘汰最久未使用的（已建立的连接不受影响）。
+ * 构造按key进行：同一key并发获取时只构造一次，不同key的构造互不等待。
+ */
+@Slf4j
+public class SslContextCache {
+
+    /**
+     * 每个SSLContext缓存的客户端会话数
+     */
+    public static final int SESSION_CACHE_SIZE = 1024;
+
+    /**
+     * 缓存会话的有效期，单位：秒
+     */
+    public static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    /**
+     * 缓存的SSLContext数上限
+     */
+    public static final int MAX_CONTEXTS = 64;
+
+    private static final Cache<String, Entry> CONTEXTS = CacheBuilder.newBuilder().maximumSize(MAX_CONTEXTS).build();
+
+    private SslContextCache() {
+    }
+
+    /**
+     * @return 只校验服务端证书（内置CA）的SSLSocketFactory，构造失败时返回null
+     */
+    public static SSLSocketFactory getSocketFactory() {
+        return getSocketFactory(CA.caCrt, null, null);
+    }
+
+    /**
+     * @param caCrt     PEM格式的CA证书
+     * @param clientCrt PEM格式的客户端证书，为null时不进行双向认证
+     * @param clientKey PEM格式的客户端私钥，为null时不进行双向认证
+     * @return 对应材料的SSLSocketFactory，构造失败时返回null
+     */
+    public static SSLSocketFactory getSocketFactory(String caCrt, byte[] clientCrt, byte[] clientKey) {
+        Entry entry = getEntry(caCrt, clientCrt, clientKey);
+        return entry == null ? null : entry.mFactory;
+    }
+
+    /**
+     * @param caCrt     PEM格式的CA证书
+     * @param clientCrt PEM格式的客户端证书，为null时不进行双向认证
+     * @param clientKey PEM格式的客户端私钥，为null时不进行双向认证
+     * @return 对应材料的SSLContext，构造失败时返回null
+     */
+    public static SSLContext getContext(String caCrt, byte[] clientCrt, byte[] clientKey) {
+        Entry entry = getEntry(caCrt, clientCrt, clientKey);
+        return entry == null ? null : entry.mContext;
+    }
+
+    /**
+     * 获取缓存的SSLContext，不存在时构造并缓存，用于自定义信任策略等场景
+     *
+     * @param key     缓存key，须唯一对应构造SSLContext的材料
+     * @param builder 构造SSLContext
+     * @return 缓存的SSLContext，构造失败时返回null（不缓存，下次重新构造）
+     */
+    public static SSLContext get(String key, Callable<SSLContext> builder) {
+        Entry entry = getEntry(key, builder);
+        return entry == null ? null : entry.mContext;
+    }
+
+    /**
+     * 获取缓存的SSLContext对应的SSLSocketFactory，SSLContext不存在时构造并缓存
+     *
+     * @param key     缓存key，须唯一对应构造SSLContext的材料
+     * @param builder 构造SSLContext
+     * @return 缓存的SSLSocketFactory，构造失败时返回null
+     */
+    public static SSLSocketFactory getSocketFactory(String key, Callable<SSLContext> builder) {
+        Entry entry = getEntry(key, builder);
+        return entry == null ? null : entry.mFactory;
+    }
+
+    private static Entry getEntry(final String caCrt, final byte[] clientCrt, final byte[] clientKey) {
+        final boolean mutual = clientCrt != null && clientKey != null;
+        String key = "x509:" + digest(caCrt.getBytes(StandardCharsets.UTF_8), mutual ? clientCrt : null, mutual ? clientKey : null);
+        return getEntry(key, new Callable<SSLContext>() {
+            @Override
+            public SSLContext call() throws Exception {
+                return AsymcSslUtils.createContext(caCrt, mutual ? clientCrt : null, mutual ? clientKey : null);
+            }
+        });
+    }
+
+    private static Entry getEntry(final String key, final Callable<SSLContext> builder) {
+        Entry entry = CONTEXTS.getIfPresent(key);
+        if (entry != null) {
+            return entry;
+        }
+
+        try {
+            return CONTEXTS.get(key, new Callable<Entry>() {
+                @Override
+                public Entry call() throws Exception {
+                    SSLContext context = builder.call();
+                    if (context == null) {
+                        throw new IllegalStateException("SSLContext builder returned null");
+                    }
+                    SSLSessionContext sessions = context.getClientSessionContext();
+                    if (sessions != null) {
+                        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+                        sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+                    }
+                    log.debug("cached SSLContext {}", key);
+                    return new Entry(context);
+                }
+            });
+        } catch (Exception e) {
+            // 构造失败时不缓存，下次重新构造
+            log.error("construct SSLContext failed.", e.getCause() != null ? e.getCause() : e);
+            return null;
+        }
+    }
+
+    /**
+     * @return 缓存的SSLContext数
+     */
+    public static int size() {
+        return (int) CONTEXTS.size();
+    }
+
+    /**
+     * 清空缓存，证书更新后调用，之后的连接使用新构造的SSLContext
+     */
+    public static void clear() {
+        CONTEXTS.invalidateAll();
+    }
+
+    private static String digest(byte[]... parts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (byte[] part : parts) {
+                // 写入长度区分null及各部分的边界
+                int length = part == null ? -1 : part.length;
+                md.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+                if (part != null) {
+                    md.update(part);
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        private final SSLContext mContext;
+        private final SSLSocketFactory mFactory;
+
+        private Entry(SSLContext context) {
+            this.mContext = context;
+            this.mFactory = context.getSocketFactory();
+        }
+    }
+}
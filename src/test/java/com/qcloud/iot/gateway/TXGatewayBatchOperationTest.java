@@ -0,0 +1,137 @@
+package com.qcloud.iot.gateway;
+
+import com.qcloud.iot.common.Status;
+import com.qcloud.iot.mqtt.TXMqttConstants;
+import com.qcloud.iot.mqtt.TXPublishBatchResult;
+import com.qcloud.iot.mqtt.TXPublishRequest;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 验证批量上下线的消息打包、逐设备结果关联、发布失败及超时
+ */
+public class TXGatewayBatchOperationTest {
+
+    private static final String RESULT_TOPIC = "$gateway/operation/result/GATEWAY/gw";
+
+    private static final AtomicInteger sMessageId = new AtomicInteger();
+
+    @Test
+    public void testPackAndCorrelate() throws Exception {
+        RecordingGateway gateway = new RecordingGateway();
+        List<TXSubdevKey> subdevs = newSubdevs(1000);
+
+        CompletableFuture<TXSubdevBatchResult> future = gateway.gatewaySubdevsOnline(subdevs);
+        Assert.assertEquals(1000, gateway.getSubdevRegistry().size(Status.SUBDEV_STAT_INIT));
+
+        // 打包为多条消息，每条不超过上限，按顺序覆盖全部子设备
+        Assert.assertTrue(gateway.mRequests.size() > 1);
+        List<TXSubdevKey> packed = new ArrayList<>();
+        for (TXPublishRequest request : gateway.mRequests) {
+            Assert.assertEquals("$gateway/operation/GATEWAY/gw", request.getTopic());
+            Assert.assertTrue(request.getMessage().getPayload().length <= TXMqttConstants.MAX_GATEWAY_PAYLOAD);
+            JSONObject json = new JSONObject(new String(request.getMessage().getPayload(), "UTF-8"));
+            Assert.assertEquals("online", json.getString("type"));
+            JSONArray devices = json.getJSONObject("payload").getJSONArray("devices");
+            for (int i = 0; i < devices.length(); i++) {
+                packed.add(new TXSubdevKey(devices.getJSONObject(i).getString("product_id"),
+                        devices.getJSONObject(i).getString("device_name")));
+            }
+        }
+        Assert.assertEquals(subdevs, packed);
+
+        // 结果分两条消息返回，其中一个子设备上线失败
+        gateway.messageArrived(RESULT_TOPIC, resultMessage("online", subdevs.subList(0, 500), null));
+        Assert.assertFalse(future.isDone());
+        gateway.messageArrived(RESULT_TOPIC, resultMessage("online", subdevs.subList(500, 1000), subdevs.get(999)));
+
+        TXSubdevBatchResult result = future.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(999, result.getSucceeded().size());
+        Assert.assertEquals(Collections.singletonMap(subdevs.get(999), 1), result.getFailed());
+        Assert.assertTrue(result.getTimedOut().isEmpty());
+        Assert.assertEquals(999, gateway.getSubdevRegistry().size(Status.SUBDEV_STAT_ONLINE));
+
+        // 批量下线成功的子设备从注册表中移除
+        CompletableFuture<TXSubdevBatchResult> offline = gateway.gatewaySubdevsOffline(subdevs.subList(0, 10));
+        gateway.messageArrived(RESULT_TOPIC, resultMessage("offline", subdevs.subList(0, 10), null));
+        Assert.assertTrue(offline.get(1, TimeUnit.SECONDS).isAllSucceeded());
+        Assert.assertEquals(990, gateway.getSubdevRegistry().size());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        RecordingGateway gateway = new RecordingGateway();
+        List<TXSubdevKey> subdevs = newSubdevs(4);
+
+        CompletableFuture<TXSubdevBatchResult> future = gateway.gatewaySubdevsOnline(subdevs, 300);
+        gateway.messageArrived(RESULT_TOPIC, resultMessage("online", subdevs.subList(0, 2), null));
+
+        TXSubdevBatchResult result = future.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(subdevs.subList(0, 2), result.getSucceeded());
+        Assert.assertEquals(2, result.getTimedOut().size());
+        Assert.assertFalse(result.isAllSucceeded());
+    }
+
+    @Test
+    public void testPublishFailure() throws Exception {
+        // 未连接，消息发布失败
+        TXGatewayConnection gateway = new TXGatewayConnection("GATEWAY", "gw", "secret", null);
+        List<TXSubdevKey> subdevs = newSubdevs(3);
+
+        TXSubdevBatchResult result = gateway.gatewaySubdevsOnline(subdevs).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(3, result.getFailed().size());
+        Assert.assertEquals(Integer.valueOf(TXSubdevBatchResult.RESULT_PUBLISH_FAILED), result.getFailed().get(subdevs.get(0)));
+    }
+
+    private static List<TXSubdevKey> newSubdevs(int count) {
+        List<TXSubdevKey> subdevs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            subdevs.add(new TXSubdevKey("PRODUCT" + (i % 3), "sub-device-with-a-long-name-" + i));
+        }
+        return subdevs;
+    }
+
+    private static MqttMessage resultMessage(String type, List<TXSubdevKey> subdevs, TXSubdevKey failed) throws Exception {
+        JSONArray devices = new JSONArray();
+        for (TXSubdevKey key : subdevs) {
+            JSONObject device = new JSONObject();
+            device.put("product_id", key.getProductId());
+            device.put("device_name", key.getDeviceName());
+            device.put("result", key.equals(failed) ? 1 : 0);
+            devices.put(device);
+        }
+        JSONObject json = new JSONObject();
+        json.put("type", type);
+        json.put("payload", new JSONObject().put("devices", devices));
+        MqttMessage message = new MqttMessage(json.toString().getBytes("UTF-8"));
+        message.setId(sMessageId.incrementAndGet());
+        return message;
+    }
+
+    /**
+     * 记录批量发布的消息，并视为全部发布成功
+     */
+    private static class RecordingGateway extends TXGatewayConnection {
+        private final List<TXPublishRequest> mRequests = new ArrayList<>();
+
+        private RecordingGateway() {
+            super("GATEWAY", "gw", "secret", null);
+        }
+
+        @Override
+        public CompletableFuture<TXPublishBatchResult> publishBatch(List<TXPublishRequest> requests) {
+            mRequests.addAll(requests);
+            return super.publishBatch(Collections.<TXPublishRequest>emptyList());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.qcloud.iot.gateway;
+
+import com.qcloud.iot.common.Status;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 验证子设备注册表的组合key、状态索引及遍历时并发写入
+ */
+public class TXSubdevRegistryTest {
+
+    @Test
+    public void testCompositeKey() {
+        TXSubdevRegistry registry = new TXSubdevRegistry();
+        TXGatewaySubdev first = registry.add(new TXGatewaySubdev("ab", "c"));
+        TXGatewaySubdev second = registry.add(new TXGatewaySubdev("a", "bc"));
+
+        // 拼接字符串作key时两者冲突
+        Assert.assertNotSame(first, second);
+        Assert.assertSame(first, registry.get("ab", "c"));
+        Assert.assertSame(second, registry.get("a", "bc"));
+        Assert.assertSame(first, registry.add(new TXGatewaySubdev("ab", "c")));
+        Assert.assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void testStatusIndex() {
+        TXSubdevRegistry registry = new TXSubdevRegistry();
+        TXGatewaySubdev light = registry.add(new TXGatewaySubdev("PRODUCT", "light"));
+        TXGatewaySubdev fan = registry.add(new TXGatewaySubdev("PRODUCT", "fan"));
+        Assert.assertEquals(2, registry.size(Status.SUBDEV_STAT_INIT));
+
+        light.setSubdevStatus(Status.SUBDEV_STAT_ONLINE);
+        Assert.assertEquals(1, registry.size(Status.SUBDEV_STAT_INIT));
+        Assert.assertTrue(registry.getSubdevs(Status.SUBDEV_STAT_ONLINE).contains(light));
+
+        fan.setSubdevStatus(Status.SUBDEV_STAT_OFFLINE);
+        Assert.assertEquals(0, registry.size(Status.SUBDEV_STAT_INIT));
+        Assert.assertEquals(1, registry.size(Status.SUBDEV_STAT_OFFLINE));
+
+        Assert.assertSame(light, registry.remove("PRODUCT", "light"));
+        Assert.assertEquals(0, registry.size(Status.SUBDEV_STAT_ONLINE));
+        // 删除后的状态变化不影响索引
+        light.setSubdevStatus(Status.SUBDEV_STAT_ONLINE);
+        Assert.assertEquals(0, registry.size(Status.SUBDEV_STAT_ONLINE));
+    }
+
+    @Test
+    public void testStaleSubdevAfterReplace() {
+        TXSubdevRegistry registry = new TXSubdevRegistry();
+        TXGatewaySubdev old = registry.add(new TXGatewaySubdev("PRODUCT", "light"));
+        old.setSubdevStatus(Status.SUBDEV_STAT_ONLINE);
+        Assert.assertSame(old, registry.remove("PRODUCT", "light"));
+
+        TXGatewaySubdev replacement = registry.add(new TXGatewaySubdev("PRODUCT", "light"));
+        replacement.setSubdevStatus(Status.SUBDEV_STAT_ONLINE);
+
+        // 旧对象迟到的状态变化和删除不影响同key的新子设备
+        old.setSubdevStatus(Status.SUBDEV_STAT_OFFLINE);
+        old.detach(registry);
+        Assert.assertSame(replacement, registry.get("PRODUCT", "light"));
+        Assert.assertEquals(1, registry.size(Status.SUBDEV_STAT_ONLINE));
+        Assert.assertTrue(registry.getSubdevs(Status.SUBDEV_STAT_ONLINE).contains(replacement));
+        Assert.assertEquals(0, registry.size(Status.SUBDEV_STAT_OFFLINE));
+    }
+
+    @Test
+    public void testIterateWhileWriting() throws Exception {
+        final TXSubdevRegistry registry = new TXSubdevRegistry();
+        for (int i = 0; i < 10000; i++) {
+            registry.add(new TXGatewaySubdev("PRODUCT", "dev" + i));
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            int i = 0;
+            started.countDown();
+            while (running.get()) {
+                TXGatewaySubdev subdev = registry.get("PRODUCT", "dev" + (i % 10000));
+                subdev.setSubdevStatus(i % 2 == 0 ? Status.SUBDEV_STAT_ONLINE : Status.SUBDEV_STAT_OFFLINE);
+                registry.add(new TXGatewaySubdev("EXTRA", "dev" + i));
+                i++;
+            }
+        });
+        writer.start();
+        started.await();
+
+        for (int round = 0; round < 20; round++) {
+            int count = 0;
+            for (TXGatewaySubdev ignored : registry.getSubdevs()) {
+                count++;
+            }
+            Assert.assertTrue(count >= 10000);
+            List<TXGatewaySubdev> online = new ArrayList<>(registry.getSubdevs(Status.SUBDEV_STAT_ONLINE));
+            Assert.assertTrue(online.size() <= registry.size());
+        }
+        running.set(false);
+        writer.join();
+
+        int indexed = registry.size(Status.SUBDEV_STAT_INIT) + registry.size(Status.SUBDEV_STAT_ONLINE)
+                + registry.size(Status.SUBDEV_STAT_OFFLINE);
+        Assert.assertEquals(registry.size(), indexed);
+    }
+}
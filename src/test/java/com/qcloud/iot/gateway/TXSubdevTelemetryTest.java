@@ -0,0 +1,151 @@
+package com.qcloud.iot.gateway;
+
+import com.google.gson.Gson;
+import com.qcloud.iot.common.Status;
+import com.qcloud.iot.domain.Attribute;
+import com.qcloud.iot.domain.Device;
+import com.qcloud.iot.domain.GateWayMsg;
+import com.qcloud.iot.mqtt.TXMqttConstants;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 验证子设备属性上报的序列化格式及合并窗口
+ */
+public class TXSubdevTelemetryTest {
+
+    private final Gson mGson = new Gson();
+
+    @Test
+    public void testSameFormatAsGateWayMsg() throws Exception {
+        RecordingGateway gateway = new RecordingGateway();
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("1001", "1");
+        attributes.put("1002", "\"灯\"\n💡\\");
+
+        Assert.assertEquals(Status.OK, gateway.publishSubdevAttributes("PRODUCT", "light", attributes));
+
+        Assert.assertEquals(1, gateway.mMessages.size());
+        Assert.assertEquals("GATEWAY/gw/event", gateway.mTopics.get(0));
+        GateWayMsg msg = parse(gateway.mMessages.get(0));
+        Assert.assertEquals(Integer.valueOf(3), msg.getMsgType());
+        Assert.assertNotNull(msg.getMsgId());
+        Assert.assertEquals(1, msg.getData().size());
+        Device device = msg.getData().get(0);
+        Assert.assertEquals("light", device.getDeviceId());
+        Assert.assertEquals("gw", device.getHostId());
+        Assert.assertEquals("sub", device.getClassify());
+        Assert.assertEquals(attributes, toMap(device.getAttributes()));
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        RecordingGateway gateway = new RecordingGateway();
+        gateway.setSubdevTelemetryWindow(200);
+
+        gateway.publishSubdevAttributes("PRODUCT", "light", Collections.singletonMap("1001", "1"));
+        gateway.publishSubdevAttributes("PRODUCT", "fan", Collections.singletonMap("1001", "1"));
+        gateway.publishSubdevAttributes("PRODUCT", "light", Collections.singletonMap("1001", "0"));
+        gateway.publishSubdevAttributes("PRODUCT", "light", Collections.singletonMap("1002", "1"));
+        Assert.assertTrue(gateway.mMessages.isEmpty());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (gateway.mMessages.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        // 窗口内的上报合并为一条消息，同一属性取最后的值
+        Assert.assertEquals(1, gateway.mMessages.size());
+        List<Device> devices = parse(gateway.mMessages.get(0)).getData();
+        Assert.assertEquals(2, devices.size());
+        Assert.assertEquals("light", devices.get(0).getDeviceId());
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("1001", "0");
+        expected.put("1002", "1");
+        Assert.assertEquals(expected, toMap(devices.get(0).getAttributes()));
+        Assert.assertEquals("fan", devices.get(1).getDeviceId());
+    }
+
+    @Test
+    public void testScheduledFlushOffTimer() throws Exception {
+        RecordingGateway gateway = new RecordingGateway();
+        gateway.mResult = Status.ERROR;
+        gateway.setSubdevTelemetryWindow(100);
+
+        gateway.publishSubdevAttributes("PRODUCT", "light", Collections.singletonMap("1001", "1"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (gateway.getSubdevTelemetryFailedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        // 窗口到期后在定时任务线程池发布，失败被计数而不是静默丢弃
+        Assert.assertEquals(1, gateway.getSubdevTelemetryFailedCount());
+        Assert.assertEquals(1, gateway.mThreads.size());
+        Assert.assertTrue(gateway.mThreads.get(0), gateway.mThreads.get(0).startsWith("TXMqtt-timer-task-"));
+    }
+
+    @Test
+    public void testSplitAtPayloadLimit() throws Exception {
+        RecordingGateway gateway = new RecordingGateway();
+        gateway.setSubdevTelemetryWindow(60000);
+
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            gateway.publishSubdevAttributes("PRODUCT", "sub-device-" + i, Collections.singletonMap("1001", "value-" + i));
+        }
+        Assert.assertEquals(Status.OK, gateway.flushSubdevTelemetry());
+
+        Assert.assertTrue(gateway.mMessages.size() > 1);
+        int reported = 0;
+        for (byte[] payload : gateway.mMessages) {
+            Assert.assertTrue(payload.length <= TXMqttConstants.MAX_GATEWAY_PAYLOAD);
+            for (Device device : parse(payload).getData()) {
+                Assert.assertEquals("sub-device-" + reported, device.getDeviceId());
+                reported++;
+            }
+        }
+        Assert.assertEquals(count, reported);
+    }
+
+    private GateWayMsg parse(byte[] payload) throws Exception {
+        return mGson.fromJson(new String(payload, "UTF-8"), GateWayMsg.class);
+    }
+
+    private static Map<String, String> toMap(List<Attribute> attributes) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (Attribute attribute : attributes) {
+            map.put(attribute.getIndex(), attribute.getValue());
+        }
+        return map;
+    }
+
+    /**
+     * 记录发布的消息，不实际发送
+     */
+    private static class RecordingGateway extends TXGatewayConnection {
+        private final List<String> mTopics = new CopyOnWriteArrayList<>();
+        private final List<byte[]> mMessages = new CopyOnWriteArrayList<>();
+        private final List<String> mThreads = new CopyOnWriteArrayList<>();
+        private volatile Status mResult = Status.OK;
+
+        private RecordingGateway() {
+            super("GATEWAY", "gw", "secret", null);
+        }
+
+        @Override
+        public Status publish(String topic, MqttMessage message, Object userContext) {
+            mTopics.add(topic);
+            mMessages.add(message.getPayload());
+            mThreads.add(Thread.currentThread().getName());
+            return mResult;
+        }
+    }
+}
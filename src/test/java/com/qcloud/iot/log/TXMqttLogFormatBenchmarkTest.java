@@ -0,0 +1,68 @@
+package com.qcloud.iot.log;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+
+/**
+ * 日志格式化基准：对比旧实现与当前实现的吞吐量及每条日志的内存分配量
+ */
+@Slf4j
+public class TXMqttLogFormatBenchmarkTest {
+
+    private static final int WARMUP = 100000;
+    private static final int RECORDS = 300000;
+
+    @Test
+    public void testFormat() {
+        Assert.assertTrue(TXMqttLog.buildMqttLog(TXMqttLogConstants.LEVEL_INFO, "tag", "publish topic: {} failed, id: {}", "a/b", 7)
+                .matches("INF\\|\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}\\|tag\\|publish topic: a/b failed, id: 7\n\f"));
+        Assert.assertTrue(TXMqttLog.buildMqttLog(TXMqttLogConstants.LEVEL_ERROR, "tag", "code %d", 3).endsWith("|tag|code 3\n\f"));
+        Assert.assertTrue(TXMqttLog.buildMqttLog(TXMqttLogConstants.LEVEL_WARN, "tag", "100%").endsWith("|tag|100%\n\f"));
+    }
+
+    @Test
+    public void benchmark() {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP; i++) {
+            legacyBuild(TXMqttLogConstants.LEVEL_INFO, "tag", "publish topic: %s failed.", "a/b");
+            TXMqttLog.buildMqttLog(TXMqttLogConstants.LEVEL_INFO, "tag", "publish topic: {} failed.", "a/b");
+        }
+
+        long bytes = threadBean.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        for (int i = 0; i < RECORDS; i++) {
+            legacyBuild(TXMqttLogConstants.LEVEL_INFO, "tag", "publish topic: %s failed.", "a/b");
+        }
+        long legacyNanos = System.nanoTime() - start;
+        long legacyBytes = threadBean.getThreadAllocatedBytes(tid) - bytes;
+
+        bytes = threadBean.getThreadAllocatedBytes(tid);
+        start = System.nanoTime();
+        for (int i = 0; i < RECORDS; i++) {
+            TXMqttLog.buildMqttLog(TXMqttLogConstants.LEVEL_INFO, "tag", "publish topic: {} failed.", "a/b");
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = threadBean.getThreadAllocatedBytes(tid) - bytes;
+
+        log.info("legacy: {} records/s, {} bytes/record", RECORDS * 1000000000L / legacyNanos, legacyBytes / RECORDS);
+        log.info("current: {} records/s, {} bytes/record", RECORDS * 1000000000L / nanos, allocated / RECORDS);
+        Assert.assertTrue(allocated < legacyBytes);
+    }
+
+    /**
+     * 优化前的实现
+     */
+    private static String legacyBuild(final int logLevel, final String tag, final String format, final Object... obj) {
+        long nowCurrentMillis = System.currentTimeMillis();
+        SimpleDateFormat timeFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        String logTime = timeFormatter.format(nowCurrentMillis);
+        String log = obj == null ? format : String.format(format, obj);
+        return String.format("%s|%s|%s|%s\n\f", TXMqttLog.level_str[logLevel], logTime, tag, log);
+    }
+}
@@ -0,0 +1,170 @@
+package com.qcloud.iot.log;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 使用本地HTTP服务验证日志分块、压缩及重试
+ */
+public class TXMqttLogHttpSenderTest {
+
+    private static final String FIXED_HEAD = "P###PRODUCT###DEVICE";
+
+    private HttpServer mServer;
+    private String mUrl;
+    private final List<String> mBodies = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger mFailuresLeft = new AtomicInteger(0);
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/report-log", exchange -> {
+            InputStream in = exchange.getRequestBody();
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                in = new GZIPInputStream(in);
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                bos.write(buf, 0, n);
+            }
+
+            int code = 200;
+            if (mFailuresLeft.getAndDecrement() > 0) {
+                code = 503;
+            } else {
+                mBodies.add(new String(bos.toByteArray(), "UTF-8"));
+            }
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/report-log";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void testChunkedGzipUpload() throws Exception {
+        TXMqttLogHttpSender sender = newSender(TXMqttLogConstants.COMPRESSION_GZIP, 100, 0);
+        List<String> logs = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            logs.add(String.format("INF|2019-01-01 00:00:00|tag|line-%02d\n\f", i));
+        }
+
+        Assert.assertNull(sender.send(logs).get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(mBodies.size() > 1);
+
+        StringBuilder received = new StringBuilder();
+        for (String body : mBodies) {
+            // [签名（40位）][固定头部][时间戳（10位）][日志]
+            Assert.assertEquals(FIXED_HEAD, body.substring(40, 40 + FIXED_HEAD.length()));
+            received.append(body.substring(40 + FIXED_HEAD.length() + 10));
+        }
+        StringBuilder expected = new StringBuilder();
+        for (String line : logs) {
+            expected.append(line);
+        }
+        Assert.assertEquals(expected.toString(), received.toString());
+    }
+
+    @Test
+    public void testRetryThenSuccess() throws Exception {
+        mFailuresLeft.set(2);
+        TXMqttLogHttpSender sender = newSender(null, 1024, 3);
+
+        Assert.assertNull(sender.send(Arrays.asList("a\n\f", "b\n\f")).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, mBodies.size());
+    }
+
+    @Test
+    public void testRetryExhausted() throws Exception {
+        mFailuresLeft.set(10);
+        TXMqttLogHttpSender sender = newSender(null, 1024, 2);
+
+        Assert.assertEquals(Collections.singletonList("a\n\fb\n\f"),
+                sender.send(Arrays.asList("a\n\f", "b\n\f")).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(7, mFailuresLeft.get());
+    }
+
+    @Test
+    public void testBackoffDoesNotBlockScheduler() throws Exception {
+        mFailuresLeft.set(4);
+        TXMqttLogHttpSender sender = new TXMqttLogHttpSender(mUrl, FIXED_HEAD, "secret", null, 1024, 3, 300,
+                newCallBack(), mScheduler);
+
+        // 退避期间调度线程仍可执行其他连接的上传任务
+        CompletableFuture<List<String>> future = sender.send(Arrays.asList("a\n\f", "b\n\f"));
+        Thread.sleep(100);
+        long start = System.nanoTime();
+        mScheduler.submit(() -> {
+        }).get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 200);
+        Assert.assertFalse(future.isDone());
+
+        Assert.assertEquals(1, future.get(10, TimeUnit.SECONDS).size());
+        Assert.assertTrue(mBodies.isEmpty());
+    }
+
+    @Test
+    public void testSplitKeepsOversizedLine() {
+        List<String> chunks = TXMqttLogHttpSender.split(Arrays.asList("aaaa", "bbbbbbbbbb", "cc", "dd"), 5);
+        Assert.assertEquals(Arrays.asList("aaaa", "bbbbbbbbbb", "ccdd"), chunks);
+    }
+
+    private TXMqttLogHttpSender newSender(String compression, int maxChunkBytes, int maxRetries) {
+        return new TXMqttLogHttpSender(mUrl, FIXED_HEAD, "secret", compression, maxChunkBytes, maxRetries, 10,
+                newCallBack(), mScheduler);
+    }
+
+    private static TXMqttLogCallBack newCallBack() {
+        return new TXMqttLogCallBack() {
+            @Override
+            public void printDebug(String message) {
+            }
+
+            @Override
+            public String setSecretKey() {
+                return "secret";
+            }
+
+            @Override
+            public boolean saveLogOffline(String log) {
+                return true;
+            }
+
+            @Override
+            public String readOfflineLog() {
+                return null;
+            }
+
+            @Override
+            public boolean delOfflineLog() {
+                return true;
+            }
+        };
+    }
+}
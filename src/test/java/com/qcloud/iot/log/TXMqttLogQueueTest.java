@@ -0,0 +1,101 @@
+package com.qcloud.iot.log;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TXMqttLogQueueTest {
+
+    @Test
+    public void testDrainInWriteOrder() {
+        TXMqttLogQueue queue = new TXMqttLogQueue(1024, 16);
+        queue.offer(TXMqttLogConstants.LEVEL_DEBUG, "d1");
+        queue.offer(TXMqttLogConstants.LEVEL_ERROR, "e1");
+        queue.offer(TXMqttLogConstants.LEVEL_INFO, "i1");
+        queue.offer(TXMqttLogConstants.LEVEL_DEBUG, "d2");
+
+        List<String> out = new ArrayList<>();
+        Assert.assertEquals(4, queue.drainTo(out));
+        Assert.assertEquals(Arrays.asList("d1", "e1", "i1", "d2"), out);
+        Assert.assertEquals(0, queue.getBytes());
+    }
+
+    @Test
+    public void testEvictLowLevelFirst() {
+        // 容量10字节，每条日志2字节
+        TXMqttLogQueue queue = new TXMqttLogQueue(10, 16);
+        queue.offer(TXMqttLogConstants.LEVEL_ERROR, "e1");
+        queue.offer(TXMqttLogConstants.LEVEL_DEBUG, "d1");
+        queue.offer(TXMqttLogConstants.LEVEL_INFO, "i1");
+        queue.offer(TXMqttLogConstants.LEVEL_DEBUG, "d2");
+        queue.offer(TXMqttLogConstants.LEVEL_WARN, "w1");
+
+        // 新的ERR日志先淘汰最旧的DBG日志
+        Assert.assertTrue(queue.offer(TXMqttLogConstants.LEVEL_ERROR, "e2"));
+        Assert.assertTrue(queue.offer(TXMqttLogConstants.LEVEL_ERROR, "e3"));
+        Assert.assertTrue(queue.offer(TXMqttLogConstants.LEVEL_ERROR, "e4"));
+        Assert.assertEquals(2, queue.getDropped(TXMqttLogConstants.LEVEL_DEBUG));
+        Assert.assertEquals(1, queue.getDropped(TXMqttLogConstants.LEVEL_INFO));
+
+        // 只剩更严重的日志时，新的低等级日志被丢弃
+        Assert.assertTrue(queue.offer(TXMqttLogConstants.LEVEL_WARN, "w2"));
+        Assert.assertFalse(queue.offer(TXMqttLogConstants.LEVEL_DEBUG, "d3"));
+        Assert.assertEquals(3, queue.getDropped(TXMqttLogConstants.LEVEL_DEBUG));
+
+        List<String> out = new ArrayList<>();
+        queue.drainTo(out);
+        Assert.assertEquals(Arrays.asList("e1", "e2", "e3", "e4", "w2"), out);
+    }
+
+    @Test
+    public void testEntryLimitPerLevel() {
+        TXMqttLogQueue queue = new TXMqttLogQueue(1024, 2);
+        queue.offer(TXMqttLogConstants.LEVEL_INFO, "i1");
+        queue.offer(TXMqttLogConstants.LEVEL_INFO, "i2");
+        queue.offer(TXMqttLogConstants.LEVEL_INFO, "i3");
+        queue.offer(TXMqttLogConstants.LEVEL_ERROR, "e1");
+
+        List<String> out = new ArrayList<>();
+        queue.drainTo(out);
+        Assert.assertEquals(Arrays.asList("i2", "i3", "e1"), out);
+        Assert.assertEquals(1, queue.getDropped(TXMqttLogConstants.LEVEL_INFO));
+        Assert.assertFalse(queue.offer(TXMqttLogConstants.LEVEL_ERROR, new String(new char[2048])));
+    }
+
+    @Test
+    public void testGrowOnDemand() {
+        TXMqttLogQueue queue = new TXMqttLogQueue(TXMqttLogQueue.DEFAULT_MAX_BYTES, TXMqttLogQueue.DEFAULT_MAX_ENTRIES_PER_LEVEL);
+        // 没有日志时不按条数上限分配
+        int initial = queue.getAllocated();
+        Assert.assertTrue(String.valueOf(initial), initial < 100);
+
+        // 按需扩容，顺序不变
+        List<String> out = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            queue.offer(TXMqttLogConstants.LEVEL_INFO, "i" + i);
+            expected.add("i" + i);
+            if (i % 7 == 0) {
+                queue.offer(TXMqttLogConstants.LEVEL_ERROR, "e" + i);
+                expected.add("e" + i);
+            }
+        }
+        Assert.assertTrue(queue.getAllocated() > initial);
+        Assert.assertEquals(expected.size(), queue.drainTo(out));
+        Assert.assertEquals(expected, out);
+
+        // 取空后缩回初始大小
+        Assert.assertEquals(initial, queue.getAllocated());
+
+        // 扩容不超过每个等级的条数上限
+        TXMqttLogQueue limited = new TXMqttLogQueue(1024 * 1024, 40);
+        for (int i = 0; i < 100; i++) {
+            limited.offer(TXMqttLogConstants.LEVEL_INFO, "i" + i);
+        }
+        Assert.assertEquals(40, limited.size());
+        Assert.assertEquals(60, limited.getDropped(TXMqttLogConstants.LEVEL_INFO));
+    }
+}
@@ -0,0 +1,95 @@
+package com.qcloud.iot.mqtt;
+
+import com.qcloud.iot.util.Base64;
+import com.qcloud.iot.util.HmacSha1;
+import com.qcloud.iot.util.HmacSha256;
+import com.qcloud.iot.util.HmacSigner;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 验证凭证签名与原有HMAC签名结果一致，以及预签名凭证的取用
+ */
+public class TXCredentialSignerTest {
+
+    private static final String SECRET = "c2VjcmV0LWtleS1mb3ItdGVzdA==";
+    private static final String USER_NAME = "PRODUCTdevice;" + TXMqttConstants.APPID;
+
+    @Test
+    public void testMatchesLegacySignature() throws Exception {
+        byte[] key = Base64.decode(SECRET, Base64.DEFAULT);
+        TXCredentialSigner signer = new TXCredentialSigner(USER_NAME, SECRET);
+
+        TXCredentialSigner.Credentials credentials = signer.sign(1234567890L);
+        String[] parts = credentials.getUserName().split(";");
+        Assert.assertEquals(4, parts.length);
+        Assert.assertEquals(TXMqttConstants.MAX_CONN_ID_LEN, parts[2].length());
+        Assert.assertTrue(parts[2].matches("[a-zA-Z0-9]+"));
+        Assert.assertEquals("1234567890", parts[3]);
+        Assert.assertEquals(HmacSha256.getSignature(credentials.getUserName().getBytes(), key) + ";hmacsha256",
+                new String(credentials.getPassword()));
+
+        // 多个线程同时使用同一签名器
+        final HmacSigner sha1 = new HmacSigner(HmacSigner.HMAC_SHA1, key);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final byte[] data = ("payload-" + i).getBytes(StandardCharsets.UTF_8);
+            futures.add(executor.submit(() -> sha1.signHex(data)));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Assert.assertEquals(HmacSha1.getSignature(("payload-" + i).getBytes(StandardCharsets.UTF_8), key),
+                    futures.get(i).get());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testWithoutValidKey() {
+        Assert.assertNull(new TXCredentialSigner(USER_NAME, null).take().getPassword());
+        Assert.assertNull(new TXCredentialSigner(USER_NAME, "").take().getPassword());
+    }
+
+    @Test
+    public void testPresign() throws Exception {
+        TXCredentialSigner signer = new TXCredentialSigner(USER_NAME, SECRET);
+        signer.take();
+        Assert.assertFalse(signer.hasPrepared());
+
+        signer.startPresigning();
+        waitPrepared(signer);
+        long signed = signer.getSigned();
+
+        // 取用预签名凭证不在调用线程上签名，随后在后台签好下一份
+        TXCredentialSigner.Credentials credentials = signer.take();
+        Assert.assertEquals(1, signer.getPresignedHits());
+        long remaining = credentials.getExpiry() - System.currentTimeMillis() / 1000;
+        Assert.assertTrue(remaining > TXCredentialSigner.MIN_REMAINING_SECONDS);
+        Assert.assertTrue(remaining <= TXCredentialSigner.CREDENTIAL_VALIDITY_SECONDS);
+        waitPrepared(signer);
+        Assert.assertEquals(signed + 1, signer.getSigned());
+        Assert.assertNotEquals(credentials.getUserName(), signer.take().getUserName());
+
+        signer.stopPresigning();
+        Assert.assertFalse(signer.hasPrepared());
+        signer.take();
+        Assert.assertEquals(2, signer.getPresignedHits());
+        Thread.sleep(200);
+        Assert.assertFalse(signer.hasPrepared());
+    }
+
+    private static void waitPrepared(TXCredentialSigner signer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!signer.hasPrepared() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(signer.hasPrepared());
+    }
+}
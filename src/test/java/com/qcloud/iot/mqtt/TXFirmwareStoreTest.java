@@ -0,0 +1,116 @@
+package com.qcloud.iot.mqtt;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * 验证固件存储的校验复用、LRU淘汰及硬链接交付
+ */
+public class TXFirmwareStoreTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(1);
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        File dir = mFolder.newFolder("store");
+        TXFirmwareStore store = new TXFirmwareStore(dir.getPath(), 250 * 1024);
+
+        String a = put(store, 100 * 1024);
+        String b = put(store, 100 * 1024);
+        // 访问a后，b成为最久未使用的固件
+        Assert.assertNotNull(store.lookup(a));
+        String c = put(store, 100 * 1024);
+
+        Assert.assertNotNull(store.lookup(a));
+        Assert.assertNull(store.lookup(b));
+        Assert.assertNotNull(store.lookup(c));
+        Assert.assertFalse(new File(dir, b).exists());
+        Assert.assertEquals(200 * 1024, store.getBytes());
+
+        // 重启后按文件修改时间恢复
+        TXFirmwareStore reopened = new TXFirmwareStore(dir.getPath(), 250 * 1024);
+        Assert.assertEquals(2, reopened.size());
+        Assert.assertNotNull(reopened.lookup(c));
+    }
+
+    @Test
+    public void testVerifyBeforeReuse() throws Exception {
+        File dir = mFolder.newFolder("store");
+        TXFirmwareStore store = new TXFirmwareStore(dir.getPath(), 1024 * 1024);
+        String md5 = put(store, 10 * 1024);
+
+        byte[] data = Files.readAllBytes(new File(dir, md5).toPath());
+        data[100] ^= 0xFF;
+        Files.write(new File(dir, md5).toPath(), data);
+
+        Assert.assertNull(store.lookup(md5));
+        Assert.assertEquals(0, store.size());
+        Assert.assertFalse(new File(dir, md5).exists());
+    }
+
+    @Test
+    public void testHandOffByHardLink() throws Exception {
+        File dir = mFolder.newFolder("store");
+        TXFirmwareStore store = new TXFirmwareStore(dir.getPath(), 150 * 1024);
+        String md5 = put(store, 100 * 1024);
+
+        File target = new File(mFolder.newFolder("device"), md5);
+        Assert.assertEquals(target.getPath(), store.handOff(store.lookup(md5), target.getPath()));
+        Assert.assertTrue(Files.isSameFile(new File(dir, md5).toPath(), target.toPath()));
+
+        // 固件被淘汰后交付的文件仍然可用
+        put(store, 100 * 1024);
+        Assert.assertFalse(new File(dir, md5).exists());
+        Assert.assertEquals(100 * 1024, target.length());
+    }
+
+    @Test
+    public void testPinDuringHandOff() throws Exception {
+        File dir = mFolder.newFolder("store");
+        TXFirmwareStore store = new TXFirmwareStore(dir.getPath(), 150 * 1024);
+        String md5 = put(store, 100 * 1024);
+
+        // 固定期间登记新固件不会淘汰被固定的固件
+        Assert.assertTrue(store.pin(md5));
+        String stored = store.lookup(md5);
+        String other = put(store, 100 * 1024);
+        Assert.assertTrue(new File(dir, md5).exists());
+        File target = new File(mFolder.newFolder("device"), md5);
+        Assert.assertEquals(target.getPath(), store.handOff(stored, target.getPath()));
+
+        // 解除固定后按最近使用时间淘汰超出的固件
+        store.unpin(md5);
+        Assert.assertEquals(1, store.size());
+        Assert.assertFalse(new File(dir, md5).exists());
+        Assert.assertNotNull(store.lookup(other));
+        Assert.assertEquals(100 * 1024, target.length());
+
+        // 存储文件已不存在时交接失败，不返回缺失的路径
+        try {
+            store.handOff(stored, new File(mFolder.getRoot(), "missing").getPath());
+            Assert.fail("hand off a deleted firmware");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    private String put(TXFirmwareStore store, int size) throws Exception {
+        byte[] data = new byte[size];
+        mRandom.nextBytes(data);
+        String md5 = TXOTAImpl.convertHashToString(MessageDigest.getInstance("MD5").digest(data));
+        Files.write(new File(store.pathOf(md5)).toPath(), data);
+        store.commit(md5);
+        return md5;
+    }
+}
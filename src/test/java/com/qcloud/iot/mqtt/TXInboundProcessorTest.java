@@ -0,0 +1,114 @@
+package com.qcloud.iot.mqtt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class TXInboundProcessorTest {
+
+    @Test
+    public void testOrderedPerTopic() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        TXInboundProcessor processor = new TXInboundProcessor(executor, 16, 1000, TXMqttConstants.InboundOverflowPolicy.kBlock);
+
+        final int topics = 10;
+        final int perTopic = 500;
+        final List<List<Integer>> received = new ArrayList<>();
+        for (int t = 0; t < topics; t++) {
+            received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        final CountDownLatch done = new CountDownLatch(topics * perTopic);
+
+        for (int i = 0; i < perTopic; i++) {
+            for (int t = 0; t < topics; t++) {
+                final int topic = t;
+                final int seq = i;
+                processor.submit("topic/" + t, () -> {
+                    received.get(topic).add(seq);
+                    done.countDown();
+                });
+            }
+        }
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> list : received) {
+            for (int i = 0; i < perTopic; i++) {
+                Assert.assertEquals(i, list.get(i).intValue());
+            }
+        }
+        Assert.assertEquals(topics * perTopic, processor.getProcessedCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        TXInboundProcessor processor = new TXInboundProcessor(executor, 1, 2, TXMqttConstants.InboundOverflowPolicy.kDrop);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        Assert.assertTrue(processor.submit("a", blocked));
+        Assert.assertTrue(processor.submit("a", blocked));
+        Assert.assertFalse(processor.submit("a", blocked));
+        Assert.assertEquals(2, processor.getQueueDepth());
+        Assert.assertEquals(1, processor.getDroppedCount());
+
+        release.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, processor.getQueueDepth());
+    }
+
+    @Test
+    public void testSpillKeepsOrder() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        TXInboundProcessor processor = new TXInboundProcessor(executor, 1, 1, TXMqttConstants.InboundOverflowPolicy.kSpill);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread caller = Thread.currentThread();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final boolean[] ranOnCaller = new boolean[1];
+
+        processor.submit("a", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            order.add(0);
+        });
+        for (int i = 1; i <= 5; i++) {
+            final int value = i;
+            Assert.assertTrue(processor.submit("a", () -> {
+                ranOnCaller[0] |= Thread.currentThread() == caller;
+                order.add(value);
+            }));
+        }
+
+        // 超出配额的消息排队等待，不在Paho回调线程上执行
+        Assert.assertEquals(5, processor.getSpilledCount());
+        Assert.assertEquals(5, processor.getSpillDepth());
+        Assert.assertEquals(6, processor.getQueueDepth());
+        Assert.assertTrue(order.isEmpty());
+
+        release.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertFalse(ranOnCaller[0]);
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), order);
+        Assert.assertEquals(0, processor.getQueueDepth());
+    }
+}
@@ -0,0 +1,219 @@
+package com.qcloud.iot.mqtt;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 验证日志结构持久化的重启恢复、压缩及残缺记录处理，并输出与MqttDefaultFilePersistence对比的QoS1消息持久化吞吐量
+ */
+@Slf4j
+public class TXMappedFilePersistenceTest {
+
+    private static final String CLIENT_ID = "PRODUCTdevice";
+    private static final String SERVER_URI = "ssl://127.0.0.1:8883";
+
+    /**
+     * 基准：10000条消息，与Paho默认的最大飞行窗口相同，每条消息持久化后在第10条之后确认删除
+     */
+    private static final int BENCHMARK_MESSAGES = 10000;
+    private static final int IN_FLIGHT = 10;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testRecover() throws Exception {
+        String dir = mFolder.newFolder().getPath();
+        TXMappedFilePersistence persistence = new TXMappedFilePersistence(dir);
+        persistence.open(CLIENT_ID, SERVER_URI);
+        for (int i = 0; i < 100; i++) {
+            persistence.put("s-" + i, message(i, 64));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            persistence.remove("s-" + i);
+        }
+        persistence.put("s-1", message(1000, 0));
+        Assert.assertEquals(50, persistence.size());
+
+        // 不关闭，模拟进程崩溃后重启
+        TXMappedFilePersistence recovered = new TXMappedFilePersistence(dir);
+        recovered.open(CLIENT_ID, SERVER_URI);
+        Assert.assertEquals(50, Collections.list(recovered.keys()).size());
+        Assert.assertFalse(recovered.containsKey("s-0"));
+        assertMessage(1000, 0, recovered.get("s-1"));
+        for (int i = 3; i < 100; i += 2) {
+            assertMessage(i, 64, recovered.get("s-" + i));
+        }
+
+        recovered.clear();
+        Assert.assertFalse(recovered.keys().hasMoreElements());
+        recovered.close();
+        recovered.open(CLIENT_ID, SERVER_URI);
+        Assert.assertEquals(0, recovered.size());
+        Assert.assertEquals(1, recovered.getSegmentCount());
+        recovered.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        String dir = mFolder.newFolder().getPath();
+        TXMappedFilePersistence persistence = new TXMappedFilePersistence(dir, 1024, 0);
+        persistence.open(CLIENT_ID, SERVER_URI);
+        // 长时间未确认的消息不会使段文件无限增长
+        persistence.put("s-stuck", message(-1, 100));
+        for (int i = 0; i < 2000; i++) {
+            persistence.put("s-" + i, message(i, 100));
+            if (i >= IN_FLIGHT) {
+                persistence.remove("s-" + (i - IN_FLIGHT));
+            }
+            Assert.assertTrue(persistence.getSegmentCount() <= TXMappedFilePersistence.MAX_SEGMENTS + 1);
+        }
+        Assert.assertTrue(persistence.getCompactedRecords() > 0);
+        Assert.assertTrue(persistence.getSyncCount() > 0);
+        Assert.assertEquals(IN_FLIGHT + 1, persistence.size());
+
+        TXMappedFilePersistence recovered = new TXMappedFilePersistence(dir, 1024, 0);
+        recovered.open(CLIENT_ID, SERVER_URI);
+        Set<Object> expected = new HashSet<>(Collections.list(persistence.keys()));
+        Assert.assertEquals(expected, new HashSet<>(Collections.list(recovered.keys())));
+        assertMessage(-1, 100, recovered.get("s-stuck"));
+        assertMessage(1999, 100, recovered.get("s-1999"));
+        persistence.close();
+        recovered.close();
+    }
+
+    @Test
+    public void testForceBeforeDeletingCompactedSegment() throws Exception {
+        final List<long[]> deletes = new ArrayList<>();
+        // 刷盘周期足够长，后台不会刷盘
+        TXMappedFilePersistence persistence = new TXMappedFilePersistence(mFolder.newFolder().getPath(), 1024, 60000) {
+            @Override
+            void deleteSegment(File file) {
+                deletes.add(new long[]{getCompactedRecords(), getSyncCount()});
+                super.deleteSegment(file);
+            }
+        };
+        persistence.open(CLIENT_ID, SERVER_URI);
+        persistence.put("s-stuck", message(-1, 100));
+        for (int i = 0; i < 200; i++) {
+            persistence.put("s-" + i, message(i, 100));
+            if (i >= IN_FLIGHT) {
+                persistence.remove("s-" + (i - IN_FLIGHT));
+            }
+        }
+        Assert.assertTrue(persistence.getCompactedRecords() > 0);
+
+        // 每次删除搬移过记录的旧段之前都已刷盘
+        long[] previous = {0, 0};
+        for (long[] delete : deletes) {
+            if (delete[0] > previous[0]) {
+                Assert.assertTrue(delete[1] > previous[1]);
+            }
+            previous = delete;
+        }
+        persistence.close();
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        File dir = mFolder.newFolder();
+        TXMappedFilePersistence persistence = new TXMappedFilePersistence(dir.getPath());
+        persistence.open(CLIENT_ID, SERVER_URI);
+        persistence.put("s-1", message(1, 32));
+        persistence.put("s-2", message(2, 32));
+        persistence.close();
+
+        // 破坏最后一条记录的内容：段头8字节，之后每条记录为[长度][CRC32][内容]
+        File[] clientDirs = dir.listFiles();
+        Assert.assertNotNull(clientDirs);
+        File segment = clientDirs[0].listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(8);
+            int second = 8 + 8 + raf.readInt();
+            raf.seek(second + 8 + 10);
+            raf.write(0x5A);
+        }
+
+        persistence.open(CLIENT_ID, SERVER_URI);
+        Assert.assertTrue(persistence.containsKey("s-1"));
+        Assert.assertFalse(persistence.containsKey("s-2"));
+        persistence.put("s-3", message(3, 32));
+        persistence.close();
+        persistence.open(CLIENT_ID, SERVER_URI);
+        Assert.assertEquals(2, persistence.size());
+        assertMessage(3, 32, persistence.get("s-3"));
+        persistence.close();
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        MqttDefaultFilePersistence filePersistence = new MqttDefaultFilePersistence(mFolder.newFolder().getPath());
+        TXMappedFilePersistence mappedPersistence = new TXMappedFilePersistence(mFolder.newFolder().getPath());
+
+        run(filePersistence, 1000);
+        run(mappedPersistence, 1000);
+
+        long fileNanos = run(filePersistence, BENCHMARK_MESSAGES);
+        long mappedNanos = run(mappedPersistence, BENCHMARK_MESSAGES);
+        long fileRate = BENCHMARK_MESSAGES * 1000000000L / fileNanos;
+        long mappedRate = BENCHMARK_MESSAGES * 1000000000L / mappedNanos;
+        log.info("MqttDefaultFilePersistence: {} msgs/s", fileRate);
+        // 吞吐量取决于机器及磁盘，只输出不断言
+        log.info("TXMappedFilePersistence: {} msgs/s, {} syncs", mappedRate, mappedPersistence.getSyncCount());
+    }
+
+    /**
+     * 模拟QoS1发送：发送前持久化，收到PUBACK后删除
+     */
+    private static long run(MqttClientPersistence persistence, int messages) throws Exception {
+        persistence.open(CLIENT_ID, SERVER_URI);
+        persistence.clear();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            persistence.put("s-" + (i % 65535 + 1), message(i, 256));
+            if (i >= IN_FLIGHT) {
+                persistence.remove("s-" + ((i - IN_FLIGHT) % 65535 + 1));
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        Assert.assertEquals(IN_FLIGHT, Collections.list(persistence.keys()).size());
+        persistence.close();
+        return nanos;
+    }
+
+    private static MqttPersistable message(int id, int payloadLength) {
+        byte[] header = ("header-" + id).getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[payloadLength];
+        for (int i = 0; i < payloadLength; i++) {
+            payload[i] = (byte) (id + i);
+        }
+        return new MqttPersistentData("s-" + id, header, 0, header.length, payload, 0, payloadLength);
+    }
+
+    private static void assertMessage(int id, int payloadLength, MqttPersistable persistable) throws Exception {
+        Assert.assertNotNull(persistable);
+        MqttPersistable expected = message(id, payloadLength);
+        Assert.assertEquals(new String(expected.getHeaderBytes(), StandardCharsets.UTF_8),
+                new String(persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength(), StandardCharsets.UTF_8));
+        Assert.assertEquals(payloadLength, persistable.getPayloadLength());
+        for (int i = 0; i < payloadLength; i++) {
+            Assert.assertEquals(expected.getPayloadBytes()[i], persistable.getPayloadBytes()[persistable.getPayloadOffset() + i]);
+        }
+    }
+}
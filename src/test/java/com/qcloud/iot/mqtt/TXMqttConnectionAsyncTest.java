@@ -0,0 +1,141 @@
+package com.qcloud.iot.mqtt;
+
+import com.qcloud.iot.common.Status;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 验证connectAsync/publishAsync/subscribeAsync/unsubscribeAsync在成功时完成Future，同步返回错误状态时以对应异常完成Future
+ */
+public class TXMqttConnectionAsyncTest {
+
+    private static final String TOPIC = "PRODUCT/device/data";
+
+    private TXStandInBroker mBroker;
+    private TXMqttConnection mConnection;
+
+    @Before
+    public void setUp() throws Exception {
+        mBroker = new TXStandInBroker();
+        mBroker.start();
+        mConnection = new TXMqttConnection(mBroker.getServerURI(), "PRODUCT", "device", "c2VjcmV0", null,
+                new MemoryPersistence(), false, null, new TXMqttActionCallBack() {
+            @Override
+            public void onConnectCompleted(Status status, boolean reconnect, Object userContext, String msg) {
+            }
+
+            @Override
+            public void onConnectionLost(Throwable cause) {
+            }
+
+            @Override
+            public void onDisconnectCompleted(Status status, Object userContext, String msg) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mConnection.disConnect(null);
+        mBroker.stop();
+    }
+
+    @Test
+    public void testAsyncOperations() throws Exception {
+        IMqttToken token = mConnection.connectAsync(options()).get(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(token);
+        Assert.assertEquals(TXMqttConstants.ConnectStatus.kConnected, mConnection.getConnectStatus());
+        // 已连接时直接以null完成
+        Assert.assertNull(mConnection.connectAsync(options()).get(1, TimeUnit.SECONDS));
+
+        token = mConnection.subscribeAsync(TOPIC, 1).get(5, TimeUnit.SECONDS);
+        Assert.assertArrayEquals(new String[]{TOPIC}, token.getTopics());
+
+        MqttMessage message = new MqttMessage("hello".getBytes());
+        message.setQos(1);
+        token = mConnection.publishAsync(TOPIC, message).get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(token.isComplete());
+        Assert.assertEquals(1, mBroker.mPublishes.get());
+
+        token = mConnection.unsubscribeAsync(TOPIC).get(5, TimeUnit.SECONDS);
+        Assert.assertArrayEquals(new String[]{TOPIC}, token.getTopics());
+    }
+
+    @Test
+    public void testSynchronousErrors() throws Exception {
+        // 参数错误
+        assertFailure(mConnection.connectAsync(null), IllegalArgumentException.class);
+        assertFailure(mConnection.publishAsync("", new MqttMessage()), IllegalArgumentException.class);
+        assertFailure(mConnection.subscribeAsync("", 1), IllegalArgumentException.class);
+        assertFailure(mConnection.unsubscribeAsync(""), IllegalArgumentException.class);
+
+        // 未连接，publish在没有缓存时同步返回Status.ERROR
+        assertReason(mConnection.publishAsync(TOPIC, new MqttMessage()), MqttException.REASON_CODE_CLIENT_EXCEPTION);
+        assertReason(mConnection.subscribeAsync(TOPIC, 1), MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        assertReason(mConnection.unsubscribeAsync(TOPIC), MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+    }
+
+    @Test
+    public void testConnectFailure() throws Exception {
+        // 服务端不可达时由Paho异步通知失败
+        mBroker.stop();
+        assertFailure(mConnection.connectAsync(options()), MqttException.class);
+        Assert.assertEquals(TXMqttConstants.ConnectStatus.kConnectFailed, mConnection.getConnectStatus());
+    }
+
+    @Test
+    public void testCompleteByStatus() throws Exception {
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        Assert.assertSame(pending, TXMqttConnection.completeByStatus(pending, Status.OK));
+        Assert.assertFalse(pending.isDone());
+
+        assertFailure(TXMqttConnection.completeByStatus(new CompletableFuture<String>(), Status.PARAMETER_INVALID),
+                IllegalArgumentException.class);
+        assertReason(TXMqttConnection.completeByStatus(new CompletableFuture<String>(), Status.MQTT_CONNECT_IN_PROGRESS),
+                MqttException.REASON_CODE_CONNECT_IN_PROGRESS);
+        assertReason(TXMqttConnection.completeByStatus(new CompletableFuture<String>(), Status.MQTT_NO_CONN),
+                MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        assertReason(TXMqttConnection.completeByStatus(new CompletableFuture<String>(), Status.ERROR),
+                MqttException.REASON_CODE_CLIENT_EXCEPTION);
+
+        // 已经完成的Future不会被错误状态覆盖
+        CompletableFuture<String> done = CompletableFuture.completedFuture("done");
+        Assert.assertEquals("done", TXMqttConnection.completeByStatus(done, Status.ERROR).get());
+    }
+
+    private static MqttConnectOptions options() {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setConnectionTimeout(5);
+        options.setKeepAliveInterval(60);
+        return options;
+    }
+
+    private static void assertFailure(CompletableFuture<?> future, Class<? extends Throwable> type) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            Assert.fail("expected " + type.getSimpleName());
+        } catch (ExecutionException e) {
+            Assert.assertTrue(String.valueOf(e.getCause()), type.isInstance(e.getCause()));
+        }
+    }
+
+    private static void assertReason(CompletableFuture<?> future, int reasonCode) throws Exception {
+        assertFailure(future, MqttException.class);
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Assert.assertEquals(reasonCode, ((MqttException) e.getCause()).getReasonCode());
+        }
+    }
+}
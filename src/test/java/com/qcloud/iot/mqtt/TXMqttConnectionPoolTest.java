@@ -0,0 +1,88 @@
+package com.qcloud.iot.mqtt;
+
+import com.qcloud.iot.common.Status;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 验证连接池内每个连接的回调按顺序执行，以及连接池关闭后回调不会丢失
+ */
+public class TXMqttConnectionPoolTest {
+
+    private static final int CONNECTIONS = 8;
+    private static final int CALLBACKS = 2000;
+
+    @Test
+    public void testCallbackOrdering() throws Exception {
+        TXMqttConnectionPool pool = new TXMqttConnectionPool(CONNECTIONS, 4, 16);
+        List<TXMqttConnection> connections = new ArrayList<>();
+        List<List<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            TXMqttConnection connection = newConnection("device" + i);
+            Assert.assertEquals(Status.OK, pool.attach(connection));
+            connections.add(connection);
+            results.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        Assert.assertEquals(Status.ERROR, pool.attach(newConnection("overflow")));
+
+        final CountDownLatch done = new CountDownLatch(CONNECTIONS * CALLBACKS);
+        for (int n = 0; n < CALLBACKS; n++) {
+            for (int i = 0; i < CONNECTIONS; i++) {
+                final List<Integer> result = results.get(i);
+                final int value = n;
+                connections.get(i).runCallback(() -> {
+                    result.add(value);
+                    done.countDown();
+                });
+            }
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        for (List<Integer> result : results) {
+            Assert.assertEquals(CALLBACKS, result.size());
+            for (int n = 0; n < CALLBACKS; n++) {
+                Assert.assertEquals(n, result.get(n).intValue());
+            }
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        TXMqttConnectionPool pool = new TXMqttConnectionPool(1, 1, 16);
+        TXMqttConnection connection = newConnection("device");
+        Assert.assertEquals(Status.OK, pool.attach(connection));
+        Executor serial = pool.createCallbackExecutor();
+
+        pool.shutdown();
+        Assert.assertEquals(0, pool.getActiveSessions());
+        Assert.assertNull(connection.mConnectionPool);
+        Assert.assertEquals(Status.ERROR, pool.attach(newConnection("late")));
+
+        // 移出连接池后回调直接在当前线程执行
+        final AtomicReference<Thread> thread = new AtomicReference<>();
+        connection.runCallback(() -> thread.set(Thread.currentThread()));
+        Assert.assertSame(Thread.currentThread(), thread.get());
+
+        // 关闭前创建的串行执行器在提交线程上执行，之后的任务也不会一直排队
+        final List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final int value = i;
+            serial.execute(() -> result.add(value));
+        }
+        Assert.assertEquals(3, result.size());
+        Assert.assertEquals(0, ((TXSerialExecutor) serial).getPendingCount());
+    }
+
+    private static TXMqttConnection newConnection(String deviceName) {
+        return new TXMqttConnection("tcp://127.0.0.1:1883", "PRODUCT", deviceName, null, null, null, false, null, null);
+    }
+}
@@ -0,0 +1,183 @@
+package com.qcloud.iot.mqtt;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 使用本地HTTP服务验证差分升级包的流式合成及失败时退化为完整固件下载
+ */
+public class TXOTADeltaTaskTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mBase = new byte[2 * 1024 * 1024];
+    private byte[] mTarget;
+    private String mMd5;
+    private volatile byte[] mPatch;
+
+    private HttpServer mServer;
+    private String mUrl;
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(1);
+        random.nextBytes(mBase);
+
+        // 新固件：修改中间一段并在末尾追加数据
+        byte[] changed = new byte[4096];
+        byte[] appended = new byte[1000];
+        random.nextBytes(changed);
+        random.nextBytes(appended);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        target.write(mBase, 0, 1024 * 1024);
+        target.write(changed);
+        target.write(mBase, 1024 * 1024 + changed.length, mBase.length - 1024 * 1024 - changed.length);
+        target.write(appended);
+        mTarget = target.toByteArray();
+        mMd5 = TXOTAImpl.convertHashToString(MessageDigest.getInstance("MD5").digest(mTarget));
+
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(patch))) {
+            out.write(TXOTAPatcher.MAGIC);
+            out.writeLong(mTarget.length);
+            out.write(TXOTAPatcher.OP_COPY);
+            out.writeLong(0);
+            out.writeInt(1024 * 1024);
+            out.write(TXOTAPatcher.OP_ADD);
+            out.writeInt(changed.length);
+            out.write(changed);
+            out.write(TXOTAPatcher.OP_COPY);
+            out.writeLong(1024 * 1024 + changed.length);
+            out.writeInt(mBase.length - 1024 * 1024 - changed.length);
+            out.write(TXOTAPatcher.OP_ADD);
+            out.writeInt(appended.length);
+            out.write(appended);
+            out.write(TXOTAPatcher.OP_END);
+        }
+        mPatch = patch.toByteArray();
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            mRequests.add(path);
+            byte[] body = path.equals("/patch.bin") ? mPatch : mTarget;
+
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            int start = 0;
+            int end = body.length - 1;
+            if (range != null) {
+                String[] values = range.substring(6).split("-", -1);
+                start = Integer.parseInt(values[0]);
+                if (!values[1].isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(values[1]));
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+            }
+            exchange.sendResponseHeaders(range == null ? 200 : 206, end - start + 1);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body, start, end - start + 1);
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void testApplyPatch() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        File output = new File(mFolder.getRoot(), mMd5);
+
+        newTask(callback, output).run();
+
+        Assert.assertEquals(output.getPath(), callback.mCompleted);
+        Assert.assertArrayEquals(mTarget, Files.readAllBytes(output.toPath()));
+        Assert.assertEquals(100, callback.mLastPercent);
+        // 差分包远小于完整固件，且只下载了差分包
+        Assert.assertTrue(mPatch.length < mTarget.length / 100);
+        Assert.assertEquals(Collections.singletonList("/patch.bin"), mRequests);
+    }
+
+    @Test
+    public void testFallbackToFullDownload() throws Exception {
+        // 差分包基于另一个版本的固件，合成结果校验失败
+        byte[] otherBase = mBase.clone();
+        otherBase[10] ^= 0xFF;
+        File base = mFolder.newFile("base.bin");
+        Files.write(base.toPath(), otherBase);
+
+        RecordingCallback callback = new RecordingCallback();
+        File output = new File(mFolder.getRoot(), mMd5);
+
+        newTask(callback, output, base).run();
+
+        Assert.assertEquals(output.getPath(), callback.mCompleted);
+        Assert.assertArrayEquals(mTarget, Files.readAllBytes(output.toPath()));
+        Assert.assertEquals("/patch.bin", mRequests.get(0));
+        Assert.assertTrue(mRequests.contains("/firmware.bin"));
+        Assert.assertFalse(new File(output.getPath() + TXOTADeltaTask.PATCHING_FILE_SUFFIX).exists());
+    }
+
+    private TXOTADeltaTask newTask(RecordingCallback callback, File output) throws Exception {
+        File base = mFolder.newFile("base.bin");
+        Files.write(base.toPath(), mBase);
+        return newTask(callback, output, base);
+    }
+
+    private TXOTADeltaTask newTask(RecordingCallback callback, File output, File base) {
+        TXMqttConnection connection = new TXMqttConnection("PRODUCT", "DEVICE", "secret", null);
+        TXOTAImpl ota = new TXOTAImpl(connection, mFolder.getRoot().getPath(), callback);
+        TXOTACallBack listener = ota.getDownloadListener();
+        TXOTADownloadTask fullDownload = new TXOTADownloadTask(ota, listener, mUrl + "/firmware.bin", output.getPath(),
+                mMd5, null, "2.0.0", 1, 0);
+        return new TXOTADeltaTask(ota, listener, mUrl + "/patch.bin", base.getPath(), output.getPath(), mMd5, null,
+                "2.0.0", fullDownload);
+    }
+
+    private static class RecordingCallback implements TXOTACallBack {
+        private volatile String mCompleted;
+        private volatile int mLastPercent;
+
+        @Override
+        public void onReportFirmwareVersion(int resultCode, String version, String resultMsg) {
+        }
+
+        @Override
+        public void onDownloadProgress(int percent, String version) {
+            mLastPercent = percent;
+        }
+
+        @Override
+        public void onDownloadCompleted(String outputFile, String version) {
+            mCompleted = outputFile;
+        }
+
+        @Override
+        public void onDownloadFailure(int errCode, String version) {
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.qcloud.iot.mqtt;
+
+import com.sun.net.httpserver.HttpServer;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 验证下载管理器的任务合并（设置固件存储时按MD5合并）、固件复用及并发上限
+ */
+public class TXOTADownloadManagerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final List<byte[]> mFirmwares = new ArrayList<>();
+    private final List<String> mMd5s = new ArrayList<>();
+
+    private HttpServer mServer;
+    private String mUrl;
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicInteger mMaxActive = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 4; i++) {
+            byte[] firmware = new byte[256 * 1024];
+            random.nextBytes(firmware);
+            mFirmwares.add(firmware);
+            mMd5s.add(TXOTAImpl.convertHashToString(MessageDigest.getInstance("MD5").digest(firmware)));
+        }
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            mRequests.add(path + " " + range);
+            byte[] body = mFirmwares.get(Integer.parseInt(path.substring(path.lastIndexOf('/') + 1, path.indexOf(".bin"))));
+
+            int start = 0;
+            int end = body.length - 1;
+            if (range != null) {
+                String[] values = range.substring(6).split("-", -1);
+                start = Integer.parseInt(values[0]);
+                if (!values[1].isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(values[1]));
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+            }
+
+            boolean transfer = end > start;
+            if (transfer) {
+                int active = mActive.incrementAndGet();
+                mMaxActive.accumulateAndGet(active, Math::max);
+            }
+            try {
+                if (transfer) {
+                    Thread.sleep(200);
+                }
+                exchange.sendResponseHeaders(range == null ? 200 : 206, end - start + 1);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body, start, end - start + 1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (transfer) {
+                    mActive.decrementAndGet();
+                }
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void testDedupeAndCache() throws Exception {
+        File storeDir = mFolder.newFolder("store");
+        TXOTADownloadManager manager = new TXOTADownloadManager(4, 4, new TXFirmwareStore(storeDir.getPath(), 1024 * 1024));
+
+        int devices = 20;
+        CountDownLatch latch = new CountDownLatch(devices);
+        List<RecordingCallback> callbacks = new ArrayList<>();
+        for (int i = 0; i < devices; i++) {
+            RecordingCallback callback = new RecordingCallback(latch);
+            callbacks.add(callback);
+            newOTA(manager, "DEVICE" + i, callback).processMessage("$ota/update/PRODUCT/DEVICE" + i, updateMessage(0));
+        }
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        File stored = new File(storeDir, mMd5s.get(0));
+        Assert.assertArrayEquals(mFirmwares.get(0), Files.readAllBytes(stored.toPath()));
+        for (int i = 0; i < devices; i++) {
+            // 固件交到各设备自己的存储路径
+            File output = new File(new File(mFolder.getRoot(), "DEVICE" + i), mMd5s.get(0));
+            Assert.assertEquals(output.getPath(), callbacks.get(i).mCompleted);
+            Assert.assertTrue(Files.isSameFile(stored.toPath(), output.toPath()));
+        }
+        // 探测请求及一次完整下载
+        Assert.assertEquals(mRequests.toString(), 2, mRequests.size());
+
+        // 下载完成后再提交直接使用固件存储
+        CountDownLatch again = new CountDownLatch(1);
+        RecordingCallback late = new RecordingCallback(again);
+        newOTA(manager, "LATE", late).processMessage("$ota/update/PRODUCT/LATE", updateMessage(0));
+        Assert.assertTrue(again.await(5, TimeUnit.SECONDS));
+        Assert.assertArrayEquals(mFirmwares.get(0), Files.readAllBytes(new File(late.mCompleted).toPath()));
+        Assert.assertEquals(2, mRequests.size());
+    }
+
+    @Test
+    public void testDedupeByMd5WithStore() throws Exception {
+        File storeDir = mFolder.newFolder("store");
+        TXOTADownloadManager manager = new TXOTADownloadManager(4, 4, new TXFirmwareStore(storeDir.getPath(), 1024 * 1024));
+
+        // 同一固件的不同下载地址（如每个设备单独签名的URL）写入固件存储中的同一文件，只能下载一次
+        int devices = 6;
+        CountDownLatch latch = new CountDownLatch(devices);
+        List<RecordingCallback> callbacks = new ArrayList<>();
+        for (int i = 0; i < devices; i++) {
+            RecordingCallback callback = new RecordingCallback(latch);
+            callbacks.add(callback);
+            String url = mUrl + "/cdn-" + (i % 2 == 0 ? "a" : "b") + "/0.bin";
+            newOTA(manager, "DEVICE" + i, callback).processMessage("$ota/update/PRODUCT/DEVICE" + i, updateMessage(url, 0));
+        }
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertArrayEquals(mFirmwares.get(0), Files.readAllBytes(new File(storeDir, mMd5s.get(0)).toPath()));
+        for (RecordingCallback callback : callbacks) {
+            Assert.assertArrayEquals(mFirmwares.get(0), Files.readAllBytes(new File(callback.mCompleted).toPath()));
+        }
+        // 探测请求及一次完整下载
+        Assert.assertEquals(mRequests.toString(), 2, mRequests.size());
+    }
+
+    @Test
+    public void testConcurrencyCaps() throws Exception {
+        TXOTADownloadManager manager = new TXOTADownloadManager(4, 2, null);
+
+        CountDownLatch latch = new CountDownLatch(mFirmwares.size());
+        List<RecordingCallback> callbacks = new ArrayList<>();
+        for (int i = 0; i < mFirmwares.size(); i++) {
+            RecordingCallback callback = new RecordingCallback(latch);
+            callbacks.add(callback);
+            newOTA(manager, "DEVICE" + i, callback).processMessage("$ota/update/PRODUCT/DEVICE" + i, updateMessage(i));
+        }
+        Assert.assertTrue(manager.getPendingJobs() > 0);
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < mFirmwares.size(); i++) {
+            Assert.assertArrayEquals(mFirmwares.get(i), Files.readAllBytes(new File(callbacks.get(i).mCompleted).toPath()));
+        }
+        // 同一服务器最多2个连接
+        Assert.assertEquals(2, mMaxActive.get());
+        Assert.assertEquals(0, manager.getRunningJobs());
+    }
+
+    private TXOTAImpl newOTA(TXOTADownloadManager manager, String deviceName, RecordingCallback callback) throws Exception {
+        TXMqttConnection connection = new TXMqttConnection("PRODUCT", deviceName, "secret", null);
+        TXOTAImpl ota = new TXOTAImpl(connection, mFolder.newFolder(deviceName).getPath(), callback);
+        ota.setDownloadManager(manager);
+        return ota;
+    }
+
+    private MqttMessage updateMessage(int index) throws Exception {
+        return updateMessage(mUrl + "/firmware/" + index + ".bin", index);
+    }
+
+    private MqttMessage updateMessage(String url, int index) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("type", "update_firmware");
+        json.put("url", url);
+        json.put("md5sum", mMd5s.get(index));
+        json.put("version", "2.0." + index);
+        return new MqttMessage(json.toString().getBytes());
+    }
+
+    private static class RecordingCallback implements TXOTACallBack {
+        private final CountDownLatch mLatch;
+        private volatile String mCompleted;
+
+        private RecordingCallback(CountDownLatch latch) {
+            this.mLatch = latch;
+        }
+
+        @Override
+        public void onReportFirmwareVersion(int resultCode, String version, String resultMsg) {
+        }
+
+        @Override
+        public void onDownloadProgress(int percent, String version) {
+        }
+
+        @Override
+        public void onDownloadCompleted(String outputFile, String version) {
+            mCompleted = outputFile;
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onDownloadFailure(int errCode, String version) {
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.qcloud.iot.mqtt;
+
+import com.sun.net.httpserver.HttpServer;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * 使用本地HTTP服务验证固件的断点续传、并行分段下载及校验
+ */
+public class TXOTADownloadTaskTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mFirmware = new byte[3 * 1024 * 1024 + 123];
+    private String mMd5;
+
+    private HttpServer mServer;
+    private String mUrl;
+    private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger mFlakyResponses = new AtomicInteger(0);
+    private final TXOTADownloadManager mManager = new TXOTADownloadManager(TXOTADownloadManager.DEFAULT_MAX_RUNNING_JOBS,
+            TXOTADownloadManager.DEFAULT_MAX_CONNECTIONS_PER_HOST, null);
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(1).nextBytes(mFirmware);
+        mMd5 = TXOTAImpl.convertHashToString(MessageDigest.getInstance("MD5").digest(mFirmware));
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/firmware.bin", exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            mRanges.add(range);
+
+            long start = 0;
+            long end = mFirmware.length - 1;
+            if (range != null && range.startsWith("bytes=")) {
+                String[] values = range.substring(6).split("-", -1);
+                start = Long.parseLong(values[0]);
+                if (!values[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(values[1]));
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + mFirmware.length);
+            }
+
+            int length = (int) (end - start + 1);
+            if (length > 1 && mFlakyResponses.getAndDecrement() > 0) {
+                // 模拟网络中断：只返回一半数据就结束响应
+                exchange.sendResponseHeaders(206, 0);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(mFirmware, (int) start, length / 2);
+                }
+                return;
+            }
+
+            exchange.sendResponseHeaders(range == null ? 200 : 206, length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(mFirmware, (int) start, length);
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/firmware.bin";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void testResumeAfterInterruption() throws Exception {
+        mFlakyResponses.set(2);
+        RecordingCallback callback = new RecordingCallback();
+        File output = new File(mFolder.getRoot(), mMd5);
+
+        newTask(callback, output, 1).run();
+
+        Assert.assertEquals(output.getPath(), callback.mCompleted);
+        Assert.assertArrayEquals(mFirmware, Files.readAllBytes(output.toPath()));
+        Assert.assertFalse(new File(output.getPath() + TXOTADownloadTask.PROGRESS_FILE_SUFFIX).exists());
+
+        // 除探测请求外，后续请求都从已下载的位置继续
+        Assert.assertEquals(4, mRanges.size());
+        Assert.assertEquals("bytes=0-0", mRanges.get(0));
+        Assert.assertEquals("bytes=0-" + (mFirmware.length - 1), mRanges.get(1));
+        for (int i = 2; i < mRanges.size(); i++) {
+            Assert.assertFalse(mRanges.get(i).startsWith("bytes=0-"));
+        }
+    }
+
+    @Test
+    public void testParallelDownload() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        File output = new File(mFolder.getRoot(), mMd5);
+
+        newTask(callback, output, 3).run();
+
+        Assert.assertEquals(output.getPath(), callback.mCompleted);
+        Assert.assertArrayEquals(mFirmware, Files.readAllBytes(output.toPath()));
+        Assert.assertEquals(4, mRanges.size());
+        Assert.assertEquals(100, callback.mLastPercent);
+    }
+
+    @Test
+    public void testRefetchCorruptedChunk() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        File output = new File(mFolder.getRoot(), mMd5);
+
+        // 上次已下载完成但校验前进程退出，之后分块1在磁盘上损坏
+        byte[] corrupted = mFirmware.clone();
+        corrupted[TXOTADownloadTask.CHUNK_SIZE + 100] ^= 0xFF;
+        Files.write(output.toPath(), corrupted);
+
+        Properties props = new Properties();
+        props.setProperty("md5", mMd5);
+        props.setProperty("total", String.valueOf(mFirmware.length));
+        props.setProperty("segments", "1");
+        props.setProperty("segment.0", "0," + mFirmware.length + "," + mFirmware.length);
+        for (int chunk = 0; chunk * TXOTADownloadTask.CHUNK_SIZE < mFirmware.length; chunk++) {
+            int start = chunk * TXOTADownloadTask.CHUNK_SIZE;
+            CRC32 crc = new CRC32();
+            crc.update(mFirmware, start, Math.min(TXOTADownloadTask.CHUNK_SIZE, mFirmware.length - start));
+            props.setProperty("chunk." + chunk, String.valueOf(crc.getValue()));
+        }
+        try (OutputStream os = new FileOutputStream(output.getPath() + TXOTADownloadTask.PROGRESS_FILE_SUFFIX)) {
+            props.store(os, null);
+        }
+
+        newTask(callback, output, 1, sha256(mFirmware)).run();
+
+        Assert.assertEquals(output.getPath(), callback.mCompleted);
+        Assert.assertArrayEquals(mFirmware, Files.readAllBytes(output.toPath()));
+        // 只重新下载损坏的分块
+        Assert.assertEquals(1, mRanges.size());
+        Assert.assertEquals("bytes=" + TXOTADownloadTask.CHUNK_SIZE + "-" + (2 * TXOTADownloadTask.CHUNK_SIZE - 1), mRanges.get(0));
+    }
+
+    @Test
+    public void testSha256Mismatch() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        File output = new File(mFolder.getRoot(), mMd5);
+
+        newTask(callback, output, 3, sha256(new byte[1])).run();
+
+        Assert.assertNull(callback.mCompleted);
+        Assert.assertEquals(-4, callback.mFailure);
+    }
+
+    @Test
+    public void testFailureAfterLastAttempt() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        File output = new File(mFolder.getRoot(), mMd5);
+        TXOTAImpl ota = newOTA(callback);
+        mServer.stop(0);
+
+        // 每次尝试都抛出异常时，退避后重试，最后一次失败后通知
+        long begin = System.nanoTime();
+        new TXOTADownloadTask(ota, ota.getDownloadListener(), mUrl, output.getPath(), mMd5, null, "1.0.0", 1, 1).run();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+
+        Assert.assertNull(callback.mCompleted);
+        Assert.assertEquals(-1, callback.mFailure);
+        Assert.assertEquals(1, callback.mFailures.get());
+        Assert.assertTrue("elapsed " + elapsedMs + "ms", elapsedMs >= TXOTADownloadTask.ATTEMPT_BACKOFF_MS);
+    }
+
+    @Test
+    public void testBandwidthLimitFromCloud() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        File output = new File(mFolder.getRoot(), mMd5);
+        TXOTAImpl ota = newOTA(callback);
+
+        // 服务器下发下载配置：限速4MB/s
+        MqttMessage config = new MqttMessage("{\"type\":\"update_download_config\",\"bandwidth_limit\":4194304}".getBytes());
+        Assert.assertTrue(ota.processMessage("$ota/update/PRODUCT/DEVICE", config));
+
+        long begin = System.nanoTime();
+        new TXOTADownloadTask(ota, ota.getDownloadListener(), mUrl, output.getPath(), mMd5, null, "1.0.0", 2, 0).run();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+
+        Assert.assertEquals(output.getPath(), callback.mCompleted);
+        // 3MB在4MB/s限速下至少需要约0.75秒
+        Assert.assertTrue("elapsed " + elapsedMs + "ms", elapsedMs >= 600);
+    }
+
+    @Test
+    public void testBandwidthSharedAcrossConnections() throws Exception {
+        TXOTAImpl first = newOTA(new RecordingCallback());
+        TXOTAImpl second = newOTA(new RecordingCallback());
+        first.setDownloadBandwidth(4 * 1024 * 1024);
+        Assert.assertEquals(4 * 1024 * 1024, mManager.getDownloadBandwidth());
+
+        // 两个连接同时下载，共享4MB/s的总带宽
+        final TXOTADownloadTask[] tasks = {
+                new TXOTADownloadTask(first, first.getDownloadListener(), mUrl, mFolder.newFile().getPath(), mMd5, null, "1.0.0", 1, 0),
+                new TXOTADownloadTask(second, second.getDownloadListener(), mUrl, mFolder.newFile().getPath(), mMd5, null, "1.0.0", 1, 0)
+        };
+        long begin = System.nanoTime();
+        Thread other = new Thread(tasks[1]);
+        other.start();
+        tasks[0].run();
+        other.join();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+
+        // 共6MB在4MB/s总带宽下至少需要约1.5秒
+        Assert.assertTrue("elapsed " + elapsedMs + "ms", elapsedMs >= 1300);
+    }
+
+    @Test
+    public void testProgressReportThrottle() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        File output = new File(mFolder.getRoot(), mMd5);
+        TXOTAImpl ota = newOTA(callback);
+        ota.setProgressReportThrottle(0, 25);
+
+        new TXOTADownloadTask(ota, ota.getDownloadListener(), mUrl, output.getPath(), mMd5, null, "1.0.0", 1, 0).run();
+
+        Assert.assertEquals(output.getPath(), callback.mCompleted);
+        Assert.assertTrue(callback.mPercents.toString(), callback.mPercents.size() <= 5);
+        Assert.assertEquals(Integer.valueOf(100), callback.mPercents.get(callback.mPercents.size() - 1));
+        for (int i = 1; i < callback.mPercents.size() - 1; i++) {
+            Assert.assertTrue(callback.mPercents.get(i) - callback.mPercents.get(i - 1) >= 25);
+        }
+    }
+
+    private TXOTADownloadTask newTask(RecordingCallback callback, File output, int parallelism) {
+        return newTask(callback, output, parallelism, null);
+    }
+
+    private TXOTADownloadTask newTask(RecordingCallback callback, File output, int parallelism, String sha256) {
+        TXOTAImpl ota = newOTA(callback);
+        return new TXOTADownloadTask(ota, ota.getDownloadListener(), mUrl, output.getPath(), mMd5, sha256, "1.0.0",
+                parallelism, 0);
+    }
+
+    private TXOTAImpl newOTA(RecordingCallback callback) {
+        TXMqttConnection connection = new TXMqttConnection("PRODUCT", "DEVICE", "secret", null);
+        TXOTAImpl ota = new TXOTAImpl(connection, mFolder.getRoot().getPath(), callback);
+        // 带宽限制由下载管理器持有，每个用例使用独立的管理器，避免影响其他用例
+        ota.setDownloadManager(mManager);
+        return ota;
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return TXOTAImpl.convertHashToString(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    private static class RecordingCallback implements TXOTACallBack {
+        private volatile String mCompleted;
+        private volatile int mFailure;
+        private final AtomicInteger mFailures = new AtomicInteger(0);
+        private volatile int mLastPercent;
+        private final List<Integer> mPercents = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void onReportFirmwareVersion(int resultCode, String version, String resultMsg) {
+        }
+
+        @Override
+        public void onDownloadProgress(int percent, String version) {
+            mLastPercent = percent;
+            mPercents.add(percent);
+        }
+
+        @Override
+        public void onDownloadCompleted(String outputFile, String version) {
+            mCompleted = outputFile;
+        }
+
+        @Override
+        public void onDownloadFailure(int errCode, String version) {
+            mFailure = errCode;
+            mFailures.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.qcloud.iot.mqtt;
+
+import com.qcloud.iot.common.Status;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 验证离线发布缓存溢出到磁盘后按顺序限速补发、KEEP_LATEST合并，以及重启后在定时任务线程池补发磁盘中的消息
+ */
+public class TXOfflinePublishBufferTest {
+
+    private static final String DATA_TOPIC = "PRODUCT/device/data";
+    private static final String SHADOW_TOPIC = "PRODUCT/device/shadow";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testSpillAndDrainInOrder() throws Exception {
+        RecordingConnection connection = new RecordingConnection();
+        TXOfflinePublishBuffer buffer = new TXOfflinePublishBuffer(mFolder.newFolder(), 1024, 4, 4096, 200);
+        connection.setOfflinePublishBuffer(buffer);
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(Status.OK, connection.publish(DATA_TOPIC, message("m-" + i), null));
+        }
+        Assert.assertTrue(buffer.getSpilled() > 0);
+        Assert.assertTrue(buffer.getMemoryBytes() <= 1024);
+        Assert.assertTrue(connection.mPublished.isEmpty());
+
+        // 连接建立后补发，补发期间新发布的消息排在后面
+        long start = System.currentTimeMillis();
+        connection.setConnected();
+        for (int i = 100; i < 110; i++) {
+            Assert.assertEquals(Status.OK, connection.publish(DATA_TOPIC, message("m-" + i), null));
+        }
+        waitPublished(connection, 110);
+        long elapsed = System.currentTimeMillis() - start;
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 110; i++) {
+            expected.add(DATA_TOPIC + ":m-" + i);
+        }
+        Assert.assertEquals(expected, connection.published());
+        // 每秒200条，110条至少需要约0.5秒
+        Assert.assertTrue("drained too fast: " + elapsed, elapsed >= 400);
+        Assert.assertEquals(110, buffer.getDrained());
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testKeepLatest() throws Exception {
+        RecordingConnection connection = new RecordingConnection();
+        TXOfflinePublishBuffer buffer = new TXOfflinePublishBuffer(mFolder.newFolder(), 64 * 1024, 4, 4096, 1000);
+        buffer.setPolicy(SHADOW_TOPIC, TXOfflinePublishBuffer.Policy.KEEP_LATEST);
+        connection.setOfflinePublishBuffer(buffer);
+
+        buffer.offer(SHADOW_TOPIC, message("v1"));
+        buffer.offer(DATA_TOPIC, message("a"));
+        buffer.offer(SHADOW_TOPIC, message("v2"));
+        buffer.offer(DATA_TOPIC, message("b"));
+        buffer.offer(SHADOW_TOPIC, message("v3"));
+        Assert.assertEquals(3, buffer.getMemoryCount());
+        Assert.assertEquals(2, buffer.getCoalesced());
+
+        connection.setConnected();
+        waitPublished(connection, 3);
+        Assert.assertEquals(Arrays.asList(SHADOW_TOPIC + ":v3", DATA_TOPIC + ":a", DATA_TOPIC + ":b"), connection.published());
+
+        // 已溢出到磁盘的旧消息在补发时跳过
+        RecordingConnection spilled = new RecordingConnection();
+        buffer = new TXOfflinePublishBuffer(mFolder.newFolder(), 0, 4, 4096, 1000);
+        buffer.setPolicy(SHADOW_TOPIC, TXOfflinePublishBuffer.Policy.KEEP_LATEST);
+        spilled.setOfflinePublishBuffer(buffer);
+        buffer.offer(SHADOW_TOPIC, message("v1"));
+        buffer.offer(DATA_TOPIC, message("a"));
+        buffer.offer(SHADOW_TOPIC, message("v2"));
+        Assert.assertEquals(3, buffer.getSpilled());
+
+        spilled.setConnected();
+        waitPublished(spilled, 2);
+        Thread.sleep(200);
+        Assert.assertEquals(Arrays.asList(DATA_TOPIC + ":a", SHADOW_TOPIC + ":v2"), spilled.published());
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testDrainAfterRestart() throws Exception {
+        File dir = mFolder.newFolder();
+        RecordingConnection connection = new RecordingConnection();
+        TXOfflinePublishBuffer buffer = new TXOfflinePublishBuffer(dir, 64 * 1024, 4, 4096, 1000);
+        connection.setOfflinePublishBuffer(buffer);
+        for (int i = 0; i < 20; i++) {
+            buffer.offer(DATA_TOPIC, message("m-" + i));
+        }
+        // 断开连接时内存中的消息写入磁盘
+        connection.disConnect(null);
+        Assert.assertEquals(0, buffer.getMemoryCount());
+
+        // 模拟进程重启
+        RecordingConnection restarted = new RecordingConnection();
+        TXOfflinePublishBuffer recovered = new TXOfflinePublishBuffer(dir, 64 * 1024, 4, 4096, 1000);
+        restarted.setOfflinePublishBuffer(recovered);
+        Assert.assertFalse(recovered.isEmpty());
+        restarted.setConnected();
+        waitPublished(restarted, 20);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(DATA_TOPIC + ":m-" + i, restarted.published().get(i));
+        }
+        Assert.assertTrue(recovered.isEmpty());
+        // 时间轮只负责计时，补发在定时任务线程池执行
+        for (String thread : restarted.mThreads) {
+            Assert.assertTrue(thread, thread.startsWith("TXMqtt-timer-task-"));
+        }
+    }
+
+    private static MqttMessage message(String payload) {
+        MqttMessage message = new MqttMessage(payload.getBytes());
+        message.setQos(1);
+        return message;
+    }
+
+    private static void waitPublished(RecordingConnection connection, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (connection.mPublished.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(count, connection.mPublished.size());
+    }
+
+    /**
+     * 不连接服务器，记录补发的消息
+     */
+    private static class RecordingConnection extends TXMqttConnection {
+        private final List<String> mPublished = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> mThreads = Collections.synchronizedList(new ArrayList<String>());
+
+        RecordingConnection() {
+            super("tcp://127.0.0.1:1883", "PRODUCT", "device", null, null, null, false, null, null);
+        }
+
+        void setConnected() {
+            mConnectStatus = TXMqttConstants.ConnectStatus.kConnected;
+            getOfflinePublishBuffer().startDrain();
+        }
+
+        List<String> published() {
+            synchronized (mPublished) {
+                return new ArrayList<>(mPublished);
+            }
+        }
+
+        @Override
+        void publishBuffered(String topic, MqttMessage message) {
+            mThreads.add(Thread.currentThread().getName());
+            mPublished.add(topic + ":" + new String(message.getPayload()));
+        }
+    }
+}
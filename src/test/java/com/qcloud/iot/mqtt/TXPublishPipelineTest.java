@@ -0,0 +1,239 @@
+package com.qcloud.iot.mqtt;
+
+import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 验证发布流水线的在途窗口、Paho在途窗口已满时的重试、失败结果聚合、拒绝把消息交给会删除旧消息的Paho缓存，以及经过离线发布缓存
+ */
+public class TXPublishPipelineTest {
+
+    private static final String TOPIC = "PRODUCT/device/data";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testWindowLimit() throws Exception {
+        FakeClient client = new FakeClient();
+        TXPublishPipeline pipeline = new TXPublishPipeline(newConnection(client), 4);
+
+        CompletableFuture<TXPublishBatchResult> future = pipeline.publish(requests(10));
+        Assert.assertEquals(4, client.mPending.size());
+        Assert.assertEquals(4, pipeline.getInFlight());
+        Assert.assertEquals(6, pipeline.getQueued());
+
+        // 每完成一条补发一条，窗口始终不超过4
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(pipeline.getInFlight() <= 4);
+            client.complete(null);
+        }
+        TXPublishBatchResult result = future.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(10, result.getSucceeded());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertEquals(0, pipeline.getInFlight());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("m-" + i, client.mPublished.get(i));
+        }
+    }
+
+    @Test
+    public void testMaxInflightRetry() throws Exception {
+        FakeClient client = new FakeClient();
+        client.mRejectInflight = 3;
+        TXPublishPipeline pipeline = new TXPublishPipeline(newConnection(client), 4);
+
+        CompletableFuture<TXPublishBatchResult> future = pipeline.publish(requests(2));
+        Assert.assertTrue(client.mPending.isEmpty());
+        Assert.assertEquals(2, pipeline.getQueued());
+
+        // Paho窗口被流水线外的消息占满时稍后重试，而不是判定失败
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.mPending.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(2, client.mPending.size());
+        client.complete(null);
+        client.complete(null);
+        TXPublishBatchResult result = future.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(2, result.getSucceeded());
+        Assert.assertEquals(Arrays.asList("m-0", "m-1"), client.mPublished);
+    }
+
+    @Test
+    public void testFailureAggregation() throws Exception {
+        FakeClient client = new FakeClient();
+        TXPublishPipeline pipeline = new TXPublishPipeline(newConnection(client), 8);
+
+        List<TXPublishRequest> requests = requests(4);
+        requests.add(new TXPublishRequest("", message("empty-topic")));
+        requests.add(new TXPublishRequest(TOPIC, message("throw")));
+        CompletableFuture<TXPublishBatchResult> future = pipeline.publish(requests);
+
+        client.complete(null);
+        MqttException timeout = new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+        client.complete(timeout);
+        client.complete(null);
+        client.complete(null);
+
+        TXPublishBatchResult result = future.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(6, result.getTotal());
+        Assert.assertEquals(3, result.getSucceeded());
+        Assert.assertEquals(3, result.getFailed());
+        List<String> failed = new ArrayList<>();
+        for (TXPublishRequest request : result.getFailedRequests()) {
+            failed.add(new String(request.getMessage().getPayload()));
+        }
+        Assert.assertTrue(failed.containsAll(Arrays.asList("m-1", "empty-topic", "throw")));
+        Assert.assertEquals(0, pipeline.getInFlight());
+    }
+
+    @Test
+    public void testRejectDeleteOldestBuffer() throws Exception {
+        FakeClient client = new FakeClient();
+        client.mConnected = false;
+        TXMqttConnection connection = newConnection(client);
+        DisconnectedBufferOptions options = new DisconnectedBufferOptions();
+        options.setBufferEnabled(true);
+        options.setDeleteOldestMessages(true);
+        connection.bufferOpts = options;
+        TXPublishPipeline pipeline = new TXPublishPipeline(connection, 4);
+
+        TXPublishBatchResult result = pipeline.publish(requests(3)).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(3, result.getFailed());
+        Assert.assertTrue(client.mPending.isEmpty());
+        Assert.assertEquals(0, pipeline.getInFlight());
+
+        // 不删除旧消息的缓存可以继续交给Paho
+        options.setDeleteOldestMessages(false);
+        CompletableFuture<TXPublishBatchResult> future = pipeline.publish(requests(1));
+        Assert.assertEquals(1, client.mPending.size());
+        client.complete(null);
+        Assert.assertEquals(1, future.get(1, TimeUnit.SECONDS).getSucceeded());
+    }
+
+    @Test
+    public void testOfflineBuffer() throws Exception {
+        FakeClient client = new FakeClient();
+        client.mConnected = false;
+        TXMqttConnection connection = newConnection(client);
+        TXOfflinePublishBuffer buffer = new TXOfflinePublishBuffer(mFolder.newFolder(), 64 * 1024, 4, 4096, 1000);
+        connection.setOfflinePublishBuffer(buffer);
+        TXPublishPipeline pipeline = new TXPublishPipeline(connection, 4);
+
+        // 断连期间与publish一致放入离线缓存，视为成功
+        TXPublishBatchResult result = pipeline.publish(requests(3)).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(3, result.getSucceeded());
+        Assert.assertEquals(3, buffer.getMemoryCount());
+        Assert.assertTrue(client.mPending.isEmpty());
+
+        // 已连接但缓存尚未补发完时继续排在缓存之后
+        client.mConnected = true;
+        result = pipeline.publish(requests(2)).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(2, result.getSucceeded());
+        Assert.assertEquals(5, buffer.getMemoryCount());
+        Assert.assertTrue(client.mPending.isEmpty());
+        Assert.assertEquals(0, pipeline.getInFlight());
+
+        // 不使用离线缓存时直接交给Paho
+        connection.setOfflinePublishBuffer(null);
+        CompletableFuture<TXPublishBatchResult> future = pipeline.publish(requests(1));
+        Assert.assertEquals(1, client.mPending.size());
+        client.complete(null);
+        Assert.assertEquals(1, future.get(1, TimeUnit.SECONDS).getSucceeded());
+    }
+
+    private static TXMqttConnection newConnection(FakeClient client) {
+        TXMqttConnection connection = new TXMqttConnection("tcp://127.0.0.1:1883", "PRODUCT", "device", null, null, null, false, null, null);
+        connection.mMqttClient = client;
+        return connection;
+    }
+
+    private static List<TXPublishRequest> requests(int count) {
+        List<TXPublishRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            requests.add(new TXPublishRequest(TOPIC, message("m-" + i)));
+        }
+        return requests;
+    }
+
+    private static MqttMessage message(String payload) {
+        MqttMessage message = new MqttMessage(payload.getBytes());
+        message.setQos(1);
+        return message;
+    }
+
+    /**
+     * 不连接服务器，记录发布的消息，由测试按顺序完成token
+     */
+    private static class FakeClient extends MqttAsyncClient {
+        private final List<String> mPublished = new ArrayList<>();
+        private final List<MqttDeliveryToken> mPending = new ArrayList<>();
+        private final List<IMqttActionListener> mListeners = new ArrayList<>();
+        private volatile boolean mConnected = true;
+        private int mRejectInflight = 0;
+
+        FakeClient() throws MqttException {
+            super("tcp://127.0.0.1:1883", "PRODUCTdevice", new MemoryPersistence());
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        @Override
+        public synchronized IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext,
+                                                       IMqttActionListener callback) throws MqttException {
+            if (mRejectInflight > 0) {
+                mRejectInflight--;
+                throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+            }
+            String payload = new String(message.getPayload());
+            if (payload.equals("throw")) {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION);
+            }
+            MqttDeliveryToken token = new MqttDeliveryToken(getClientId());
+            token.setUserContext(userContext);
+            mPublished.add(payload);
+            mPending.add(token);
+            mListeners.add(callback);
+            return token;
+        }
+
+        /**
+         * 完成最早的在途消息
+         *
+         * @param cause 失败原因，null表示成功
+         */
+        void complete(Throwable cause) {
+            MqttDeliveryToken token;
+            IMqttActionListener listener;
+            synchronized (this) {
+                token = mPending.remove(0);
+                listener = mListeners.remove(0);
+            }
+            if (cause == null) {
+                listener.onSuccess(token);
+            } else {
+                listener.onFailure(token, cause);
+            }
+        }
+    }
+}
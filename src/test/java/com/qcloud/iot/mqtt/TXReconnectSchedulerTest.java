@@ -0,0 +1,163 @@
+package com.qcloud.iot.mqtt;
+
+import com.qcloud.iot.common.Status;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 验证重连退避序列、被阻塞的连接不影响限流器放行其他连接，以及本地模拟服务端重启后大量连接在限流下全部恢复
+ */
+public class TXReconnectSchedulerTest {
+
+    private static final int CONNECTIONS = 100;
+    private static final int MAX_IN_FLIGHT = 8;
+
+    private TXStandInBroker mBroker;
+    private final List<TXMqttConnection> mConnections = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mBroker = new TXStandInBroker();
+        mBroker.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (TXMqttConnection connection : mConnections) {
+            connection.disConnect(null);
+        }
+        mBroker.stop();
+    }
+
+    @Test
+    public void testDecorrelatedJitter() {
+        TXConnectThrottle throttle = new TXConnectThrottle(1, 1);
+        TXReconnectScheduler first = new TXReconnectScheduler(100, 5000, throttle, new Random(42));
+        TXReconnectScheduler second = new TXReconnectScheduler(100, 5000, throttle, new Random(42));
+
+        long previous = 100;
+        boolean reachedCap = false;
+        for (int i = 0; i < 30; i++) {
+            long delay = first.nextDelay();
+            // 同一种子的退避序列相同
+            Assert.assertEquals(delay, second.nextDelay());
+            Assert.assertTrue(delay >= 100);
+            Assert.assertTrue(delay <= Math.min(5000, previous * 3));
+            reachedCap |= delay > 2500;
+            previous = delay;
+        }
+        Assert.assertTrue(reachedCap);
+
+        // 连接成功后从基础延迟重新开始
+        first.onConnected();
+        Assert.assertTrue(first.nextDelay() < 300);
+    }
+
+    @Test
+    public void testBlockedAttemptDoesNotStallDispatcher() throws Exception {
+        TXConnectThrottle throttle = new TXConnectThrottle(MAX_IN_FLIGHT, 1000);
+        final Object monitor = new Object();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch other = new CountDownLatch(1);
+
+        synchronized (monitor) {
+            // 第一个连接等待被其他线程持有的连接锁
+            throttle.submit(() -> {
+                blocked.countDown();
+                synchronized (monitor) {
+                    throttle.release();
+                }
+            });
+            Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+            throttle.submit(() -> {
+                other.countDown();
+                throttle.release();
+            });
+            Assert.assertTrue(other.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, throttle.getInFlight());
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (throttle.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(0, throttle.getInFlight());
+        Assert.assertEquals(2, throttle.getCompleted());
+    }
+
+    @Test
+    public void testReconnectStorm() throws Exception {
+        TXConnectThrottle throttle = new TXConnectThrottle(MAX_IN_FLIGHT, 1000);
+        TXMqttActionCallBack callback = new TXMqttActionCallBack() {
+            @Override
+            public void onConnectCompleted(Status status, boolean reconnect, Object userContext, String msg) {
+            }
+
+            @Override
+            public void onConnectionLost(Throwable cause) {
+            }
+
+            @Override
+            public void onDisconnectCompleted(Status status, Object userContext, String msg) {
+            }
+        };
+
+        for (int i = 0; i < CONNECTIONS; i++) {
+            TXMqttConnection connection = new TXMqttConnection("tcp://127.0.0.1:" + mBroker.mPort, "PRODUCT",
+                    "device" + i, "c2VjcmV0", null, new MemoryPersistence(), false, null, callback);
+            connection.setReconnectScheduler(new TXReconnectScheduler(50, 1000, throttle, new Random(i)));
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setAutomaticReconnect(true);
+            options.setConnectionTimeout(5);
+            options.setKeepAliveInterval(60);
+            connection.connectAsync(options).get(5, TimeUnit.SECONDS);
+            mConnections.add(connection);
+        }
+        Assert.assertEquals(CONNECTIONS, mBroker.mConnects.get());
+
+        // 模拟服务端重启：断开所有连接，停止服务300毫秒，之后每次握手耗时20毫秒
+        mBroker.mConnackDelayMs = 20;
+        mBroker.restart(300);
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (countConnected() < CONNECTIONS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(CONNECTIONS, countConnected());
+
+        // 同时进行中的握手不超过限流器上限
+        Assert.assertTrue(mBroker.mMaxPendingConnects.get() <= MAX_IN_FLIGHT);
+        Assert.assertTrue(throttle.getMaxObservedInFlight() <= MAX_IN_FLIGHT);
+        Assert.assertEquals(0, throttle.getInFlight());
+        Assert.assertEquals(throttle.getStarted(), throttle.getCompleted());
+
+        for (TXMqttConnection connection : mConnections) {
+            TXReconnectScheduler scheduler = connection.getReconnectScheduler();
+            Assert.assertEquals(1, scheduler.getReconnects());
+            Assert.assertEquals(scheduler.getAttempts(), scheduler.getFailures() + 1);
+            Assert.assertEquals(0, scheduler.getLastDelayMs());
+            Assert.assertFalse(scheduler.isScheduled());
+        }
+    }
+
+    private int countConnected() {
+        int connected = 0;
+        for (TXMqttConnection connection : mConnections) {
+            if (connection.getConnectStatus() == TXMqttConstants.ConnectStatus.kConnected && connection.mMqttClient.isConnected()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+}
@@ -0,0 +1,128 @@
+package com.qcloud.iot.mqtt;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.internal.ClientComms;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 共享时间轮心跳浸泡测试：10000个客户端共用一个时间轮线程和固定数量的心跳检查线程
+ */
+@Slf4j
+public class TXSharedPingSenderTest {
+
+    private static final int CLIENTS = 10000;
+    private static final long KEEP_ALIVE_MS = 1000;
+    private static final long SOAK_MS = 5000;
+
+    /**
+     * 模拟Paho的ClientComms：每次心跳检查后按keepAlive重新调度
+     */
+    private static class FakeComms extends ClientComms {
+        private final TXSharedPingSender mSender;
+        private final AtomicInteger mPings = new AtomicInteger(0);
+        private volatile long mLastPingTime;
+
+        FakeComms(MqttAsyncClient client, MemoryPersistence persistence, TXSharedPingSender sender) throws Exception {
+            super(client, persistence, sender);
+            this.mSender = sender;
+        }
+
+        @Override
+        public long getKeepAlive() {
+            return KEEP_ALIVE_MS;
+        }
+
+        @Override
+        public MqttToken checkForActivity() {
+            mPings.incrementAndGet();
+            mLastPingTime = System.currentTimeMillis();
+            mSender.schedule(KEEP_ALIVE_MS);
+            return null;
+        }
+    }
+
+    @Test
+    public void testSoak10kClients() throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        MemoryPersistence persistence = new MemoryPersistence();
+        persistence.open("soak", "tcp://localhost:1883");
+        MqttAsyncClient client = new MqttAsyncClient("tcp://localhost:1883", "soak", new MemoryPersistence(), new TXSharedPingSender());
+
+        List<FakeComms> clients = new ArrayList<>(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            clients.add(new FakeComms(client, persistence, new TXSharedPingSender()));
+        }
+
+        int threadsBefore = threadMXBean.getThreadCount();
+        long startTime = System.currentTimeMillis();
+        for (FakeComms comms : clients) {
+            comms.mSender.start();
+        }
+
+        TimeUnit.MILLISECONDS.sleep(SOAK_MS);
+
+        for (FakeComms comms : clients) {
+            comms.mSender.stop();
+        }
+        int threadsAfter = threadMXBean.getThreadCount();
+
+        long wheelCpuNanos = 0;
+        for (ThreadInfo info : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds())) {
+            if (info != null && info.getThreadName().equals("TXMqtt-ping-wheel")) {
+                wheelCpuNanos = threadMXBean.getThreadCpuTime(info.getThreadId());
+            }
+        }
+
+        long totalPings = 0;
+        int minPings = Integer.MAX_VALUE;
+        long[] phaseBuckets = new long[10];
+        for (FakeComms comms : clients) {
+            int pings = comms.mPings.get();
+            totalPings += pings;
+            minPings = Math.min(minPings, pings);
+            phaseBuckets[(int) ((comms.mLastPingTime - startTime) % KEEP_ALIVE_MS * 10 / KEEP_ALIVE_MS)]++;
+        }
+
+        log.info("clients={}, threads before={}, after={}, total pings={}, min pings per client={}, wheel cpu={}ms",
+                CLIENTS, threadsBefore, threadsAfter, totalPings, minPings, TimeUnit.NANOSECONDS.toMillis(wheelCpuNanos));
+        log.info("last ping phase distribution (100ms buckets): {}", Arrays.toString(phaseBuckets));
+
+        // 所有客户端只多出一个时间轮线程和固定数量的心跳检查线程（首次启动时创建）
+        assertTrue(threadsAfter - threadsBefore <= 1 + TXSharedPingSender.TIMER_TASK_THREADS);
+        // 每个客户端在浸泡期内都至少完成了3次心跳（keepAlive 1s，抖动最多10%）
+        assertTrue(minPings >= 3);
+        // 抖动使心跳相位分散，不会全部集中在同一个100ms内
+        int usedBuckets = 0;
+        for (long count : phaseBuckets) {
+            if (count > 0) {
+                usedBuckets++;
+            }
+        }
+        assertTrue(usedBuckets > 1);
+    }
+
+    @Test
+    public void testJitterBounds() {
+        for (int i = 0; i < 1000; i++) {
+            long delay = TXSharedPingSender.jitter(10000, TXSharedPingSender.DEFAULT_JITTER_RATIO);
+            assertTrue(delay >= 10000 && delay <= 11000);
+        }
+        assertEquals(10000, TXSharedPingSender.jitter(10000, 0));
+    }
+}
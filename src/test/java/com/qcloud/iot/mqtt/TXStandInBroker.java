@@ -0,0 +1,147 @@
+package com.qcloud.iot.mqtt;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的最简单的MQTT服务端：应答CONNECT、PUBLISH、SUBSCRIBE、UNSUBSCRIBE及PINGREQ，统计同时进行中的握手数
+ */
+class TXStandInBroker {
+    final AtomicInteger mMaxPendingConnects = new AtomicInteger();
+    final AtomicInteger mConnects = new AtomicInteger();
+    final AtomicInteger mPublishes = new AtomicInteger();
+    volatile long mConnackDelayMs;
+    int mPort;
+
+    private final Set<Socket> mClients = ConcurrentHashMap.newKeySet();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger mPendingConnects = new AtomicInteger();
+    private volatile ServerSocket mServer;
+
+    void start() throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), mPort), 1024);
+        mPort = server.getLocalPort();
+        mServer = server;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept(mServer);
+            }
+        });
+    }
+
+    void restart(long downMs) throws Exception {
+        close();
+        mMaxPendingConnects.set(0);
+        Thread.sleep(downMs);
+        start();
+    }
+
+    void stop() throws IOException {
+        close();
+        mExecutor.shutdownNow();
+    }
+
+    String getServerURI() {
+        return "tcp://127.0.0.1:" + mPort;
+    }
+
+    private void close() throws IOException {
+        mServer.close();
+        for (Socket client : mClients) {
+            client.close();
+        }
+        mClients.clear();
+    }
+
+    private void accept(ServerSocket server) {
+        while (!server.isClosed()) {
+            try {
+                final Socket client = server.accept();
+                mClients.add(client);
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            } catch (Exception e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try {
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            OutputStream out = client.getOutputStream();
+            while (true) {
+                int header = in.readUnsignedByte();
+                int type = header >> 4;
+                int length = 0;
+                int multiplier = 1;
+                int b;
+                do {
+                    b = in.readUnsignedByte();
+                    length += (b & 0x7F) * multiplier;
+                    multiplier *= 128;
+                } while ((b & 0x80) != 0);
+                byte[] body = new byte[length];
+                in.readFully(body);
+
+                if (type == 1) {
+                    int pending = mPendingConnects.incrementAndGet();
+                    mMaxPendingConnects.accumulateAndGet(pending, Math::max);
+                    try {
+                        Thread.sleep(mConnackDelayMs);
+                    } finally {
+                        mPendingConnects.decrementAndGet();
+                    }
+                    mConnects.incrementAndGet();
+                    out.write(new byte[]{0x20, 0x02, 0x00, 0x00});
+                } else if (type == 3) {
+                    mPublishes.incrementAndGet();
+                    int qos = (header >> 1) & 0x03;
+                    int idOffset = 2 + (((body[0] & 0xFF) << 8) | (body[1] & 0xFF));
+                    if (qos == 1) {
+                        out.write(new byte[]{0x40, 0x02, body[idOffset], body[idOffset + 1]});
+                    } else if (qos == 2) {
+                        out.write(new byte[]{0x50, 0x02, body[idOffset], body[idOffset + 1]});
+                    }
+                } else if (type == 6) {
+                    out.write(new byte[]{0x70, 0x02, body[0], body[1]});
+                } else if (type == 8) {
+                    out.write(new byte[]{(byte) 0x90, 0x03, body[0], body[1], 0x00});
+                } else if (type == 10) {
+                    out.write(new byte[]{(byte) 0xB0, 0x02, body[0], body[1]});
+                } else if (type == 12) {
+                    out.write(new byte[]{(byte) 0xD0, 0x00});
+                } else if (type == 14) {
+                    break;
+                }
+                out.flush();
+            }
+        } catch (Exception e) {
+            // 连接被关闭
+        } finally {
+            mClients.remove(client);
+            try {
+                client.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
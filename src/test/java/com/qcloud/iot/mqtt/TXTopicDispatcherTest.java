@@ -0,0 +1,77 @@
+package com.qcloud.iot.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TXTopicDispatcherTest {
+
+    @Test
+    public void testWildcardMatch() {
+        TXTopicDispatcher dispatcher = new TXTopicDispatcher();
+        final List<String> hits = new ArrayList<>();
+
+        dispatcher.addHandler("prod/dev/data", record(hits, "exact", false));
+        dispatcher.addHandler("prod/+/data", record(hits, "single", false));
+        dispatcher.addHandler("prod/#", record(hits, "multi", true));
+        dispatcher.addHandler("#", record(hits, "all", false));
+
+        Assert.assertTrue(dispatcher.dispatch("prod/dev/data", new MqttMessage()));
+        Assert.assertEquals(4, hits.size());
+
+        hits.clear();
+        Assert.assertTrue(dispatcher.dispatch("prod", new MqttMessage()));
+        Assert.assertTrue(hits.contains("multi"));
+        Assert.assertEquals(2, hits.size());
+
+        hits.clear();
+        Assert.assertFalse(dispatcher.dispatch("other/dev/data", new MqttMessage()));
+        Assert.assertEquals(1, hits.size());
+    }
+
+    @Test
+    public void testSystemTopicNotMatchedByLeadingWildcard() {
+        TXTopicDispatcher dispatcher = new TXTopicDispatcher();
+        final List<String> hits = new ArrayList<>();
+
+        dispatcher.addHandler("#", record(hits, "all", true));
+        dispatcher.addHandler("+/report", record(hits, "single", true));
+        Assert.assertFalse(dispatcher.dispatch("$ota/report", new MqttMessage()));
+
+        dispatcher.addHandler("$ota/#", record(hits, "ota", true));
+        Assert.assertTrue(dispatcher.dispatch("$ota/report", new MqttMessage()));
+        Assert.assertEquals(1, hits.size());
+    }
+
+    @Test
+    public void testRemoveAndInvalidFilter() {
+        TXTopicDispatcher dispatcher = new TXTopicDispatcher();
+        final List<String> hits = new ArrayList<>();
+        TXMessageHandler handler = record(hits, "h", true);
+
+        dispatcher.addHandler("a/+", handler);
+        Assert.assertTrue(dispatcher.removeHandler("a/+", handler));
+        Assert.assertFalse(dispatcher.dispatch("a/b", new MqttMessage()));
+
+        try {
+            dispatcher.addHandler("a/#/b", handler);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            dispatcher.addHandler("a/b+", handler);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static TXMessageHandler record(final List<String> hits, final String name, final boolean consume) {
+        return (topic, message) -> {
+            hits.add(name);
+            return consume;
+        };
+    }
+}
@@ -0,0 +1,94 @@
+package com.qcloud.iot.util;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MappedRingLogTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testReplayAfterReopen() throws Exception {
+        File dir = mFolder.newFolder();
+        MappedRingLog ringLog = new MappedRingLog(dir, 4, 256);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(ringLog.append(("log-" + i).getBytes()));
+        }
+
+        List<String> first = toStrings(ringLog.peek(12));
+        Assert.assertEquals(2, first.size());
+        ringLog.commit();
+        ringLog.flush();
+
+        // 模拟进程重启，已提交的记录不再重放，未提交的记录从检查点继续
+        ringLog = new MappedRingLog(dir, 4, 256);
+        List<String> rest = toStrings(ringLog.peek(Integer.MAX_VALUE));
+        Assert.assertEquals(8, rest.size());
+        Assert.assertEquals("log-2", rest.get(0));
+        Assert.assertEquals("log-9", rest.get(7));
+
+        ringLog.rollback();
+        Assert.assertEquals(8, ringLog.peek(Integer.MAX_VALUE).size());
+        ringLog.commit();
+        Assert.assertTrue(ringLog.isEmpty());
+
+        Assert.assertTrue(ringLog.append("log-10".getBytes()));
+        ringLog = new MappedRingLog(dir, 4, 256);
+        Assert.assertEquals("log-10", toStrings(ringLog.peek(Integer.MAX_VALUE)).get(0));
+    }
+
+    @Test
+    public void testOverwriteOldestWhenFull() throws Exception {
+        MappedRingLog ringLog = new MappedRingLog(mFolder.newFolder(), 3, 64);
+        // 每段可容纳4条8字节的记录（段头8字节 + 4 * (8 + 6)）
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(ringLog.append(String.format("log-%02d", i).getBytes()));
+        }
+        Assert.assertTrue(ringLog.getOverwrittenSegments() > 0);
+
+        List<String> records = toStrings(ringLog.peek(Integer.MAX_VALUE));
+        Assert.assertTrue(records.size() <= 12);
+        Assert.assertEquals("log-99", records.get(records.size() - 1));
+        for (int i = 1; i < records.size(); i++) {
+            Assert.assertTrue(records.get(i - 1).compareTo(records.get(i)) < 0);
+        }
+        Assert.assertFalse(ringLog.append(new byte[64]));
+    }
+
+    @Test
+    public void testCorruptedTailDiscarded() throws Exception {
+        File dir = mFolder.newFolder();
+        MappedRingLog ringLog = new MappedRingLog(dir, 2, 128);
+        ringLog.append("good".getBytes());
+        ringLog.append("torn".getBytes());
+        ringLog.flush();
+
+        // 破坏第二条记录的内容，模拟写入一半时崩溃
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, "segment-1.log"), "rw")) {
+            raf.seek(8 + 8 + 4 + 8);
+            raf.write('X');
+        }
+
+        ringLog = new MappedRingLog(dir, 2, 128);
+        Assert.assertEquals(1, ringLog.peek(Integer.MAX_VALUE).size());
+        ringLog.commit();
+        Assert.assertTrue(ringLog.append("next".getBytes()));
+        Assert.assertEquals("next", toStrings(ringLog.peek(Integer.MAX_VALUE)).get(0));
+    }
+
+    private static List<String> toStrings(List<byte[]> records) {
+        List<String> result = new ArrayList<>();
+        for (byte[] record : records) {
+            result.add(new String(record));
+        }
+        return result;
+    }
+}
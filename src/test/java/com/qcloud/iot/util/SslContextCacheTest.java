@@ -0,0 +1,190 @@
+package com.qcloud.iot.util;
+
+import com.qcloud.iot.device.CA;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 验证SSLContext按证书材料缓存、缓存数量有上限、不同key并行构造，以及共用缓存后重连时恢复TLS会话
+ */
+public class SslContextCacheTest {
+
+    private SSLServerSocket mServer;
+    private String mServerCrt;
+
+    @Before
+    public void setUp() throws Exception {
+        SslContextCache.clear();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        X500Name name = new X500Name("CN=localhost");
+        long now = System.currentTimeMillis();
+        X509Certificate cert = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(name,
+                BigInteger.ONE, new Date(now - 60000), new Date(now + 3600000), name, keyPair.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+
+        StringWriter pem = new StringWriter();
+        try (JcaPEMWriter writer = new JcaPEMWriter(pem)) {
+            writer.writeObject(cert);
+        }
+        mServerCrt = pem.toString();
+
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        ks.load(null, null);
+        ks.setKeyEntry("server", keyPair.getPrivate(), "secret".toCharArray(), new Certificate[]{cert});
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, "secret".toCharArray());
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+
+        mServer = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0);
+        mServer.setEnabledProtocols(new String[]{"TLSv1.2"});
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServer.isClosed()) {
+                    try (SSLSocket socket = (SSLSocket) mServer.accept()) {
+                        socket.startHandshake();
+                        socket.getInputStream().read();
+                    } catch (Exception e) {
+                        // 客户端握手后直接关闭连接
+                    }
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        SslContextCache.clear();
+    }
+
+    @Test
+    public void testCachedByMaterial() {
+        SSLSocketFactory factory = SslContextCache.getSocketFactory();
+        Assert.assertNotNull(factory);
+        Assert.assertSame(factory, AsymcSslUtils.getSocketFactory());
+        Assert.assertSame(factory, SslContextCache.getSocketFactory(CA.caCrt, null, null));
+
+        Assert.assertNotSame(factory, SslContextCache.getSocketFactory(mServerCrt, null, null));
+        Assert.assertEquals(2, SslContextCache.size());
+
+        // 材料无效时不缓存
+        Assert.assertNull(SslContextCache.getSocketFactory("invalid", null, null));
+        Assert.assertEquals(2, SslContextCache.size());
+    }
+
+    @Test
+    public void testBounded() {
+        for (int i = 0; i < SslContextCache.MAX_CONTEXTS * 2; i++) {
+            Assert.assertNotNull(SslContextCache.get("key-" + i, newContext()));
+        }
+        Assert.assertTrue(String.valueOf(SslContextCache.size()), SslContextCache.size() <= SslContextCache.MAX_CONTEXTS);
+    }
+
+    @Test
+    public void testBuildPerKey() throws Exception {
+        final CountDownLatch building = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger builds = new AtomicInteger();
+        final Callable<SSLContext> slow = new Callable<SSLContext>() {
+            @Override
+            public SSLContext call() throws Exception {
+                builds.incrementAndGet();
+                building.countDown();
+                release.await();
+                return newContext().call();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<SSLContext> get = new Callable<SSLContext>() {
+                @Override
+                public SSLContext call() {
+                    return SslContextCache.get("slow", slow);
+                }
+            };
+            Future<SSLContext> first = executor.submit(get);
+            Assert.assertTrue(building.await(5, TimeUnit.SECONDS));
+            Future<SSLContext> second = executor.submit(get);
+
+            // 其他key的构造不等待正在构造的key
+            Assert.assertNotNull(SslContextCache.get("fast", newContext()));
+            Assert.assertFalse(first.isDone());
+
+            release.countDown();
+            Assert.assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, builds.get());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSessionResumption() throws Exception {
+        byte[] first = handshake(SslContextCache.getSocketFactory(mServerCrt, null, null));
+        byte[] second = handshake(SslContextCache.getSocketFactory(mServerCrt, null, null));
+        Assert.assertArrayEquals(first, second);
+
+        // 每次新建SSLContext时无法恢复会话
+        SslContextCache.clear();
+        byte[] third = handshake(SslContextCache.getSocketFactory(mServerCrt, null, null));
+        Assert.assertFalse(Arrays.equals(first, third));
+    }
+
+    private static Callable<SSLContext> newContext() {
+        return new Callable<SSLContext>() {
+            @Override
+            public SSLContext call() throws Exception {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                return context;
+            }
+        };
+    }
+
+    private byte[] handshake(SSLSocketFactory factory) throws Exception {
+        try (Socket socket = factory.createSocket("localhost", mServer.getLocalPort())) {
+            SSLSocket ssl = (SSLSocket) socket;
+            ssl.startHandshake();
+            return ssl.getSession().getId();
+        }
+    }
+}